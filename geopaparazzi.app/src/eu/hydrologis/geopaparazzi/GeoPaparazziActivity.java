@@ -266,6 +266,14 @@ public class GeoPaparazziActivity extends Activity {
         checkActionBar();
     }
 
+    protected void onPause() {
+        if (gpsManager != null) {
+            // the process might be killed while in background, don't keep gps points in memory
+            gpsManager.flushDatabaseLogging();
+        }
+        super.onPause();
+    }
+
     public void onWindowFocusChanged( boolean hasFocus ) {
         super.onWindowFocusChanged(hasFocus);
         checkActionBar();
@@ -25,6 +25,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map.Entry;
 
 import org.mapsforge.android.maps.Projection;
 import org.mapsforge.android.maps.overlay.OverlayWay;
@@ -50,6 +51,7 @@ import eu.geopaparazzi.library.gpx.parser.TrackPoint;
 import eu.geopaparazzi.library.gpx.parser.WayPoint;
 import eu.geopaparazzi.library.util.LibraryConstants;
 import eu.hydrologis.geopaparazzi.maps.LogMapItem;
+import eu.hydrologis.geopaparazzi.maps.overlays.GpsLogWay;
 import eu.hydrologis.geopaparazzi.util.Line;
 import eu.hydrologis.geopaparazzi.util.LineArray;
 
@@ -78,7 +80,6 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     public static final String TABLE_DATA = "gpslog_data";
     public static final String TABLE_PROPERTIES = "gpslogsproperties";
 
-    private static SimpleDateFormat dateFormatter = LibraryConstants.TIME_FORMATTER_SQLITE;
     private static SimpleDateFormat dateFormatterForFile = LibraryConstants.TIMESTAMPFORMATTER;
 
     public SQLiteDatabase getDatabase( Context context ) throws Exception {
@@ -104,8 +105,8 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         try {
             // add new log
             ContentValues values = new ContentValues();
-            values.put(COLUMN_LOG_STARTTS, dateFormatter.format(startTs));
-            values.put(COLUMN_LOG_ENDTS, dateFormatter.format(endTs));
+            values.put(COLUMN_LOG_STARTTS, GpsLogChunks.getDateFormatter().format(startTs));
+            values.put(COLUMN_LOG_ENDTS, GpsLogChunks.getDateFormatter().format(endTs));
             if (text == null) {
                 text = "log_" + dateFormatterForFile.format(startTs);
             }
@@ -137,10 +138,35 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         values.put(COLUMN_DATA_LON, lon);
         values.put(COLUMN_DATA_LAT, lat);
         values.put(COLUMN_DATA_ALTIM, altim);
-        values.put(COLUMN_DATA_TS, dateFormatter.format(timestamp));
+        values.put(COLUMN_DATA_TS, GpsLogChunks.getDateFormatter().format(timestamp));
         sqliteDatabase.insertOrThrow(TABLE_DATA, null, values);
     }
 
+    public void addGpsLogDataPoints( SQLiteDatabase sqliteDatabase, long gpslogId, double[] lons, double[] lats,
+            double[] altims, long[] timestamps, int start, int count ) throws IOException {
+        String insertSql = "INSERT INTO " + TABLE_DATA + " (" + COLUMN_DATA_LON + ", " + COLUMN_DATA_LAT + ", "
+                + COLUMN_DATA_ALTIM + ", " + COLUMN_DATA_TS + ", " + COLUMN_LOGID + ") VALUES (?, ?, ?, ?, ?)";
+        SQLiteStatement insertStatement = sqliteDatabase.compileStatement(insertSql);
+        try {
+            Date timestamp = new Date(0);
+            int capacity = lons.length;
+            for( int i = 0; i < count; i++ ) {
+                int index = (start + i) % capacity;
+                timestamp.setTime(timestamps[index]);
+                insertStatement.bindDouble(1, lons[index]);
+                insertStatement.bindDouble(2, lats[index]);
+                insertStatement.bindDouble(3, altims[index]);
+                insertStatement.bindString(4, GpsLogChunks.getDateFormatter().format(timestamp));
+                insertStatement.bindLong(5, (int) gpslogId);
+                if (insertStatement.executeInsert() == -1) {
+                    throw new IOException("Could not insert gps log point.");
+                }
+            }
+        } finally {
+            insertStatement.close();
+        }
+    }
+
     public void deleteGpslog( Context context, long id ) throws IOException {
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
         sqliteDatabase.beginTransaction();
@@ -163,6 +189,8 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             sqlUpdate.execute();
             sqlUpdate.close();
 
+            GpsLogChunks.deleteLog(sqliteDatabase, id);
+
             sqliteDatabase.setTransactionSuccessful();
         } catch (Exception e) {
             GPLog.error("DOAGPSLOG", e.getLocalizedMessage(), e);
@@ -172,6 +200,18 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         }
     }
 
+    public void compactGpsLog( Context context, long logid ) throws IOException {
+        SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
+        try {
+            int points = GpsLogChunks.compactLog(sqliteDatabase, logid);
+            if (GPLog.LOG_HEAVY)
+                GPLog.addLogEntry("DAOGPSLOG", "Compacted gps log " + logid + " with points: " + points);
+        } catch (Exception e) {
+            GPLog.error("DAOGPSLOG", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        }
+    }
+
     public void setEndTs( Context context, long logid, Date end ) throws IOException {
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
         try {
@@ -182,7 +222,7 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             sb.append("UPDATE ");
             sb.append(TABLE_GPSLOGS);
             sb.append(" SET ");
-            sb.append(COLUMN_LOG_ENDTS).append("='").append(dateFormatter.format(end)).append("' ");
+            sb.append(COLUMN_LOG_ENDTS).append("='").append(GpsLogChunks.getDateFormatter().format(end)).append("' ");
             sb.append("WHERE ").append(COLUMN_ID).append("=").append(logid);
 
             String query = sb.toString();
@@ -279,6 +319,29 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     public static List<OverlayWay> getGpslogOverlays( ) throws IOException {
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
         List<OverlayWay> logsList = new ArrayList<OverlayWay>();
+        LinkedHashMap<Long, Paint> paints = getVisibleGpslogPaints();
+        for( Entry<Long, Paint> entry : paints.entrySet() ) {
+            OverlayWay way = new OverlayWay();
+            List<GeoPoint> gpslogGeoPoints = getGpslogGeoPoints(sqliteDatabase, entry.getKey(), -1);
+            if (gpslogGeoPoints.size() > 1) {
+                way.setPaint(null, entry.getValue());
+                GeoPoint[] geoPoints = gpslogGeoPoints.toArray(new GeoPoint[0]);
+                way.setWayNodes(new GeoPoint[][]{geoPoints});
+                logsList.add(way);
+            }
+        }
+        return logsList;
+    }
+
+    /**
+     * Get the paints of the visible gps logs.
+     * 
+     * @return the paints by log id, in log id order.
+     * @throws IOException
+     */
+    public static LinkedHashMap<Long, Paint> getVisibleGpslogPaints() throws IOException {
+        SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
+        LinkedHashMap<Long, Paint> paints = new LinkedHashMap<Long, Paint>();
 
         StringBuilder sB = new StringBuilder();
         sB.append("select l.");
@@ -313,10 +376,6 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                     long logid = c.getLong(0);
                     String color = c.getString(1);
                     double width = c.getDouble(2);
-                    // Logger.d(DEBUG_TAG, "Res: " + logid + "/" + color + "/" + width + "/" +
-                    // visible +
-                    // "/" +
-                    // text);
 
                     Paint wayPaintOutline = new Paint(Paint.ANTI_ALIAS_FLAG);
                     wayPaintOutline.setStyle(Paint.Style.STROKE);
@@ -325,17 +384,7 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                     wayPaintOutline.setAlpha(255);
                     wayPaintOutline.setStrokeWidth((float) width);
                     wayPaintOutline.setStrokeJoin(Paint.Join.ROUND);
-
-                    OverlayWay way = new OverlayWay();
-                    List<GeoPoint> gpslogGeoPoints = getGpslogGeoPoints(sqliteDatabase, logid, -1);
-                    if (gpslogGeoPoints.size() > 1) {
-                        way.setPaint(null, wayPaintOutline);
-                        GeoPoint[] geoPoints = gpslogGeoPoints.toArray(new GeoPoint[0]);
-                        way.setWayNodes(new GeoPoint[][]{geoPoints});
-                        // item.setId(logid);
-                        // item.setVisible(visible == 1 ? true : false);
-                        logsList.add(way);
-                    }
+                    paints.put(logid, wayPaintOutline);
                 }
                 c.moveToNext();
             }
@@ -343,11 +392,25 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             if (c != null)
                 c.close();
         }
+        return paints;
+    }
 
-        // Logger.d(DEBUG_TAG, "Query: " + query);
-        // Logger.d(DEBUG_TAG, "gave logs: " + logsList.size());
-
-        return logsList;
+    /**
+     * Get a gps log as a way simplified for the zoom levels.
+     * 
+     * @param logId the log id.
+     * @param paintOutline the paint to use.
+     * @param maxZoom the maximum zoom level the log will be drawn at.
+     * @param points a buffer for the points of the log, reused between logs.
+     * @return the way or <code>null</code> if the log has less than two points.
+     * @throws IOException
+     */
+    public static GpsLogWay getGpslogWay( long logId, Paint paintOutline, byte maxZoom, GpsLogChunks.Points points )
+            throws IOException {
+        SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
+        points.size = 0;
+        GpsLogChunks.readLog(sqliteDatabase, logId, null, points);
+        return GpsLogWay.create(logId, paintOutline, points, maxZoom);
     }
 
     /**
@@ -370,38 +433,24 @@ public class DaoGpsLog implements IGpsLogDbHelper {
 
     private static List<GeoPoint> getGpslogGeoPoints( SQLiteDatabase sqliteDatabase, long logId, int pointsNum )
             throws IOException {
+        GpsLogChunks.Points points = new GpsLogChunks.Points();
+        GpsLogChunks.readLog(sqliteDatabase, logId, null, points);
+        int jump = getJump(points.size, pointsNum);
+        List<GeoPoint> line = new ArrayList<GeoPoint>();
+        for( int i = 0; i < points.size; i += jump ) {
+            line.add(new GeoPoint(points.lats[i], points.lons[i]));
+        }
+        return line;
+    }
 
-        String asColumnsToReturn[] = {COLUMN_DATA_LON, COLUMN_DATA_LAT};
-        String strSortOrder = COLUMN_DATA_TS + " ASC";
-        String strWhere = COLUMN_LOGID + "=" + logId;
-        Cursor c = null;
-        try {
-            c = sqliteDatabase.query(TABLE_DATA, asColumnsToReturn, strWhere, null, null, null, strSortOrder);
-            int count = c.getCount();
-            int jump = 0;
-            if (pointsNum != -1 && count > pointsNum) {
-                jump = (int) Math.ceil((double) count / pointsNum);
-            }
-
-            c.moveToFirst();
-            List<GeoPoint> line = new ArrayList<GeoPoint>();
-            while( !c.isAfterLast() ) {
-                double lon = c.getDouble(0);
-                double lat = c.getDouble(1);
-                line.add(new GeoPoint(lat, lon));
-                c.moveToNext();
-                for( int i = 1; i < jump; i++ ) {
-                    c.moveToNext();
-                    if (c.isAfterLast()) {
-                        break;
-                    }
-                }
-            }
-            return line;
-        } finally {
-            if (c != null)
-                c.close();
+    /**
+     * @return the step to take at most pointsNum points of count (-1 means all).
+     */
+    private static int getJump( int count, int pointsNum ) {
+        if (pointsNum != -1 && count > pointsNum) {
+            return (int) Math.ceil((double) count / pointsNum);
         }
+        return 1;
     }
 
     public static void updateLogProperties( long logid, String color, float width, boolean visible, String name )
@@ -524,6 +573,8 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             sqlUpdate.execute();
             sqlUpdate.close();
 
+            GpsLogChunks.moveLog(sqliteDatabase, logidToRemove, destinationLogId);
+
             sqliteDatabase.setTransactionSuccessful();
         } catch (Exception e) {
             GPLog.error("DAOGPSLOG", e.getLocalizedMessage(), e);
@@ -599,60 +650,28 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         e = e + DatabaseManager.BUFFER;
         w = w - DatabaseManager.BUFFER;
 
-        String asColumnsToReturn[] = {COLUMN_DATA_LON, COLUMN_DATA_LAT, COLUMN_DATA_ALTIM, COLUMN_DATA_TS};
-        StringBuilder sB = new StringBuilder();
-        sB.append(COLUMN_LOGID);
-        sB.append(" = ");
-        sB.append(logId);
-        sB.append(" AND (");
-        sB.append(COLUMN_DATA_LON);
-        sB.append(" BETWEEN ? AND ?) AND (");
-        sB.append(COLUMN_DATA_LAT);
-        sB.append(" BETWEEN ? AND ?)");
-        String strWhere = sB.toString();
-        String[] strWhereArgs = new String[]{String.valueOf(w), String.valueOf(e), String.valueOf(s), String.valueOf(n)};
-        String strSortOrder = COLUMN_DATA_TS + " ASC";
+        GpsLogChunks.Points points = new GpsLogChunks.Points();
+        GpsLogChunks.readLog(sqliteDatabase, logId, new double[]{w, e, s, n}, points);
         LineArray line = new LineArray("log_" + logId);
-        Cursor c = null;
-        try {
-            c = sqliteDatabase.query(TABLE_DATA, asColumnsToReturn, strWhere, strWhereArgs, null, null, strSortOrder);
-            c.moveToFirst();
-
-            int previousScreenX = Integer.MAX_VALUE;
-            int previousScreenY = Integer.MAX_VALUE;
-
-            @SuppressWarnings("unused")
-            int jump = 0;
-            while( !c.isAfterLast() ) {
-                float lon = c.getFloat(0);
-                float lat = c.getFloat(1);
-
-                GeoPoint g = new GeoPoint(lat, lon);
-                Point mapPixels = pj.toPixels(g, null);
-                // check if on screen it would be placed on the same pixel
-                int screenX = mapPixels.x;
-                int screenY = mapPixels.y;
-                if (abs(screenX - previousScreenX) < decimationFactor && abs(screenY - previousScreenY) < decimationFactor) {
-                    c.moveToNext();
-                    jump++;
-                    continue;
-                }
-                previousScreenX = screenX;
-                previousScreenY = screenY;
 
-                line.addPoint(lon, lat);
-                c.moveToNext();
+        int previousScreenX = Integer.MAX_VALUE;
+        int previousScreenY = Integer.MAX_VALUE;
+        for( int i = 0; i < points.size; i++ ) {
+            float lon = (float) points.lons[i];
+            float lat = (float) points.lats[i];
+
+            GeoPoint g = new GeoPoint(lat, lon);
+            Point mapPixels = pj.toPixels(g, null);
+            // check if on screen it would be placed on the same pixel
+            int screenX = mapPixels.x;
+            int screenY = mapPixels.y;
+            if (abs(screenX - previousScreenX) < decimationFactor && abs(screenY - previousScreenY) < decimationFactor) {
+                continue;
             }
-            // if (Debug.D)
-            // Logger.d("DAOGPSLOG", "Logs jumped: " + jump + " with thres: " + decimationFactor);
-            // Set<Entry<Long, LineArray>> entrySet = linesMap.entrySet();
-            // for( Entry<Long, LineArray> entry : entrySet ) {
-            // Logger.d("DAOGPSLOG", "Found for log: " + entry.getKey() + " points: " +
-            // entry.getValue().getIndex());
-            // }
-        } finally {
-            if (c != null)
-                c.close();
+            previousScreenX = screenX;
+            previousScreenY = screenY;
+
+            line.addPoint(lon, lat);
         }
         return line;
     }
@@ -678,62 +697,33 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         e = e + DatabaseManager.BUFFER;
         w = w - DatabaseManager.BUFFER;
 
-        String asColumnsToReturn[] = {COLUMN_DATA_LON, COLUMN_DATA_LAT, COLUMN_DATA_ALTIM, COLUMN_DATA_TS};
-        StringBuilder sB = new StringBuilder();
-        sB.append(COLUMN_LOGID);
-        sB.append(" = ");
-        sB.append(logId);
-        sB.append(" AND (");
-        sB.append(COLUMN_DATA_LON);
-        sB.append(" BETWEEN ? AND ?) AND (");
-        sB.append(COLUMN_DATA_LAT);
-        sB.append(" BETWEEN ? AND ?)");
-        String strWhere = sB.toString();
-        String[] strWhereArgs = new String[]{String.valueOf(w), String.valueOf(e), String.valueOf(s), String.valueOf(n)};
-        String strSortOrder = COLUMN_DATA_TS + " ASC";
-
-        Cursor c = null;
-        try {
-            c = sqliteDatabase.query(TABLE_DATA, asColumnsToReturn, strWhere, strWhereArgs, null, null, strSortOrder);
-            c.moveToFirst();
-
-            int previousScreenX = Integer.MAX_VALUE;
-            int previousScreenY = Integer.MAX_VALUE;
-
-            @SuppressWarnings("unused")
-            int jump = 0;
-            boolean first = true;
-            while( !c.isAfterLast() ) {
-                float lon = c.getFloat(0);
-                float lat = c.getFloat(1);
-
-                GeoPoint g = new GeoPoint(lat, lon);
-                Point mapPixels = pj.toPixels(g, null);
-                // check if on screen it would be placed on the same pixel
-                int screenX = mapPixels.x;
-                int screenY = mapPixels.y;
-                if (abs(screenX - previousScreenX) < decimationFactor && abs(screenY - previousScreenY) < decimationFactor) {
-                    c.moveToNext();
-                    jump++;
-                    continue;
-                }
-                previousScreenX = screenX;
-                previousScreenY = screenY;
-
-                if (first) {
-                    path.moveTo(screenX, screenY);
-                    first = false;
-                } else {
-                    path.lineTo(screenX, screenY);
-                }
-                c.moveToNext();
+        GpsLogChunks.Points points = new GpsLogChunks.Points();
+        GpsLogChunks.readLog(sqliteDatabase, logId, new double[]{w, e, s, n}, points);
+
+        int previousScreenX = Integer.MAX_VALUE;
+        int previousScreenY = Integer.MAX_VALUE;
+        boolean first = true;
+        for( int i = 0; i < points.size; i++ ) {
+            float lon = (float) points.lons[i];
+            float lat = (float) points.lats[i];
+
+            GeoPoint g = new GeoPoint(lat, lon);
+            Point mapPixels = pj.toPixels(g, null);
+            // check if on screen it would be placed on the same pixel
+            int screenX = mapPixels.x;
+            int screenY = mapPixels.y;
+            if (abs(screenX - previousScreenX) < decimationFactor && abs(screenY - previousScreenY) < decimationFactor) {
+                continue;
+            }
+            previousScreenX = screenX;
+            previousScreenY = screenY;
+
+            if (first) {
+                path.moveTo(screenX, screenY);
+                first = false;
+            } else {
+                path.lineTo(screenX, screenY);
             }
-            // if (Debug.D)
-            // Logger.d("DAOGPSLOG", "Log points jumped: " + jump + " with thres: " +
-            // decimationFactor);
-        } finally {
-            if (c != null)
-                c.close();
         }
     }
 
@@ -746,30 +736,16 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     public static LinkedHashMap<Long, Line> getLinesMap( ) throws IOException {
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
         LinkedHashMap<Long, Line> linesMap = new LinkedHashMap<Long, Line>();
-
-        String asColumnsToReturn[] = {COLUMN_LOGID, COLUMN_DATA_LON, COLUMN_DATA_LAT, COLUMN_DATA_ALTIM, COLUMN_DATA_TS};
-        String strSortOrder = COLUMN_LOGID + "," + COLUMN_DATA_TS + " ASC";
-        Cursor c = null;
-        try {
-            c = sqliteDatabase.query(TABLE_DATA, asColumnsToReturn, null, null, null, null, strSortOrder);
-            c.moveToFirst();
-            while( !c.isAfterLast() ) {
-                long logid = c.getLong(0);
-                double lon = c.getDouble(1);
-                double lat = c.getDouble(2);
-                double altim = c.getDouble(3);
-                String date = c.getString(4);
-                Line line = linesMap.get(logid);
-                if (line == null) {
-                    line = new Line("log_" + logid);
-                    linesMap.put(logid, line);
-                }
-                line.addPoint(lon, lat, altim, date);
-                c.moveToNext();
+        List<Long> logIds = GpsLogChunks.getLogIds(sqliteDatabase);
+        GpsLogChunks.Points points = new GpsLogChunks.Points();
+        for( long logid : logIds ) {
+            points.size = 0;
+            GpsLogChunks.readLog(sqliteDatabase, logid, null, points);
+            Line line = new Line("log_" + logid);
+            for( int i = 0; i < points.size; i++ ) {
+                line.addPoint(points.lons[i], points.lats[i], points.altims[i], points.getDate(i));
             }
-        } finally {
-            if (c != null)
-                c.close();
+            linesMap.put(logid, line);
         }
         return linesMap;
     }
@@ -785,39 +761,14 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     public static Line getGpslogAsLine( long logId, int pointsNum ) throws IOException {
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
 
-        String asColumnsToReturn[] = {COLUMN_DATA_LON, COLUMN_DATA_LAT, COLUMN_DATA_ALTIM, COLUMN_DATA_TS};
-        String strSortOrder = COLUMN_DATA_TS + " ASC";
-        String strWhere = COLUMN_LOGID + "=" + logId;
-        Cursor c = null;
-        try {
-            c = sqliteDatabase.query(TABLE_DATA, asColumnsToReturn, strWhere, null, null, null, strSortOrder);
-            int count = c.getCount();
-            int jump = 0;
-            if (pointsNum != -1 && count > pointsNum) {
-                jump = (int) Math.ceil((double) count / pointsNum);
-            }
-
-            c.moveToFirst();
-            Line line = new Line("log_" + logId);
-            while( !c.isAfterLast() ) {
-                double lon = c.getDouble(0);
-                double lat = c.getDouble(1);
-                double altim = c.getDouble(2);
-                String date = c.getString(3);
-                line.addPoint(lon, lat, altim, date);
-                c.moveToNext();
-                for( int i = 1; i < jump; i++ ) {
-                    c.moveToNext();
-                    if (c.isAfterLast()) {
-                        break;
-                    }
-                }
-            }
-            return line;
-        } finally {
-            if (c != null)
-                c.close();
+        GpsLogChunks.Points points = new GpsLogChunks.Points();
+        GpsLogChunks.readLog(sqliteDatabase, logId, null, points);
+        int jump = getJump(points.size, pointsNum);
+        Line line = new Line("log_" + logId);
+        for( int i = 0; i < points.size; i += jump ) {
+            line.addPoint(points.lons[i], points.lats[i], points.altims[i], points.getDate(i));
         }
+        return line;
     }
 
     /**
@@ -830,24 +781,11 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     public static double[] getGpslogFirstPoint( long logId ) throws IOException {
         SQLiteDatabase sqliteDatabase = DatabaseManager.getInstance().getDatabase();
 
-        String asColumnsToReturn[] = {COLUMN_DATA_LON, COLUMN_DATA_LAT, COLUMN_DATA_ALTIM, COLUMN_DATA_TS};
-        String strSortOrder = COLUMN_DATA_TS + " ASC";
-        String strWhere = COLUMN_LOGID + "=" + logId;
-        Cursor c = null;
-        try {
-            c = sqliteDatabase.query(TABLE_DATA, asColumnsToReturn, strWhere, null, null, null, strSortOrder, "1");
-            c.moveToFirst();
-            double[] lonLat = new double[2];
-            while( !c.isAfterLast() ) {
-                lonLat[0] = c.getDouble(0);
-                lonLat[1] = c.getDouble(1);
-                break;
-            }
-            return lonLat;
-        } finally {
-            if (c != null)
-                c.close();
+        double[] lonLat = GpsLogChunks.readFirstPoint(sqliteDatabase, logId);
+        if (lonLat == null) {
+            lonLat = new double[2];
         }
+        return lonLat;
     }
 
     /**
@@ -918,6 +856,7 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                 } finally {
                     sqliteDatabase.endTransaction();
                 }
+                helper.compactGpsLog(context, logId);
             }
         }
         // routes
@@ -946,6 +885,7 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                 } finally {
                     sqliteDatabase.endTransaction();
                 }
+                helper.compactGpsLog(context, logId);
             }
         }
     }
@@ -979,6 +919,79 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     // }
     // }
 
+    /**
+     * Create the table of the compact gps log points.
+     * 
+     * <p>The points of the existing logs are moved to it later, by {@link #compactGpsLogsInBackground(SQLiteDatabase)}.</p>
+     * 
+     * @param sqliteDatabase the database.
+     * @throws IOException
+     */
+    public static void upgradeGpslogsFromDB7ToDB8( SQLiteDatabase sqliteDatabase ) throws IOException {
+        try {
+            GpsLogChunks.createTables(sqliteDatabase);
+        } catch (Exception e) {
+            GPLog.error("DAOGPSLOG", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Create the spatial index of the gps log chunks and fill it.
+     * 
+     * @param sqliteDatabase the database.
+     * @throws IOException
+     */
+    public static void upgradeGpslogsFromDB8ToDB9( SQLiteDatabase sqliteDatabase ) throws IOException {
+        try {
+            int chunks = GpsLogChunks.createSpatialIndex(sqliteDatabase);
+            if (GPLog.LOG_ANDROID)
+                Log.i("DAOGPSLOG", "Spatially indexed gps log chunks: " + chunks);
+        } catch (Exception e) {
+            GPLog.error("DAOGPSLOG", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Move the points of the logs still kept in the points table to chunks, one log at a time 
+     * on a background thread.
+     * 
+     * <p>Used after the upgrade to chunks, and to finish logs that were never compacted, 
+     * for example because the recording was interrupted. The logs are listed before the database
+     * is handed out, so that a log started meanwhile is not touched. Until moved, the points of 
+     * a log are read from the rows.</p>
+     * 
+     * @param sqliteDatabase the database.
+     */
+    public static void compactGpsLogsInBackground( final SQLiteDatabase sqliteDatabase ) {
+        final List<Long> logIds = GpsLogChunks.getUncompactedLogIds(sqliteDatabase);
+        if (logIds.size() == 0) {
+            return;
+        }
+        Thread compactionThread = new Thread(new Runnable(){
+            public void run() {
+                long points = 0;
+                for( long logId : logIds ) {
+                    if (!sqliteDatabase.isOpen()) {
+                        // resumed at the next open
+                        return;
+                    }
+                    try {
+                        points += GpsLogChunks.compactLog(sqliteDatabase, logId);
+                    } catch (Exception e) {
+                        GPLog.error("DAOGPSLOG", e.getLocalizedMessage(), e);
+                        return;
+                    }
+                }
+                if (GPLog.LOG_ANDROID)
+                    Log.i("DAOGPSLOG", "Moved gps log points to chunks: " + points);
+            }
+        }, "GpsLogCompaction");
+        compactionThread.setPriority(Thread.MIN_PRIORITY);
+        compactionThread.start();
+    }
+
     public static void createTables( ) throws IOException {
         StringBuilder sB = new StringBuilder();
 
@@ -1048,6 +1061,7 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_TS);
         sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_X_BY_Y);
         sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_LOGID_X_Y);
+        GpsLogChunks.createTables(sqliteDatabase);
 
         /*
          * gps log table
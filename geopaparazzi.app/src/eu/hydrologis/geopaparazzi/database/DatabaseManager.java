@@ -38,7 +38,7 @@ import eu.hydrologis.geopaparazzi.GeopaparazziApplication;
 @SuppressWarnings("nls")
 public class DatabaseManager {
 
-    public static final int DATABASE_VERSION = 7;
+    public static final int DATABASE_VERSION = 9;
 
     public static final String DEBUG_TAG = "DATABASEMANAGER";
 
@@ -115,6 +115,8 @@ public class DatabaseManager {
                 int dbVersion = db.getVersion();
                 if (DATABASE_VERSION > dbVersion)
                     upgrade(DATABASE_VERSION, dbVersion, context);
+                // logs kept as rows, since the upgrade or an interrupted recording
+                DaoGpsLog.compactGpsLogsInBackground(db);
             } else {
                 if (Debug.D) {
                     Log.i("SQLiteHelper", "Creating database at " + databaseFile);
@@ -181,6 +183,12 @@ public class DatabaseManager {
             if (oldDbVersion <= 6) {
                 GPLog.createTables(db);
             }
+            if (oldDbVersion <= 7) {
+                DaoGpsLog.upgradeGpslogsFromDB7ToDB8(db);
+            }
+            if (oldDbVersion <= 8) {
+                DaoGpsLog.upgradeGpslogsFromDB8ToDB9(db);
+            }
             db.beginTransaction();
             try {
                 db.setTransactionSuccessful();
@@ -0,0 +1,709 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.database;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.util.LibraryConstants;
+
+/**
+ * Compact storage of the points of finished gps logs.
+ *
+ * <p>Instead of a row per point in {@link DaoGpsLog#TABLE_DATA}, with its four indexes,
+ * the points of a finished log are stored in chunks of up to {@link #CHUNK_POINTS} points,
+ * one row each with the bounding box of its points and a blob with:</p>
+ * <ul>
+ *  <li>the number of points;</li>
+ *  <li>the lon column, then the lat, elevation and time columns;</li>
+ *  <li>each column as zigzag varints of the deltas between consecutive values, in fixed
+ *  point: 1e-7 degrees for the coordinates, centimeters for the elevation and seconds
+ *  for the time, the precision of the text timestamps.</li>
+ * </ul>
+ *
+ * <p>A point takes around ten bytes that way. The logs being recorded stay in the
+ * points table and are moved to chunks when they end, readers take the points from
+ * both through {@link #readLog(SQLiteDatabase, long, double[], Points)}.</p>
+ *
+ * <p>The bounding boxes of the chunks are also kept in the R*Tree {@link #TABLE_CHUNKS_INDEX},
+ * together with the log id as a dimension of its own (min = max = logid), so that the chunks
+ * of a log in a viewport are found without visiting the chunks of the other logs in view
+ * or the chunks of the log outside of it.
+ * If the sqlite of the device is built without the rtree module, the bounding box
+ * columns of the chunks are used instead.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class GpsLogChunks {
+
+    public static final String TABLE_CHUNKS = "gpslog_chunks";
+    public static final String TABLE_CHUNKS_INDEX = "gpslog_chunks_rtree";
+
+    /**
+     * The maximum number of points of a chunk.
+     */
+    public static final int CHUNK_POINTS = 256;
+
+    private static final String COLUMN_LOGID = "logid";
+    private static final String COLUMN_STARTTS = "startts";
+    private static final String COLUMN_COUNT = "count";
+    private static final String COLUMN_MINLOGID = "minlogid";
+    private static final String COLUMN_MAXLOGID = "maxlogid";
+    private static final String COLUMN_MINLON = "minlon";
+    private static final String COLUMN_MINLAT = "minlat";
+    private static final String COLUMN_MAXLON = "maxlon";
+    private static final String COLUMN_MAXLAT = "maxlat";
+    private static final String COLUMN_DATA = "data";
+
+    private static final double COORD_SCALE = 1E7;
+    private static final double ELEV_SCALE = 100.0;
+
+    /**
+     * The formatter of the points timestamps, one per thread since logs are read and
+     * written from the gps, drawing and export threads.
+     */
+    private static final ThreadLocal<SimpleDateFormat> dateFormatter = new ThreadLocal<SimpleDateFormat>(){
+        protected SimpleDateFormat initialValue() {
+            return (SimpleDateFormat) LibraryConstants.TIME_FORMATTER_SQLITE.clone();
+        }
+    };
+
+    /**
+     * Whether the database at a path has the spatial index.
+     */
+    private static final HashMap<String, Boolean> spatialIndexByPath = new HashMap<String, Boolean>();
+
+    /**
+     * The points of a log, in time order.
+     */
+    public static class Points {
+        public double[] lons = new double[64];
+        public double[] lats = new double[64];
+        public double[] altims = new double[64];
+        /**
+         * The times in seconds.
+         */
+        public long[] times = new long[64];
+        public int size = 0;
+
+        void ensureCapacity( int capacity ) {
+            if (capacity > lons.length) {
+                int newLength = Math.max(capacity, lons.length * 2);
+                lons = Arrays.copyOf(lons, newLength);
+                lats = Arrays.copyOf(lats, newLength);
+                altims = Arrays.copyOf(altims, newLength);
+                times = Arrays.copyOf(times, newLength);
+            }
+        }
+
+        void add( double lon, double lat, double altim, long time ) {
+            ensureCapacity(size + 1);
+            lons[size] = lon;
+            lats[size] = lat;
+            altims[size] = altim;
+            times[size] = time;
+            size++;
+        }
+
+        /**
+         * @return the timestamp of a point as stored in the points table.
+         */
+        public String getDate( int index ) {
+            return dateFormatter.get().format(new java.util.Date(times[index] * 1000L));
+        }
+
+        /**
+         * Sort the points by time, keeping the order of points with the same time.
+         */
+        void sortByTime() {
+            boolean sorted = true;
+            for( int i = 1; i < size && sorted; i++ ) {
+                sorted = times[i - 1] <= times[i];
+            }
+            if (sorted) {
+                return;
+            }
+            Integer[] order = new Integer[size];
+            for( int i = 0; i < size; i++ ) {
+                order[i] = i;
+            }
+            final long[] keys = times;
+            // stable merge sort
+            Arrays.sort(order, new Comparator<Integer>(){
+                public int compare( Integer o1, Integer o2 ) {
+                    long t1 = keys[o1];
+                    long t2 = keys[o2];
+                    return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+                }
+            });
+            double[] newLons = new double[lons.length];
+            double[] newLats = new double[lons.length];
+            double[] newAltims = new double[lons.length];
+            long[] newTimes = new long[lons.length];
+            for( int i = 0; i < size; i++ ) {
+                int j = order[i];
+                newLons[i] = lons[j];
+                newLats[i] = lats[j];
+                newAltims[i] = altims[j];
+                newTimes[i] = times[j];
+            }
+            lons = newLons;
+            lats = newLats;
+            altims = newAltims;
+            times = newTimes;
+        }
+    }
+
+    /**
+     * Create the chunks table, if it doesn't exist.
+     *
+     * @param sqliteDatabase the database.
+     */
+    public static void createTables( SQLiteDatabase sqliteDatabase ) {
+        StringBuilder sB = new StringBuilder();
+        sB.append("CREATE TABLE IF NOT EXISTS ");
+        sB.append(TABLE_CHUNKS);
+        sB.append(" (");
+        sB.append(COLUMN_LOGID).append(" INTEGER NOT NULL, ");
+        sB.append(COLUMN_STARTTS).append(" INTEGER NOT NULL, ");
+        sB.append(COLUMN_COUNT).append(" INTEGER NOT NULL, ");
+        sB.append(COLUMN_MINLON).append(" REAL NOT NULL, ");
+        sB.append(COLUMN_MINLAT).append(" REAL NOT NULL, ");
+        sB.append(COLUMN_MAXLON).append(" REAL NOT NULL, ");
+        sB.append(COLUMN_MAXLAT).append(" REAL NOT NULL, ");
+        sB.append(COLUMN_DATA).append(" BLOB NOT NULL");
+        sB.append(");");
+        sqliteDatabase.execSQL(sB.toString());
+
+        sB = new StringBuilder();
+        sB.append("CREATE INDEX IF NOT EXISTS gpslog_chunks_logid_ts_idx ON ");
+        sB.append(TABLE_CHUNKS);
+        sB.append(" ( ");
+        sB.append(COLUMN_LOGID);
+        sB.append(", ");
+        sB.append(COLUMN_STARTTS);
+        sB.append(" );");
+        sqliteDatabase.execSQL(sB.toString());
+
+        createSpatialIndex(sqliteDatabase);
+    }
+
+    /**
+     * Create the spatial index of the chunks, if it doesn't exist and the rtree module is available,
+     * and add the chunks that are not indexed yet.
+     *
+     * @param sqliteDatabase the database.
+     * @return the number of chunks added to the index.
+     */
+    public static int createSpatialIndex( SQLiteDatabase sqliteDatabase ) {
+        // the log id is stored as float like the coordinates, exact for ids below 2^24
+        StringBuilder sB = new StringBuilder();
+        sB.append("CREATE VIRTUAL TABLE IF NOT EXISTS ");
+        sB.append(TABLE_CHUNKS_INDEX);
+        sB.append(" USING rtree(id, ");
+        sB.append(COLUMN_MINLOGID).append(", ");
+        sB.append(COLUMN_MAXLOGID).append(", ");
+        sB.append(COLUMN_MINLON).append(", ");
+        sB.append(COLUMN_MAXLON).append(", ");
+        sB.append(COLUMN_MINLAT).append(", ");
+        sB.append(COLUMN_MAXLAT);
+        sB.append(");");
+        try {
+            sqliteDatabase.execSQL(sB.toString());
+        } catch (SQLiteException e) {
+            // no rtree module, the bounding box columns are used
+            GPLog.addLogEntry("GPSLOGCHUNKS", "No rtree support, gps log chunks are not spatially indexed.");
+            setSpatialIndex(sqliteDatabase, false);
+            return 0;
+        }
+        setSpatialIndex(sqliteDatabase, true);
+
+        sB = new StringBuilder();
+        sB.append("INSERT INTO ").append(TABLE_CHUNKS_INDEX);
+        sB.append(" SELECT rowid, ");
+        sB.append(COLUMN_LOGID).append(", ");
+        sB.append(COLUMN_LOGID).append(", ");
+        sB.append(COLUMN_MINLON).append(", ");
+        sB.append(COLUMN_MAXLON).append(", ");
+        sB.append(COLUMN_MINLAT).append(", ");
+        sB.append(COLUMN_MAXLAT);
+        sB.append(" FROM ").append(TABLE_CHUNKS);
+        sB.append(" WHERE rowid NOT IN (SELECT id FROM ").append(TABLE_CHUNKS_INDEX).append(")");
+        sqliteDatabase.execSQL(sB.toString());
+        Cursor c = sqliteDatabase.rawQuery("SELECT changes()", null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Move the chunks of a log to another log, together with their entries in the spatial index.
+     *
+     * @param sqliteDatabase the database.
+     * @param fromLogId the id of the log the chunks belong to.
+     * @param toLogId the id of the log to move them to.
+     */
+    public static void moveLog( SQLiteDatabase sqliteDatabase, long fromLogId, long toLogId ) {
+        if (hasSpatialIndex(sqliteDatabase)) {
+            sqliteDatabase.execSQL("UPDATE " + TABLE_CHUNKS_INDEX + " SET " + COLUMN_MINLOGID + "=" + toLogId + ", "
+                    + COLUMN_MAXLOGID + "=" + toLogId + " WHERE id IN (SELECT rowid FROM " + TABLE_CHUNKS + " WHERE "
+                    + COLUMN_LOGID + "=" + fromLogId + ")");
+        }
+        sqliteDatabase.execSQL("UPDATE " + TABLE_CHUNKS + " SET " + COLUMN_LOGID + "=" + toLogId + " WHERE " + COLUMN_LOGID
+                + "=" + fromLogId);
+    }
+
+    /**
+     * Delete the chunks of a log, together with their entries in the spatial index.
+     *
+     * @param sqliteDatabase the database.
+     * @param logId the id of the log.
+     */
+    public static void deleteLog( SQLiteDatabase sqliteDatabase, long logId ) {
+        if (hasSpatialIndex(sqliteDatabase)) {
+            sqliteDatabase.execSQL("DELETE FROM " + TABLE_CHUNKS_INDEX + " WHERE id IN (SELECT rowid FROM " + TABLE_CHUNKS
+                    + " WHERE " + COLUMN_LOGID + "=" + logId + ")");
+        }
+        sqliteDatabase.execSQL("DELETE FROM " + TABLE_CHUNKS + " WHERE " + COLUMN_LOGID + "=" + logId);
+    }
+
+    /**
+     * Read the points of a log, from the chunks and from the points table.
+     *
+     * @param sqliteDatabase the database.
+     * @param logId the id of the log.
+     * @param bounds the bounds as w, e, s, n to get only the points inside, or <code>null</code>.
+     * @param points the points to add to.
+     */
+    public static void readLog( SQLiteDatabase sqliteDatabase, long logId, double[] bounds, Points points ) {
+        String strWhere = COLUMN_LOGID + "=" + logId;
+        String[] strWhereArgs = null;
+        Cursor c;
+        if (bounds != null && hasSpatialIndex(sqliteDatabase)) {
+            // chunks of the log whose bounding box intersects the bounds, the cross join makes the rtree drive the query
+            StringBuilder sB = new StringBuilder();
+            sB.append("SELECT c.").append(COLUMN_DATA);
+            sB.append(" FROM ").append(TABLE_CHUNKS_INDEX).append(" r CROSS JOIN ").append(TABLE_CHUNKS).append(" c");
+            sB.append(" WHERE r.").append(COLUMN_MINLOGID).append("<=").append(logId);
+            sB.append(" AND r.").append(COLUMN_MAXLOGID).append(">=").append(logId);
+            sB.append(" AND r.").append(COLUMN_MAXLON).append(">=? AND r.").append(COLUMN_MINLON);
+            sB.append("<=? AND r.").append(COLUMN_MAXLAT).append(">=? AND r.").append(COLUMN_MINLAT).append("<=?");
+            sB.append(" AND c.rowid=r.id AND c.").append(COLUMN_LOGID).append("=").append(logId);
+            sB.append(" ORDER BY c.").append(COLUMN_STARTTS).append(" ASC");
+            c = sqliteDatabase.rawQuery(sB.toString(), toArgs(bounds));
+        } else {
+            if (bounds != null) {
+                // chunks whose bounding box intersects the bounds
+                strWhere = strWhere + " AND " + COLUMN_MAXLON + ">=? AND " + COLUMN_MINLON + "<=? AND " + COLUMN_MAXLAT
+                        + ">=? AND " + COLUMN_MINLAT + "<=?";
+                strWhereArgs = toArgs(bounds);
+            }
+            c = sqliteDatabase.query(TABLE_CHUNKS, new String[]{COLUMN_DATA}, strWhere, strWhereArgs, null, null,
+                    COLUMN_STARTTS + " ASC");
+        }
+        try {
+            while( c.moveToNext() ) {
+                int from = points.size;
+                decode(c.getBlob(0), points);
+                if (bounds != null) {
+                    filter(points, from, bounds);
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        // only the log being recorded has points in the table, the logid, lon, lat index serves it
+        strWhere = COLUMN_LOGID + "=" + logId;
+        strWhereArgs = null;
+        if (bounds != null) {
+            strWhere = strWhere + " AND (lon BETWEEN ? AND ?) AND (lat BETWEEN ? AND ?)";
+            strWhereArgs = toArgs(bounds);
+        }
+        c = sqliteDatabase.query(DaoGpsLog.TABLE_DATA, new String[]{"lon", "lat", "altim", "ts"}, strWhere, strWhereArgs,
+                null, null, "ts ASC, _id ASC");
+        try {
+            long previousTime = 0;
+            while( c.moveToNext() ) {
+                long time = parseTime(c.getString(3), previousTime);
+                points.add(c.getDouble(0), c.getDouble(1), c.getDouble(2), time);
+                previousTime = time;
+            }
+        } finally {
+            c.close();
+        }
+        points.sortByTime();
+    }
+
+    /**
+     * Get the first point of a log.
+     *
+     * @param sqliteDatabase the database.
+     * @param logId the id of the log.
+     * @return the first point as lon, lat or <code>null</code> if the log has no points.
+     */
+    public static double[] readFirstPoint( SQLiteDatabase sqliteDatabase, long logId ) {
+        Points points = new Points();
+        Cursor c = sqliteDatabase.query(TABLE_CHUNKS, new String[]{COLUMN_DATA}, COLUMN_LOGID + "=" + logId, null, null,
+                null, COLUMN_STARTTS + " ASC", "1");
+        try {
+            if (c.moveToFirst()) {
+                decode(c.getBlob(0), points);
+            }
+        } finally {
+            c.close();
+        }
+        c = sqliteDatabase.query(DaoGpsLog.TABLE_DATA, new String[]{"lon", "lat", "ts"}, COLUMN_LOGID + "=" + logId, null,
+                null, null, "ts ASC, _id ASC", "1");
+        try {
+            if (c.moveToFirst()) {
+                long time = parseTime(c.getString(2), 0);
+                if (points.size == 0 || time < points.times[0]) {
+                    return new double[]{c.getDouble(0), c.getDouble(1)};
+                }
+            }
+        } finally {
+            c.close();
+        }
+        if (points.size == 0) {
+            return null;
+        }
+        return new double[]{points.lons[0], points.lats[0]};
+    }
+
+    /**
+     * Get the ids of the logs that have points.
+     *
+     * @param sqliteDatabase the database.
+     * @return the ids in ascending order.
+     */
+    public static List<Long> getLogIds( SQLiteDatabase sqliteDatabase ) {
+        List<Long> logIds = new ArrayList<Long>();
+        Cursor c = sqliteDatabase.rawQuery("SELECT " + COLUMN_LOGID + " FROM " + TABLE_CHUNKS + " UNION SELECT "
+                + COLUMN_LOGID + " FROM " + DaoGpsLog.TABLE_DATA + " ORDER BY " + COLUMN_LOGID, null);
+        try {
+            while( c.moveToNext() ) {
+                logIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return logIds;
+    }
+
+    /**
+     * Move the points of a log from the points table to chunks.
+     *
+     * <p>Runs in a transaction of its own.</p>
+     *
+     * @param sqliteDatabase the database.
+     * @param logId the id of the log, that must not be recording anymore.
+     * @return the number of points moved.
+     */
+    public static int compactLog( SQLiteDatabase sqliteDatabase, long logId ) {
+        sqliteDatabase.beginTransaction();
+        try {
+            Points points = new Points();
+            Cursor c = sqliteDatabase.query(DaoGpsLog.TABLE_DATA, new String[]{"lon", "lat", "altim", "ts"}, COLUMN_LOGID
+                    + "=" + logId, null, null, null, "ts ASC, _id ASC");
+            try {
+                long previousTime = 0;
+                while( c.moveToNext() ) {
+                    long time = parseTime(c.getString(3), previousTime);
+                    points.add(c.getDouble(0), c.getDouble(1), c.getDouble(2), time);
+                    previousTime = time;
+                }
+            } finally {
+                c.close();
+            }
+            if (points.size == 0) {
+                sqliteDatabase.setTransactionSuccessful();
+                return 0;
+            }
+
+            boolean spatialIndex = hasSpatialIndex(sqliteDatabase);
+            for( int from = 0; from < points.size; from += CHUNK_POINTS ) {
+                int count = Math.min(CHUNK_POINTS, points.size - from);
+                double minLon = Double.POSITIVE_INFINITY;
+                double minLat = Double.POSITIVE_INFINITY;
+                double maxLon = Double.NEGATIVE_INFINITY;
+                double maxLat = Double.NEGATIVE_INFINITY;
+                for( int i = from; i < from + count; i++ ) {
+                    minLon = Math.min(minLon, points.lons[i]);
+                    minLat = Math.min(minLat, points.lats[i]);
+                    maxLon = Math.max(maxLon, points.lons[i]);
+                    maxLat = Math.max(maxLat, points.lats[i]);
+                }
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_LOGID, logId);
+                values.put(COLUMN_STARTTS, points.times[from]);
+                values.put(COLUMN_COUNT, count);
+                values.put(COLUMN_MINLON, minLon);
+                values.put(COLUMN_MINLAT, minLat);
+                values.put(COLUMN_MAXLON, maxLon);
+                values.put(COLUMN_MAXLAT, maxLat);
+                values.put(COLUMN_DATA, encode(points, from, count));
+                long chunkId = sqliteDatabase.insertOrThrow(TABLE_CHUNKS, null, values);
+                if (spatialIndex) {
+                    ContentValues indexValues = new ContentValues();
+                    indexValues.put("id", chunkId);
+                    indexValues.put(COLUMN_MINLOGID, logId);
+                    indexValues.put(COLUMN_MAXLOGID, logId);
+                    indexValues.put(COLUMN_MINLON, minLon);
+                    indexValues.put(COLUMN_MAXLON, maxLon);
+                    indexValues.put(COLUMN_MINLAT, minLat);
+                    indexValues.put(COLUMN_MAXLAT, maxLat);
+                    sqliteDatabase.insertOrThrow(TABLE_CHUNKS_INDEX, null, indexValues);
+                }
+            }
+            sqliteDatabase.delete(DaoGpsLog.TABLE_DATA, COLUMN_LOGID + "=" + logId, null);
+            sqliteDatabase.setTransactionSuccessful();
+            return points.size;
+        } finally {
+            sqliteDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Get the ids of the logs that still have points in the points table.
+     *
+     * @param sqliteDatabase the database.
+     * @return the ids.
+     */
+    public static List<Long> getUncompactedLogIds( SQLiteDatabase sqliteDatabase ) {
+        List<Long> logIds = new ArrayList<Long>();
+        Cursor c = sqliteDatabase.rawQuery("SELECT DISTINCT " + COLUMN_LOGID + " FROM " + DaoGpsLog.TABLE_DATA, null);
+        try {
+            while( c.moveToNext() ) {
+                logIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return logIds;
+    }
+
+    /**
+     * Encode points into a chunk blob.
+     *
+     * @param points the points.
+     * @param from the first point.
+     * @param count the number of points.
+     * @return the blob.
+     */
+    static byte[] encode( Points points, int from, int count ) {
+        VarintWriter writer = new VarintWriter(16 + count * 12);
+        writer.writeUnsigned(count);
+        long previous = 0;
+        for( int i = from; i < from + count; i++ ) {
+            long value = Math.round(points.lons[i] * COORD_SCALE);
+            writer.writeSigned(value - previous);
+            previous = value;
+        }
+        previous = 0;
+        for( int i = from; i < from + count; i++ ) {
+            long value = Math.round(points.lats[i] * COORD_SCALE);
+            writer.writeSigned(value - previous);
+            previous = value;
+        }
+        previous = 0;
+        for( int i = from; i < from + count; i++ ) {
+            long value = Math.round(points.altims[i] * ELEV_SCALE);
+            writer.writeSigned(value - previous);
+            previous = value;
+        }
+        previous = 0;
+        for( int i = from; i < from + count; i++ ) {
+            long value = points.times[i];
+            writer.writeSigned(value - previous);
+            previous = value;
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decode a chunk blob, adding its points.
+     *
+     * @param data the blob.
+     * @param points the points to add to.
+     */
+    static void decode( byte[] data, Points points ) {
+        int[] position = new int[1];
+        int count = (int) readUnsigned(data, position);
+        int base = points.size;
+        points.ensureCapacity(base + count);
+        long value = 0;
+        for( int i = 0; i < count; i++ ) {
+            value += readSigned(data, position);
+            points.lons[base + i] = value / COORD_SCALE;
+        }
+        value = 0;
+        for( int i = 0; i < count; i++ ) {
+            value += readSigned(data, position);
+            points.lats[base + i] = value / COORD_SCALE;
+        }
+        value = 0;
+        for( int i = 0; i < count; i++ ) {
+            value += readSigned(data, position);
+            points.altims[base + i] = value / ELEV_SCALE;
+        }
+        value = 0;
+        for( int i = 0; i < count; i++ ) {
+            value += readSigned(data, position);
+            points.times[base + i] = value;
+        }
+        points.size = base + count;
+    }
+
+    private static long readUnsigned( byte[] data, int[] position ) {
+        long result = 0;
+        int shift = 0;
+        int p = position[0];
+        while( true ) {
+            byte b = data[p++];
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        position[0] = p;
+        return result;
+    }
+
+    private static long readSigned( byte[] data, int[] position ) {
+        long zigzag = readUnsigned(data, position);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Remove the points added from a position on that are outside the bounds.
+     */
+    private static void filter( Points points, int from, double[] bounds ) {
+        int kept = from;
+        for( int i = from; i < points.size; i++ ) {
+            double lon = points.lons[i];
+            double lat = points.lats[i];
+            if (lon >= bounds[0] && lon <= bounds[1] && lat >= bounds[2] && lat <= bounds[3]) {
+                points.lons[kept] = lon;
+                points.lats[kept] = lat;
+                points.altims[kept] = points.altims[i];
+                points.times[kept] = points.times[i];
+                kept++;
+            }
+        }
+        points.size = kept;
+    }
+
+    /**
+     * @return <code>true</code> if the database has the spatial index of the chunks.
+     */
+    private static boolean hasSpatialIndex( SQLiteDatabase sqliteDatabase ) {
+        String path = sqliteDatabase.getPath();
+        synchronized (spatialIndexByPath) {
+            Boolean hasIndex = spatialIndexByPath.get(path);
+            if (hasIndex != null) {
+                return hasIndex;
+            }
+        }
+        boolean hasIndex;
+        Cursor c = sqliteDatabase.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name=?",
+                new String[]{TABLE_CHUNKS_INDEX});
+        try {
+            hasIndex = c.moveToFirst();
+        } finally {
+            c.close();
+        }
+        setSpatialIndex(sqliteDatabase, hasIndex);
+        return hasIndex;
+    }
+
+    private static void setSpatialIndex( SQLiteDatabase sqliteDatabase, boolean hasIndex ) {
+        synchronized (spatialIndexByPath) {
+            spatialIndexByPath.put(sqliteDatabase.getPath(), hasIndex);
+        }
+    }
+
+    private static String[] toArgs( double[] bounds ) {
+        return new String[]{String.valueOf(bounds[0]), String.valueOf(bounds[1]), String.valueOf(bounds[2]),
+                String.valueOf(bounds[3])};
+    }
+
+    /**
+     * @return the formatter of the points timestamps for the current thread.
+     */
+    static SimpleDateFormat getDateFormatter() {
+        return dateFormatter.get();
+    }
+
+    private static long parseTime( String ts, long previousTime ) {
+        if (ts == null) {
+            return previousTime;
+        }
+        try {
+            return dateFormatter.get().parse(ts).getTime() / 1000L;
+        } catch (ParseException e) {
+            // keep the order
+            return previousTime;
+        }
+    }
+
+    /**
+     * Writes varints into a growing byte array.
+     */
+    private static class VarintWriter {
+        private byte[] buffer;
+        private int size = 0;
+
+        VarintWriter( int initialSize ) {
+            buffer = new byte[initialSize];
+        }
+
+        void writeUnsigned( long value ) {
+            if (size + 10 > buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2 + 10);
+            }
+            while( (value & ~0x7fL) != 0 ) {
+                buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeSigned( long value ) {
+            writeUnsigned((value << 1) ^ (value >> 63));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+}
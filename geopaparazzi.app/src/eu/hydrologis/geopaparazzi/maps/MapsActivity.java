@@ -23,8 +23,11 @@ import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map.Entry;
 
 import org.mapsforge.android.maps.DebugSettings;
 import org.mapsforge.android.maps.MapActivity;
@@ -109,16 +112,21 @@ import eu.geopaparazzi.library.util.debug.Debug;
 import eu.geopaparazzi.spatialite.database.spatial.SpatialDatabasesManager;
 import eu.geopaparazzi.spatialite.database.spatial.activities.DataListActivity;
 import eu.geopaparazzi.spatialite.database.spatial.core.SpatialRasterTable;
+import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MbTilesCompactor;
 import eu.hydrologis.geopaparazzi.R;
 import eu.hydrologis.geopaparazzi.dashboard.ActionBar;
 import eu.hydrologis.geopaparazzi.database.DaoBookmarks;
 import eu.hydrologis.geopaparazzi.database.DaoGpsLog;
 import eu.hydrologis.geopaparazzi.database.DaoImages;
 import eu.hydrologis.geopaparazzi.database.DaoNotes;
+import eu.hydrologis.geopaparazzi.database.GpsLogChunks;
 import eu.hydrologis.geopaparazzi.database.NoteType;
 import eu.hydrologis.geopaparazzi.maps.overlays.ArrayGeopaparazziOverlay;
+import eu.hydrologis.geopaparazzi.maps.overlays.GpsLogWay;
+import eu.hydrologis.geopaparazzi.maps.tiles.CustomTileCache;
 import eu.hydrologis.geopaparazzi.maps.tiles.CustomTileDownloader;
 import eu.hydrologis.geopaparazzi.maps.tiles.GeopackageTileDownloader;
+import eu.hydrologis.geopaparazzi.maps.tiles.TileSeeder;
 import eu.hydrologis.geopaparazzi.maps.tiles.MapGeneratorInternal;
 import eu.hydrologis.geopaparazzi.osm.OsmCategoryActivity;
 import eu.hydrologis.geopaparazzi.osm.OsmTagsManager;
@@ -147,6 +155,23 @@ public class MapsActivity extends MapActivity implements GpsManagerListener, OnT
     private final int CENTER_ON_MAP = 7;
     private final int MENU_COMPASS_ID = 8;
     private final int MENU_SENDDATA_ID = 9;
+    private final int MENU_SEED_ID = 10;
+    private final int MENU_COMPACT_ID = 11;
+
+    /**
+     * The number of zoom levels below the current one downloaded for offline use.
+     */
+    private static final int SEED_ZOOM_LEVELS = 4;
+
+    /**
+     * The folder inside the maps folder that keeps the downloaded tiles of custom sources.
+     */
+    private static final String TILECACHE_FOLDER = "tilecache"; //$NON-NLS-1$
+
+    /**
+     * The time after which the gps logs loaded so far are shown.
+     */
+    private static final long GPSLOGS_PUBLISH_MILLIS = 300;
 
     private DecimalFormat formatter = new DecimalFormat("00"); //$NON-NLS-1$
     private SlidingDrawer slidingDrawer;
@@ -165,6 +190,7 @@ public class MapsActivity extends MapActivity implements GpsManagerListener, OnT
     private SliderDrawView sliderDrawView;
     private List<String> smsString;
     private Drawable notesDrawable;
+    private AsyncTask<String, GpsLogWay, String> gpslogsLoader;
 
     public static MapGenerator createMapGenerator( MapGeneratorInternal mapGeneratorInternal ) {
         switch( mapGeneratorInternal ) {
@@ -191,6 +217,8 @@ public class MapsActivity extends MapActivity implements GpsManagerListener, OnT
         if (keepScreenOn) {
             getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
         }
+        boolean doReprojectionCache = preferences.getBoolean(Constants.PREFS_KEY_SPATIALITE_REPROJECTION_CACHE, false);
+        SpatialDatabasesManager.getInstance().setReprojectionCacheEnabled(doReprojectionCache);
 
         /*
          * create main mapview
@@ -228,9 +256,11 @@ public class MapsActivity extends MapActivity implements GpsManagerListener, OnT
             }
             if (rasterTable != null) {
                 try {
-                    mapGenerator = new GeopackageTileDownloader(rasterTable);
-                    minZoomLevel = rasterTable.getMinZoom();
-                    maxZoomLevel = rasterTable.getMaxZoom();
+                    GeopackageTileDownloader geopackageTileDownloader = new GeopackageTileDownloader(rasterTable);
+                    mapGenerator = geopackageTileDownloader;
+                    // includes the levels synthesized from the stored ones
+                    minZoomLevel = geopackageTileDownloader.getZoomLevelMin();
+                    maxZoomLevel = geopackageTileDownloader.getZoomLevelMax();
                 } catch (jsqlite.Exception e) {
                     e.printStackTrace();
                     mapGenerator = createMapGenerator(MapGeneratorInternal.MAPNIK);
@@ -238,7 +268,10 @@ public class MapsActivity extends MapActivity implements GpsManagerListener, OnT
             } else if (tileSourceName.length() == 0 && filePath != null && new File(filePath).exists()) {
                 try {
                     File mapsDir = ResourcesManager.getInstance(this).getMapsDir();
-                    mapGenerator = CustomTileDownloader.file2TileDownloader(new File(filePath), mapsDir.getAbsolutePath());
+                    CustomTileDownloader customTileDownloader = CustomTileDownloader.file2TileDownloader(new File(filePath),
+                            mapsDir.getAbsolutePath());
+                    customTileDownloader.setTileCache(createTileCache(customTileDownloader, new File(filePath), mapsDir));
+                    mapGenerator = customTileDownloader;
                     minZoomLevel = mapGenerator.getStartZoomLevel();
                     maxZoomLevel = mapGenerator.getZoomLevelMax();
                 } catch (Exception e) {
@@ -529,10 +562,42 @@ public class MapsActivity extends MapActivity implements GpsManagerListener, OnT
         mapView.setTextScale(textSizeFactor);
     }
 
+    /**
+     * Create the cache of a custom tile source, keeping the downloaded tiles in the tile cache folder of the maps.
+     */
+    private CustomTileCache createTileCache( CustomTileDownloader customTileDownloader, File mapurlFile, File mapsDir ) {
+        File cacheFile = null;
+        if (!customTileDownloader.isFile()) {
+            // local tiles are not copied
+            String name = FileUtilities.getNameWithoutExtention(mapurlFile) + ".mbtiles"; //$NON-NLS-1$
+            cacheFile = new File(new File(mapsDir, TILECACHE_FOLDER), name);
+        }
+        long diskBytes = CustomTileCache.DEFAULT_DISK_BYTES;
+        String cacheSizeStr = preferences.getString(Constants.PREFS_KEY_CUSTOM_TILE_CACHE_SIZE, null);
+        if (cacheSizeStr != null) {
+            try {
+                diskBytes = Long.parseLong(cacheSizeStr.trim()) * 1024L * 1024L;
+            } catch (NumberFormatException e) {
+                // use default
+            }
+        }
+        return new CustomTileCache(cacheFile, customTileDownloader.getUrlTemplate(), CustomTileCache.DEFAULT_MEMORY_TILES,
+                diskBytes);
+    }
+
     @Override
     protected void onDestroy() {
+        MapGenerator mapGenerator = mapView.getMapGenerator();
+        if (mapGenerator instanceof CustomTileDownloader) {
+            ((CustomTileDownloader) mapGenerator).close();
+        } else if (mapGenerator instanceof GeopackageTileDownloader && GPLog.LOG_HEAVY) {
+            GPLog.addLogEntry(this, "Tile decoder: " + ((GeopackageTileDownloader) mapGenerator).getDecoderInfo()); //$NON-NLS-1$
+        }
         unregisterReceiver(batteryReceiver);
         GpsManager.getInstance(this).removeListener(this);
+        if (gpslogsLoader != null) {
+            gpslogsLoader.cancel(false);
+        }
         dataOverlay.dispose();
         super.onDestroy();
     }
@@ -542,8 +607,7 @@ public class MapsActivity extends MapActivity implements GpsManagerListener, OnT
             dataOverlay.clearItems();
             dataOverlay.clearWays();
 
-            List<OverlayWay> logOverlaysList = DaoGpsLog.getGpslogOverlays();
-            dataOverlay.addWays(logOverlaysList);
+            loadGpslogs();
 
             /* images */
             if (DataManager.getInstance().areImagesVisible()) {
@@ -579,6 +643,54 @@ public class MapsActivity extends MapActivity implements GpsManagerListener, OnT
         }
     }
 
+    /**
+     * Load the visible gps logs in the background, showing them as they are ready.
+     */
+    private void loadGpslogs() {
+        if (gpslogsLoader != null) {
+            gpslogsLoader.cancel(false);
+        }
+        final byte maxZoom = (byte) maxZoomLevel;
+        gpslogsLoader = new AsyncTask<String, GpsLogWay, String>(){
+            protected String doInBackground( String... params ) {
+                try {
+                    LinkedHashMap<Long, Paint> paints = DaoGpsLog.getVisibleGpslogPaints();
+                    // one buffer for the points of all the logs, only the simplified ones are kept
+                    GpsLogChunks.Points points = new GpsLogChunks.Points();
+                    List<GpsLogWay> loadedWays = new ArrayList<GpsLogWay>();
+                    long lastPublished = System.currentTimeMillis();
+                    for( Entry<Long, Paint> entry : paints.entrySet() ) {
+                        if (isCancelled()) {
+                            return null;
+                        }
+                        GpsLogWay way = DaoGpsLog.getGpslogWay(entry.getKey(), entry.getValue(), maxZoom, points);
+                        if (way != null) {
+                            loadedWays.add(way);
+                        }
+                        long now = System.currentTimeMillis();
+                        if (now - lastPublished > GPSLOGS_PUBLISH_MILLIS && loadedWays.size() > 0) {
+                            publishProgress(loadedWays.toArray(new GpsLogWay[loadedWays.size()]));
+                            loadedWays.clear();
+                            lastPublished = now;
+                        }
+                    }
+                    if (loadedWays.size() > 0) {
+                        publishProgress(loadedWays.toArray(new GpsLogWay[loadedWays.size()]));
+                    }
+                } catch (IOException e) {
+                    GPLog.error(this, e.getLocalizedMessage(), e);
+                }
+                return null;
+            }
+
+            protected void onProgressUpdate( GpsLogWay... ways ) { // on UI thread!
+                if (!isCancelled()) {
+                    dataOverlay.addWays(Arrays.<OverlayWay> asList(ways));
+                }
+            }
+        }.execute((String) null);
+    }
+
     public boolean onTouch( View v, MotionEvent event ) {
         int action = event.getAction();
         if (GPLog.LOG_ABSURD)
@@ -836,6 +948,16 @@ public class MapsActivity extends MapActivity implements GpsManagerListener, OnT
             menu.add(Menu.NONE, MENU_SENDDATA_ID, 7, R.string.send_data).setIcon(android.R.drawable.ic_menu_send);
         }
         menu.add(Menu.NONE, MENU_MIXARE_ID, 8, R.string.view_in_mixare).setIcon(R.drawable.icon_datasource);
+        MapGenerator mapGenerator = mapView.getMapGenerator();
+        if (mapGenerator instanceof CustomTileDownloader && !((CustomTileDownloader) mapGenerator).isFile()) {
+            menu.add(Menu.NONE, MENU_SEED_ID, 9, R.string.seed_tiles).setIcon(android.R.drawable.ic_menu_save);
+        }
+        if (mapGenerator instanceof GeopackageTileDownloader) {
+            SpatialRasterTable rasterTable = getCurrentRasterTable();
+            if (rasterTable != null && SpatialDatabasesManager.getInstance().getMbtilesFile(rasterTable) != null) {
+                menu.add(Menu.NONE, MENU_COMPACT_ID, 10, R.string.compact_map).setIcon(android.R.drawable.ic_menu_save);
+            }
+        }
         return true;
     }
 
@@ -884,6 +1006,14 @@ public class MapsActivity extends MapActivity implements GpsManagerListener, OnT
         case GO_TO: {
             return goTo();
         }
+        case MENU_SEED_ID: {
+            seedCurrentView();
+            return true;
+        }
+        case MENU_COMPACT_ID: {
+            compactCurrentMap();
+            return true;
+        }
         case CENTER_ON_MAP: {
             MapGenerator mapGenerator = mapView.getMapGenerator();
             GeoPoint mapCenter;
@@ -984,6 +1114,180 @@ public class MapsActivity extends MapActivity implements GpsManagerListener, OnT
         }
 
     }
+    /**
+     * Download the tiles of the current view of the custom tile source into an mbtiles file
+     * of the maps folder, from the current zoom level down a few levels.
+     * 
+     * <p>Running it again on the same source completes the file.</p>
+     */
+    private void seedCurrentView() {
+        MapGenerator mapGenerator = mapView.getMapGenerator();
+        if (!(mapGenerator instanceof CustomTileDownloader)) {
+            return;
+        }
+        final CustomTileDownloader source = (CustomTileDownloader) mapGenerator;
+        float[] nswe = getMapWorldBoundsE6();
+        final double n = nswe[0] / LibraryConstants.E6;
+        final double s = nswe[1] / LibraryConstants.E6;
+        final double w = nswe[2] / LibraryConstants.E6;
+        final double e = nswe[3] / LibraryConstants.E6;
+        final int minZoom = mapView.getMapPosition().getZoomLevel();
+        final int maxZoom = Math.max(minZoom, Math.min(source.getZoomLevelMax(), minZoom + SEED_ZOOM_LEVELS));
+        long tilesCount = TileSeeder.countTiles(n, s, e, w, minZoom, maxZoom);
+
+        String filePath = preferences.getString(Constants.PREFS_KEY_TILESOURCE_FILE, ""); //$NON-NLS-1$
+        File mapsDir = ResourcesManager.getInstance(this).getMapsDir();
+        String name = FileUtilities.getNameWithoutExtention(new File(filePath)) + ".mbtiles"; //$NON-NLS-1$
+        final File mbtilesFile = new File(mapsDir, name);
+
+        String msg = Utilities.format(getString(R.string.seed_tiles_prompt), String.valueOf(tilesCount),
+                String.valueOf(minZoom), String.valueOf(maxZoom), name);
+        Utilities.yesNoMessageDialog(this, msg, new Runnable(){
+            public void run() {
+                runOnUiThread(new Runnable(){
+                    public void run() {
+                        TileSeeder seeder = new TileSeeder(source, mbtilesFile, n, s, e, w, minZoom, maxZoom);
+                        runSeeder(seeder, mbtilesFile);
+                    }
+                });
+            }
+        }, null);
+    }
+
+    private void runSeeder( final TileSeeder seeder, final File mbtilesFile ) {
+        final ProgressDialog seedProgressDialog = new ProgressDialog(this);
+        seedProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        seedProgressDialog.setTitle(R.string.seed_tiles);
+        seedProgressDialog.setMessage(""); //$NON-NLS-1$
+        seedProgressDialog.setCancelable(true);
+        seedProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener(){
+            public void onCancel( DialogInterface dialog ) {
+                // the downloaded tiles are kept, seeding again resumes
+                seeder.cancel();
+            }
+        });
+        seedProgressDialog.show();
+
+        new AsyncTask<String, TileSeeder.SeedProgress, TileSeeder.SeedProgress>(){
+            protected TileSeeder.SeedProgress doInBackground( String... params ) {
+                seeder.setListener(new TileSeeder.SeedListener(){
+                    public void onProgress( TileSeeder.SeedProgress progress ) {
+                        publishProgress(progress);
+                    }
+                });
+                try {
+                    return seeder.run();
+                } catch (IOException e) {
+                    GPLog.error(this, e.getLocalizedMessage(), e);
+                    return null;
+                } finally {
+                    // the map might be open already
+                    SpatialDatabasesManager.getInstance().clearTileIndex(mbtilesFile);
+                }
+            }
+
+            protected void onProgressUpdate( TileSeeder.SeedProgress... values ) { // on UI thread!
+                TileSeeder.SeedProgress progress = values[values.length - 1];
+                seedProgressDialog.setMax((int) progress.total);
+                seedProgressDialog.setProgress((int) progress.getDone());
+                seedProgressDialog.setMessage(getSeedProgressMessage(progress));
+            }
+
+            protected void onPostExecute( TileSeeder.SeedProgress progress ) { // on UI thread!
+                if (seedProgressDialog.isShowing()) {
+                    seedProgressDialog.dismiss();
+                }
+                if (progress == null) {
+                    Utilities.messageDialog(MapsActivity.this, R.string.seed_tiles_error, null);
+                } else {
+                    String msg = getSeedProgressMessage(progress) + "\n" + getString(R.string.seed_tiles_done); //$NON-NLS-1$
+                    Utilities.messageDialog(MapsActivity.this, msg, null);
+                }
+            }
+        }.execute((String) null);
+    }
+
+    /**
+     * @return the raster table of the current tile source or <code>null</code>.
+     */
+    private SpatialRasterTable getCurrentRasterTable() {
+        String tileSourceName = preferences.getString(Constants.PREFS_KEY_TILESOURCE, ""); //$NON-NLS-1$
+        try {
+            return SpatialDatabasesManager.getInstance().getRasterTableByName(tileSourceName);
+        } catch (jsqlite.Exception e) {
+            GPLog.error(this, e.getLocalizedMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Store the repeated tiles of the current mbtiles map only once, shrinking the file.
+     */
+    private void compactCurrentMap() {
+        final SpatialRasterTable rasterTable = getCurrentRasterTable();
+        if (rasterTable == null) {
+            return;
+        }
+        Utilities.yesNoMessageDialog(this, getString(R.string.compact_map_prompt), new Runnable(){
+            public void run() {
+                runOnUiThread(new Runnable(){
+                    public void run() {
+                        runCompactor(rasterTable);
+                    }
+                });
+            }
+        }, null);
+    }
+
+    private void runCompactor( final SpatialRasterTable rasterTable ) {
+        final ProgressDialog compactProgressDialog = new ProgressDialog(this);
+        compactProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        compactProgressDialog.setTitle(R.string.compact_map);
+        // an interrupted compaction resumes when run again, but is not cancelled from here
+        compactProgressDialog.setCancelable(false);
+        compactProgressDialog.show();
+
+        new AsyncTask<String, Long, String>(){
+            protected String doInBackground( String... params ) {
+                try {
+                    MbTilesCompactor compactor = SpatialDatabasesManager.getInstance().compactMbtiles(rasterTable,
+                            new MbTilesCompactor.CompactionListener(){
+                                public void onProgress( long movedTiles, long totalTiles ) {
+                                    publishProgress(movedTiles, totalTiles);
+                                }
+                            });
+                    if (compactor == null) {
+                        return getString(R.string.compact_map_already);
+                    }
+                    return Utilities.format(getString(R.string.compact_map_done), String.valueOf(compactor.getMovedTiles()),
+                            String.valueOf(compactor.getDuplicateTiles()), String.valueOf(compactor.getSavedBytes() / 1024));
+                } catch (Exception e) {
+                    GPLog.error(this, e.getLocalizedMessage(), e);
+                    return getString(R.string.compact_map_error);
+                }
+            }
+
+            protected void onProgressUpdate( Long... values ) { // on UI thread!
+                compactProgressDialog.setMax(values[1].intValue());
+                compactProgressDialog.setProgress(values[0].intValue());
+            }
+
+            protected void onPostExecute( String msg ) { // on UI thread!
+                if (compactProgressDialog.isShowing()) {
+                    compactProgressDialog.dismiss();
+                }
+                Utilities.messageDialog(MapsActivity.this, msg, null);
+            }
+        }.execute((String) null);
+    }
+
+    private String getSeedProgressMessage( TileSeeder.SeedProgress progress ) {
+        DecimalFormat rateFormatter = new DecimalFormat("0.0"); //$NON-NLS-1$
+        return Utilities.format(getString(R.string.seed_tiles_progress), String.valueOf(progress.downloaded),
+                String.valueOf(progress.skipped), String.valueOf(progress.failed),
+                rateFormatter.format(progress.getTilesPerSecond()), rateFormatter.format(progress.getBytesPerSecond() / 1024.0));
+    }
+
     private boolean goTo() {
         String[] items = new String[]{getString(R.string.goto_coordinate), getString(R.string.geocoding)};
 
@@ -18,16 +18,19 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import jsqlite.Exception;
 
 import org.mapsforge.android.maps.MapView;
 import org.mapsforge.android.maps.Projection;
+import org.mapsforge.android.maps.mapgenerator.MapGenerator;
 import org.mapsforge.android.maps.overlay.ItemizedOverlay;
 import org.mapsforge.android.maps.overlay.Overlay;
 import org.mapsforge.android.maps.overlay.OverlayItem;
 import org.mapsforge.android.maps.overlay.OverlayWay;
 import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.model.Tile;
 
 import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
@@ -35,6 +38,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -43,27 +47,21 @@ import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 
-import com.vividsolutions.jts.android.PointTransformation;
-import com.vividsolutions.jts.android.ShapeWriter;
-import com.vividsolutions.jts.android.geom.DrawableShape;
-import com.vividsolutions.jts.geom.Geometry;
-
 import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.library.forms.FormActivity;
 import eu.geopaparazzi.library.gps.GpsManager;
 import eu.geopaparazzi.library.util.LibraryConstants;
 import eu.geopaparazzi.library.util.ResourcesManager;
 import eu.geopaparazzi.spatialite.database.spatial.SpatialDatabasesManager;
-import eu.geopaparazzi.spatialite.database.spatial.core.GeometryIterator;
-import eu.geopaparazzi.spatialite.database.spatial.core.ISpatialDatabaseHandler;
 import eu.geopaparazzi.spatialite.database.spatial.core.SpatialVectorTable;
-import eu.geopaparazzi.spatialite.database.spatial.core.Style;
 import eu.hydrologis.geopaparazzi.R;
 import eu.hydrologis.geopaparazzi.database.DaoNotes;
 import eu.hydrologis.geopaparazzi.database.NoteType;
 import eu.hydrologis.geopaparazzi.maps.MapsActivity;
+import eu.hydrologis.geopaparazzi.maps.tiles.CustomTileDownloader;
 import eu.hydrologis.geopaparazzi.util.Constants;
 import eu.hydrologis.geopaparazzi.util.Note;
 
@@ -164,6 +162,21 @@ public abstract class GeopaparazziOverlay extends Overlay {
     private boolean isNotesTextVisible;
     private boolean doNotesTextHalo;
 
+    private SpatialiteTileRenderer tileRenderer;
+    /**
+     * Delay that groups the tiles rendered in a burst into a single redraw.
+     */
+    private static final long REDRAW_DELAY_MILLIS = 100;
+    private final Handler redrawHandler = new Handler();
+    private final AtomicBoolean redrawPending = new AtomicBoolean(false);
+    private final Runnable redrawRunnable = new Runnable(){
+        public void run() {
+            // tiles rendered from now on ask for a new redraw
+            redrawPending.set(false);
+            requestRedraw();
+        }
+    };
+
     /**
      * Create a {@link OverlayWay} wrapped type.
      */
@@ -270,6 +283,16 @@ public abstract class GeopaparazziOverlay extends Overlay {
         gpslogOverlay = new OverlayWay(null, gpsOutline);
 
         currentGpsLog.clear();
+
+        int renderThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        tileRenderer = new SpatialiteTileRenderer(renderThreads, new Runnable(){
+            public void run() {
+                // tiles come in bursts, redraw once for all the tiles of a burst
+                if (redrawPending.compareAndSet(false, true)) {
+                    redrawHandler.postDelayed(redrawRunnable, REDRAW_DELAY_MILLIS);
+                }
+            }
+        });
     }
 
     /**
@@ -378,6 +401,15 @@ public abstract class GeopaparazziOverlay extends Overlay {
 
     @Override
     protected void drawOverlayBitmap( Canvas canvas, Point drawPosition, Projection projection, byte drawZoomLevel ) {
+        if (internalMapView != null) {
+            MapGenerator mapGenerator = internalMapView.getMapGenerator();
+            if (mapGenerator instanceof CustomTileDownloader) {
+                // download the tiles around the view first
+                double centerX = (drawPosition.x + canvas.getWidth() / 2.0) / Tile.TILE_SIZE;
+                double centerY = (drawPosition.y + canvas.getHeight() / 2.0) / Tile.TILE_SIZE;
+                ((CustomTileDownloader) mapGenerator).setViewCenter(drawZoomLevel, centerX, centerY);
+            }
+        }
 
         /*
          * first spatialite layers, if any
@@ -401,6 +433,12 @@ public abstract class GeopaparazziOverlay extends Overlay {
             }
 
             synchronized (overlayWay) {
+                // gps logs get the nodes of the zoom level, if in view
+                if (overlayWay instanceof GpsLogWay
+                        && !((GpsLogWay) overlayWay).prepare(drawPosition, canvas.getWidth(), canvas.getHeight(), drawZoomLevel)) {
+                    continue;
+                }
+
                 // make sure that the current way has way nodes
                 if (overlayWay.wayNodes == null || overlayWay.wayNodes.length == 0) {
                     continue;
@@ -647,15 +685,14 @@ public abstract class GeopaparazziOverlay extends Overlay {
 
     private void drawFromSpatialite( Canvas canvas, Point drawPosition, Projection projection, byte drawZoomLevel ) {
         /* 
-         * draw from spatialite
+         * draw from spatialite, through tiles rendered in background
          */
-        GeoPoint zeroPoint = projection.fromPixels(0, 0);
-        GeoPoint whPoint = projection.fromPixels(canvas.getWidth(), canvas.getHeight());
-
-        double n = zeroPoint.getLatitude();
-        double w = zeroPoint.getLongitude();
-        double s = whPoint.getLatitude();
-        double e = whPoint.getLongitude();
+        long maxTile = (1L << drawZoomLevel) - 1;
+        long tileXMin = Math.max(0, drawPosition.x / Tile.TILE_SIZE);
+        long tileYMin = Math.max(0, drawPosition.y / Tile.TILE_SIZE);
+        long tileXMax = Math.min(maxTile, (drawPosition.x + canvas.getWidth()) / Tile.TILE_SIZE);
+        long tileYMax = Math.min(maxTile, (drawPosition.y + canvas.getHeight()) / Tile.TILE_SIZE);
+        tileRenderer.setVisibleTiles(drawZoomLevel, tileXMin, tileYMin, tileXMax, tileYMax);
 
         try {
             SpatialDatabasesManager sdManager = SpatialDatabasesManager.getInstance();
@@ -665,81 +702,19 @@ public abstract class GeopaparazziOverlay extends Overlay {
                 if (spatialTable.getStyle().enabled == 0) {
                     continue;
                 }
-                if (isInterrupted() || sizeHasChanged()) {
-                    // stop working
-                    return;
-                }
-                ISpatialDatabaseHandler spatialDatabaseHandler = sdManager.getVectorHandler(spatialTable);
-
-                Style style4Table = spatialTable.getStyle();
-                GeometryIterator geometryIterator = null;
-                try {
-                    geometryIterator = spatialDatabaseHandler.getGeometryIteratorInBounds("4326", spatialTable, n, s, e, w);
-                    Paint fill = null;
-                    Paint stroke = null;
-                    if (style4Table.fillcolor != null && style4Table.fillcolor.trim().length() > 0)
-                        fill = spatialDatabaseHandler.getFillPaint4Style(style4Table);
-                    if (style4Table.strokecolor != null && style4Table.strokecolor.trim().length() > 0)
-                        stroke = spatialDatabaseHandler.getStrokePaint4Style(style4Table);
-                    if (spatialTable.isPolygon()) {
-                        PointTransformation pointTransformer = new MapsforgePointTransformation(projection, drawPosition,
-                                drawZoomLevel);
-                        ShapeWriter wr = new ShapeWriter(pointTransformer);
-                        wr.setRemoveDuplicatePoints(true);
-                        wr.setDecimation(spatialTable.getStyle().decimationFactor);
-                        while( geometryIterator.hasNext() ) {
-                            Geometry geom = geometryIterator.next();
-                            if (geom != null) {
-                                DrawableShape shape = wr.toShape(geom);
-                                if (fill != null)
-                                    shape.fill(canvas, fill);
-                                if (stroke != null)
-                                    shape.draw(canvas, stroke);
-                            }
-                            if (isInterrupted() || sizeHasChanged()) {
-                                // stop working
-                                return;
-                            }
+                for( long tileY = tileYMin; tileY <= tileYMax; tileY++ ) {
+                    for( long tileX = tileXMin; tileX <= tileXMax; tileX++ ) {
+                        if (isInterrupted() || sizeHasChanged()) {
+                            // stop working
+                            return;
                         }
-                    } else if (spatialTable.isLine()) {
-                        PointTransformation pointTransformer = new MapsforgePointTransformation(projection, drawPosition,
-                                drawZoomLevel);
-                        ShapeWriter wr = new ShapeWriter(pointTransformer);
-                        wr.setRemoveDuplicatePoints(true);
-                        wr.setDecimation(spatialTable.getStyle().decimationFactor);
-                        while( geometryIterator.hasNext() ) {
-                            Geometry geom = geometryIterator.next();
-                            DrawableShape shape = wr.toShape(geom);
-                            if (stroke != null)
-                                shape.draw(canvas, stroke);
-                            if (isInterrupted() || sizeHasChanged()) {
-                                // stop working
-                                return;
-                            }
-                        }
-                    } else if (spatialTable.isPoint()) {
-                        PointTransformation pointTransformer = new MapsforgePointTransformation(projection, drawPosition,
-                                drawZoomLevel);
-                        ShapeWriter wr = new ShapeWriter(pointTransformer, spatialTable.getStyle().shape,
-                                spatialTable.getStyle().size);
-                        wr.setRemoveDuplicatePoints(true);
-                        wr.setDecimation(spatialTable.getStyle().decimationFactor);
-                        while( geometryIterator.hasNext() ) {
-                            Geometry geom = geometryIterator.next();
-                            DrawableShape shape = wr.toShape(geom);
-                            if (fill != null)
-                                shape.fill(canvas, fill);
-                            if (stroke != null)
-                                shape.draw(canvas, stroke);
-                            if (isInterrupted() || sizeHasChanged()) {
-                                // stop working
-                                return;
-                            }
+                        Bitmap tile = tileRenderer.getTile(spatialTable, drawZoomLevel, tileX, tileY);
+                        if (tile != null) {
+                            float left = tileX * Tile.TILE_SIZE - drawPosition.x;
+                            float top = tileY * Tile.TILE_SIZE - drawPosition.y;
+                            canvas.drawBitmap(tile, left, top, null);
                         }
                     }
-                } finally {
-                    if (geometryIterator != null)
-                        geometryIterator.close();
                 }
             }
         } catch (Exception e1) {
@@ -963,6 +938,8 @@ public abstract class GeopaparazziOverlay extends Overlay {
     }
     @Override
     public void dispose() {
+        tileRenderer.dispose();
+        redrawHandler.removeCallbacks(redrawRunnable);
         context = null;
         super.dispose();
     }
@@ -0,0 +1,272 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.maps.overlays;
+
+import org.mapsforge.android.maps.overlay.OverlayWay;
+import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.util.MercatorProjection;
+
+import android.graphics.Paint;
+import android.graphics.Point;
+import eu.hydrologis.geopaparazzi.database.GpsLogChunks;
+
+/**
+ * A gps log way that keeps its points simplified for every zoom level.
+ *
+ * <p>When the log is loaded its points are ranked with Douglas-Peucker: every point gets the
+ * lowest zoom level at which it deviates more than {@link #TOLERANCE_PIXELS} from the line
+ * of the points kept at that zoom. Only the points needed up to the maximum zoom are kept,
+ * as microdegrees plus one byte for the zoom, instead of a {@link GeoPoint} per point.</p>
+ *
+ * <p>The way nodes are created only for the zoom being drawn and only while the log is in
+ * view, see {@link #prepare(Point, int, int, byte)}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsLogWay extends OverlayWay {
+
+    /**
+     * The maximum deviation from the original line, in pixels.
+     */
+    public static final double TOLERANCE_PIXELS = 1.5;
+
+    private final long logId;
+    private final int[] latsE6;
+    private final int[] lonsE6;
+    private final byte[] minZooms;
+    private final double minLon;
+    private final double minLat;
+    private final double maxLon;
+    private final double maxLat;
+
+    private byte preparedZoom = Byte.MIN_VALUE;
+
+    private GpsLogWay( long logId, Paint paintOutline, int[] latsE6, int[] lonsE6, byte[] minZooms, double[] bounds ) {
+        super(null, paintOutline);
+        this.logId = logId;
+        this.latsE6 = latsE6;
+        this.lonsE6 = lonsE6;
+        this.minZooms = minZooms;
+        this.minLon = bounds[0];
+        this.maxLon = bounds[1];
+        this.minLat = bounds[2];
+        this.maxLat = bounds[3];
+    }
+
+    /**
+     * Simplify the points of a log.
+     *
+     * @param logId the id of the log.
+     * @param paintOutline the paint of the log.
+     * @param points the points of the log.
+     * @param maxZoom the maximum zoom level the log will be drawn at.
+     * @return the way or <code>null</code> if the log has less than two points.
+     */
+    public static GpsLogWay create( long logId, Paint paintOutline, GpsLogChunks.Points points, byte maxZoom ) {
+        int n = points.size;
+        if (n < 2) {
+            return null;
+        }
+
+        // pixels at the maximum zoom
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        double[] bounds = new double[]{Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY};
+        for( int i = 0; i < n; i++ ) {
+            double lon = points.lons[i];
+            double lat = MercatorProjection.limitLatitude(points.lats[i]);
+            xs[i] = MercatorProjection.longitudeToPixelX(lon, maxZoom);
+            ys[i] = MercatorProjection.latitudeToPixelY(lat, maxZoom);
+            bounds[0] = Math.min(bounds[0], lon);
+            bounds[1] = Math.max(bounds[1], lon);
+            bounds[2] = Math.min(bounds[2], lat);
+            bounds[3] = Math.max(bounds[3], lat);
+        }
+
+        double[] deviations = rank(xs, ys, n);
+
+        // the zoom from which each point is drawn, points not needed up to the maximum zoom are dropped
+        byte[] zooms = new byte[n];
+        int kept = 0;
+        for( int i = 0; i < n; i++ ) {
+            double deviation = deviations[i];
+            if (deviation == Double.POSITIVE_INFINITY) {
+                zooms[i] = 0;
+            } else if (deviation <= TOLERANCE_PIXELS) {
+                zooms[i] = -1;
+                continue;
+            } else {
+                // deviation > tolerance * 2^(maxZoom - zoom)
+                double zoom = Math.floor(maxZoom - Math.log(deviation / TOLERANCE_PIXELS) / Math.log(2)) + 1;
+                zooms[i] = (byte) Math.max(0, Math.min(maxZoom, zoom));
+            }
+            kept++;
+        }
+
+        int[] latsE6 = new int[kept];
+        int[] lonsE6 = new int[kept];
+        byte[] minZooms = new byte[kept];
+        int index = 0;
+        for( int i = 0; i < n; i++ ) {
+            if (zooms[i] < 0) {
+                continue;
+            }
+            latsE6[index] = (int) Math.round(points.lats[i] * 1E6);
+            lonsE6[index] = (int) Math.round(points.lons[i] * 1E6);
+            minZooms[index] = zooms[i];
+            index++;
+        }
+        return new GpsLogWay(logId, paintOutline, latsE6, lonsE6, minZooms, bounds);
+    }
+
+    /**
+     * Douglas-Peucker ranking of the points.
+     *
+     * <p>The deviation of a point is its distance from the segment it splits, but never
+     * more than the one of the point that split the segment before, so that a point is
+     * kept only at zoom levels where the points around it are kept too.</p>
+     *
+     * @return the deviation of each point, infinite for the end points.
+     */
+    private static double[] rank( double[] xs, double[] ys, int n ) {
+        double[] deviations = new double[n];
+        deviations[0] = Double.POSITIVE_INFINITY;
+        deviations[n - 1] = Double.POSITIVE_INFINITY;
+
+        // segments to split as first, last, in place of recursion
+        int[] stack = new int[64];
+        double[] stackDeviations = new double[32];
+        int top = 0;
+        stack[top * 2] = 0;
+        stack[top * 2 + 1] = n - 1;
+        stackDeviations[top] = Double.POSITIVE_INFINITY;
+        top++;
+        while( top > 0 ) {
+            top--;
+            int first = stack[top * 2];
+            int last = stack[top * 2 + 1];
+            double parentDeviation = stackDeviations[top];
+            if (last - first < 2) {
+                continue;
+            }
+
+            int farthest = -1;
+            double maxDistance = -1;
+            for( int i = first + 1; i < last; i++ ) {
+                double distance = segmentDistance(xs[i], ys[i], xs[first], ys[first], xs[last], ys[last]);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+            double deviation = Math.min(maxDistance, parentDeviation);
+            deviations[farthest] = deviation;
+
+            if (top + 2 > stackDeviations.length) {
+                int[] newStack = new int[stack.length * 2];
+                System.arraycopy(stack, 0, newStack, 0, stack.length);
+                stack = newStack;
+                double[] newStackDeviations = new double[stackDeviations.length * 2];
+                System.arraycopy(stackDeviations, 0, newStackDeviations, 0, stackDeviations.length);
+                stackDeviations = newStackDeviations;
+            }
+            stack[top * 2] = first;
+            stack[top * 2 + 1] = farthest;
+            stackDeviations[top] = deviation;
+            top++;
+            stack[top * 2] = farthest;
+            stack[top * 2 + 1] = last;
+            stackDeviations[top] = deviation;
+            top++;
+        }
+        return deviations;
+    }
+
+    private static double segmentDistance( double x, double y, double x1, double y1, double x2, double y2 ) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0) {
+            return Math.hypot(x - x1, y - y1);
+        }
+        double t = ((x - x1) * dx + (y - y1) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        return Math.hypot(x - (x1 + t * dx), y - (y1 + t * dy));
+    }
+
+    /**
+     * Set the way nodes for a zoom level, if the log is in view.
+     *
+     * <p>The nodes of the previous zoom level are released, as are those of a log out of view.</p>
+     *
+     * @param drawPosition the top left pixel of the view.
+     * @param width the width of the view.
+     * @param height the height of the view.
+     * @param zoom the zoom level.
+     * @return <code>true</code> if the log is in view and has to be drawn.
+     */
+    public synchronized boolean prepare( Point drawPosition, int width, int height, byte zoom ) {
+        double left = MercatorProjection.longitudeToPixelX(minLon, zoom);
+        double right = MercatorProjection.longitudeToPixelX(maxLon, zoom);
+        double top = MercatorProjection.latitudeToPixelY(maxLat, zoom);
+        double bottom = MercatorProjection.latitudeToPixelY(minLat, zoom);
+        float margin = paintOutline != null ? paintOutline.getStrokeWidth() : 0;
+        if (right + margin < drawPosition.x || left - margin > drawPosition.x + width || bottom + margin < drawPosition.y
+                || top - margin > drawPosition.y + height) {
+            if (wayNodes != null) {
+                setWayNodes(null);
+                preparedZoom = Byte.MIN_VALUE;
+            }
+            return false;
+        }
+
+        if (zoom != preparedZoom) {
+            int count = 0;
+            for( int i = 0; i < minZooms.length; i++ ) {
+                if (minZooms[i] <= zoom) {
+                    count++;
+                }
+            }
+            GeoPoint[] nodes = new GeoPoint[count];
+            int index = 0;
+            for( int i = 0; i < minZooms.length; i++ ) {
+                if (minZooms[i] <= zoom) {
+                    nodes[index++] = new GeoPoint(latsE6[i], lonsE6[i]);
+                }
+            }
+            setWayNodes(new GeoPoint[][]{nodes});
+            preparedZoom = zoom;
+        }
+        return true;
+    }
+
+    /**
+     * @return the id of the log.
+     */
+    public long getLogId() {
+        return logId;
+    }
+
+    /**
+     * @return the number of points kept for all zoom levels.
+     */
+    public int getPointsCount() {
+        return minZooms.length;
+    }
+}
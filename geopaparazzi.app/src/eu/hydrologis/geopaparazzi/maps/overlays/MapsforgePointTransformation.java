@@ -1,7 +1,6 @@
 package eu.hydrologis.geopaparazzi.maps.overlays;
 
-import org.mapsforge.android.maps.Projection;
-import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.util.MercatorProjection;
 
 import android.graphics.Point;
 import android.graphics.PointF;
@@ -12,22 +11,27 @@ import com.vividsolutions.jts.geom.Coordinate;
 /**
  * Transformation that handles mapsforge transforms.
  * 
+ * <p>The mercator pixel transformation is done inline, to avoid creating a 
+ * {@link org.mapsforge.core.model.GeoPoint} for every vertex.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 public class MapsforgePointTransformation implements PointTransformation {
     private byte drawZoom;
-    private Projection projection;
-    private final Point tmpPoint = new Point();
     private Point drawPosition;
 
-    public MapsforgePointTransformation( Projection projection, Point drawPosition, byte drawZoom ) {
-        this.projection = projection;
+    /**
+     * @param drawPosition the top left pixel of the drawing.
+     * @param drawZoom the zoom level of the drawing.
+     */
+    public MapsforgePointTransformation( Point drawPosition, byte drawZoom ) {
         this.drawPosition = drawPosition;
         this.drawZoom = drawZoom;
     }
 
     public void transform( Coordinate model, PointF view ) {
-        projection.toPoint(new GeoPoint(model.y, model.x), tmpPoint, drawZoom);
-        view.set(tmpPoint.x - drawPosition.x, tmpPoint.y - drawPosition.y);
+        int x = (int) MercatorProjection.longitudeToPixelX(model.x, drawZoom);
+        int y = (int) MercatorProjection.latitudeToPixelY(model.y, drawZoom);
+        view.set(x - drawPosition.x, y - drawPosition.y);
     }
 }
\ No newline at end of file
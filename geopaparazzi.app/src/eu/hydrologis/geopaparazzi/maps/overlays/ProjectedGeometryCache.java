@@ -0,0 +1,244 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.maps.overlays;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import android.graphics.Point;
+
+/**
+ * Features of the vector layers already projected to the pixels of a zoom level.
+ *
+ * <p>The pixels of a feature don't change while the map is panned at the same zoom,
+ * only the tile they are drawn into does. So each feature is projected, decimated and
+ * cleaned of duplicate points once per zoom level and then only translated, instead
+ * of being projected again for every tile it touches.</p>
+ *
+ * <p>The pixels of a zoom level are relative to an origin, the position of the first
+ * tile drawn at that zoom, so that they stay small enough for the float precision of
+ * the drawing also at high zoom levels.</p>
+ *
+ * <p>The cache holds up to a budget of bytes. When it is exceeded the least recently
+ * used zoom levels are dropped first, then the least recently used features of the
+ * current zoom level.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ProjectedGeometryCache {
+
+    /**
+     * The default size of the cache.
+     */
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * The estimated memory used by an entry besides its pixels.
+     */
+    private static final int ENTRY_OVERHEAD = 80;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Integer, Level> levels = new LinkedHashMap<Integer, Level>(8, 0.75f, true);
+    private final FeatureKey probe = new FeatureKey(null, 0);
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictedFeatures = 0;
+    private long evictedLevels = 0;
+
+    /**
+     * The features of a zoom level.
+     */
+    private static class Level {
+        final Point origin;
+        final LinkedHashMap<FeatureKey, int[]> features = new LinkedHashMap<FeatureKey, int[]>(256, 0.75f, true);
+        long bytes = 0;
+
+        Level( Point origin ) {
+            this.origin = origin;
+        }
+    }
+
+    /**
+     * A feature of a layer.
+     */
+    private static class FeatureKey {
+        String layer;
+        long rowId;
+
+        FeatureKey( String layer, long rowId ) {
+            this.layer = layer;
+            this.rowId = rowId;
+        }
+
+        @Override
+        public int hashCode() {
+            return layer.hashCode() * 31 + (int) (rowId ^ (rowId >>> 32));
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if (!(obj instanceof FeatureKey)) {
+                return false;
+            }
+            FeatureKey other = (FeatureKey) obj;
+            return rowId == other.rowId && layer.equals(other.layer);
+        }
+    }
+
+    /**
+     * @param maxBytes the maximum memory used by the projected features.
+     */
+    public ProjectedGeometryCache( long maxBytes ) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the origin of the pixels of a zoom level.
+     *
+     * @param zoom the zoom level.
+     * @param position the pixel position to use as origin if the zoom level has none yet.
+     * @return the origin.
+     */
+    public synchronized Point getOrigin( int zoom, Point position ) {
+        return getLevel(zoom, position).origin;
+    }
+
+    /**
+     * Get the pixels of a feature.
+     *
+     * @param zoom the zoom level.
+     * @param layerKey the key of the layer and of its style version.
+     * @param rowId the row id of the feature.
+     * @return the pixels or <code>null</code> if the feature is not cached.
+     */
+    public synchronized int[] get( int zoom, String layerKey, long rowId ) {
+        Level level = levels.get(zoom);
+        int[] pixels = null;
+        if (level != null) {
+            probe.layer = layerKey;
+            probe.rowId = rowId;
+            pixels = level.features.get(probe);
+            probe.layer = null;
+        }
+        if (pixels == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return pixels;
+    }
+
+    /**
+     * Put the pixels of a feature.
+     *
+     * @param zoom the zoom level.
+     * @param origin the origin the pixels are relative to, from {@link #getOrigin(int, Point)}.
+     * @param layerKey the key of the layer and of its style version.
+     * @param rowId the row id of the feature.
+     * @param pixels the pixels.
+     */
+    public synchronized void put( int zoom, Point origin, String layerKey, long rowId, int[] pixels ) {
+        Level level = levels.get(zoom);
+        if (level == null || level.origin != origin) {
+            // the level was evicted after the origin was taken, the pixels don't fit a new one
+            return;
+        }
+        int[] old = level.features.put(new FeatureKey(layerKey, rowId), pixels);
+        long size = size(pixels);
+        if (old != null) {
+            size -= size(old);
+        }
+        level.bytes += size;
+        bytes += size;
+        trim(zoom);
+    }
+
+    /**
+     * Remove all the features.
+     */
+    public synchronized void clear() {
+        levels.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the memory used by the cached features.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return a summary of the cache's statistics.
+     */
+    public synchronized String getInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("levels=").append(levels.size()); //$NON-NLS-1$
+        sb.append(" bytes=").append(bytes); //$NON-NLS-1$
+        sb.append(" hits=").append(hits); //$NON-NLS-1$
+        sb.append(" misses=").append(misses); //$NON-NLS-1$
+        sb.append(" evicted features=").append(evictedFeatures); //$NON-NLS-1$
+        sb.append(" evicted levels=").append(evictedLevels); //$NON-NLS-1$
+        return sb.toString();
+    }
+
+    private Level getLevel( int zoom, Point position ) {
+        Level level = levels.get(zoom);
+        if (level == null) {
+            level = new Level(new Point(position));
+            levels.put(zoom, level);
+        }
+        return level;
+    }
+
+    private void trim( int currentZoom ) {
+        if (bytes <= maxBytes) {
+            return;
+        }
+        // other zoom levels first, least recently used first
+        Iterator<Entry<Integer, Level>> levelsIterator = levels.entrySet().iterator();
+        while( bytes > maxBytes && levelsIterator.hasNext() ) {
+            Entry<Integer, Level> entry = levelsIterator.next();
+            if (entry.getKey() == currentZoom) {
+                continue;
+            }
+            bytes -= entry.getValue().bytes;
+            levelsIterator.remove();
+            evictedLevels++;
+        }
+        if (bytes <= maxBytes) {
+            return;
+        }
+        Level level = levels.get(currentZoom);
+        Iterator<int[]> featuresIterator = level.features.values().iterator();
+        while( bytes > maxBytes && featuresIterator.hasNext() ) {
+            long size = size(featuresIterator.next());
+            featuresIterator.remove();
+            level.bytes -= size;
+            bytes -= size;
+            evictedFeatures++;
+        }
+    }
+
+    private static long size( int[] pixels ) {
+        return ENTRY_OVERHEAD + pixels.length * 4L;
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.maps.overlays;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+
+import com.vividsolutions.jts.android.PointTransformation;
+import com.vividsolutions.jts.android.WKBShapeWriter;
+import com.vividsolutions.jts.android.geom.DrawableShape;
+
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.spatialite.database.spatial.SpatialDatabasesManager;
+import eu.geopaparazzi.spatialite.database.spatial.core.GeometryIterator;
+import eu.geopaparazzi.spatialite.database.spatial.core.GeometryWorkingSet;
+import eu.geopaparazzi.spatialite.database.spatial.core.ISpatialDatabaseHandler;
+import eu.geopaparazzi.spatialite.database.spatial.core.SpatialVectorTable;
+import eu.geopaparazzi.spatialite.database.spatial.core.Style;
+import eu.geopaparazzi.spatialite.database.spatial.core.VectorTileCache;
+
+/**
+ * Renders spatialite vector layers into tiles on a pool of worker threads.
+ *
+ * <p>Rendered tiles are kept in the {@link VectorTileCache} of the
+ * {@link SpatialDatabasesManager}, so that a pan only needs to render
+ * the tiles that enter the view. The geometries of the visible tiles are
+ * kept in a {@link GeometryWorkingSet} per layer, so that rendering those
+ * tiles only reads the geometries that entered the view. Those geometries are
+ * kept projected to the pixels of the zoom level in a {@link ProjectedGeometryCache},
+ * so that the tiles a feature touches only translate it.</p>
+ *
+ * <p>Layers are rendered in parallel, each into its own tiles, and composited
+ * by the overlay in {@link Style#order}. Jobs of the latest view run first,
+ * lower layers before upper ones, and jobs of tiles that left the view are
+ * skipped.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class SpatialiteTileRenderer {
+
+    private static final int TILE_SIZE = Tile.TILE_SIZE;
+    /**
+     * Pixels queried around each tile, so that strokes and point symbols on tile borders are not cut.
+     */
+    private static final int TILE_MARGIN = 16;
+
+    private final ThreadPoolExecutor renderPool;
+    private final Set<String> pendingTiles = Collections.synchronizedSet(new HashSet<String>());
+    private final Runnable onTileRendered;
+    private final AtomicLong jobsSequence = new AtomicLong();
+    /*
+     * the visible tiles as zoom, xmin, ymin, xmax, ymax
+     */
+    private volatile long[] visibleTiles = null;
+    private volatile long viewGeneration = 0;
+    /*
+     * bounds of the visible tiles as zoom, n, s, e, w
+     */
+    private volatile double[] visibleBounds = null;
+    private final HashMap<String, GeometryWorkingSet> workingSets = new HashMap<String, GeometryWorkingSet>();
+    private final ProjectedGeometryCache projectedCache = new ProjectedGeometryCache(ProjectedGeometryCache.DEFAULT_MAX_BYTES);
+
+    /**
+     * @param threadsNum the number of rendering threads.
+     * @param onTileRendered called from the rendering thread every time a tile is ready.
+     */
+    public SpatialiteTileRenderer( int threadsNum, Runnable onTileRendered ) {
+        this.onTileRendered = onTileRendered;
+        ThreadFactory threadFactory = new ThreadFactory(){
+            private int threadsCount = 0;
+            public synchronized Thread newThread( Runnable runnable ) {
+                Thread thread = new Thread(runnable, "SpatialiteTileRenderer-" + threadsCount++); //$NON-NLS-1$
+                // keep the ui responsive
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        };
+        renderPool = new ThreadPoolExecutor(threadsNum, threadsNum, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), threadFactory);
+    }
+
+    /**
+     * Set the tiles currently visible.
+     *
+     * <p>Scheduled tiles that are not visible are skipped. The geometries of
+     * the visible tiles are kept in memory and reused while the view moves.</p>
+     *
+     * @param zoom the zoom level.
+     * @param tileXMin the first visible tile column.
+     * @param tileYMin the first visible tile row.
+     * @param tileXMax the last visible tile column.
+     * @param tileYMax the last visible tile row.
+     */
+    public void setVisibleTiles( byte zoom, long tileXMin, long tileYMin, long tileXMax, long tileYMax ) {
+        double[] bounds = getTileBounds(zoom, tileXMin * TILE_SIZE, tileYMin * TILE_SIZE, (tileXMax + 1) * TILE_SIZE,
+                (tileYMax + 1) * TILE_SIZE);
+        long[] tiles = new long[]{zoom, tileXMin, tileYMin, tileXMax, tileYMax};
+        long[] oldTiles = visibleTiles;
+        if (oldTiles == null || !Arrays.equals(oldTiles, tiles)) {
+            viewGeneration++;
+        }
+        visibleTiles = tiles;
+        visibleBounds = new double[]{zoom, bounds[0], bounds[1], bounds[2], bounds[3]};
+    }
+
+    private boolean isVisible( byte zoom, long tileX, long tileY ) {
+        long[] tiles = visibleTiles;
+        if (tiles == null) {
+            return true;
+        }
+        return tiles[0] == zoom && tileX >= tiles[1] && tileY >= tiles[2] && tileX <= tiles[3] && tileY <= tiles[4];
+    }
+
+    /**
+     * Get a rendered tile of a layer, scheduling its rendering if it is not available.
+     *
+     * @param spatialTable the layer.
+     * @param zoom the zoom level.
+     * @param tileX the tile column.
+     * @param tileY the tile row.
+     * @return the tile or <code>null</code> if it is not yet rendered.
+     */
+    public Bitmap getTile( SpatialVectorTable spatialTable, byte zoom, long tileX, long tileY ) {
+        SpatialDatabasesManager sdManager = SpatialDatabasesManager.getInstance();
+        VectorTileCache tileCache = sdManager.getVectorTileCache();
+        String layerKey = sdManager.getLayerKey(spatialTable);
+        int version = tileCache.getLayerVersion(layerKey, spatialTable.getStyle());
+        String tileKey = VectorTileCache.getTileKey(layerKey, version, zoom, tileX, tileY);
+        Bitmap tile = tileCache.get(tileKey);
+        if (tile == null && pendingTiles.add(tileKey)) {
+            String projectedKey = layerKey + "@" + version; //$NON-NLS-1$
+            renderPool.execute(new TileJob(spatialTable, layerKey, projectedKey, tileKey, zoom, tileX, tileY, viewGeneration,
+                    jobsSequence.getAndIncrement()));
+        }
+        return tile;
+    }
+
+    public void dispose() {
+        renderPool.shutdownNow();
+        pendingTiles.clear();
+        synchronized (workingSets) {
+            workingSets.clear();
+        }
+        if (GPLog.LOG_HEAVY)
+            GPLog.addLogEntry(this, "Projected geometries: " + projectedCache.getInfo()); //$NON-NLS-1$
+        projectedCache.clear();
+    }
+
+    private GeometryWorkingSet getWorkingSet( String layerKey ) {
+        synchronized (workingSets) {
+            GeometryWorkingSet workingSet = workingSets.get(layerKey);
+            if (workingSet == null) {
+                workingSet = new GeometryWorkingSet("4326", GeometryWorkingSet.DEFAULT_MAX_BYTES); //$NON-NLS-1$
+                workingSets.put(layerKey, workingSet);
+            }
+            return workingSet;
+        }
+    }
+
+    /**
+     * Get the bounds of a pixel area, extended by the {@link #TILE_MARGIN}.
+     *
+     * @return the bounds as n, s, e, w.
+     */
+    private static double[] getTileBounds( byte zoom, long minPixelX, long minPixelY, long maxPixelX, long maxPixelY ) {
+        long mapSize = (long) TILE_SIZE << zoom;
+        double w = MercatorProjection.pixelXToLongitude(Math.max(0, minPixelX - TILE_MARGIN), zoom);
+        double e = MercatorProjection.pixelXToLongitude(Math.min(mapSize, maxPixelX + TILE_MARGIN), zoom);
+        double n = MercatorProjection.pixelYToLatitude(Math.max(0, minPixelY - TILE_MARGIN), zoom);
+        double s = MercatorProjection.pixelYToLatitude(Math.min(mapSize, maxPixelY + TILE_MARGIN), zoom);
+        return new double[]{n, s, e, w};
+    }
+
+    /**
+     * Draw the geometries of a table in the given bounds.
+     *
+     * @param canvas the canvas to draw on.
+     * @param spatialDatabaseHandler the handler of the table.
+     * @param spatialTable the table to draw.
+     * @param drawPosition the pixel position of the top left corner of the canvas.
+     * @param zoom the zoom level.
+     * @param n north bound.
+     * @param s south bound.
+     * @param e east bound.
+     * @param w west bound.
+     * @return <code>false</code> if the drawing was interrupted.
+     */
+    public static boolean drawLayer( Canvas canvas, ISpatialDatabaseHandler spatialDatabaseHandler,
+            SpatialVectorTable spatialTable, Point drawPosition, byte zoom, double n, double s, double e, double w ) {
+        GeometryIterator geometryIterator = null;
+        try {
+            geometryIterator = spatialDatabaseHandler.getGeometryIteratorInBounds("4326", spatialTable, n, s, e, w, zoom); //$NON-NLS-1$
+            if (geometryIterator == null) {
+                return false;
+            }
+            LayerPainter painter = new LayerPainter(spatialDatabaseHandler, spatialTable, drawPosition, zoom);
+            while( geometryIterator.hasNext() ) {
+                painter.draw(canvas, geometryIterator.nextWKB());
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+            }
+        } finally {
+            if (geometryIterator != null) {
+                try {
+                    geometryIterator.close();
+                } catch (jsqlite.Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Draw WKB geometries of a table through the cache of their projected pixels.
+     *
+     * @param projectedKey the key of the table and its style version in the cache.
+     * @param wkbMap the geometries by row id.
+     * @return <code>false</code> if the drawing was interrupted.
+     */
+    private boolean drawLayer( Canvas canvas, ISpatialDatabaseHandler spatialDatabaseHandler, SpatialVectorTable spatialTable,
+            String projectedKey, Point drawPosition, byte zoom, LinkedHashMap<Long, byte[]> wkbMap ) {
+        Point origin = projectedCache.getOrigin(zoom, drawPosition);
+        LayerPainter painter = new LayerPainter(spatialDatabaseHandler, spatialTable, origin, zoom);
+        int offsetX = drawPosition.x - origin.x;
+        int offsetY = drawPosition.y - origin.y;
+        for( Entry<Long, byte[]> entry : wkbMap.entrySet() ) {
+            long rowId = entry.getKey();
+            int[] pixels = projectedCache.get(zoom, projectedKey, rowId);
+            if (pixels == null) {
+                pixels = painter.project(entry.getValue());
+                projectedCache.put(zoom, origin, projectedKey, rowId, pixels);
+            }
+            painter.draw(canvas, pixels, offsetX, offsetY);
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Draws WKB geometries with the style of a table.
+     */
+    private static class LayerPainter {
+        private final WKBShapeWriter wr;
+        private final Paint fill;
+        private final Paint stroke;
+        private final boolean doFill;
+
+        LayerPainter( ISpatialDatabaseHandler spatialDatabaseHandler, SpatialVectorTable spatialTable, Point drawPosition,
+                byte zoom ) {
+            Style style4Table = spatialTable.getStyle();
+            Paint fill = null;
+            Paint stroke = null;
+            if (style4Table.fillcolor != null && style4Table.fillcolor.trim().length() > 0)
+                fill = spatialDatabaseHandler.getFillPaint4Style(style4Table);
+            if (style4Table.strokecolor != null && style4Table.strokecolor.trim().length() > 0)
+                stroke = spatialDatabaseHandler.getStrokePaint4Style(style4Table);
+            this.fill = fill;
+            this.stroke = stroke;
+            doFill = fill != null && !spatialTable.isLine();
+
+            PointTransformation pointTransformer = new MapsforgePointTransformation(drawPosition, zoom);
+            if (spatialTable.isPoint()) {
+                wr = new WKBShapeWriter(pointTransformer, style4Table.shape, style4Table.size);
+            } else {
+                wr = new WKBShapeWriter(pointTransformer);
+            }
+            wr.setRemoveDuplicatePoints(true);
+            wr.setDecimation(style4Table.decimationFactor);
+        }
+
+        void draw( Canvas canvas, byte[] wkb ) {
+            draw(canvas, wr.toShape(wkb));
+        }
+
+        /**
+         * @return the pixels of the geometry, relative to the painter's draw position.
+         */
+        int[] project( byte[] wkb ) {
+            return wr.toPixels(wkb);
+        }
+
+        void draw( Canvas canvas, int[] pixels, int offsetX, int offsetY ) {
+            draw(canvas, wr.toShape(pixels, offsetX, offsetY));
+        }
+
+        private void draw( Canvas canvas, DrawableShape shape ) {
+            if (shape != null) {
+                if (doFill)
+                    shape.fill(canvas, fill);
+                if (stroke != null)
+                    shape.draw(canvas, stroke);
+            }
+        }
+    }
+
+    private class TileJob implements Runnable, Comparable<TileJob> {
+        private final SpatialVectorTable spatialTable;
+        private final String layerKey;
+        private final String projectedKey;
+        private final String tileKey;
+        private final byte zoom;
+        private final long tileX;
+        private final long tileY;
+        private final long generation;
+        private final int order;
+        private final long sequence;
+
+        TileJob( SpatialVectorTable spatialTable, String layerKey, String projectedKey, String tileKey, byte zoom, long tileX,
+                long tileY, long generation, long sequence ) {
+            this.spatialTable = spatialTable;
+            this.layerKey = layerKey;
+            this.projectedKey = projectedKey;
+            this.tileKey = tileKey;
+            this.zoom = zoom;
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.generation = generation;
+            this.sequence = sequence;
+            order = spatialTable.getStyle().order;
+        }
+
+        /**
+         * Latest view first, then by layer order, then by submission.
+         */
+        public int compareTo( TileJob other ) {
+            if (generation != other.generation)
+                return generation > other.generation ? -1 : 1;
+            if (order != other.order)
+                return order < other.order ? -1 : 1;
+            if (sequence != other.sequence)
+                return sequence < other.sequence ? -1 : 1;
+            return 0;
+        }
+
+        public void run() {
+            boolean rendered = false;
+            Bitmap tile = null;
+            try {
+                if (!isVisible(zoom, tileX, tileY)) {
+                    // the view moved on before the tile was rendered
+                    return;
+                }
+                SpatialDatabasesManager sdManager = SpatialDatabasesManager.getInstance();
+                ISpatialDatabaseHandler spatialDatabaseHandler = sdManager.getVectorHandler(spatialTable);
+                if (spatialDatabaseHandler == null) {
+                    return;
+                }
+
+                long pixelX = tileX * TILE_SIZE;
+                long pixelY = tileY * TILE_SIZE;
+                double[] bounds = getTileBounds(zoom, pixelX, pixelY, pixelX + TILE_SIZE, pixelY + TILE_SIZE);
+                double n = bounds[0];
+                double s = bounds[1];
+                double e = bounds[2];
+                double w = bounds[3];
+
+                tile = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Config.ARGB_8888);
+                Canvas canvas = new Canvas(tile);
+                Point drawPosition = new Point((int) pixelX, (int) pixelY);
+                // reads go through the pooled connections of the handler, so tiles render in parallel
+                LinkedHashMap<Long, byte[]> wkbMap = null;
+                double[] visible = visibleBounds;
+                if (visible != null && (byte) visible[0] == zoom) {
+                    GeometryWorkingSet workingSet = getWorkingSet(layerKey);
+                    workingSet.update(spatialDatabaseHandler, spatialTable, zoom, visible[1], visible[2], visible[3], visible[4]);
+                    wkbMap = workingSet.getFeaturesInBounds(zoom, n, s, e, w);
+                }
+                if (wkbMap != null) {
+                    rendered = drawLayer(canvas, spatialDatabaseHandler, spatialTable, projectedKey, drawPosition, zoom,
+                            wkbMap);
+                } else {
+                    // not a visible tile, or too many features around the view to keep them
+                    rendered = drawLayer(canvas, spatialDatabaseHandler, spatialTable, drawPosition, zoom, n, s, e, w);
+                }
+                if (rendered) {
+                    sdManager.getVectorTileCache().put(tileKey, tile);
+                }
+            } catch (java.lang.Exception e) {
+                GPLog.error(this, "Could not render tile: " + tileKey, e); //$NON-NLS-1$
+            } finally {
+                pendingTiles.remove(tileKey);
+                if (!rendered && tile != null) {
+                    // interrupted or failed, the pixels are not cached, free them now
+                    tile.recycle();
+                }
+            }
+            if (rendered) {
+                onTileRendered.run();
+            }
+        }
+    }
+}
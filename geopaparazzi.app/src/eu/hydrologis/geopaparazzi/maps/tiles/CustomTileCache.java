@@ -0,0 +1,437 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.maps.tiles;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mapsforge.core.model.Tile;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.util.Utilities;
+
+/**
+ * A two level cache for the tiles of a custom tile source.
+ *
+ * <p>The first level keeps the decoded pixels of the most recently used tiles
+ * in memory. The second level keeps the encoded tiles on disk, in an sqlite file
+ * with the mbtiles layout (tms rows), together with the ETag and the expiry time
+ * the server sent, so that a tile is downloaded again only once it expired and
+ * is revalidated when the server supports it.</p>
+ *
+ * <p>The disk store belongs to a single url template: if the template of the source
+ * changes, the stored tiles are dropped.</p>
+ *
+ * <p>The two levels have separate locks, so that memory lookups don't wait for disk reads
+ * and writes.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class CustomTileCache implements TileStore {
+
+    /**
+     * The default number of decoded tiles kept in memory.
+     */
+    public static final int DEFAULT_MEMORY_TILES = 32;
+    /**
+     * The default maximum size of the disk store.
+     */
+    public static final long DEFAULT_DISK_BYTES = 100L * 1024L * 1024L;
+    /**
+     * The time a tile is considered valid if the server didn't say.
+     */
+    public static final long DEFAULT_EXPIRY_MILLIS = 7L * 24L * 60L * 60L * 1000L;
+
+    private static final String TABLE_TILES = "tiles";
+    private static final String TABLE_METADATA = "metadata";
+    private static final String COL_ZOOM = "zoom_level";
+    private static final String COL_COLUMN = "tile_column";
+    private static final String COL_ROW = "tile_row";
+    private static final String COL_DATA = "tile_data";
+    private static final String COL_ETAG = "etag";
+    private static final String COL_EXPIRES = "expires";
+    private static final String COL_LASTUSED = "last_used";
+    private static final String METADATA_URL = "url_template";
+
+    /**
+     * The access time of a stored tile is updated at most this often, to avoid a write per read.
+     */
+    private static final long LASTUSED_RESOLUTION_MILLIS = 60L * 60L * 1000L;
+    /**
+     * When the disk store is full, it is shrunk to this fraction of its maximum size.
+     */
+    private static final double DISK_SHRINK_FACTOR = 0.9;
+    private static final int EVICTION_BATCH = 64;
+
+    private final int maxMemoryTiles;
+    private final long maxDiskBytes;
+    /*
+     * also the lock of the memory level
+     */
+    private final LinkedHashMap<String, int[]> memoryCache;
+    private final Object diskLock = new Object();
+
+    private SQLiteDatabase db;
+    /*
+     * the size of the stored tiles, kept up to date on writes and evictions
+     */
+    private long diskBytes = 0;
+
+    private long memoryHits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+    private long revalidations = 0;
+    private long diskEvictions = 0;
+
+    /**
+     * @param cacheFile the file of the disk store, <code>null</code> to keep tiles in memory only.
+     * @param urlTemplate the url template of the tile source.
+     * @param maxMemoryTiles the number of decoded tiles to keep in memory.
+     * @param maxDiskBytes the maximum size of the tiles kept on disk.
+     */
+    public CustomTileCache( File cacheFile, String urlTemplate, int maxMemoryTiles, long maxDiskBytes ) {
+        this.maxMemoryTiles = maxMemoryTiles;
+        this.maxDiskBytes = maxDiskBytes;
+        memoryCache = new LinkedHashMap<String, int[]>(maxMemoryTiles + 1, 1f, true){
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, int[]> eldest ) {
+                return size() > CustomTileCache.this.maxMemoryTiles;
+            }
+        };
+
+        if (cacheFile != null) {
+            try {
+                File parentFile = cacheFile.getParentFile();
+                if (!parentFile.exists() && !parentFile.mkdirs()) {
+                    throw new SQLException("Unable to create the tile cache folder: " + parentFile);
+                }
+                db = SQLiteDatabase.openOrCreateDatabase(cacheFile, null);
+                checkTables(urlTemplate);
+                diskBytes = readDiskBytes();
+            } catch (SQLException e) {
+                // go on with the memory cache only
+                GPLog.error(this, "Unable to open the tile cache: " + cacheFile, e);
+                close();
+            }
+        }
+    }
+
+    private void checkTables( String urlTemplate ) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_METADATA + " (name TEXT, value TEXT)");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_TILES + " (" + //
+                COL_ZOOM + " INTEGER, " + //
+                COL_COLUMN + " INTEGER, " + //
+                COL_ROW + " INTEGER, " + //
+                COL_DATA + " BLOB, " + //
+                COL_ETAG + " TEXT, " + //
+                COL_EXPIRES + " INTEGER, " + //
+                COL_LASTUSED + " INTEGER, " + //
+                "PRIMARY KEY (" + COL_ZOOM + ", " + COL_COLUMN + ", " + COL_ROW + "))");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_TILES + "_" + COL_LASTUSED + " ON " + TABLE_TILES + " (" + COL_LASTUSED
+                + ")");
+
+        String storedTemplate = null;
+        Cursor cursor = db.rawQuery("SELECT value FROM " + TABLE_METADATA + " WHERE name=?", new String[]{METADATA_URL});
+        try {
+            if (cursor.moveToFirst()) {
+                storedTemplate = cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!urlTemplate.equals(storedTemplate)) {
+            // another source, the stored tiles are of no use
+            db.beginTransaction();
+            try {
+                db.delete(TABLE_TILES, null, null);
+                db.delete(TABLE_METADATA, null, null);
+                insertMetadata(METADATA_URL, urlTemplate);
+                insertMetadata("format", "png");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private void insertMetadata( String name, String value ) {
+        ContentValues values = new ContentValues();
+        values.put("name", name);
+        values.put("value", value);
+        db.insert(TABLE_METADATA, null, values);
+    }
+
+    private long readDiskBytes() {
+        Cursor cursor = db.rawQuery("SELECT SUM(LENGTH(" + COL_DATA + ")) FROM " + TABLE_TILES, null);
+        try {
+            if (cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        return 0;
+    }
+
+    private static String getKey( Tile tile ) {
+        return tile.zoomLevel + "/" + tile.tileX + "/" + tile.tileY;
+    }
+
+    private static String[] getTmsArgs( Tile tile ) {
+        int[] tms = Utilities.googleTile2TmsTile((int) tile.tileX, (int) tile.tileY, tile.zoomLevel);
+        return new String[]{String.valueOf(tile.zoomLevel), String.valueOf(tms[0]), String.valueOf(tms[1])};
+    }
+
+    /**
+     * Get the decoded pixels of a tile from memory.
+     *
+     * @param tile the tile.
+     * @return the pixels, not to be modified, or <code>null</code>.
+     */
+    public int[] getPixels( Tile tile ) {
+        synchronized (memoryCache) {
+            int[] pixels = memoryCache.get(getKey(tile));
+            if (pixels != null) {
+                memoryHits++;
+            }
+            return pixels;
+        }
+    }
+
+    /**
+     * Keep the decoded pixels of a tile in memory.
+     *
+     * @param tile the tile.
+     * @param pixels the pixels, which are copied into the array of the evicted tile, if any.
+     */
+    public void putPixels( Tile tile, int[] pixels ) {
+        if (maxMemoryTiles > 0) {
+            synchronized (memoryCache) {
+                int[] copy = null;
+                if (memoryCache.size() >= maxMemoryTiles) {
+                    // reuse the array of the least recently used tile
+                    Iterator<Map.Entry<String, int[]>> iterator = memoryCache.entrySet().iterator();
+                    copy = iterator.next().getValue();
+                    iterator.remove();
+                }
+                if (copy == null || copy.length != pixels.length) {
+                    copy = new int[pixels.length];
+                }
+                System.arraycopy(pixels, 0, copy, 0, pixels.length);
+                memoryCache.put(getKey(tile), copy);
+            }
+        }
+    }
+
+    /**
+     * Get a tile from the disk store.
+     *
+     * <p>A tile that is not found counts as a miss, an expired one as a revalidation.</p>
+     */
+    public StoredTile getStoredTile( Tile tile ) {
+        synchronized (diskLock) {
+            if (db == null) {
+                misses++;
+                return null;
+            }
+            String[] args = getTmsArgs(tile);
+            StoredTile storedTile = null;
+            long lastUsed = 0;
+            Cursor cursor = db.rawQuery("SELECT " + COL_DATA + ", " + COL_ETAG + ", " + COL_EXPIRES + ", " + COL_LASTUSED + " FROM "
+                    + TABLE_TILES + " WHERE " + COL_ZOOM + "=? AND " + COL_COLUMN + "=? AND " + COL_ROW + "=?", args);
+            try {
+                if (cursor.moveToFirst()) {
+                    storedTile = new StoredTile(cursor.getBlob(0), cursor.getString(1), cursor.getLong(2));
+                    lastUsed = cursor.getLong(3);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (storedTile == null) {
+                misses++;
+                return null;
+            }
+            if (storedTile.isExpired()) {
+                revalidations++;
+            } else {
+                diskHits++;
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastUsed > LASTUSED_RESOLUTION_MILLIS) {
+                ContentValues values = new ContentValues();
+                values.put(COL_LASTUSED, now);
+                db.update(TABLE_TILES, values, COL_ZOOM + "=? AND " + COL_COLUMN + "=? AND " + COL_ROW + "=?", args);
+            }
+            return storedTile;
+        }
+    }
+
+    /**
+     * Put a tile in the disk store, evicting the least recently used tiles if the store is full.
+     */
+    public void putStoredTile( Tile tile, byte[] data, String etag, long expires ) {
+        synchronized (diskLock) {
+            if (db == null) {
+                return;
+            }
+            String[] args = getTmsArgs(tile);
+            ContentValues values = new ContentValues();
+            values.put(COL_ZOOM, tile.zoomLevel);
+            values.put(COL_COLUMN, Integer.parseInt(args[1]));
+            values.put(COL_ROW, Integer.parseInt(args[2]));
+            values.put(COL_DATA, data);
+            values.put(COL_ETAG, etag);
+            values.put(COL_EXPIRES, expires);
+            values.put(COL_LASTUSED, System.currentTimeMillis());
+            try {
+                long replacedBytes = 0;
+                Cursor cursor = db.rawQuery("SELECT LENGTH(" + COL_DATA + ") FROM " + TABLE_TILES + " WHERE " + COL_ZOOM + "=? AND "
+                        + COL_COLUMN + "=? AND " + COL_ROW + "=?", args);
+                try {
+                    if (cursor.moveToFirst()) {
+                        replacedBytes = cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                db.insertWithOnConflict(TABLE_TILES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                diskBytes += data.length - replacedBytes;
+                if (diskBytes > maxDiskBytes) {
+                    shrinkDiskStore();
+                }
+            } catch (SQLException e) {
+                GPLog.error(this, "Unable to store the tile: " + getKey(tile), e);
+            }
+        }
+    }
+
+    public void refreshStoredTile( Tile tile, long expires ) {
+        synchronized (diskLock) {
+            if (db == null) {
+                return;
+            }
+            ContentValues values = new ContentValues();
+            values.put(COL_EXPIRES, expires);
+            db.update(TABLE_TILES, values, COL_ZOOM + "=? AND " + COL_COLUMN + "=? AND " + COL_ROW + "=?", getTmsArgs(tile));
+        }
+    }
+
+    /**
+     * Evict the least recently used tiles, subtracting their size from the tracked one.
+     */
+    private void shrinkDiskStore() {
+        long target = (long) (maxDiskBytes * DISK_SHRINK_FACTOR);
+        while( diskBytes > target ) {
+            StringBuilder rowIds = new StringBuilder();
+            long evictedBytes = 0;
+            Cursor cursor = db.rawQuery("SELECT rowid, LENGTH(" + COL_DATA + ") FROM " + TABLE_TILES + " ORDER BY " + COL_LASTUSED
+                    + " LIMIT " + EVICTION_BATCH, null);
+            try {
+                while( cursor.moveToNext() ) {
+                    if (rowIds.length() > 0) {
+                        rowIds.append(",");
+                    }
+                    rowIds.append(cursor.getLong(0));
+                    evictedBytes += cursor.getLong(1);
+                    diskEvictions++;
+                }
+            } finally {
+                cursor.close();
+            }
+            if (rowIds.length() == 0) {
+                // empty, the tracked size drifted
+                diskBytes = 0;
+                break;
+            }
+            db.execSQL("DELETE FROM " + TABLE_TILES + " WHERE rowid IN (" + rowIds + ")");
+            diskBytes -= evictedBytes;
+        }
+    }
+
+    /**
+     * @return a summary of the usage of the cache.
+     */
+    public String getInfo() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (memoryCache) {
+            sb.append("memory tiles=").append(memoryCache.size());
+            sb.append(" memory hits=").append(memoryHits);
+        }
+        synchronized (diskLock) {
+            sb.append(" disk hits=").append(diskHits);
+            sb.append(" revalidations=").append(revalidations);
+            sb.append(" misses=").append(misses);
+            sb.append(" disk bytes=").append(diskBytes);
+            sb.append(" disk evictions=").append(diskEvictions);
+        }
+        return sb.toString();
+    }
+
+    public long getMemoryHits() {
+        synchronized (memoryCache) {
+            return memoryHits;
+        }
+    }
+
+    public long getDiskHits() {
+        synchronized (diskLock) {
+            return diskHits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized (diskLock) {
+            return misses;
+        }
+    }
+
+    public long getRevalidations() {
+        synchronized (diskLock) {
+            return revalidations;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the tiles are also kept on disk.
+     */
+    public boolean hasDiskStore() {
+        synchronized (diskLock) {
+            return db != null;
+        }
+    }
+
+    /**
+     * Close the disk store, the memory cache stays usable.
+     */
+    public void close() {
+        synchronized (diskLock) {
+            if (db != null) {
+                db.close();
+                db = null;
+            }
+        }
+    }
+}
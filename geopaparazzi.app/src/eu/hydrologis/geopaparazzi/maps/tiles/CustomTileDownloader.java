@@ -27,8 +27,6 @@ import org.mapsforge.core.model.GeoPoint;
 import org.mapsforge.core.model.Tile;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.library.util.FileUtilities;
 import eu.geopaparazzi.library.util.Utilities;
@@ -36,7 +34,7 @@ import eu.geopaparazzi.library.util.Utilities;
 /**
  * A MapGenerator that downloads tiles from the Mapnik server at OpenStreetMap.
  */
-public class CustomTileDownloader extends TileDownloader {
+public class CustomTileDownloader extends TileDownloader implements TileFetcher.TileUrlProvider {
 
     /**
      * Possible schemas
@@ -56,6 +54,11 @@ public class CustomTileDownloader extends TileDownloader {
     private boolean isFile = false;
     private TILESCHEMA type = TILESCHEMA.google;
 
+    private String urlTemplate = ""; //$NON-NLS-1$
+    private CustomTileCache tileCache;
+    private TileFetcher tileFetcher;
+    private final TileDecoder tileDecoder = new TileDecoder();
+
     @SuppressWarnings("nls")
     public CustomTileDownloader( List<String> fileLines, String parentPath ) {
         super();
@@ -82,6 +85,7 @@ public class CustomTileDownloader extends TileDownloader {
             if (split != -1) {
                 String value = line.substring(split + 1).trim();
                 if (line.startsWith("url")) {
+                    urlTemplate = value;
 
                     int indexOfZ = value.indexOf("ZZZ");
                     if (indexOfZ != -1) {
@@ -183,43 +187,88 @@ public class CustomTileDownloader extends TileDownloader {
         return ""; //$NON-NLS-1$
     }
 
+    /**
+     * Set the cache to use for the tiles of this source.
+     * 
+     * <p>If the cache has a disk store, remote tiles are downloaded into it by
+     * a {@link TileFetcher}, which also prefetches the tiles around the requested ones.</p>
+     * 
+     * @param tileCache the cache or <code>null</code> to always download.
+     */
+    public void setTileCache( CustomTileCache tileCache ) {
+        if (tileFetcher != null) {
+            tileFetcher.shutdown();
+            tileFetcher = null;
+        }
+        this.tileCache = tileCache;
+        if (tileCache != null && tileCache.hasDiskStore() && !isFile) {
+            tileFetcher = new TileFetcher(this, tileCache, ZOOM_MAX, TileFetcher.DEFAULT_WORKERS,
+                    TileFetcher.DEFAULT_CONNECTIONS_PER_HOST);
+        }
+    }
+
+    public CustomTileCache getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * @return the url template of the source, which identifies its tiles.
+     */
+    public String getUrlTemplate() {
+        return urlTemplate;
+    }
+
+    /**
+     * @return <code>true</code> if the tiles are read from the local filesystem.
+     */
+    public boolean isFile() {
+        return isFile;
+    }
+
+    public String getTileUrl( Tile tile ) {
+        String tilePath = getTilePath(tile);
+
+        StringBuilder sb = new StringBuilder();
+        if (isFile) {
+            sb.append("file:"); //$NON-NLS-1$
+        } else {
+            if (!tilePath.startsWith("http")) //$NON-NLS-1$
+                sb.append("http://"); //$NON-NLS-1$
+        }
+        sb.append(HOST_NAME);
+        sb.append(tilePath);
+        return sb.toString();
+    }
+
     @Override
     public boolean executeJob( MapGeneratorJob mapGeneratorJob, Bitmap bitmap ) {
-        try {
-            Tile tile = mapGeneratorJob.tile;
-            String tilePath = getTilePath(tile);
+        Tile tile = mapGeneratorJob.tile;
+        if (tileCache != null) {
+            int[] cachedPixels = tileCache.getPixels(tile);
+            if (cachedPixels != null) {
+                bitmap.setPixels(cachedPixels, 0, Tile.TILE_SIZE, 0, 0, Tile.TILE_SIZE, Tile.TILE_SIZE);
+                return true;
+            }
+        }
 
-            StringBuilder sb = new StringBuilder();
-            if (isFile) {
-                sb.append("file:"); //$NON-NLS-1$
+        String tileUrl = getTileUrl(tile);
+        try {
+            byte[] tileBytes;
+            if (tileFetcher != null) {
+                tileBytes = tileFetcher.fetch(tile);
             } else {
-                if (!tilePath.startsWith("http")) //$NON-NLS-1$
-                    sb.append("http://"); //$NON-NLS-1$
+                tileBytes = readTile(tileUrl);
             }
-            sb.append(HOST_NAME);
-            sb.append(tilePath);
 
-            URL url = new URL(sb.toString());
-            InputStream inputStream = url.openStream();
-            Bitmap decodedBitmap = null;
-            try {
-                decodedBitmap = BitmapFactory.decodeStream(inputStream);
-            } catch (Exception e) {
-                // ignore and set the image as empty
-                if (GPLog.LOG_HEAVY)
-                    GPLog.addLogEntry(this, "Could not find image: " + sb.toString()); //$NON-NLS-1$
-            } finally {
-                inputStream.close();
-            }
-            // check if the input stream could be decoded into a bitmap
-            if (decodedBitmap != null) {
-                // copy all pixels from the decoded bitmap to the color array
-                decodedBitmap.getPixels(this.pixels, 0, Tile.TILE_SIZE, 0, 0, Tile.TILE_SIZE, Tile.TILE_SIZE);
-                decodedBitmap.recycle();
-            } else {
-                for( int i = 0; i < pixels.length; i++ ) {
-                    pixels[i] = Color.WHITE;
+            // decode into the color array, through reused buffers
+            if (tileDecoder.decodeTile(tileBytes, this.pixels)) {
+                if (tileCache != null) {
+                    tileCache.putPixels(tile, this.pixels);
                 }
+            } else {
+                if (GPLog.LOG_HEAVY)
+                    GPLog.addLogEntry(this, "Could not find image: " + tileUrl); //$NON-NLS-1$
+                tileDecoder.fillBlank(this.pixels);
             }
 
             // copy all pixels from the color array to the tile bitmap
@@ -233,6 +282,52 @@ public class CustomTileDownloader extends TileDownloader {
             return false;
         }
     }
+
+    /**
+     * Read a tile, without cache.
+     */
+    private byte[] readTile( String tileUrl ) throws IOException {
+        URL url = new URL(tileUrl);
+        InputStream inputStream = url.openStream();
+        try {
+            return TileFetcher.readAll(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Set the center of the view, so that the tiles nearest to it are downloaded first.
+     * 
+     * @param zoom the zoom level of the view.
+     * @param tileX the x of the center, in tiles of the zoom level.
+     * @param tileY the y of the center, in tiles of the zoom level.
+     */
+    public void setViewCenter( byte zoom, double tileX, double tileY ) {
+        if (tileFetcher != null) {
+            tileFetcher.setViewCenter(zoom, tileX, tileY);
+        }
+    }
+
+    /**
+     * Stop the downloads and close the cache.
+     */
+    public void close() {
+        if (tileFetcher != null) {
+            if (GPLog.LOG_HEAVY)
+                GPLog.addLogEntry(this, "Tile fetcher: " + tileFetcher.getInfo()); //$NON-NLS-1$
+            tileFetcher.shutdown();
+            tileFetcher = null;
+        }
+        if (tileCache != null) {
+            if (GPLog.LOG_HEAVY)
+                GPLog.addLogEntry(this, "Tile cache: " + tileCache.getInfo()); //$NON-NLS-1$
+            tileCache.close();
+        }
+        if (GPLog.LOG_HEAVY)
+            GPLog.addLogEntry(this, "Tile decoder: " + tileDecoder.getInfo()); //$NON-NLS-1$
+    }
+
     public byte getZoomLevelMax() {
         return ZOOM_MAX;
     }
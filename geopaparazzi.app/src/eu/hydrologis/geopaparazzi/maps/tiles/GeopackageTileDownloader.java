@@ -17,42 +17,62 @@
  */
 package eu.hydrologis.geopaparazzi.maps.tiles;
 
+import java.util.HashMap;
+
 import org.mapsforge.android.maps.mapgenerator.MapGeneratorJob;
 import org.mapsforge.android.maps.mapgenerator.tiledownloader.TileDownloader;
 import org.mapsforge.core.model.GeoPoint;
 import org.mapsforge.core.model.Tile;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.spatialite.database.spatial.SpatialDatabasesManager;
 import eu.geopaparazzi.spatialite.database.spatial.core.ISpatialDatabaseHandler;
 import eu.geopaparazzi.spatialite.database.spatial.core.SpatialRasterTable;
+import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MBTilesDroidSpitter;
 
 /**
  * A MapGenerator that downloads tiles from geopackage databases.
+ * 
+ * <p>Tiles outside of the stored zoom levels, or missing from the coverage, are
+ * synthesized from the stored ones and then cached by the map view like any other tile.</p>
  */
 public class GeopackageTileDownloader extends TileDownloader {
 
+    /**
+     * Levels above the max zoom for which tiles are upscaled from the stored ones.
+     */
+    private static final int MAX_OVERZOOM_LEVELS = 4;
+    /**
+     * Levels below the min zoom for which tiles are mosaicked from the stored ones.
+     */
+    private static final int MAX_UNDERZOOM_LEVELS = 2;
+    private static final int MAX_ZOOM_LEVEL = 22;
+
     private byte ZOOM_MIN = 0;
     private byte ZOOM_MAX = 18;
 
+    private final Paint scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final TileDecoder tileDecoder = new TileDecoder();
+
     private GeoPoint centerPoint = new GeoPoint(0, 0);
 
-    private String tilePart;
     private ISpatialDatabaseHandler spatialDatabaseHandler;
+    private SpatialRasterTable table;
 
     @SuppressWarnings("nls")
     public GeopackageTileDownloader( SpatialRasterTable table ) throws jsqlite.Exception {
         super();
         SpatialDatabasesManager sdManager = SpatialDatabasesManager.getInstance();
         spatialDatabaseHandler = sdManager.getRasterHandler(table);
+        this.table = table;
 
         ZOOM_MAX = (byte) table.getMaxZoom();
         ZOOM_MIN = (byte) table.getMinZoom();
-        
-        tilePart = table.getTileQuery();
     }
 
     public String getHostName() {
@@ -73,43 +93,39 @@ public class GeopackageTileDownloader extends TileDownloader {
         return ZOOM_MIN;
     }
 
+    /**
+     * The tiles are read through bound statements, the path only identifies the tile.
+     */
     public String getTilePath( Tile tile ) {
-        int zoomLevel = tile.zoomLevel;
-        int tileX = (int) tile.tileX;
-        int tileY = (int) tile.tileY;
-
-        String tmpTilePart = tilePart.replaceFirst("\\?", String.valueOf(zoomLevel)); //$NON-NLS-1$
-        tmpTilePart = tmpTilePart.replaceFirst("\\?", String.valueOf(tileX)); //$NON-NLS-1$
-        tmpTilePart = tmpTilePart.replaceFirst("\\?", String.valueOf(tileY)); //$NON-NLS-1$
-
-        return tmpTilePart;
+        return tile.zoomLevel + "/" + tile.tileX + "/" + tile.tileY; //$NON-NLS-1$ //$NON-NLS-2$
     }
 
     @Override
     public boolean executeJob( MapGeneratorJob mapGeneratorJob, Bitmap bitmap ) {
         try {
             Tile tile = mapGeneratorJob.tile;
+            int zoom = tile.zoomLevel;
+            int tileX = (int) tile.tileX;
+            int tileY = (int) tile.tileY;
 
-            String tileQuery = getTilePath(tile);
-
-            byte[] rasterBytes = spatialDatabaseHandler.getRasterTile(tileQuery);
             Bitmap decodedBitmap = null;
-            try {
-                decodedBitmap = BitmapFactory.decodeByteArray(rasterBytes, 0, rasterBytes.length);
-            } catch (Exception e) {
-                // ignore and set the image as empty
-                if (GPLog.LOG_HEAVY)
-                    GPLog.addLogEntry(this, "Could not find image: " + tileQuery); //$NON-NLS-1$
+            if (zoom >= ZOOM_MIN && zoom <= ZOOM_MAX) {
+                decodedBitmap = readTile(zoom, tileX, tileY);
             }
             // check if the input stream could be decoded into a bitmap
             if (decodedBitmap != null) {
                 // copy all pixels from the decoded bitmap to the color array
                 decodedBitmap.getPixels(this.pixels, 0, Tile.TILE_SIZE, 0, 0, Tile.TILE_SIZE, Tile.TILE_SIZE);
-                decodedBitmap.recycle();
+                tileDecoder.release(decodedBitmap);
             } else {
-                for( int i = 0; i < pixels.length; i++ ) {
-                    pixels[i] = Color.WHITE;
+                // synthesize the tile from the other zoom levels, drawn straight into the tile bitmap
+                if (zoom > ZOOM_MIN && drawFromAncestor(zoom, tileX, tileY, bitmap)) {
+                    return true;
                 }
+                if (zoom < ZOOM_MIN && drawFromChildren(zoom, tileX, tileY, bitmap)) {
+                    return true;
+                }
+                tileDecoder.fillBlank(pixels);
             }
 
             // copy all pixels from the color array to the tile bitmap
@@ -120,7 +136,110 @@ public class GeopackageTileDownloader extends TileDownloader {
             return false;
         }
     }
+
+    /**
+     * Read and decode a stored tile.
+     * 
+     * @return the tile image, to give back to the {@link TileDecoder}, or <code>null</code> if missing.
+     */
+    private Bitmap readTile( int zoom, int tileX, int tileY ) {
+        // tiles known to be missing are answered by the handler's tile index without querying
+        byte[] rasterBytes = spatialDatabaseHandler.getRasterTile(table, zoom, tileX, tileY);
+        Bitmap decodedBitmap = tileDecoder.decode(rasterBytes);
+        if (decodedBitmap == null && GPLog.LOG_HEAVY)
+            GPLog.addLogEntry(this, "Could not find image: " + zoom + "/" + tileX + "/" + tileY); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        return decodedBitmap;
+    }
+
+    /**
+     * Draw a tile by cropping and upscaling the part of the nearest stored ancestor that covers it.
+     * 
+     * <p>Used above the max zoom and for holes in the coverage.</p>
+     * 
+     * @return <code>true</code> if an ancestor was found and drawn.
+     */
+    private boolean drawFromAncestor( int zoom, int tileX, int tileY, Bitmap bitmap ) {
+        for( int dz = 1; dz <= MAX_OVERZOOM_LEVELS && zoom - dz >= ZOOM_MIN; dz++ ) {
+            int ancestorZoom = zoom - dz;
+            if (ancestorZoom > ZOOM_MAX) {
+                continue;
+            }
+            Bitmap ancestor = readTile(ancestorZoom, tileX >> dz, tileY >> dz);
+            if (ancestor == null) {
+                continue;
+            }
+            // the part of the ancestor covering the tile, in the ancestor's pixels
+            int mask = (1 << dz) - 1;
+            int size = ancestor.getWidth() >> dz;
+            int left = (tileX & mask) * size;
+            int top = (tileY & mask) * size;
+            Canvas canvas = new Canvas(bitmap);
+            canvas.drawColor(Color.WHITE);
+            canvas.drawBitmap(ancestor, new Rect(left, top, left + size, top + size), new Rect(0, 0, Tile.TILE_SIZE,
+                    Tile.TILE_SIZE), scalePaint);
+            tileDecoder.release(ancestor);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Draw a tile below the min zoom as a downsampled mosaic of its stored children.
+     * 
+     * <p>The children are read with a single range query.</p>
+     * 
+     * @return <code>true</code> if at least a child was found and drawn.
+     */
+    private boolean drawFromChildren( int zoom, int tileX, int tileY, Bitmap bitmap ) {
+        int dz = ZOOM_MIN - zoom;
+        if (dz > MAX_UNDERZOOM_LEVELS) {
+            return false;
+        }
+        int side = 1 << dz;
+        int cellSize = Tile.TILE_SIZE / side;
+        int xMin = tileX * side;
+        int yMin = tileY * side;
+        HashMap<Long, byte[]> children = spatialDatabaseHandler.getRasterTiles(table, ZOOM_MIN, xMin, xMin + side - 1, yMin,
+                yMin + side - 1);
+        if (children.size() == 0) {
+            return false;
+        }
+        Canvas canvas = null;
+        Rect dst = new Rect();
+        for( int i = 0; i < side; i++ ) {
+            for( int j = 0; j < side; j++ ) {
+                byte[] childBytes = children.get(MBTilesDroidSpitter.getTileKey(xMin + i, yMin + j));
+                Bitmap child = tileDecoder.decode(childBytes);
+                if (child == null) {
+                    continue;
+                }
+                if (canvas == null) {
+                    canvas = new Canvas(bitmap);
+                    canvas.drawColor(Color.WHITE);
+                }
+                dst.set(i * cellSize, j * cellSize, (i + 1) * cellSize, (j + 1) * cellSize);
+                canvas.drawBitmap(child, null, dst, scalePaint);
+                tileDecoder.release(child);
+            }
+        }
+        return canvas != null;
+    }
+
+    /**
+     * @return the statistics of the tile decoding.
+     */
+    public String getDecoderInfo() {
+        return tileDecoder.getInfo();
+    }
+
     public byte getZoomLevelMax() {
-        return ZOOM_MAX;
+        return (byte) Math.min(ZOOM_MAX + MAX_OVERZOOM_LEVELS, MAX_ZOOM_LEVEL);
+    }
+
+    /**
+     * @return the lowest zoom level tiles can be synthesized for.
+     */
+    public byte getZoomLevelMin() {
+        return (byte) Math.max(ZOOM_MIN - MAX_UNDERZOOM_LEVELS, 0);
     }
 }
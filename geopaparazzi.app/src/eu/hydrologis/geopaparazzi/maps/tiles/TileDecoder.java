@@ -0,0 +1,225 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.maps.tiles;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+import org.mapsforge.core.model.Tile;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+/**
+ * Decodes encoded tiles into pixel arrays, reusing its buffers from tile to tile.
+ *
+ * <ul>
+ *  <li>the decoder's temporary storage is allocated once;</li>
+ *  <li>on devices that support it (honeycomb and later, looked up by reflection since
+ *  we build against gingerbread), tiles are decoded into pooled bitmaps instead of new ones;</li>
+ *  <li>empty tiles are filled by copying a blank template.</li>
+ * </ul>
+ *
+ * <p>Not thread safe: each tile downloader has its own, used from its map worker thread.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TileDecoder {
+
+    private static final int MAX_POOLED_BITMAPS = 4;
+    private static final int TEMP_STORAGE_SIZE = 16 * 1024;
+
+    private static final int[] BLANK_TILE = new int[Tile.TILE_SIZE * Tile.TILE_SIZE];
+    static {
+        for( int i = 0; i < BLANK_TILE.length; i++ ) {
+            BLANK_TILE[i] = Color.WHITE;
+        }
+    }
+
+    /**
+     * BitmapFactory.Options.inBitmap and inMutable, <code>null</code> before honeycomb.
+     */
+    private static final Field IN_BITMAP_FIELD;
+    private static final Field IN_MUTABLE_FIELD;
+    static {
+        Field inBitmap = null;
+        Field inMutable = null;
+        try {
+            inBitmap = BitmapFactory.Options.class.getField("inBitmap");
+            inMutable = BitmapFactory.Options.class.getField("inMutable");
+        } catch (NoSuchFieldException e) {
+            inBitmap = null;
+            inMutable = null;
+        }
+        IN_BITMAP_FIELD = inBitmap;
+        IN_MUTABLE_FIELD = inMutable;
+    }
+
+    private final BitmapFactory.Options options = new BitmapFactory.Options();
+    private final ArrayList<Bitmap> pool = new ArrayList<Bitmap>(MAX_POOLED_BITMAPS);
+    private boolean canReuse = IN_BITMAP_FIELD != null;
+
+    private long tiles = 0;
+    private long blankTiles = 0;
+    private long bitmapAllocations = 0;
+    private long bitmapReuses = 0;
+
+    public TileDecoder() {
+        options.inTempStorage = new byte[TEMP_STORAGE_SIZE];
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inDither = false;
+        if (canReuse) {
+            try {
+                IN_MUTABLE_FIELD.setBoolean(options, true);
+            } catch (Exception e) {
+                canReuse = false;
+            }
+        }
+    }
+
+    /**
+     * Decode a tile into a pixel array.
+     *
+     * @param data the encoded image.
+     * @param pixels the array to fill, of {@link Tile#TILE_SIZE} squared pixels.
+     * @return <code>true</code> if the image could be decoded.
+     */
+    public boolean decodeTile( byte[] data, int[] pixels ) {
+        Bitmap decodedBitmap = decode(data);
+        if (decodedBitmap == null) {
+            return false;
+        }
+        decodedBitmap.getPixels(pixels, 0, Tile.TILE_SIZE, 0, 0, Tile.TILE_SIZE, Tile.TILE_SIZE);
+        release(decodedBitmap);
+        return true;
+    }
+
+    /**
+     * Decode a tile into a bitmap.
+     *
+     * <p>The bitmap has to be given back through {@link #release(Bitmap)}.</p>
+     *
+     * @param data the encoded image.
+     * @return the bitmap or <code>null</code> if the image couldn't be decoded.
+     */
+    public Bitmap decode( byte[] data ) {
+        if (data == null) {
+            return null;
+        }
+        tiles++;
+        Bitmap target = null;
+        if (canReuse && pool.size() > 0) {
+            target = pool.remove(pool.size() - 1);
+        }
+        Bitmap decodedBitmap = null;
+        try {
+            decodedBitmap = decode(data, target);
+        } catch (IllegalArgumentException e) {
+            // the image doesn't fit the pooled bitmap, decode into a new one
+            if (target != null) {
+                target.recycle();
+                target = null;
+            }
+            try {
+                decodedBitmap = decode(data, null);
+            } catch (Exception e1) {
+                // ignore, it is treated as an empty tile
+            }
+        } catch (Exception e) {
+            // ignore, it is treated as an empty tile
+        }
+        if (decodedBitmap == null) {
+            if (target != null) {
+                pool.add(target);
+            }
+            return null;
+        }
+        if (decodedBitmap == target) {
+            bitmapReuses++;
+        } else {
+            bitmapAllocations++;
+            if (target != null) {
+                pool.add(target);
+            }
+        }
+        return decodedBitmap;
+    }
+
+    private Bitmap decode( byte[] data, Bitmap target ) throws IllegalAccessException {
+        if (canReuse) {
+            IN_BITMAP_FIELD.set(options, target);
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * Give back a bitmap got from {@link #decode(byte[])}.
+     *
+     * @param bitmap the bitmap, not to be used anymore.
+     */
+    public void release( Bitmap bitmap ) {
+        if (canReuse && pool.size() < MAX_POOLED_BITMAPS && bitmap.isMutable() && bitmap.getWidth() == Tile.TILE_SIZE
+                && bitmap.getHeight() == Tile.TILE_SIZE) {
+            pool.add(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Fill a pixel array with an empty tile.
+     *
+     * @param pixels the array to fill, of {@link Tile#TILE_SIZE} squared pixels.
+     */
+    public void fillBlank( int[] pixels ) {
+        blankTiles++;
+        System.arraycopy(BLANK_TILE, 0, pixels, 0, BLANK_TILE.length);
+    }
+
+    /**
+     * Recycle the pooled bitmaps.
+     */
+    public void clear() {
+        for( Bitmap bitmap : pool ) {
+            bitmap.recycle();
+        }
+        pool.clear();
+    }
+
+    /**
+     * @return the number of bitmaps allocated per decoded tile.
+     */
+    public double getAllocationsPerTile() {
+        return tiles == 0 ? 0 : (double) bitmapAllocations / tiles;
+    }
+
+    /**
+     * @return a summary of the decoder's statistics.
+     */
+    public String getInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("decoded tiles=").append(tiles);
+        sb.append(" blank tiles=").append(blankTiles);
+        sb.append(" bitmap allocations=").append(bitmapAllocations);
+        sb.append(" bitmap reuses=").append(bitmapReuses);
+        sb.append(" allocations per tile=").append(getAllocationsPerTile());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.maps.tiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Downloads the tiles of an http tile source with a pool of workers.
+ *
+ * <p>Downloaded tiles go to a {@link TileStore}. The tile requested by the map is
+ * downloaded first, the tiles around it, on the same zoom level and on the next one,
+ * are prefetched, all ordered by their distance from the center of the view.
+ * The connections to a host are limited, and reused between tiles through the
+ * keep-alive of <code>java.net</code>.</p>
+ *
+ * <p>Only <code>java.net</code> is used, so that the fetcher can be run against a
+ * local http server serving tiles from disk.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TileFetcher {
+
+    /**
+     * Builds the url of a tile.
+     */
+    public static interface TileUrlProvider {
+        /**
+         * @param tile the tile.
+         * @return the url to download the tile from.
+         */
+        public String getTileUrl( Tile tile );
+    }
+
+    /**
+     * The default number of workers.
+     */
+    public static final int DEFAULT_WORKERS = 4;
+    /**
+     * The default number of parallel connections to a host.
+     */
+    public static final int DEFAULT_CONNECTIONS_PER_HOST = 2;
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 20000;
+    /**
+     * How long the map waits for the tile it asked for.
+     */
+    private static final long FETCH_WAIT_MILLIS = CONNECT_TIMEOUT + READ_TIMEOUT;
+
+    private final TileUrlProvider urlProvider;
+    private final TileStore tileStore;
+    private final byte zoomLevelMax;
+    private final int connectionsPerHost;
+    private final ThreadPoolExecutor executor;
+
+    private final HashMap<String, FetchJob> jobs = new HashMap<String, FetchJob>();
+    private final HashMap<String, Semaphore> hostSemaphores = new HashMap<String, Semaphore>();
+
+    private byte centerZoom = -1;
+    private double centerX;
+    private double centerY;
+    private long jobSequence = 0;
+
+    private long downloads = 0;
+    private long notModified = 0;
+    private long prefetches = 0;
+    private long droppedPrefetches = 0;
+
+    /**
+     * @param urlProvider the builder of the tile urls.
+     * @param tileStore the store the tiles are read from and downloaded to.
+     * @param zoomLevelMax the maximum zoom level of the source, tiles are not prefetched beyond it.
+     * @param workers the number of download threads.
+     * @param connectionsPerHost the maximum number of parallel connections to a host.
+     */
+    public TileFetcher( TileUrlProvider urlProvider, TileStore tileStore, byte zoomLevelMax, int workers, int connectionsPerHost ) {
+        this.urlProvider = urlProvider;
+        this.tileStore = tileStore;
+        this.zoomLevelMax = zoomLevelMax;
+        this.connectionsPerHost = connectionsPerHost;
+
+        executor = new ThreadPoolExecutor(workers, workers, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory(){
+                    private int count = 0;
+                    public synchronized Thread newThread( Runnable runnable ) {
+                        Thread thread = new Thread(runnable, "tile-fetcher-" + count++); //$NON-NLS-1$
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Set the center of the view, which decides the order of the downloads.
+     *
+     * <p>Prefetches that are no longer near the view are dropped.</p>
+     *
+     * @param zoom the zoom level of the view.
+     * @param tileX the x of the center, in tiles of the zoom level.
+     * @param tileY the y of the center, in tiles of the zoom level.
+     */
+    public void setViewCenter( byte zoom, double tileX, double tileY ) {
+        synchronized (this) {
+            if (zoom == centerZoom && Math.abs(tileX - centerX) < 0.5 && Math.abs(tileY - centerY) < 0.5) {
+                // not enough to change the order
+                return;
+            }
+            centerZoom = zoom;
+            centerX = tileX;
+            centerY = tileY;
+        }
+
+        // priorities changed, requeue the waiting jobs
+        List<Runnable> waiting = new ArrayList<Runnable>();
+        executor.getQueue().drainTo(waiting);
+        for( Runnable runnable : waiting ) {
+            FetchJob job = (FetchJob) runnable;
+            synchronized (this) {
+                if (job.prefetch && !isNearView(job.tile)) {
+                    jobs.remove(job.key);
+                    droppedPrefetches++;
+                    // in case the map started waiting for it meanwhile
+                    job.setResult(null, new IOException("Prefetch dropped: " + job.key)); //$NON-NLS-1$
+                    continue;
+                }
+                job.distance = getDistance(job.tile);
+            }
+            try {
+                executor.execute(job);
+            } catch (RejectedExecutionException e) {
+                // shut down
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get a tile, downloading it if it is not in the store or expired, and prefetch the tiles around it.
+     *
+     * <p>If the tile can't be downloaded, an expired stored tile is returned.</p>
+     *
+     * @param tile the tile.
+     * @return the encoded image or <code>null</code> if it is not available.
+     * @throws IOException if the download failed and no tile is stored.
+     */
+    public byte[] fetch( Tile tile ) throws IOException {
+        FetchJob job = null;
+        TileStore.StoredTile storedTile = tileStore.getStoredTile(tile);
+        if (storedTile == null || storedTile.isExpired()) {
+            job = submit(tile, false, storedTile);
+        }
+        prefetchAround(tile);
+        if (job == null) {
+            return storedTile.data;
+        }
+        return job.waitForResult();
+    }
+
+    private void prefetchAround( Tile tile ) {
+        long maxTile = (1L << tile.zoomLevel) - 1;
+        // the ring of neighbours
+        for( long x = tile.tileX - 1; x <= tile.tileX + 1; x++ ) {
+            for( long y = tile.tileY - 1; y <= tile.tileY + 1; y++ ) {
+                if (x < 0 || y < 0 || x > maxTile || y > maxTile || (x == tile.tileX && y == tile.tileY)) {
+                    continue;
+                }
+                submit(new Tile(x, y, tile.zoomLevel), true, null);
+            }
+        }
+        // the tiles of the next zoom level covering it
+        if (tile.zoomLevel < zoomLevelMax) {
+            byte childZoom = (byte) (tile.zoomLevel + 1);
+            for( int i = 0; i < 4; i++ ) {
+                submit(new Tile(tile.tileX * 2 + i % 2, tile.tileY * 2 + i / 2, childZoom), true, null);
+            }
+        }
+    }
+
+    /**
+     * Submit a download, or get the one already submitted for the tile.
+     *
+     * @param storedTile the stored tile, if the store was already checked, else <code>null</code>.
+     */
+    private FetchJob submit( Tile tile, boolean prefetch, TileStore.StoredTile storedTile ) {
+        String key = tile.zoomLevel + "/" + tile.tileX + "/" + tile.tileY; //$NON-NLS-1$ //$NON-NLS-2$
+        FetchJob job;
+        synchronized (this) {
+            job = jobs.get(key);
+            if (job != null) {
+                if (!prefetch && job.prefetch && executor.getQueue().remove(job)) {
+                    // the map waits for it now, move it ahead
+                    job.prefetch = false;
+                    executor.execute(job);
+                }
+                return job;
+            }
+            if (prefetch) {
+                prefetches++;
+            }
+            job = new FetchJob(key, tile, prefetch, getDistance(tile), jobSequence++);
+            if (storedTile != null || !prefetch) {
+                job.setStoredTile(storedTile);
+            }
+            jobs.put(key, job);
+        }
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            // shut down
+            synchronized (this) {
+                jobs.remove(key);
+            }
+            job.setResult(null, new IOException("The tile fetcher was shut down.")); //$NON-NLS-1$
+        }
+        return job;
+    }
+
+    private boolean isNearView( Tile tile ) {
+        if (centerZoom < 0) {
+            return true;
+        }
+        return (tile.zoomLevel == centerZoom || tile.zoomLevel == centerZoom + 1) && getDistance(tile) <= 3;
+    }
+
+    /**
+     * The distance of a tile from the center of the view, in tiles of the zoom level of the view.
+     */
+    private double getDistance( Tile tile ) {
+        if (centerZoom < 0) {
+            return 0;
+        }
+        double scale = Math.pow(2, tile.zoomLevel - centerZoom);
+        double dx = (tile.tileX + 0.5) / scale - centerX;
+        double dy = (tile.tileY + 0.5) / scale - centerY;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private Semaphore getHostSemaphore( String host ) {
+        synchronized (hostSemaphores) {
+            Semaphore semaphore = hostSemaphores.get(host);
+            if (semaphore == null) {
+                semaphore = new Semaphore(connectionsPerHost);
+                hostSemaphores.put(host, semaphore);
+            }
+            return semaphore;
+        }
+    }
+
+    /**
+     * Download a tile into the store, revalidating an expired stored tile with its ETag.
+     */
+    private byte[] download( Tile tile, boolean storeChecked, TileStore.StoredTile storedTile ) throws IOException {
+        if (!storeChecked) {
+            storedTile = tileStore.getStoredTile(tile);
+            if (storedTile != null && !storedTile.isExpired()) {
+                // nothing to prefetch
+                return storedTile.data;
+            }
+        }
+
+        URL url = new URL(urlProvider.getTileUrl(tile));
+        Semaphore hostSemaphore = getHostSemaphore(url.getHost());
+        try {
+            hostSemaphore.acquire();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for a connection to: " + url.getHost()); //$NON-NLS-1$
+        }
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            if (storedTile != null && storedTile.etag != null) {
+                connection.setRequestProperty("If-None-Match", storedTile.etag); //$NON-NLS-1$
+            }
+            int responseCode = connection.getResponseCode();
+            if (storedTile != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                synchronized (this) {
+                    notModified++;
+                }
+                tileStore.refreshStoredTile(tile, getExpiration(connection));
+                return storedTile.data;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                // consume the error body, so that the connection can be reused
+                InputStream errorStream = connection.getErrorStream();
+                if (errorStream != null) {
+                    try {
+                        readAll(errorStream);
+                    } finally {
+                        errorStream.close();
+                    }
+                }
+                return storedTile != null ? storedTile.data : null;
+            }
+            InputStream inputStream = connection.getInputStream();
+            byte[] tileBytes;
+            try {
+                tileBytes = readAll(inputStream);
+            } finally {
+                // closed, not disconnected, to keep the connection alive
+                inputStream.close();
+            }
+            synchronized (this) {
+                downloads++;
+            }
+            tileStore.putStoredTile(tile, tileBytes, connection.getHeaderField("ETag"), getExpiration(connection)); //$NON-NLS-1$
+            return tileBytes;
+        } catch (IOException e) {
+            if (storedTile != null) {
+                // offline, better an old tile than none
+                return storedTile.data;
+            }
+            throw e;
+        } finally {
+            hostSemaphore.release();
+        }
+    }
+
+    /**
+     * Get the time a downloaded tile expires at, from the Cache-Control max-age or the Expires header.
+     */
+    private static long getExpiration( HttpURLConnection connection ) {
+        long now = System.currentTimeMillis();
+        String cacheControl = connection.getHeaderField("Cache-Control"); //$NON-NLS-1$
+        if (cacheControl != null) {
+            int index = cacheControl.indexOf("max-age="); //$NON-NLS-1$
+            if (index != -1) {
+                int start = index + 8;
+                int end = start;
+                while( end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end)) ) {
+                    end++;
+                }
+                try {
+                    return now + Long.parseLong(cacheControl.substring(start, end)) * 1000L;
+                } catch (NumberFormatException e) {
+                    // try the other headers
+                }
+            }
+        }
+        long expiration = connection.getExpiration();
+        if (expiration > now) {
+            return expiration;
+        }
+        return now + CustomTileCache.DEFAULT_EXPIRY_MILLIS;
+    }
+
+    static byte[] readAll( InputStream inputStream ) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while( (read = inputStream.read(buffer)) != -1 ) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * @return a summary of the work of the fetcher.
+     */
+    public synchronized String getInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("downloads=").append(downloads); //$NON-NLS-1$
+        sb.append(" not modified=").append(notModified); //$NON-NLS-1$
+        sb.append(" prefetches=").append(prefetches); //$NON-NLS-1$
+        sb.append(" dropped prefetches=").append(droppedPrefetches); //$NON-NLS-1$
+        sb.append(" queued=").append(executor.getQueue().size()); //$NON-NLS-1$
+        return sb.toString();
+    }
+
+    /**
+     * Stop the workers, dropping the waiting jobs.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        synchronized (this) {
+            for( FetchJob job : jobs.values() ) {
+                job.setResult(null, new IOException("The tile fetcher was shut down.")); //$NON-NLS-1$
+            }
+            jobs.clear();
+        }
+    }
+
+    private class FetchJob implements Runnable, Comparable<FetchJob> {
+        final String key;
+        final Tile tile;
+        final long sequence;
+        boolean prefetch;
+        double distance;
+        private boolean storeChecked = false;
+        private TileStore.StoredTile storedTile;
+
+        private boolean isDone = false;
+        private byte[] result;
+        private IOException error;
+
+        FetchJob( String key, Tile tile, boolean prefetch, double distance, long sequence ) {
+            this.key = key;
+            this.tile = tile;
+            this.prefetch = prefetch;
+            this.distance = distance;
+            this.sequence = sequence;
+        }
+
+        void setStoredTile( TileStore.StoredTile storedTile ) {
+            this.storedTile = storedTile;
+            storeChecked = true;
+        }
+
+        public void run() {
+            try {
+                setResult(download(tile, storeChecked, storedTile), null);
+            } catch (IOException e) {
+                setResult(null, e);
+            } finally {
+                synchronized (TileFetcher.this) {
+                    jobs.remove(key);
+                }
+            }
+        }
+
+        synchronized void setResult( byte[] result, IOException error ) {
+            if (isDone) {
+                return;
+            }
+            this.result = result;
+            this.error = error;
+            isDone = true;
+            notifyAll();
+        }
+
+        synchronized byte[] waitForResult() throws IOException {
+            long start = System.currentTimeMillis();
+            long waited = 0;
+            while( !isDone ) {
+                if (waited >= FETCH_WAIT_MILLIS) {
+                    throw new IOException("Timeout waiting for the tile: " + key); //$NON-NLS-1$
+                }
+                try {
+                    wait(FETCH_WAIT_MILLIS - waited);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the tile: " + key); //$NON-NLS-1$
+                }
+                waited = System.currentTimeMillis() - start;
+            }
+            if (error != null) {
+                throw error;
+            }
+            return result;
+        }
+
+        public int compareTo( FetchJob other ) {
+            // the tiles the map waits for first, then the nearest to the view
+            if (prefetch != other.prefetch) {
+                return prefetch ? 1 : -1;
+            }
+            if (distance != other.distance) {
+                return distance < other.distance ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
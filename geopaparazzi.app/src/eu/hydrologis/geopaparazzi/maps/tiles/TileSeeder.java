@@ -0,0 +1,490 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.maps.tiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.util.Utilities;
+import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MbTilesWriter;
+
+/**
+ * Downloads the tiles of an area and a range of zoom levels of a custom tile source
+ * into an mbtiles file, for use where there is no network.
+ *
+ * <p>Tiles are downloaded by a pool of workers, at a limited rate, and written in
+ * batches, each in a transaction. Tiles already in the file are skipped, so that a
+ * seeding that was interrupted continues where it stopped when run again.</p>
+ *
+ * <p>Tiles are written through the {@link MbTilesWriter}, new files with repeated tiles stored once.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TileSeeder {
+
+    /**
+     * The default number of download threads.
+     */
+    public static final int DEFAULT_THREADS = 2;
+    /**
+     * The default maximum number of tiles requested per second.
+     */
+    public static final double DEFAULT_MAX_TILES_PER_SECOND = 10;
+
+    private static final int BATCH_SIZE = 50;
+    private static final int DOWNLOAD_ATTEMPTS = 2;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 20000;
+
+    private static final String TABLE_TILES = "tiles";
+    private static final String TABLE_METADATA = "metadata";
+
+    /**
+     * Listener of the progress of a seeding.
+     */
+    public static interface SeedListener {
+        /**
+         * Called after each batch of tiles is written, from the seeding thread.
+         *
+         * @param progress the progress.
+         */
+        public void onProgress( SeedProgress progress );
+    }
+
+    /**
+     * The progress of a seeding.
+     */
+    public static class SeedProgress {
+        public long total;
+        public long skipped;
+        public long downloaded;
+        public long failed;
+        public long bytes;
+        public long elapsedMillis;
+
+        /**
+         * @return the tiles that were handled, whatever the outcome.
+         */
+        public long getDone() {
+            return skipped + downloaded + failed;
+        }
+
+        public double getTilesPerSecond() {
+            return elapsedMillis > 0 ? downloaded * 1000.0 / elapsedMillis : 0;
+        }
+
+        public double getBytesPerSecond() {
+            return elapsedMillis > 0 ? bytes * 1000.0 / elapsedMillis : 0;
+        }
+
+        SeedProgress copy() {
+            SeedProgress copy = new SeedProgress();
+            copy.total = total;
+            copy.skipped = skipped;
+            copy.downloaded = downloaded;
+            copy.failed = failed;
+            copy.bytes = bytes;
+            copy.elapsedMillis = elapsedMillis;
+            return copy;
+        }
+    }
+
+    private final CustomTileDownloader source;
+    private final File mbtilesFile;
+    private final double n;
+    private final double s;
+    private final double e;
+    private final double w;
+    private final int minZoom;
+    private final int maxZoom;
+
+    private int threads = DEFAULT_THREADS;
+    private double maxTilesPerSecond = DEFAULT_MAX_TILES_PER_SECOND;
+    private SeedListener listener;
+    private volatile boolean isCanceled = false;
+
+    private long nextRequestTime = 0;
+
+    /**
+     * @param source the tile source, as read from its .mapurl file.
+     * @param mbtilesFile the file to write, created if missing, else completed.
+     * @param n north bound of the area.
+     * @param s south bound of the area.
+     * @param e east bound of the area.
+     * @param w west bound of the area.
+     * @param minZoom the first zoom level.
+     * @param maxZoom the last zoom level.
+     */
+    public TileSeeder( CustomTileDownloader source, File mbtilesFile, double n, double s, double e, double w, int minZoom,
+            int maxZoom ) {
+        this.source = source;
+        this.mbtilesFile = mbtilesFile;
+        this.n = MercatorProjection.limitLatitude(n);
+        this.s = MercatorProjection.limitLatitude(s);
+        this.e = MercatorProjection.limitLongitude(e);
+        this.w = MercatorProjection.limitLongitude(w);
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+    }
+
+    public void setThreads( int threads ) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param maxTilesPerSecond the maximum number of requests per second, 0 or less for no limit.
+     */
+    public void setMaxTilesPerSecond( double maxTilesPerSecond ) {
+        this.maxTilesPerSecond = maxTilesPerSecond;
+    }
+
+    public void setListener( SeedListener listener ) {
+        this.listener = listener;
+    }
+
+    /**
+     * Stop the seeding, the tiles downloaded so far are kept.
+     */
+    public void cancel() {
+        isCanceled = true;
+    }
+
+    /**
+     * Count the tiles of an area over a range of zoom levels.
+     *
+     * @return the number of tiles.
+     */
+    public static long countTiles( double n, double s, double e, double w, int minZoom, int maxZoom ) {
+        long count = 0;
+        for( int zoom = minZoom; zoom <= maxZoom; zoom++ ) {
+            long[] range = getTileRange(n, s, e, w, zoom);
+            count += (range[2] - range[0] + 1) * (range[3] - range[1] + 1);
+        }
+        return count;
+    }
+
+    /**
+     * @return the google tile range covering the area, as [xmin, ymin, xmax, ymax].
+     */
+    private static long[] getTileRange( double n, double s, double e, double w, int zoom ) {
+        byte z = (byte) zoom;
+        long maxTile = (1L << zoom) - 1;
+        long xMin = Math.max(0, MercatorProjection.longitudeToTileX(MercatorProjection.limitLongitude(w), z));
+        long xMax = Math.min(maxTile, MercatorProjection.longitudeToTileX(MercatorProjection.limitLongitude(e), z));
+        long yMin = Math.max(0, MercatorProjection.latitudeToTileY(MercatorProjection.limitLatitude(n), z));
+        long yMax = Math.min(maxTile, MercatorProjection.latitudeToTileY(MercatorProjection.limitLatitude(s), z));
+        return new long[]{xMin, yMin, xMax, yMax};
+    }
+
+    /**
+     * Run the seeding in the current thread.
+     *
+     * @return the final progress.
+     * @throws IOException if the mbtiles file can't be written.
+     */
+    public SeedProgress run() throws IOException {
+        SeedProgress progress = new SeedProgress();
+        progress.total = countTiles(n, s, e, w, minZoom, maxZoom);
+        long start = System.currentTimeMillis();
+
+        MbTilesWriter writer;
+        try {
+            // new files are written deduplicated, blank and sea tiles are stored once
+            writer = new MbTilesWriter(mbtilesFile);
+        } catch (android.database.SQLException ex) {
+            throw new IOException("Unable to open " + mbtilesFile + ": " + ex.getLocalizedMessage());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // results are written by this thread, which also bounds the tiles in flight
+        Semaphore inFlight = new Semaphore(threads * 4);
+        LinkedBlockingQueue<TileResult> results = new LinkedBlockingQueue<TileResult>();
+        List<TileResult> batch = new ArrayList<TileResult>();
+        int submitted = 0;
+        try {
+            writeMetadata(writer);
+
+            for( int zoom = minZoom; zoom <= maxZoom && !isCanceled; zoom++ ) {
+                long[] range = getTileRange(n, s, e, w, zoom);
+                HashSet<Long> existing = readExistingTiles(writer.getDatabase(), zoom, range);
+                for( long x = range[0]; x <= range[2] && !isCanceled; x++ ) {
+                    for( long y = range[1]; y <= range[3] && !isCanceled; y++ ) {
+                        int[] tms = Utilities.googleTile2TmsTile((int) x, (int) y, zoom);
+                        if (existing.contains(getKey(tms[0], tms[1]))) {
+                            progress.skipped++;
+                            continue;
+                        }
+                        while( !inFlight.tryAcquire() ) {
+                            submitted--;
+                            consume(writer, results.take(), inFlight, batch, progress, start);
+                        }
+                        submitted++;
+                        executor.execute(new DownloadTask(new Tile(x, y, (byte) zoom), tms, results));
+                    }
+                }
+            }
+
+            // collect what is still downloading, unless canceled
+            while( submitted > 0 && !isCanceled ) {
+                submitted--;
+                consume(writer, results.take(), inFlight, batch, progress, start);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            isCanceled = true;
+        } finally {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(READ_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            TileResult result;
+            while( (result = results.poll()) != null ) {
+                addToBatch(result, batch, progress);
+            }
+            writeBatch(writer, batch, progress, start);
+            writer.close();
+        }
+        return progress.copy();
+    }
+
+    private void consume( MbTilesWriter writer, TileResult result, Semaphore inFlight, List<TileResult> batch, SeedProgress progress,
+            long start ) {
+        inFlight.release();
+        addToBatch(result, batch, progress);
+        if (batch.size() >= BATCH_SIZE) {
+            writeBatch(writer, batch, progress, start);
+        }
+    }
+
+    private void addToBatch( TileResult result, List<TileResult> batch, SeedProgress progress ) {
+        if (result.data == null) {
+            if (!isCanceled) {
+                progress.failed++;
+            }
+        } else {
+            batch.add(result);
+        }
+    }
+
+    private void writeBatch( MbTilesWriter writer, List<TileResult> batch, SeedProgress progress, long start ) {
+        if (batch.size() > 0) {
+            writer.beginTransaction();
+            boolean commit = false;
+            try {
+                for( TileResult result : batch ) {
+                    writer.putTile(result.zoom, result.column, result.row, result.data);
+                }
+                commit = true;
+            } finally {
+                writer.endTransaction(commit);
+            }
+            for( TileResult result : batch ) {
+                progress.downloaded++;
+                progress.bytes += result.data.length;
+            }
+            batch.clear();
+        }
+        progress.elapsedMillis = System.currentTimeMillis() - start;
+        if (listener != null) {
+            listener.onProgress(progress.copy());
+        }
+    }
+
+    /**
+     * Write the metadata, extending the bounds and zoom levels of a file that is being completed.
+     */
+    private void writeMetadata( MbTilesWriter writer ) {
+        double bn = n, bs = s, be = e, bw = w;
+        int bMinZoom = minZoom, bMaxZoom = maxZoom;
+        Cursor cursor = writer.getDatabase().rawQuery("SELECT name, value FROM " + TABLE_METADATA
+                + " WHERE name IN ('bounds', 'minzoom', 'maxzoom')", null);
+        try {
+            while( cursor.moveToNext() ) {
+                String name = cursor.getString(0);
+                String value = cursor.getString(1);
+                try {
+                    if (name.equals("bounds")) {
+                        String[] split = value.split(",");
+                        bw = Math.min(bw, Double.parseDouble(split[0]));
+                        bs = Math.min(bs, Double.parseDouble(split[1]));
+                        be = Math.max(be, Double.parseDouble(split[2]));
+                        bn = Math.max(bn, Double.parseDouble(split[3]));
+                    } else if (name.equals("minzoom")) {
+                        bMinZoom = Math.min(bMinZoom, Integer.parseInt(value));
+                    } else if (name.equals("maxzoom")) {
+                        bMaxZoom = Math.max(bMaxZoom, Integer.parseInt(value));
+                    }
+                } catch (RuntimeException ex) {
+                    // rewritten below
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        String template = source.getUrlTemplate().toLowerCase();
+        String format = template.contains(".jpg") || template.contains(".jpeg") ? "jpg" : "png";
+        String name = mbtilesFile.getName();
+        name = name.substring(0, name.lastIndexOf('.'));
+
+        writer.beginTransaction();
+        boolean commit = false;
+        try {
+            writer.putMetadata("name", name);
+            writer.putMetadata("description", "Tiles downloaded from " + source.getUrlTemplate());
+            writer.putMetadata("type", "baselayer");
+            writer.putMetadata("version", "1.1");
+            writer.putMetadata("format", format);
+            // left, bottom, right, top
+            writer.putMetadata("bounds", bw + "," + bs + "," + be + "," + bn);
+            writer.putMetadata("minzoom", String.valueOf(bMinZoom));
+            writer.putMetadata("maxzoom", String.valueOf(bMaxZoom));
+            commit = true;
+        } finally {
+            writer.endTransaction(commit);
+        }
+    }
+
+    /**
+     * Read the tms column and row of the tiles of a zoom level already in the file, within a google tile range.
+     */
+    private HashSet<Long> readExistingTiles( SQLiteDatabase db, int zoom, long[] range ) {
+        int[] tmsMin = Utilities.googleTile2TmsTile((int) range[0], (int) range[3], zoom);
+        int[] tmsMax = Utilities.googleTile2TmsTile((int) range[2], (int) range[1], zoom);
+        HashSet<Long> existing = new HashSet<Long>();
+        Cursor cursor = db.rawQuery("SELECT tile_column, tile_row FROM " + TABLE_TILES
+                + " WHERE zoom_level=? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?", new String[]{
+                String.valueOf(zoom), String.valueOf(tmsMin[0]), String.valueOf(tmsMax[0]), String.valueOf(tmsMin[1]),
+                String.valueOf(tmsMax[1])});
+        try {
+            while( cursor.moveToNext() ) {
+                existing.add(getKey(cursor.getInt(0), cursor.getInt(1)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return existing;
+    }
+
+    private static Long getKey( int column, int row ) {
+        return ((long) column << 32) | (row & 0xffffffffL);
+    }
+
+    /**
+     * Wait for the next request slot, to keep under the maximum rate.
+     */
+    private void waitForRateLimit() throws InterruptedException {
+        if (maxTilesPerSecond <= 0) {
+            return;
+        }
+        long interval = (long) (1000 / maxTilesPerSecond);
+        long wait;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long slot = Math.max(now, nextRequestTime);
+            nextRequestTime = slot + interval;
+            wait = slot - now;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    private byte[] download( Tile tile ) throws IOException {
+        URL url = new URL(source.getTileUrl(tile));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        int responseCode = connection.getResponseCode();
+        InputStream inputStream = responseCode == HttpURLConnection.HTTP_OK ? connection.getInputStream() : connection
+                .getErrorStream();
+        if (inputStream == null) {
+            return null;
+        }
+        try {
+            // the body is read in any case, so that the connection is kept alive
+            byte[] data = TileFetcher.readAll(inputStream);
+            return responseCode == HttpURLConnection.HTTP_OK ? data : null;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static class TileResult {
+        final int zoom;
+        final int column;
+        final int row;
+        final byte[] data;
+
+        TileResult( int zoom, int column, int row, byte[] data ) {
+            this.zoom = zoom;
+            this.column = column;
+            this.row = row;
+            this.data = data;
+        }
+    }
+
+    private class DownloadTask implements Runnable {
+        private final Tile tile;
+        private final int[] tms;
+        private final LinkedBlockingQueue<TileResult> results;
+
+        DownloadTask( Tile tile, int[] tms, LinkedBlockingQueue<TileResult> results ) {
+            this.tile = tile;
+            this.tms = tms;
+            this.results = results;
+        }
+
+        public void run() {
+            byte[] data = null;
+            try {
+                for( int attempt = 0; attempt < DOWNLOAD_ATTEMPTS && data == null && !isCanceled; attempt++ ) {
+                    waitForRateLimit();
+                    try {
+                        data = download(tile);
+                    } catch (IOException ex) {
+                        if (GPLog.LOG_HEAVY)
+                            GPLog.addLogEntry(TileSeeder.this, "Tile download failed: " + tile + " " + ex.getLocalizedMessage());
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // canceled
+            }
+            results.add(new TileResult(tile.zoomLevel, tms[0], tms[1], data));
+        }
+    }
+}
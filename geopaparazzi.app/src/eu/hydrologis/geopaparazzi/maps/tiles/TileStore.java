@@ -0,0 +1,76 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.maps.tiles;
+
+import org.mapsforge.core.model.Tile;
+
+/**
+ * A persistent store of downloaded tiles, with their http caching information.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public interface TileStore {
+
+    /**
+     * A tile read from the store.
+     */
+    public static class StoredTile {
+        public final byte[] data;
+        public final String etag;
+        public final long expires;
+
+        public StoredTile( byte[] data, String etag, long expires ) {
+            this.data = data;
+            this.etag = etag;
+            this.expires = expires;
+        }
+
+        /**
+         * @return <code>true</code> if the tile has to be checked against the server.
+         */
+        public boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+    }
+
+    /**
+     * Get a tile from the store.
+     *
+     * @param tile the tile.
+     * @return the stored tile, possibly expired, or <code>null</code>.
+     */
+    public StoredTile getStoredTile( Tile tile );
+
+    /**
+     * Put a tile in the store.
+     *
+     * @param tile the tile.
+     * @param data the encoded image.
+     * @param etag the ETag sent by the server or <code>null</code>.
+     * @param expires the time the tile expires at.
+     */
+    public void putStoredTile( Tile tile, byte[] data, String etag, long expires );
+
+    /**
+     * Set a new expiry time for a stored tile, after the server said it didn't change.
+     *
+     * @param tile the tile.
+     * @param expires the new expiry time.
+     */
+    public void refreshStoredTile( Tile tile, long expires );
+}
@@ -116,6 +116,8 @@ public interface Constants {
     public static final String PREFS_KEY_TILESOURCE = "PREFS_KEY_TILESOURCE";
     public static final String PREFS_KEY_TILESOURCE_FILE = "PREFS_KEY_TILESOURCE_FILE";
     public static final String PREFS_KEY_MAPSVIEW_TEXTSIZE_FACTOR = "mapsview_textsize_factor";
+    public static final String PREFS_KEY_SPATIALITE_REPROJECTION_CACHE = "PREFS_KEY_SPATIALITE_REPROJECTION_CACHE";
+    public static final String PREFS_KEY_CUSTOM_TILE_CACHE_SIZE = "PREFS_KEY_CUSTOM_TILE_CACHE_SIZE";
     /*
      * cross properties
      */
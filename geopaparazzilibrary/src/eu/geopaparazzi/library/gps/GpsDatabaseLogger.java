@@ -25,6 +25,7 @@ import static eu.geopaparazzi.library.util.LibraryConstants.PREFS_KEY_GPSLOGGING
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -47,6 +48,10 @@ import eu.geopaparazzi.library.util.Utilities;
  * That is why it is not listening directly to the gps, but instead to the gps manager.
  * It is the manager that updates the position.
  * 
+ * <p>The location updates are queued in a {@link GpsFixQueue} and the logging
+ * thread sleeps until they arrive, then runs them through the filters of the
+ * {@link GpsLogPipeline}, which writes the points in batches through a {@link GpsLogWriter}.
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 @SuppressWarnings("nls")
@@ -54,20 +59,16 @@ public class GpsDatabaseLogger implements GpsManagerListener {
     private final Context context;
 
     /**
-     * The last taken gps location.
+     * The fixes received while logging, waiting for the logging thread.
      */
-    private GpsLocation gpsLoc = null;
+    private final GpsFixQueue fixQueue = new GpsFixQueue(64);
 
-    /**
-     * The previous gpslog location.
-     * 
-     * <p>This changes with every gps log waiting time.</p>
-     */
-    private Location previousLogLoc = null;
-
-    private boolean isDatabaseLogging = false;
+    private volatile boolean isDatabaseLogging = false;
     private boolean isShutdown = false;
 
+    private volatile Thread loggingThread = null;
+    private volatile boolean flushRequested = false;
+
     private List<double[]> currentXY = new ArrayList<double[]>();
 
     // private MediaPlayer mMediaPlayer;
@@ -129,6 +130,7 @@ public class GpsDatabaseLogger implements GpsManagerListener {
                     long gpsLogId = dbHelper.addGpsLog(context, now, now, logName, 2f, "red", true);
                     currentRecordedLogId = gpsLogId;
                     logH("Starting gps logging. Logid: " + gpsLogId);
+                    GpsLogWriter logWriter = new GpsLogWriter(dbHelper, sqliteDatabase, gpsLogId);
 
                     // get preferences
                     SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
@@ -152,49 +154,39 @@ public class GpsDatabaseLogger implements GpsManagerListener {
 
                     currentPointsNum = 0;
                     currentDistance = 0;
-                    previousLogLoc = null;
+                    GpsLogPipeline pipeline = new GpsLogPipeline(logWriter, waitForSecs * 1000L, minDistance);
+                    GpsFixQueue.Fix fix = new GpsFixQueue.Fix();
+                    // forget fixes of a previous log
+                    while( fixQueue.poll(fix) ) {
+                    }
                     while( isDatabaseLogging ) {
-                        if (gotFix) {
-                            if (gpsLoc == null) {
-                                waitGpsInterval(waitForSecs);
-                                continue;
-                            }
-                            if (previousLogLoc == null) {
-                                previousLogLoc = gpsLoc;
-                            }
-                            double recLon = gpsLoc.getLongitude();
-                            double recLat = gpsLoc.getLatitude();
-                            double recAlt = gpsLoc.getAltitude();
-                            float lastDistance = previousLogLoc.distanceTo(gpsLoc);
-                            logABS("gpsloc: " + gpsLoc.getLatitude() + "/" + gpsLoc.getLongitude());
-                            logABS("previousLoc: " + previousLogLoc.getLatitude() + "/" + previousLogLoc.getLongitude());
-                            logABS("distance: " + lastDistance + " - mindistance: " + minDistance);
-                            // ignore near points
-                            if (lastDistance < minDistance) {
-                                waitGpsInterval(waitForSecs);
-                                continue;
-                            }
+                        while( isDatabaseLogging && fixQueue.poll(fix) ) {
                             try {
-                                if (isDatabaseLogging) {
-                                    dbHelper.addGpsLogDataPoint(sqliteDatabase, gpsLogId, recLon, recLat, recAlt,
-                                            gpsLoc.getSqlDate());
-                                    currentXY.add(new double[]{recLon, recLat});
+                                if (pipeline.process(fix)) {
+                                    currentXY.add(new double[]{pipeline.getLastLon(), pipeline.getLastLat()});
+                                    currentPointsNum++;
+                                    currentDistance = currentDistance + pipeline.getLastDistance();
                                 }
                             } catch (Exception e) {
                                 GPLog.error(this, e.getLocalizedMessage(), e);
                                 throw new IOException(e.getLocalizedMessage());
                             }
-                            currentPointsNum++;
-                            currentDistance = currentDistance + lastDistance;
-                            previousLogLoc = gpsLoc;
                         }
-                        if (!isDatabaseLogging) {
-                            break;
+                        if (flushRequested) {
+                            flushRequested = false;
+                            logWriter.flush();
+                        } else {
+                            logWriter.flushIfDue();
                         }
-                        // and wait
-                        waitGpsInterval(waitForSecs);
+                        waitForFixes(logWriter);
                     }
 
+                    // write what is left
+                    logWriter.flush();
+                    logH("Gps log queue: " + fixQueue.getInfo());
+                    logH("Gps log pipeline: " + pipeline.getInfo());
+                    logH("Gps log writer: " + logWriter.getInfo());
+
                     if (currentPointsNum < 2) {
                         logABS("Removing gpslog, since too few points were added. Logid: " + gpsLogId);
                         dbHelper.deleteGpslog(context, gpsLogId);
@@ -202,6 +194,12 @@ public class GpsDatabaseLogger implements GpsManagerListener {
                         // set the end timestamp
                         java.sql.Date end = new java.sql.Date(System.currentTimeMillis());
                         dbHelper.setEndTs(context, gpsLogId, end);
+                        try {
+                            dbHelper.compactGpsLog(context, gpsLogId);
+                        } catch (Exception e) {
+                            // the points stay readable where they are
+                            GPLog.error(this, e.getLocalizedMessage(), e);
+                        }
                     }
 
                     currentPointsNum = 0;
@@ -220,6 +218,7 @@ public class GpsDatabaseLogger implements GpsManagerListener {
                     Utilities.toast(context, msg, Toast.LENGTH_LONG);
                 } finally {
                     isDatabaseLogging = false;
+                    loggingThread = null;
                     currentXY.clear();
                     isShutdown = true;
                 }
@@ -227,17 +226,22 @@ public class GpsDatabaseLogger implements GpsManagerListener {
 
             }
 
-            private void waitGpsInterval( long waitForSecs ) {
-                try {
-                    // get interval and wait
-                    Thread.sleep(waitForSecs * 1000L);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    String msg = context.getResources().getString(R.string.cantwrite_gpslog);
-                    GPLog.error(this, msg, e);
+            /**
+             * Sleep until fixes arrive, a flush or stop is requested or the buffered points are due.
+             */
+            private void waitForFixes( GpsLogWriter logWriter ) {
+                if (!isDatabaseLogging || flushRequested || fixQueue.size() > 0) {
+                    return;
+                }
+                long millisUntilDue = logWriter.getMillisUntilDue();
+                if (millisUntilDue < 0) {
+                    LockSupport.park();
+                } else if (millisUntilDue > 0) {
+                    LockSupport.parkNanos(millisUntilDue * 1000000L);
                 }
             }
         };
+        loggingThread = t;
         t.start();
 
         Utilities.toast(context, R.string.gpsloggingon, Toast.LENGTH_SHORT);
@@ -245,9 +249,30 @@ public class GpsDatabaseLogger implements GpsManagerListener {
 
     public void stopDatabaseLogging() {
         isDatabaseLogging = false;
+        // wake the logging thread, so that the buffered points are written right away
+        wakeLoggingThread();
         Utilities.toast(context, R.string.gpsloggingoff, Toast.LENGTH_SHORT);
     }
 
+    /**
+     * Makes the logging thread write the buffered points as soon as possible.
+     * 
+     * <p>To be called when the application is paused and might be killed.</p>
+     */
+    public void requestFlush() {
+        if (isDatabaseLogging) {
+            flushRequested = true;
+            wakeLoggingThread();
+        }
+    }
+
+    private void wakeLoggingThread() {
+        Thread t = loggingThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
     /**
      * Get the current recorded log.
      * 
@@ -275,7 +300,11 @@ public class GpsDatabaseLogger implements GpsManagerListener {
         }
         lastLocationupdateMillis = SystemClock.elapsedRealtime();
 
-        gpsLoc = new GpsLocation(location);
+        if (isDatabaseLogging && gotFix) {
+            fixQueue.offer(location.getLongitude(), location.getLatitude(), location.getAltitude(), location.getTime(),
+                    lastLocationupdateMillis);
+            wakeLoggingThread();
+        }
     }
 
     public void onStatusChanged( String provider, int status, Bundle extras ) {
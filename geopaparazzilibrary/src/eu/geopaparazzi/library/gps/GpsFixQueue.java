@@ -0,0 +1,168 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock free queue of gps fixes between the thread that receives
+ * the location updates and the logging thread.
+ *
+ * <p>Single producer, single consumer: only one thread may call {@link #offer(double, double, double, long, long)}
+ * and only one thread may call {@link #poll(Fix)}. The fixes are kept in primitive arrays,
+ * so that queuing a fix allocates nothing.</p>
+ *
+ * <p>When the consumer can't keep up, the queue applies backpressure: above half of its
+ * capacity only every other fix is accepted, when full new fixes are dropped.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class GpsFixQueue {
+
+    /**
+     * A fix taken from the queue.
+     */
+    public static class Fix {
+        public double lon;
+        public double lat;
+        public double altim;
+        /**
+         * The time of the fix in milliseconds.
+         */
+        public long time;
+        /**
+         * The {@link android.os.SystemClock#elapsedRealtime()} at which the fix was received.
+         */
+        public long received;
+    }
+
+    private final int mask;
+    private final double[] lons;
+    private final double[] lats;
+    private final double[] altims;
+    private final long[] times;
+    private final long[] receivedTimes;
+
+    /**
+     * The index of the next fix to take, written by the consumer only.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * The index of the next fix to put, written by the producer only.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    // written by the producer only
+    private boolean skipNext = false;
+    private volatile long offered = 0;
+    private volatile long dropped = 0;
+    private volatile long decimated = 0;
+
+    /**
+     * @param capacity the maximum number of queued fixes, rounded up to a power of two.
+     */
+    public GpsFixQueue( int capacity ) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        lons = new double[size];
+        lats = new double[size];
+        altims = new double[size];
+        times = new long[size];
+        receivedTimes = new long[size];
+    }
+
+    /**
+     * Queue a fix. Called by the producer.
+     *
+     * @param lon the lon coordinate.
+     * @param lat the lat coordinate.
+     * @param altim the elevation.
+     * @param time the time of the fix in milliseconds.
+     * @param received the elapsed realtime at which the fix was received.
+     * @return <code>false</code> if the fix was dropped or decimated.
+     */
+    public boolean offer( double lon, double lat, double altim, long time, long received ) {
+        offered++;
+        long t = tail.get();
+        long size = t - head.get();
+        int capacity = mask + 1;
+        if (size >= capacity) {
+            dropped++;
+            return false;
+        }
+        if (size >= capacity / 2) {
+            skipNext = !skipNext;
+            if (skipNext) {
+                decimated++;
+                return false;
+            }
+        } else {
+            skipNext = false;
+        }
+        int index = (int) (t & mask);
+        lons[index] = lon;
+        lats[index] = lat;
+        altims[index] = altim;
+        times[index] = time;
+        receivedTimes[index] = received;
+        // publishes the fix to the consumer
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Take the oldest fix. Called by the consumer.
+     *
+     * @param fix the fix to fill.
+     * @return <code>false</code> if the queue is empty.
+     */
+    public boolean poll( Fix fix ) {
+        long h = head.get();
+        if (h == tail.get()) {
+            return false;
+        }
+        int index = (int) (h & mask);
+        fix.lon = lons[index];
+        fix.lat = lats[index];
+        fix.altim = altims[index];
+        fix.time = times[index];
+        fix.received = receivedTimes[index];
+        // frees the slot for the producer
+        head.set(h + 1);
+        return true;
+    }
+
+    /**
+     * @return the number of queued fixes.
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * @return a summary of the queue's statistics.
+     */
+    public String getInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("offered fixes=").append(offered);
+        sb.append(" dropped=").append(dropped);
+        sb.append(" decimated=").append(decimated);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+import java.io.IOException;
+
+import android.location.Location;
+
+/**
+ * The stages a gps fix goes through before becoming a point of the log.
+ *
+ * <ol>
+ *  <li>smoothing: the position is the mean of the last fixes, if a window bigger than one is set;</li>
+ *  <li>time filter: a point is taken at most every logging interval;</li>
+ *  <li>distance filter: points nearer than the minimum distance to the last one are skipped;</li>
+ *  <li>persistence: the point is handed to the {@link GpsLogWriter}.</li>
+ * </ol>
+ *
+ * <p>Runs on the logging thread, the consumer of the {@link GpsFixQueue}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class GpsLogPipeline {
+
+    /**
+     * The jitter accepted on the logging interval, so that fixes coming exactly
+     * at the interval are not skipped to the next one.
+     */
+    private static final long INTERVAL_TOLERANCE_MILLIS = 200;
+
+    private final GpsLogWriter logWriter;
+    private final long intervalMillis;
+    private final float minDistance;
+
+    private double[] windowLons = new double[1];
+    private double[] windowLats = new double[1];
+    private double[] windowAltims = new double[1];
+    private int windowCount = 0;
+    private int windowNext = 0;
+
+    private boolean hasLast = false;
+    private long lastReceived;
+    private double lastLon;
+    private double lastLat;
+    private float lastDistance;
+    private final float[] distanceResult = new float[1];
+
+    private long fixes = 0;
+    private long timeFiltered = 0;
+    private long distanceFiltered = 0;
+    private long points = 0;
+
+    /**
+     * @param logWriter the writer of the points.
+     * @param intervalMillis the minimum time between two points.
+     * @param minDistance the minimum distance in meters between two points.
+     */
+    public GpsLogPipeline( GpsLogWriter logWriter, long intervalMillis, float minDistance ) {
+        this.logWriter = logWriter;
+        this.intervalMillis = intervalMillis;
+        this.minDistance = minDistance;
+    }
+
+    /**
+     * @param window the number of fixes averaged into a position, 1 to log the raw fixes.
+     */
+    public void setSmoothingWindow( int window ) {
+        window = Math.max(1, window);
+        windowLons = new double[window];
+        windowLats = new double[window];
+        windowAltims = new double[window];
+        windowCount = 0;
+        windowNext = 0;
+    }
+
+    /**
+     * Run a fix through the stages.
+     *
+     * @param fix the fix.
+     * @return <code>true</code> if the fix became a point of the log.
+     * @throws IOException if the point could not be written.
+     */
+    public boolean process( GpsFixQueue.Fix fix ) throws IOException {
+        fixes++;
+
+        // smoothing
+        int window = windowLons.length;
+        windowLons[windowNext] = fix.lon;
+        windowLats[windowNext] = fix.lat;
+        windowAltims[windowNext] = fix.altim;
+        windowNext = (windowNext + 1) % window;
+        if (windowCount < window) {
+            windowCount++;
+        }
+        double lon = 0;
+        double lat = 0;
+        double altim = 0;
+        for( int i = 0; i < windowCount; i++ ) {
+            lon += windowLons[i];
+            lat += windowLats[i];
+            altim += windowAltims[i];
+        }
+        lon = lon / windowCount;
+        lat = lat / windowCount;
+        altim = altim / windowCount;
+
+        // time filter
+        if (hasLast && fix.received - lastReceived < intervalMillis - INTERVAL_TOLERANCE_MILLIS) {
+            timeFiltered++;
+            return false;
+        }
+
+        // distance filter
+        float distance = 0;
+        if (hasLast) {
+            Location.distanceBetween(lastLat, lastLon, lat, lon, distanceResult);
+            distance = distanceResult[0];
+            if (distance < minDistance) {
+                distanceFiltered++;
+                return false;
+            }
+        }
+
+        // persistence
+        logWriter.addPoint(lon, lat, altim, fix.time, fix.received);
+        hasLast = true;
+        lastReceived = fix.received;
+        lastLon = lon;
+        lastLat = lat;
+        lastDistance = distance;
+        points++;
+        return true;
+    }
+
+    /**
+     * @return the lon of the last point.
+     */
+    public double getLastLon() {
+        return lastLon;
+    }
+
+    /**
+     * @return the lat of the last point.
+     */
+    public double getLastLat() {
+        return lastLat;
+    }
+
+    /**
+     * @return the distance of the last point from the one before.
+     */
+    public float getLastDistance() {
+        return lastDistance;
+    }
+
+    /**
+     * @return a summary of the pipeline's statistics.
+     */
+    public String getInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("fixes=").append(fixes);
+        sb.append(" time filtered=").append(timeFiltered);
+        sb.append(" distance filtered=").append(distanceFiltered);
+        sb.append(" points=").append(points);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+import java.io.IOException;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+/**
+ * Buffers the points of a gps log and writes them in batches.
+ *
+ * <p>Writing every point in its own transaction costs a journal sync on the sd card
+ * per point. Here the points are collected in a ring of primitive arrays and
+ * written in a single transaction every {@link #DEFAULT_MAX_POINTS} points or
+ * {@link #DEFAULT_MAX_MILLIS} milliseconds, whatever comes first, and whenever
+ * {@link #flush()} is called, as on stop and pause. A crash loses at most the
+ * points of the current flush window.</p>
+ *
+ * <p>Points that can't be written stay in the buffer for the next flush. Only if the
+ * buffer fills up without being flushed the oldest points are dropped.</p>
+ *
+ * <p>Not thread safe, meant to be used by the logging thread.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class GpsLogWriter {
+
+    /**
+     * The default number of points written per transaction.
+     */
+    public static final int DEFAULT_MAX_POINTS = 30;
+    /**
+     * The default maximum time points stay in memory.
+     */
+    public static final long DEFAULT_MAX_MILLIS = 30000;
+
+    private final IGpsLogDbHelper dbHelper;
+    private final SQLiteDatabase database;
+    private final long gpslogId;
+    private final int maxPoints;
+    private final long maxMillis;
+
+    private final double[] lons;
+    private final double[] lats;
+    private final double[] altims;
+    private final long[] timestamps;
+    private final long[] receivedMillis;
+    private int start = 0;
+    private int count = 0;
+    private long firstPointMillis = 0;
+
+    private long writtenPoints = 0;
+    private long droppedPoints = 0;
+    private long commits = 0;
+    private long flushMillis = 0;
+    private long maxFlushMillis = 0;
+    private long latencyMillis = 0;
+    private long maxLatencyMillis = 0;
+
+    /**
+     * Create a writer with the default flush window.
+     *
+     * @param dbHelper the helper to write the points with.
+     * @param database the database to write to.
+     * @param gpslogId the id of the log.
+     */
+    public GpsLogWriter( IGpsLogDbHelper dbHelper, SQLiteDatabase database, long gpslogId ) {
+        this(dbHelper, database, gpslogId, DEFAULT_MAX_POINTS, DEFAULT_MAX_MILLIS);
+    }
+
+    /**
+     * @param dbHelper the helper to write the points with.
+     * @param database the database to write to.
+     * @param gpslogId the id of the log.
+     * @param maxPoints the number of points after which they are written.
+     * @param maxMillis the time after which the buffered points are written.
+     */
+    public GpsLogWriter( IGpsLogDbHelper dbHelper, SQLiteDatabase database, long gpslogId, int maxPoints, long maxMillis ) {
+        this.dbHelper = dbHelper;
+        this.database = database;
+        this.gpslogId = gpslogId;
+        this.maxPoints = maxPoints;
+        this.maxMillis = maxMillis;
+        // room for a few failed flushes
+        int capacity = maxPoints * 4;
+        lons = new double[capacity];
+        lats = new double[capacity];
+        altims = new double[capacity];
+        timestamps = new long[capacity];
+        receivedMillis = new long[capacity];
+    }
+
+    /**
+     * Add a point, writing the buffered points if the flush window is full.
+     *
+     * @param lon the lon coordinate.
+     * @param lat the lat coordinate.
+     * @param altim the elevation of the point.
+     * @param timestamp the time of the point in milliseconds.
+     * @throws IOException if the points could not be written.
+     */
+    public void addPoint( double lon, double lat, double altim, long timestamp ) throws IOException {
+        addPoint(lon, lat, altim, timestamp, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Add a point, writing the buffered points if the flush window is full.
+     *
+     * @param lon the lon coordinate.
+     * @param lat the lat coordinate.
+     * @param altim the elevation of the point.
+     * @param timestamp the time of the point in milliseconds.
+     * @param received the {@link SystemClock#elapsedRealtime()} the fix was received at, to measure
+     *          the latency until it is written.
+     * @throws IOException if the points could not be written.
+     */
+    public void addPoint( double lon, double lat, double altim, long timestamp, long received ) throws IOException {
+        int capacity = lons.length;
+        if (count == capacity) {
+            // drop the oldest
+            start = (start + 1) % capacity;
+            count--;
+            droppedPoints++;
+        }
+        int index = (start + count) % capacity;
+        lons[index] = lon;
+        lats[index] = lat;
+        altims[index] = altim;
+        timestamps[index] = timestamp;
+        receivedMillis[index] = received;
+        if (count == 0) {
+            firstPointMillis = SystemClock.elapsedRealtime();
+        }
+        count++;
+        if (count >= maxPoints) {
+            flush();
+        }
+    }
+
+    /**
+     * @return the milliseconds until the buffered points are due to be written,
+     *          or -1 if there are none.
+     */
+    public long getMillisUntilDue() {
+        if (count == 0) {
+            return -1;
+        }
+        return Math.max(0, firstPointMillis + maxMillis - SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Write the buffered points if they have waited longer than the flush window.
+     *
+     * @throws IOException if the points could not be written.
+     */
+    public void flushIfDue() throws IOException {
+        if (count > 0 && SystemClock.elapsedRealtime() - firstPointMillis >= maxMillis) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the buffered points in a single transaction.
+     *
+     * @throws IOException if the points could not be written, in which case they stay buffered.
+     */
+    public void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        long t0 = SystemClock.elapsedRealtime();
+        database.beginTransaction();
+        try {
+            dbHelper.addGpsLogDataPoints(database, gpslogId, lons, lats, altims, timestamps, start, count);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        long t1 = SystemClock.elapsedRealtime();
+        long elapsed = t1 - t0;
+        flushMillis += elapsed;
+        int capacity = lons.length;
+        for( int i = 0; i < count; i++ ) {
+            long latency = t1 - receivedMillis[(start + i) % capacity];
+            latencyMillis += latency;
+            if (latency > maxLatencyMillis) {
+                maxLatencyMillis = latency;
+            }
+        }
+        if (elapsed > maxFlushMillis) {
+            maxFlushMillis = elapsed;
+        }
+        commits++;
+        writtenPoints += count;
+        start = 0;
+        count = 0;
+    }
+
+    /**
+     * @return the number of points not written yet.
+     */
+    public int getBufferedPoints() {
+        return count;
+    }
+
+    /**
+     * @return the number of points written.
+     */
+    public long getWrittenPoints() {
+        return writtenPoints;
+    }
+
+    /**
+     * @return the average number of points written per transaction.
+     */
+    public double getPointsPerCommit() {
+        return commits == 0 ? 0 : (double) writtenPoints / commits;
+    }
+
+    /**
+     * @return the average time of a flush in milliseconds.
+     */
+    public double getAverageFlushMillis() {
+        return commits == 0 ? 0 : (double) flushMillis / commits;
+    }
+
+    /**
+     * @return the average time from the reception of a fix to its point being written, in milliseconds.
+     */
+    public double getAverageLatencyMillis() {
+        return writtenPoints == 0 ? 0 : (double) latencyMillis / writtenPoints;
+    }
+
+    /**
+     * @return a summary of the writer's statistics.
+     */
+    public String getInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("written points=").append(writtenPoints);
+        sb.append(" commits=").append(commits);
+        sb.append(" points per commit=").append(getPointsPerCommit());
+        sb.append(" average flush millis=").append(getAverageFlushMillis());
+        sb.append(" max flush millis=").append(maxFlushMillis);
+        sb.append(" average latency millis=").append(getAverageLatencyMillis());
+        sb.append(" max latency millis=").append(maxLatencyMillis);
+        sb.append(" dropped points=").append(droppedPoints);
+        return sb.toString();
+    }
+}
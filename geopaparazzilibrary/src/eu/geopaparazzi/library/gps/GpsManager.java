@@ -359,6 +359,15 @@ public class GpsManager implements LocationListener, Listener {
         removeListener(gpsLogger);
     }
 
+    /**
+     * Write the buffered points of the running gps log.
+     */
+    public void flushDatabaseLogging() {
+        if (gpsLogger != null) {
+            gpsLogger.requestFlush();
+        }
+    }
+
     public void onLocationChanged( Location loc ) {
         if (loc == null)
             return;
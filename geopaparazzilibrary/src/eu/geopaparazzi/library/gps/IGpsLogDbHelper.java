@@ -70,6 +70,27 @@ public interface IGpsLogDbHelper {
     public void addGpsLogDataPoint( SQLiteDatabase sqliteDatabase, long gpslogId, double lon, double lat, double altim,
             Date timestamp ) throws IOException;
 
+    /**
+     * Adds a batch of gps log points to a log.
+     * 
+     * <p>The points are read from ring buffers: point <code>i</code> of the batch is
+     * at index <code>(start + i) % lons.length</code>.</p>
+     * 
+     * <p>Transactions have to be opened and closed.</p>
+     * 
+     * @param sqliteDatabase the db to use.
+     * @param gpslogId the log id to which to add to.
+     * @param lons the lon coordinates.
+     * @param lats the lat coordinates.
+     * @param altims the elevations of the points.
+     * @param timestamps the timestamps of the points in milliseconds.
+     * @param start the index of the first point.
+     * @param count the number of points.
+     * @throws IOException
+     */
+    public void addGpsLogDataPoints( SQLiteDatabase sqliteDatabase, long gpslogId, double[] lons, double[] lats,
+            double[] altims, long[] timestamps, int start, int count ) throws IOException;
+
     /**
      * Deletes a gps log from the database. 
      * 
@@ -79,6 +100,15 @@ public interface IGpsLogDbHelper {
      */
     public void deleteGpslog( Context context, long id ) throws IOException;
 
+    /**
+     * Moves the points of a finished log to a more compact storage, if the database has one.
+     * 
+     * @param context the {@link Context} to use.
+     * @param logid the log, to which no points are added anymore.
+     * @throws IOException
+     */
+    public void compactGpsLog( Context context, long logid ) throws IOException;
+
     /**
      * Re-sets the end timestamp, in case it changed because points were added.
      * 
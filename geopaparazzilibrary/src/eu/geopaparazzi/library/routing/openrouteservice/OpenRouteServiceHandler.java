@@ -176,7 +176,7 @@ public class OpenRouteServiceHandler {
         } finally {
             sqliteDatabase.endTransaction();
         }
-
+        logDumper.compactGpsLog(context, newLogId);
     }
 
 }
@@ -0,0 +1,118 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.test;
+
+import eu.geopaparazzi.library.gps.GpsFixQueue;
+import junit.framework.TestCase;
+
+/**
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestGpsFixQueue extends TestCase {
+
+    public void testOrder() {
+        GpsFixQueue queue = new GpsFixQueue(8);
+        for( int i = 0; i < 3; i++ ) {
+            assertTrue(queue.offer(11.0 + i, 46.0 + i, 100.0 + i, 1000L * i, 10L * i));
+        }
+        assertEquals(3, queue.size());
+
+        GpsFixQueue.Fix fix = new GpsFixQueue.Fix();
+        for( int i = 0; i < 3; i++ ) {
+            assertTrue(queue.poll(fix));
+            assertEquals(11.0 + i, fix.lon, 0.0);
+            assertEquals(46.0 + i, fix.lat, 0.0);
+            assertEquals(100.0 + i, fix.altim, 0.0);
+            assertEquals(1000L * i, fix.time);
+            assertEquals(10L * i, fix.received);
+        }
+        assertFalse(queue.poll(fix));
+        assertEquals(0, queue.size());
+    }
+
+    public void testCapacityRoundedUp() {
+        GpsFixQueue queue = new GpsFixQueue(5);
+        int accepted = 0;
+        for( int i = 0; i < 100; i++ ) {
+            if (queue.offer(0, 0, 0, i, i)) {
+                accepted++;
+            }
+        }
+        assertEquals(8, accepted);
+        assertEquals(8, queue.size());
+    }
+
+    public void testBackpressure() {
+        GpsFixQueue queue = new GpsFixQueue(8);
+        for( int i = 0; i < 20; i++ ) {
+            queue.offer(0, 0, 0, i, i);
+        }
+        // up to half all fixes, then every other one, then none
+        long[] expectedTimes = {0, 1, 2, 3, 5, 7, 9, 11};
+        GpsFixQueue.Fix fix = new GpsFixQueue.Fix();
+        for( long expectedTime : expectedTimes ) {
+            assertTrue(queue.poll(fix));
+            assertEquals(expectedTime, fix.time);
+        }
+        assertFalse(queue.poll(fix));
+
+        // drained, fixes are accepted again
+        assertTrue(queue.offer(0, 0, 0, 20, 20));
+        assertTrue(queue.offer(0, 0, 0, 21, 21));
+        assertTrue(queue.poll(fix));
+        assertEquals(20, fix.time);
+        assertTrue(queue.poll(fix));
+        assertEquals(21, fix.time);
+    }
+
+    public void testProducerConsumer() throws Exception {
+        final GpsFixQueue queue = new GpsFixQueue(64);
+        final int fixesNum = 100000;
+        final long[] acceptedNum = new long[1];
+        Thread producer = new Thread(){
+            public void run() {
+                for( int i = 0; i < fixesNum; i++ ) {
+                    if (queue.offer(i, -i, i, i, i)) {
+                        acceptedNum[0]++;
+                    }
+                }
+            }
+        };
+        producer.start();
+
+        GpsFixQueue.Fix fix = new GpsFixQueue.Fix();
+        long polledNum = 0;
+        long previousTime = -1;
+        while( producer.isAlive() || queue.size() > 0 ) {
+            if (queue.poll(fix)) {
+                // no fix is lost or torn between the threads
+                assertTrue(fix.time > previousTime);
+                assertEquals((double) fix.time, fix.lon, 0.0);
+                assertEquals((double) -fix.time, fix.lat, 0.0);
+                previousTime = fix.time;
+                polledNum++;
+            }
+        }
+        producer.join();
+        while( queue.poll(fix) ) {
+            polledNum++;
+        }
+        assertEquals(acceptedNum[0], polledNum);
+    }
+
+}
@@ -67,6 +67,10 @@ public class GeometryCollectionShape implements DrawableShape {
         shapes.add(shape);
     }
 
+    public void clear() {
+        shapes.clear();
+    }
+
     public RectShape getBounds() {
         /**@todo Implement this java.awt.Shape method*/
         throw new java.lang.UnsupportedOperationException("Method getBounds() not yet implemented.");
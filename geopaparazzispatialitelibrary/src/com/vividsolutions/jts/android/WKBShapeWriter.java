@@ -0,0 +1,620 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.vividsolutions.jts.android;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.graphics.Path;
+import android.graphics.PointF;
+
+import com.vividsolutions.jts.android.geom.DrawableShape;
+import com.vividsolutions.jts.android.geom.PathShape;
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Writes WKB geometries straight into {@link DrawableShape}s.
+ *
+ * <p>Contrary to the {@link ShapeWriter} no JTS geometry is created: the
+ * WKB buffer is read in place and the vertices are transformed and fed
+ * to {@link Path}s, which are reused for every geometry.
+ * Decimation and duplicate point removal follow the same rules as
+ * in the {@link ShapeWriter}.</p>
+ *
+ * <p>As in the {@link ShapeWriter}, each polygon of a collection gets its own
+ * path, so that overlapping polygons are not cut out of each other by the
+ * even-odd fill of their holes.</p>
+ *
+ * <p>The returned line and polygon shapes are only valid until the next
+ * call to {@link #toShape(byte[])}.</p>
+ *
+ * <p>Geometries can also be transformed once into packed pixels through
+ * {@link #toPixels(byte[])}, to be kept and turned into shapes at any offset
+ * through {@link #toShape(int[], int, int)}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class WKBShapeWriter {
+
+    private static final int WKB_POINT = 1;
+    private static final int WKB_LINESTRING = 2;
+    private static final int WKB_POLYGON = 3;
+    private static final int WKB_MULTIPOINT = 4;
+    private static final int WKB_MULTILINESTRING = 5;
+    private static final int WKB_MULTIPOLYGON = 6;
+    private static final int WKB_GEOMETRYCOLLECTION = 7;
+
+    /*
+     * kinds of the parts of packed pixels, each part is kind, count, x1, y1, ... xn, yn
+     */
+    private static final int PART_POINT = 0;
+    private static final int PART_LINE = 1;
+    private static final int PART_RING = 2;
+    private static final int PART_SHELL = 3;
+
+    private static final int EWKB_Z_FLAG = 0x80000000;
+    private static final int EWKB_M_FLAG = 0x40000000;
+    private static final int EWKB_SRID_FLAG = 0x20000000;
+
+    private PointTransformation pointTransformer = ShapeWriter.DEFAULT_POINT_TRANSFORMATION;
+    private PointShapeFactory pointFactory = ShapeWriter.DEFAULT_POINT_FACTORY;
+
+    private boolean doRemoveDuplicatePoints = false;
+    private double decimationDistance = 0;
+
+    /*
+     * reused objects, nothing is allocated per vertex
+     */
+    private final Coordinate modelCoordinate = new Coordinate();
+    private final PointF transPoint = new PointF();
+    private float[] viewCoordinates = new float[256];
+    private final Path path = new Path();
+    private final PathShape pathShape = new PathShape(path);
+    /*
+     * the paths of the polygons of a collection, the first one is the main path
+     */
+    private final ArrayList<PathShape> polygonShapes = new ArrayList<PathShape>();
+    private final GeometryCollectionShape polygonsShape = new GeometryCollectionShape();
+    private int polygonsNum;
+    private int[] packed = new int[256];
+    private int packedSize;
+
+    /**
+     * Creates a new writer with a specified point transformation
+     * and point shape factory.
+     *
+     * @param pointTransformer a transformation from model to view space to use.
+     * @param pointFactory the {@link PointShapeFactory} to use.
+     */
+    public WKBShapeWriter( PointTransformation pointTransformer, PointShapeFactory pointFactory ) {
+        polygonShapes.add(pathShape);
+        if (pointTransformer != null)
+            this.pointTransformer = pointTransformer;
+        if (pointFactory != null)
+            this.pointFactory = pointFactory;
+    }
+
+    /**
+     * Creates a new writer with a specified point transformation
+     * and the default point shape factory.
+     *
+     * @param pointTransformer a transformation from model to view space to use.
+     */
+    public WKBShapeWriter( PointTransformation pointTransformer ) {
+        this(pointTransformer, (PointShapeFactory) null);
+    }
+
+    public WKBShapeWriter( PointTransformation pointTransformer, String shapeName, float size ) {
+        this(pointTransformer, ShapeWriter.getShape(shapeName, size));
+    }
+
+    /**
+     * @see ShapeWriter#setRemoveDuplicatePoints(boolean)
+     */
+    public void setRemoveDuplicatePoints( boolean doRemoveDuplicatePoints ) {
+        this.doRemoveDuplicatePoints = doRemoveDuplicatePoints;
+    }
+
+    /**
+     * @see ShapeWriter#setDecimation(double)
+     */
+    public void setDecimation( double decimationDistance ) {
+        this.decimationDistance = decimationDistance;
+    }
+
+    /**
+     * Creates a {@link DrawableShape} representing a WKB geometry.
+     *
+     * <p>Components of geometry collections are all added to the same path,
+     * points contained in collections are ignored.</p>
+     *
+     * @param wkb the WKB bytes of the geometry.
+     * @return the shape or <code>null</code> for missing or empty geometries.
+     */
+    public DrawableShape toShape( byte[] wkb ) {
+        if (wkb == null || wkb.length < 5) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(wkb);
+        int type = readHeader(buffer);
+        int geomType = geometryType(type);
+        int dimensions = dimensions(type);
+
+        switch( geomType ) {
+        case WKB_POINT:
+            return readPoint(buffer, dimensions);
+        case WKB_MULTIPOINT: {
+            GeometryCollectionShape shapes = new GeometryCollectionShape();
+            int numPoints = buffer.getInt();
+            for( int i = 0; i < numPoints; i++ ) {
+                int pointType = readHeader(buffer);
+                DrawableShape pointShape = readPoint(buffer, dimensions(pointType));
+                if (pointShape != null)
+                    shapes.add(pointShape);
+            }
+            return shapes;
+        }
+        default:
+            resetPaths();
+            appendGeometry(buffer, geomType, dimensions);
+            return getPathsShape();
+        }
+    }
+
+    /**
+     * Transform a WKB geometry into packed pixels.
+     *
+     * <p>Decimation and duplicate point removal are applied, so that the pixels only
+     * need to be translated when drawn. Meant for transformations to integer pixels
+     * that don't depend on the drawing position.</p>
+     *
+     * @param wkb the WKB bytes of the geometry.
+     * @return the packed pixels, empty for missing or empty geometries.
+     */
+    public int[] toPixels( byte[] wkb ) {
+        packedSize = 0;
+        if (wkb != null && wkb.length >= 5) {
+            ByteBuffer buffer = ByteBuffer.wrap(wkb);
+            int type = readHeader(buffer);
+            int geomType = geometryType(type);
+            int dimensions = dimensions(type);
+            if (geomType == WKB_POINT) {
+                packPoint(buffer, dimensions);
+            } else if (geomType == WKB_MULTIPOINT) {
+                int numPoints = buffer.getInt();
+                for( int i = 0; i < numPoints; i++ ) {
+                    int pointType = readHeader(buffer);
+                    packPoint(buffer, dimensions(pointType));
+                }
+            } else {
+                packGeometry(buffer, geomType, dimensions);
+            }
+        }
+        return Arrays.copyOf(packed, packedSize);
+    }
+
+    /**
+     * Creates a {@link DrawableShape} from packed pixels.
+     *
+     * @param pixels the pixels from {@link #toPixels(byte[])}.
+     * @param offsetX the x pixel of the drawing's origin.
+     * @param offsetY the y pixel of the drawing's origin.
+     * @return the shape or <code>null</code> for empty geometries.
+     */
+    public DrawableShape toShape( int[] pixels, int offsetX, int offsetY ) {
+        if (pixels.length == 0) {
+            return null;
+        }
+        if (pixels[0] == PART_POINT) {
+            if (pixels.length == 4) {
+                return pointFactory.createPoint(new PointF(pixels[2] - offsetX, pixels[3] - offsetY));
+            }
+            GeometryCollectionShape shapes = new GeometryCollectionShape();
+            for( int i = 0; i < pixels.length; i += 4 ) {
+                shapes.add(pointFactory.createPoint(new PointF(pixels[i + 2] - offsetX, pixels[i + 3] - offsetY)));
+            }
+            return shapes;
+        }
+        resetPaths();
+        Path target = path;
+        int i = 0;
+        while( i < pixels.length ) {
+            int kind = pixels[i];
+            int count = pixels[i + 1];
+            int start = i + 2;
+            if (kind == PART_SHELL) {
+                target = nextPolygonPath();
+            }
+            target.moveTo(pixels[start] - offsetX, pixels[start + 1] - offsetY);
+            for( int j = 1; j < count; j++ ) {
+                target.lineTo(pixels[start + j * 2] - offsetX, pixels[start + j * 2 + 1] - offsetY);
+            }
+            if (kind != PART_LINE) {
+                target.close();
+            }
+            i = start + count * 2;
+        }
+        return getPathsShape();
+    }
+
+    private void resetPaths() {
+        path.reset();
+        path.setFillType(Path.FillType.EVEN_ODD);
+        polygonsNum = 0;
+    }
+
+    /**
+     * Get the path of the next polygon, the main path for the first one.
+     */
+    private Path nextPolygonPath() {
+        if (polygonsNum == polygonShapes.size()) {
+            polygonShapes.add(new PathShape(new Path()));
+        }
+        Path polygonPath = polygonShapes.get(polygonsNum).getPath();
+        if (polygonsNum > 0) {
+            polygonPath.reset();
+            polygonPath.setFillType(Path.FillType.EVEN_ODD);
+        }
+        polygonsNum++;
+        return polygonPath;
+    }
+
+    /**
+     * @return the main path, or the paths of all the polygons if there is more than one.
+     */
+    private DrawableShape getPathsShape() {
+        if (polygonsNum <= 1) {
+            return pathShape;
+        }
+        polygonsShape.clear();
+        for( int i = 0; i < polygonsNum; i++ ) {
+            polygonsShape.add(polygonShapes.get(i));
+        }
+        return polygonsShape;
+    }
+
+    private void packGeometry( ByteBuffer buffer, int geomType, int dimensions ) {
+        switch( geomType ) {
+        case WKB_LINESTRING:
+            packLine(buffer, dimensions);
+            break;
+        case WKB_POLYGON:
+            packPolygon(buffer, dimensions);
+            break;
+        case WKB_MULTILINESTRING:
+        case WKB_MULTIPOLYGON:
+        case WKB_GEOMETRYCOLLECTION:
+            int numGeometries = buffer.getInt();
+            for( int i = 0; i < numGeometries; i++ ) {
+                int type = readHeader(buffer);
+                packGeometry(buffer, geometryType(type), dimensions(type));
+            }
+            break;
+        case WKB_POINT:
+            // skip points in collections
+            buffer.position(buffer.position() + dimensions * 8);
+            break;
+        case WKB_MULTIPOINT:
+            int numPoints = buffer.getInt();
+            for( int i = 0; i < numPoints; i++ ) {
+                int type = readHeader(buffer);
+                buffer.position(buffer.position() + dimensions(type) * 8);
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("Unrecognized WKB geometry type: " + geomType);
+        }
+    }
+
+    private void packPoint( ByteBuffer buffer, int dimensions ) {
+        modelCoordinate.x = buffer.getDouble();
+        modelCoordinate.y = buffer.getDouble();
+        skipOrdinates(buffer, dimensions);
+        if (Double.isNaN(modelCoordinate.x)) {
+            // empty point
+            return;
+        }
+        pointTransformer.transform(modelCoordinate, transPoint);
+        ensurePacked(4);
+        packed[packedSize++] = PART_POINT;
+        packed[packedSize++] = 1;
+        packed[packedSize++] = Math.round(transPoint.x);
+        packed[packedSize++] = Math.round(transPoint.y);
+    }
+
+    private void packLine( ByteBuffer buffer, int dimensions ) {
+        int numPoints = buffer.getInt();
+        if (numPoints == 0) {
+            return;
+        }
+        int count = readTransformed(buffer, dimensions, numPoints, numPoints - 1, false);
+        if (count == 0) {
+            return;
+        }
+        ensurePacked(2 + count * 2);
+        int header = packedSize;
+        packedSize += 2;
+        int kept = 0;
+        float prevx = Float.NaN;
+        float prevy = Float.NaN;
+        int last = count - 1;
+        for( int i = 0; i < count; i++ ) {
+            float x = viewCoordinates[i * 2];
+            float y = viewCoordinates[i * 2 + 1];
+            if (doRemoveDuplicatePoints && i > 0) {
+                // skip duplicate points (except the last point)
+                if (i < last && x == prevx && y == prevy)
+                    continue;
+            }
+            prevx = x;
+            prevy = y;
+            packed[packedSize++] = Math.round(x);
+            packed[packedSize++] = Math.round(y);
+            kept++;
+        }
+        packed[header] = PART_LINE;
+        packed[header + 1] = kept;
+    }
+
+    private void packPolygon( ByteBuffer buffer, int dimensions ) {
+        boolean hasShell = false;
+        int numRings = buffer.getInt();
+        for( int r = 0; r < numRings; r++ ) {
+            int numPoints = buffer.getInt();
+            if (numPoints == 0) {
+                continue;
+            }
+            // the closing point is skipped, the ring is closed explicitly
+            int count = readTransformed(buffer, dimensions, numPoints, numPoints - 1, true);
+            if (count == 0) {
+                continue;
+            }
+            ensurePacked(2 + count * 2);
+            int header = packedSize;
+            packedSize += 2;
+            int kept = 0;
+            float prevx = Float.NaN;
+            float prevy = Float.NaN;
+            for( int i = 0; i < count; i++ ) {
+                float x = viewCoordinates[i * 2];
+                float y = viewCoordinates[i * 2 + 1];
+                if (doRemoveDuplicatePoints) {
+                    if (x == prevx && y == prevy)
+                        continue;
+                    prevx = x;
+                    prevy = y;
+                }
+                packed[packedSize++] = Math.round(x);
+                packed[packedSize++] = Math.round(y);
+                kept++;
+            }
+            // the first kept ring starts the polygon's own path
+            packed[header] = hasShell ? PART_RING : PART_SHELL;
+            hasShell = true;
+            packed[header + 1] = kept;
+        }
+    }
+
+    private void ensurePacked( int more ) {
+        if (packedSize + more > packed.length) {
+            packed = Arrays.copyOf(packed, Math.max(packed.length * 2, packedSize + more));
+        }
+    }
+
+    private void appendGeometry( ByteBuffer buffer, int geomType, int dimensions ) {
+        switch( geomType ) {
+        case WKB_LINESTRING:
+            appendLine(buffer, dimensions);
+            break;
+        case WKB_POLYGON:
+            appendPolygon(buffer, dimensions);
+            break;
+        case WKB_MULTILINESTRING:
+        case WKB_MULTIPOLYGON:
+        case WKB_GEOMETRYCOLLECTION:
+            int numGeometries = buffer.getInt();
+            for( int i = 0; i < numGeometries; i++ ) {
+                int type = readHeader(buffer);
+                appendGeometry(buffer, geometryType(type), dimensions(type));
+            }
+            break;
+        case WKB_POINT:
+            // skip points in collections
+            buffer.position(buffer.position() + dimensions * 8);
+            break;
+        case WKB_MULTIPOINT:
+            int numPoints = buffer.getInt();
+            for( int i = 0; i < numPoints; i++ ) {
+                int type = readHeader(buffer);
+                buffer.position(buffer.position() + dimensions(type) * 8);
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("Unrecognized WKB geometry type: " + geomType);
+        }
+    }
+
+    private DrawableShape readPoint( ByteBuffer buffer, int dimensions ) {
+        modelCoordinate.x = buffer.getDouble();
+        modelCoordinate.y = buffer.getDouble();
+        skipOrdinates(buffer, dimensions);
+        if (Double.isNaN(modelCoordinate.x)) {
+            // empty point
+            return null;
+        }
+        PointF viewPoint = new PointF();
+        pointTransformer.transform(modelCoordinate, viewPoint);
+        return pointFactory.createPoint(viewPoint);
+    }
+
+    private void appendLine( ByteBuffer buffer, int dimensions ) {
+        int numPoints = buffer.getInt();
+        if (numPoints == 0) {
+            return;
+        }
+        int count = readTransformed(buffer, dimensions, numPoints, numPoints - 1, false);
+        if (count == 0) {
+            return;
+        }
+        path.moveTo(viewCoordinates[0], viewCoordinates[1]);
+        float prevx = viewCoordinates[0];
+        float prevy = viewCoordinates[1];
+        int last = count - 1;
+        for( int i = 1; i < count; i++ ) {
+            float x = viewCoordinates[i * 2];
+            float y = viewCoordinates[i * 2 + 1];
+            if (doRemoveDuplicatePoints) {
+                // skip duplicate points (except the last point)
+                if (i < last && x == prevx && y == prevy)
+                    continue;
+                prevx = x;
+                prevy = y;
+            }
+            path.lineTo(x, y);
+        }
+    }
+
+    private void appendPolygon( ByteBuffer buffer, int dimensions ) {
+        Path polygonPath = nextPolygonPath();
+        int numRings = buffer.getInt();
+        for( int r = 0; r < numRings; r++ ) {
+            int numPoints = buffer.getInt();
+            if (numPoints == 0) {
+                continue;
+            }
+            // the closing point is skipped, the ring is closed explicitly
+            int count = readTransformed(buffer, dimensions, numPoints, numPoints - 1, true);
+            if (count == 0) {
+                continue;
+            }
+            float prevx = Float.NaN;
+            float prevy = Float.NaN;
+            boolean started = false;
+            for( int i = 0; i < count; i++ ) {
+                float x = viewCoordinates[i * 2];
+                float y = viewCoordinates[i * 2 + 1];
+                if (doRemoveDuplicatePoints) {
+                    if (x == prevx && y == prevy)
+                        continue;
+                    prevx = x;
+                    prevy = y;
+                }
+                if (started) {
+                    polygonPath.lineTo(x, y);
+                } else {
+                    polygonPath.moveTo(x, y);
+                    started = true;
+                }
+            }
+            polygonPath.close();
+        }
+    }
+
+    /**
+     * Read a coordinate sequence, decimate it in model space and transform
+     * the remaining vertices into the reused view coordinates array.
+     *
+     * @param buffer the buffer positioned at the first ordinate.
+     * @param dimensions the number of ordinates per vertex.
+     * @param numPoints the number of vertices in the buffer.
+     * @param last the index of the last vertex, which is never decimated.
+     * @param isRing if <code>true</code>, the closing vertex is read but not kept.
+     * @return the number of vertices placed in the view coordinates array.
+     */
+    private int readTransformed( ByteBuffer buffer, int dimensions, int numPoints, int last, boolean isRing ) {
+        if (viewCoordinates.length < numPoints * 2) {
+            viewCoordinates = new float[numPoints * 2];
+        }
+        boolean doDecimate = decimationDistance > 0.0;
+        double prevx = Double.NaN;
+        double prevy = Double.NaN;
+        int count = 0;
+        for( int i = 0; i < numPoints; i++ ) {
+            double x = buffer.getDouble();
+            double y = buffer.getDouble();
+            skipOrdinates(buffer, dimensions);
+            if (isRing && i == numPoints - 1) {
+                continue;
+            }
+            if (doDecimate) {
+                boolean isDecimated = i > 0 && Math.abs(x - prevx) < decimationDistance
+                        && Math.abs(y - prevy) < decimationDistance;
+                if ((isRing || i < last) && isDecimated)
+                    continue;
+                prevx = x;
+                prevy = y;
+            }
+            modelCoordinate.x = x;
+            modelCoordinate.y = y;
+            pointTransformer.transform(modelCoordinate, transPoint);
+            viewCoordinates[count * 2] = transPoint.x;
+            viewCoordinates[count * 2 + 1] = transPoint.y;
+            count++;
+        }
+        return count;
+    }
+
+    private static void skipOrdinates( ByteBuffer buffer, int dimensions ) {
+        if (dimensions > 2) {
+            buffer.position(buffer.position() + (dimensions - 2) * 8);
+        }
+    }
+
+    /**
+     * Reads the byte order and the type of a geometry, skipping the srid if present.
+     *
+     * @return the raw geometry type.
+     */
+    private static int readHeader( ByteBuffer buffer ) {
+        byte byteOrder = buffer.get();
+        buffer.order(byteOrder == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        int type = buffer.getInt();
+        if ((type & EWKB_SRID_FLAG) != 0) {
+            buffer.getInt();
+        }
+        return type;
+    }
+
+    /**
+     * Get the base geometry type, supporting both EWKB flags and ISO type codes.
+     */
+    private static int geometryType( int type ) {
+        return (type & 0xFFFF) % 1000;
+    }
+
+    /**
+     * Get the number of ordinates per vertex, supporting both EWKB flags
+     * and ISO type codes.
+     */
+    private static int dimensions( int type ) {
+        int dimensions = 2;
+        if ((type & EWKB_Z_FLAG) != 0)
+            dimensions++;
+        if ((type & EWKB_M_FLAG) != 0)
+            dimensions++;
+        int isoType = (type & 0xFFFF) / 1000;
+        if (isoType == 1 || isoType == 2) {
+            dimensions++;
+        } else if (isoType == 3) {
+            dimensions += 2;
+        }
+        return dimensions;
+    }
+}
@@ -20,21 +20,30 @@ package eu.geopaparazzi.spatialite.database.spatial;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import jsqlite.Exception;
 
 import eu.geopaparazzi.spatialite.database.spatial.core.ISpatialDatabaseHandler;
+import eu.geopaparazzi.spatialite.database.spatial.core.LazySpatialDatabaseHandler;
 import eu.geopaparazzi.spatialite.database.spatial.core.MbtilesDatabaseHandler;
 import eu.geopaparazzi.spatialite.database.spatial.core.OrderComparator;
 import eu.geopaparazzi.spatialite.database.spatial.core.ISpatialDatabaseHandler;
+import eu.geopaparazzi.spatialite.database.spatial.core.SpatialDatabasesCatalog;
 import eu.geopaparazzi.spatialite.database.spatial.core.SpatialRasterTable;
 import eu.geopaparazzi.spatialite.database.spatial.core.SpatialVectorTable;
+import eu.geopaparazzi.spatialite.database.spatial.core.SpatialiteConnectionPool;
 import eu.geopaparazzi.spatialite.database.spatial.core.SpatialiteDatabaseHandler;
+import eu.geopaparazzi.spatialite.database.spatial.core.VectorTileCache;
+import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MbTilesCompactor;
 import android.content.Context;
 
 /**
@@ -48,6 +57,34 @@ public class SpatialDatabasesManager {
     private HashMap<SpatialVectorTable, ISpatialDatabaseHandler> vectorTablesMap = new HashMap<SpatialVectorTable, ISpatialDatabaseHandler>();
     private HashMap<SpatialRasterTable, ISpatialDatabaseHandler> rasterTablesMap = new HashMap<SpatialRasterTable, ISpatialDatabaseHandler>();
 
+    private VectorTileCache vectorTileCache = new VectorTileCache(Runtime.getRuntime().maxMemory() / 8);
+
+    /**
+     * The name of the file in the application cache folder that keeps the catalog of the databases.
+     */
+    private static final String CATALOG_FILE_NAME = "spatial_catalog.bin"; //$NON-NLS-1$
+    private SpatialDatabasesCatalog catalog;
+
+    /**
+     * The default time after which an unused database is closed.
+     */
+    public static final long DEFAULT_IDLE_CLOSE_MILLIS = 2 * 60 * 1000;
+    /**
+     * The default maximum number of databases kept open.
+     */
+    public static final int DEFAULT_MAX_OPEN_DATABASES = 6;
+
+    private long idleCloseMillis = DEFAULT_IDLE_CLOSE_MILLIS;
+    private int maxOpenDatabases = DEFAULT_MAX_OPEN_DATABASES;
+    private Timer idleCloseTimer;
+    private TimerTask idleCloseTask;
+
+    private final LazySpatialDatabaseHandler.OpenListener openListener = new LazySpatialDatabaseHandler.OpenListener(){
+        public void onOpened( LazySpatialDatabaseHandler lazyHandler ) {
+            closeLeastRecentlyUsed(lazyHandler);
+        }
+    };
+
     private static SpatialDatabasesManager spatialDbManager = null;
     private SpatialDatabasesManager() {
     }
@@ -60,30 +97,245 @@ public class SpatialDatabasesManager {
     }
 
     public static void reset() {
+        if (spatialDbManager != null) {
+            spatialDbManager.stopIdleClose();
+        }
         spatialDbManager = null;
     }
 
     public void init( Context context, File mapsDir ) {
+        // a timer of a previous init would be left running
+        stopIdleClose();
         File[] sqliteFiles = mapsDir.listFiles(new FilenameFilter(){
             public boolean accept( File dir, String filename ) {
                 return filename.endsWith(".sqlite") || filename.endsWith(".mbtiles");
             }
         });
 
+        catalog = new SpatialDatabasesCatalog(new File(context.getCacheDir(), CATALOG_FILE_NAME));
+        catalog.load();
+        catalog.retainOnly(Arrays.asList(sqliteFiles));
+
         for( File sqliteFile : sqliteFiles ) {
-            ISpatialDatabaseHandler sdb = null;
-            if (sqliteFile.getName().endsWith("mbtiles")) {
-                sdb = new MbtilesDatabaseHandler(sqliteFile.getAbsolutePath());
-            } else {
-                sdb = new SpatialiteDatabaseHandler(sqliteFile.getAbsolutePath());
+            // databases are opened when first needed, unchanged ones are described by the catalog
+            LazySpatialDatabaseHandler sdb = new LazySpatialDatabaseHandler(sqliteFile, catalog);
+            sdb.setOpenListener(openListener);
+            synchronized (this) {
+                sdbHandlers.add(sdb);
+            }
+        }
+        startIdleClose();
+    }
+
+    /**
+     * Set the time after which a database that is not used is closed.
+     * 
+     * <p>It is opened again transparently when next used.</p>
+     * 
+     * @param idleCloseMillis the idle time in milliseconds, 0 or less to keep databases open.
+     */
+    public synchronized void setIdleCloseMillis( long idleCloseMillis ) {
+        this.idleCloseMillis = idleCloseMillis;
+        stopIdleClose();
+        if (catalog != null) {
+            // only once initialized, init starts the timer otherwise
+            startIdleClose();
+        }
+    }
+
+    /**
+     * Set the maximum number of databases kept open.
+     * 
+     * <p>When a database is opened beyond this, the least recently used
+     * ones that are not in use are closed.</p>
+     * 
+     * @param maxOpenDatabases the maximum number of open databases, 0 or less for no limit.
+     */
+    public synchronized void setMaxOpenDatabases( int maxOpenDatabases ) {
+        this.maxOpenDatabases = maxOpenDatabases;
+    }
+
+    private synchronized void startIdleClose() {
+        if (idleCloseMillis <= 0) {
+            return;
+        }
+        idleCloseTimer = new Timer("spatial-db-idle-close", true); //$NON-NLS-1$
+        idleCloseTask = new TimerTask(){
+            public void run() {
+                closeIdleDatabases();
+            }
+        };
+        // check often enough to close a database at most half the idle time late
+        long period = Math.max(1000, idleCloseMillis / 2);
+        idleCloseTimer.schedule(idleCloseTask, period, period);
+    }
+
+    private synchronized void stopIdleClose() {
+        if (idleCloseTimer != null) {
+            idleCloseTimer.cancel();
+            idleCloseTimer = null;
+            idleCloseTask = null;
+        }
+    }
+
+    /**
+     * Close the databases that were not used for the idle time.
+     * 
+     * @return the number of closed databases.
+     */
+    public int closeIdleDatabases() {
+        long idleMillis;
+        synchronized (this) {
+            idleMillis = idleCloseMillis;
+        }
+        if (idleMillis <= 0) {
+            return 0;
+        }
+        int closed = 0;
+        for( ISpatialDatabaseHandler sdbHandler : getHandlersSnapshot() ) {
+            if (sdbHandler instanceof LazySpatialDatabaseHandler) {
+                if (((LazySpatialDatabaseHandler) sdbHandler).closeIfIdle(idleMillis)) {
+                    closed++;
+                }
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Close the least recently used databases that are not in use, until at most the maximum number are open.
+     * 
+     * @param opened the database that was just opened, which is kept open.
+     */
+    private void closeLeastRecentlyUsed( LazySpatialDatabaseHandler opened ) {
+        int maxOpen;
+        synchronized (this) {
+            maxOpen = maxOpenDatabases;
+        }
+        if (maxOpen <= 0) {
+            return;
+        }
+        List<LazySpatialDatabaseHandler> openHandlers = new ArrayList<LazySpatialDatabaseHandler>();
+        for( ISpatialDatabaseHandler sdbHandler : getHandlersSnapshot() ) {
+            if (sdbHandler instanceof LazySpatialDatabaseHandler && sdbHandler != opened) {
+                LazySpatialDatabaseHandler lazyHandler = (LazySpatialDatabaseHandler) sdbHandler;
+                if (lazyHandler.isOpen()) {
+                    openHandlers.add(lazyHandler);
+                }
             }
-            sdbHandlers.add(sdb);
+        }
+        int toClose = openHandlers.size() + 1 - maxOpen;
+        if (toClose <= 0) {
+            return;
+        }
+        // the access times are read once, they change while sorting
+        final HashMap<LazySpatialDatabaseHandler, Long> lastAccessMap = new HashMap<LazySpatialDatabaseHandler, Long>();
+        for( LazySpatialDatabaseHandler lazyHandler : openHandlers ) {
+            lastAccessMap.put(lazyHandler, lazyHandler.getLastAccess());
+        }
+        Collections.sort(openHandlers, new Comparator<LazySpatialDatabaseHandler>(){
+            public int compare( LazySpatialDatabaseHandler h1, LazySpatialDatabaseHandler h2 ) {
+                long a1 = lastAccessMap.get(h1);
+                long a2 = lastAccessMap.get(h2);
+                return a1 < a2 ? -1 : (a1 == a2 ? 0 : 1);
+            }
+        });
+        for( LazySpatialDatabaseHandler lazyHandler : openHandlers ) {
+            if (toClose <= 0) {
+                break;
+            }
+            // handlers in use are skipped, the bound is exceeded until they are released
+            if (lazyHandler.closeIfIdle(0)) {
+                toClose--;
+            }
+        }
+    }
+
+    /**
+     * Get a copy of the handlers, to iterate them from threads other than the one that runs {@link #init(Context, File)}.
+     */
+    private synchronized List<ISpatialDatabaseHandler> getHandlersSnapshot() {
+        return new ArrayList<ISpatialDatabaseHandler>(sdbHandlers);
+    }
+
+    /**
+     * Persist the catalog of the databases, if it changed.
+     */
+    private void saveCatalog() {
+        if (catalog != null) {
+            catalog.save();
         }
     }
+
+    /**
+     * Get the spatialite handler behind a handler.
+     * 
+     * @param sdbHandler the handler.
+     * @return the spatialite handler or <code>null</code> if it is not a spatialite database or not open.
+     * @throws Exception
+     */
+    private SpatialiteDatabaseHandler getSpatialiteHandler( ISpatialDatabaseHandler sdbHandler ) throws Exception {
+        if (sdbHandler instanceof LazySpatialDatabaseHandler) {
+            LazySpatialDatabaseHandler lazyHandler = (LazySpatialDatabaseHandler) sdbHandler;
+            sdbHandler = lazyHandler.getOpenHandler();
+        }
+        if (sdbHandler instanceof SpatialiteDatabaseHandler) {
+            return (SpatialiteDatabaseHandler) sdbHandler;
+        }
+        return null;
+    }
     public List<ISpatialDatabaseHandler> getSpatialDatabaseHandlers() {
         return sdbHandlers;
     }
 
+    /**
+     * Get the usage of the read connection pools of the spatialite databases.
+     * 
+     * @return a line per database with opened connections, borrows, saturated borrows and wait times.
+     */
+    public String getConnectionPoolsInfo() {
+        StringBuilder sb = new StringBuilder();
+        for( ISpatialDatabaseHandler sdbHandler : sdbHandlers ) {
+            SpatialiteDatabaseHandler spatialiteHandler = null;
+            try {
+                spatialiteHandler = getSpatialiteHandler(sdbHandler);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            if (spatialiteHandler != null) {
+                SpatialiteConnectionPool pool = spatialiteHandler.getReadConnectionPool();
+                if (pool == null) {
+                    continue;
+                }
+                sb.append(sdbHandler.getFileName());
+                sb.append(": connections=").append(pool.getOpenedConnections());
+                sb.append(" borrows=").append(pool.getBorrowCount());
+                sb.append(" saturated=").append(pool.getWaitCount());
+                sb.append(" waitMs=").append(pool.getTotalWaitMillis());
+                sb.append(" maxWaitMs=").append(pool.getMaxWaitMillis());
+                sb.append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Enable or disable the reprojected copies of the spatialite tables
+     * that are not in the drawing srid.
+     * 
+     * @param enabled if <code>true</code>, the copies are created on first draw and used.
+     * @see SpatialiteDatabaseHandler#setReprojectionCacheEnabled(boolean)
+     */
+    public void setReprojectionCacheEnabled( boolean enabled ) {
+        for( ISpatialDatabaseHandler sdbHandler : sdbHandlers ) {
+            if (sdbHandler instanceof LazySpatialDatabaseHandler) {
+                ((LazySpatialDatabaseHandler) sdbHandler).setReprojectionCacheEnabled(enabled);
+            } else if (sdbHandler instanceof SpatialiteDatabaseHandler) {
+                ((SpatialiteDatabaseHandler) sdbHandler).setReprojectionCacheEnabled(enabled);
+            }
+        }
+    }
+
     public List<SpatialVectorTable> getSpatialVectorTables( boolean forceRead ) throws Exception {
         List<SpatialVectorTable> tables = new ArrayList<SpatialVectorTable>();
         for( ISpatialDatabaseHandler sdbHandler : sdbHandlers ) {
@@ -99,6 +351,7 @@ public class SpatialDatabasesManager {
         for( int i = 0; i < tables.size(); i++ ) {
             tables.get(i).getStyle().order = i;
         }
+        saveCatalog();
         return tables;
     }
 
@@ -116,6 +369,7 @@ public class SpatialDatabasesManager {
             }
         }
         // Collections.sort(tables, new OrderComparator());
+        saveCatalog();
         return tables;
     }
 
@@ -125,16 +379,72 @@ public class SpatialDatabasesManager {
             SpatialVectorTable key = entry.getKey();
             ISpatialDatabaseHandler value = entry.getValue();
             value.updateStyle(key.getStyle());
+            // drops the rendered tiles of the layer if its style changed
+            vectorTileCache.getLayerVersion(getLayerKey(key, value), key.getStyle());
         }
+        saveCatalog();
     }
 
     public void updateStyle( SpatialVectorTable spatialTable ) throws Exception {
         ISpatialDatabaseHandler spatialDatabaseHandler = vectorTablesMap.get(spatialTable);
         if (spatialDatabaseHandler != null) {
             spatialDatabaseHandler.updateStyle(spatialTable.getStyle());
+            // drops the rendered tiles of the layer if its style changed
+            vectorTileCache.getLayerVersion(getLayerKey(spatialTable, spatialDatabaseHandler), spatialTable.getStyle());
+            saveCatalog();
+        }
+    }
+
+    /**
+     * Build the zoom dependent simplified copies of a spatialite table.
+     * 
+     * @param spatialTable the table to simplify.
+     * @throws Exception
+     */
+    public void createSimplificationPyramid( SpatialVectorTable spatialTable ) throws Exception {
+        ISpatialDatabaseHandler spatialDatabaseHandler = vectorTablesMap.get(spatialTable);
+        LazySpatialDatabaseHandler lazyHandler = null;
+        ISpatialDatabaseHandler handler = spatialDatabaseHandler;
+        if (spatialDatabaseHandler instanceof LazySpatialDatabaseHandler) {
+            // keeps the database from being closed while building
+            lazyHandler = (LazySpatialDatabaseHandler) spatialDatabaseHandler;
+            handler = lazyHandler.acquire();
+        }
+        try {
+            if (handler instanceof SpatialiteDatabaseHandler) {
+                // builds without locking the handler, the table is drawn meanwhile
+                ((SpatialiteDatabaseHandler) handler).createSimplificationPyramid(spatialTable);
+                vectorTileCache.invalidateLayer(getLayerKey(spatialTable, spatialDatabaseHandler));
+            }
+        } finally {
+            if (lazyHandler != null) {
+                lazyHandler.release();
+            }
         }
     }
 
+    /**
+     * @return the cache of the rendered vector layer tiles.
+     */
+    public VectorTileCache getVectorTileCache() {
+        return vectorTileCache;
+    }
+
+    /**
+     * Get a key that identifies a vector table across re-reads of the tables.
+     * 
+     * @param spatialTable the table.
+     * @return the key made of database file and table name.
+     */
+    public String getLayerKey( SpatialVectorTable spatialTable ) {
+        return getLayerKey(spatialTable, vectorTablesMap.get(spatialTable));
+    }
+
+    private String getLayerKey( SpatialVectorTable spatialTable, ISpatialDatabaseHandler spatialDatabaseHandler ) {
+        String fileName = spatialDatabaseHandler != null ? spatialDatabaseHandler.getFileName() : ""; //$NON-NLS-1$
+        return fileName + "#" + spatialTable.getName() + "#" + spatialTable.getGeomName(); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
     public ISpatialDatabaseHandler getVectorHandler( SpatialVectorTable spatialTable ) throws Exception {
         ISpatialDatabaseHandler spatialDatabaseHandler = vectorTablesMap.get(spatialTable);
         return spatialDatabaseHandler;
@@ -145,6 +455,69 @@ public class SpatialDatabasesManager {
         return spatialDatabaseHandler;
     }
 
+    /**
+     * Get the mbtiles file a raster table is read from.
+     * 
+     * @param spatialTable the table.
+     * @return the file or <code>null</code> if the table is not read from an mbtiles file.
+     */
+    public File getMbtilesFile( SpatialRasterTable spatialTable ) {
+        ISpatialDatabaseHandler spatialDatabaseHandler = rasterTablesMap.get(spatialTable);
+        if (spatialDatabaseHandler instanceof LazySpatialDatabaseHandler) {
+            File dbFile = ((LazySpatialDatabaseHandler) spatialDatabaseHandler).getDatabaseFile();
+            if (dbFile.getName().endsWith(".mbtiles")) { //$NON-NLS-1$
+                return dbFile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compact the mbtiles file of a raster table in place, see {@link MbTilesCompactor}.
+     * 
+     * <p>The tiles stay readable meanwhile. Afterwards the database is closed, if
+     * not in use, so that it is read with the new layout when next opened.</p>
+     * 
+     * @param spatialTable the table.
+     * @param listener the listener of the progress, or <code>null</code>.
+     * @return the compactor that did the work, or <code>null</code> if the file was already compact
+     *          or the table is not read from an mbtiles file.
+     */
+    public MbTilesCompactor compactMbtiles( SpatialRasterTable spatialTable, MbTilesCompactor.CompactionListener listener ) {
+        File mbtilesFile = getMbtilesFile(spatialTable);
+        if (mbtilesFile == null) {
+            return null;
+        }
+        MbTilesCompactor compactor = new MbTilesCompactor(mbtilesFile);
+        compactor.setListener(listener);
+        boolean compacted = compactor.compact();
+        if (!((LazySpatialDatabaseHandler) rasterTablesMap.get(spatialTable)).closeIfIdle(0)) {
+            clearTileIndex(mbtilesFile);
+        }
+        return compacted ? compactor : null;
+    }
+
+    /**
+     * Forget the indexed tiles of an open mbtiles database, after tiles were written to its file.
+     * 
+     * <p>Else tiles added while the database is open are reported as missing until it is opened again.</p>
+     * 
+     * @param mbtilesFile the mbtiles file.
+     */
+    public void clearTileIndex( File mbtilesFile ) {
+        for( ISpatialDatabaseHandler sdbHandler : getHandlersSnapshot() ) {
+            if (sdbHandler instanceof LazySpatialDatabaseHandler) {
+                LazySpatialDatabaseHandler lazyHandler = (LazySpatialDatabaseHandler) sdbHandler;
+                if (lazyHandler.getDatabaseFile().equals(mbtilesFile)) {
+                    ISpatialDatabaseHandler openHandler = lazyHandler.getOpenHandler();
+                    if (openHandler instanceof MbtilesDatabaseHandler) {
+                        ((MbtilesDatabaseHandler) openHandler).clearTileIndex();
+                    }
+                }
+            }
+        }
+    }
+
     public SpatialVectorTable getVectorTableByName( String table ) throws Exception {
         List<SpatialVectorTable> spatialTables = getSpatialVectorTables(false);
         for( SpatialVectorTable spatialTable : spatialTables ) {
@@ -178,6 +551,9 @@ public class SpatialDatabasesManager {
     }
 
     public void closeDatabases() throws Exception {
+        stopIdleClose();
+        saveCatalog();
+        vectorTileCache.clear();
         for( ISpatialDatabaseHandler sdbHandler : sdbHandlers ) {
             sdbHandler.close();
         }
@@ -148,4 +148,13 @@ public class PolygonsDataPropertiesActivity extends Activity {
         finish();
     }
 
+    /**
+     * Build the simplified copies of the table used to draw it at low zoom levels.
+     * 
+     * @param view the button.
+     */
+    public void onSimplifyClick( View view ) {
+        SimplificationPyramidTask.start(this, spatialTable);
+    }
+
 }
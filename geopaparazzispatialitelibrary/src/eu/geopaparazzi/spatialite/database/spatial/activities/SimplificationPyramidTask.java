@@ -0,0 +1,71 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.activities;
+
+import android.app.Activity;
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.widget.Toast;
+import eu.geopaparazzi.spatialite.R;
+import eu.geopaparazzi.spatialite.database.spatial.SpatialDatabasesManager;
+import eu.geopaparazzi.spatialite.database.spatial.core.SpatialVectorTable;
+
+/**
+ * Builds the simplified copies of a table in the background, showing a progress dialog meanwhile.
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+class SimplificationPyramidTask extends AsyncTask<String, Void, Boolean> {
+    private final SpatialVectorTable spatialTable;
+    private final Context context;
+    private final ProgressDialog progressDialog;
+
+    private SimplificationPyramidTask( Activity activity, SpatialVectorTable spatialTable ) {
+        this.spatialTable = spatialTable;
+        context = activity.getApplicationContext();
+        progressDialog = ProgressDialog.show(activity, spatialTable.getName(), activity.getString(R.string.simplifying), true,
+                false);
+    }
+
+    /**
+     * Start building the simplified copies of a table.
+     * 
+     * @param activity the activity showing the progress.
+     * @param spatialTable the table to simplify.
+     */
+    static void start( Activity activity, SpatialVectorTable spatialTable ) {
+        new SimplificationPyramidTask(activity, spatialTable).execute((String) null);
+    }
+
+    protected Boolean doInBackground( String... params ) {
+        try {
+            SpatialDatabasesManager.getInstance().createSimplificationPyramid(spatialTable);
+            return true;
+        } catch (java.lang.Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    protected void onPostExecute( Boolean done ) { // on UI thread!
+        progressDialog.dismiss();
+        int msg = done ? R.string.simplification_done : R.string.simplification_failed;
+        Toast.makeText(context, msg, Toast.LENGTH_LONG).show();
+    }
+}
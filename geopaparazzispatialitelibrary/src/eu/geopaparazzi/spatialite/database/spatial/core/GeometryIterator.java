@@ -35,6 +35,8 @@ public class GeometryIterator implements Iterator<Geometry> {
     private WKBReader wkbReader = new WKBReader();
     // private WKTReader wktReader = new WKTReader();
     private Stmt stmt;
+    private boolean ownsStatement = true;
+    private SpatialiteConnectionPool.Connection connection;
 
     public GeometryIterator( Database database, String query ) {
         try {
@@ -44,6 +46,34 @@ public class GeometryIterator implements Iterator<Geometry> {
         }
     }
 
+    /**
+     * Create an iterator over an already prepared and bound statement.
+     * 
+     * <p>The statement is not owned by the iterator, so {@link #close()}
+     * only resets it, leaving it ready to be bound and used again.</p>
+     * 
+     * @param stmt the prepared statement.
+     */
+    public GeometryIterator( Stmt stmt ) {
+        this.stmt = stmt;
+        ownsStatement = false;
+    }
+
+    /**
+     * Create an iterator over a statement of a pooled connection.
+     * 
+     * <p>{@link #close()} gives the connection back to its pool.</p>
+     * 
+     * @param stmt the prepared and bound statement.
+     * @param ownsStatement if <code>true</code>, the statement is closed on {@link #close()}, else only reset.
+     * @param connection the connection the statement belongs to.
+     */
+    public GeometryIterator( Stmt stmt, boolean ownsStatement, SpatialiteConnectionPool.Connection connection ) {
+        this.stmt = stmt;
+        this.ownsStatement = ownsStatement;
+        this.connection = connection;
+    }
+
     @Override
     public boolean hasNext() {
         if (stmt == null)
@@ -79,6 +109,53 @@ public class GeometryIterator implements Iterator<Geometry> {
         return null;
     }
 
+    /**
+     * Get the current geometry as WKB, without parsing it.
+     * 
+     * <p>To be used in place of {@link #next()} by renderers that
+     * read the WKB buffer directly.</p>
+     * 
+     * @return the WKB bytes of the current geometry.
+     */
+    public byte[] nextWKB() {
+        if (stmt == null)
+            return null;
+        try {
+            return stmt.column_bytes(0);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Get the ROWID of the current feature.
+     * 
+     * <p>Only available for iterators over features, see 
+     * {@link ISpatialDatabaseHandler#getFeatureIteratorInBounds(String, SpatialVectorTable, double, double, double, double, int)}.</p>
+     * 
+     * @return the ROWID.
+     * @throws Exception
+     */
+    public long getRowId() throws Exception {
+        return stmt.column_long(1);
+    }
+
+    /**
+     * Get the envelope of the current feature.
+     * 
+     * <p>Only available for iterators over features.</p>
+     * 
+     * @param envelope the array of 4 to fill with minx, miny, maxx, maxy.
+     * @throws Exception
+     */
+    public void getEnvelope( double[] envelope ) throws Exception {
+        envelope[0] = stmt.column_double(2);
+        envelope[1] = stmt.column_double(3);
+        envelope[2] = stmt.column_double(4);
+        envelope[3] = stmt.column_double(5);
+    }
+
     @Override
     public void remove() {
         throw new UnsupportedOperationException();
@@ -90,7 +167,19 @@ public class GeometryIterator implements Iterator<Geometry> {
     }
 
     public void close() throws Exception {
-        if (stmt != null)
-            stmt.close();
+        try {
+            if (stmt != null) {
+                if (ownsStatement) {
+                    stmt.close();
+                } else {
+                    stmt.reset();
+                }
+            }
+        } finally {
+            if (connection != null) {
+                connection.release();
+                connection = null;
+            }
+        }
     }
 }
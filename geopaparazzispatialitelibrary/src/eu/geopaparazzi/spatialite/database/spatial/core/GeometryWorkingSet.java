@@ -0,0 +1,277 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * The features of a table around the current view, keyed by ROWID.
+ *
+ * <p>The set covers the view plus a margin around it. As long as the view
+ * stays inside that region nothing is read. When the view leaves it, only
+ * the strips of the new region that were not covered before are queried and
+ * the features that are no longer in the region are dropped, so that a pan
+ * reads the features entering the view instead of all the visible ones.</p>
+ *
+ * <p>Features are kept in ROWID order, the order the database returns them in,
+ * so that overlapping features are always drawn in the same order.</p>
+ *
+ * <p>The memory used by the features is capped. A region whose features
+ * exceed the cap is not kept: the set is emptied and reports the region as
+ * not covered, so that the features are queried directly for every tile,
+ * until the view leaves that region or the zoom changes.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GeometryWorkingSet {
+
+    /**
+     * The margin added on each side of the view, as a fraction of the view size.
+     */
+    private static final double MARGIN_FACTOR = 0.5;
+
+    /**
+     * The default maximum memory used by the features of a set.
+     */
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The estimated memory used by a feature besides its geometry.
+     */
+    private static final int FEATURE_OVERHEAD = 96;
+
+    private final TreeMap<Long, Feature> features = new TreeMap<Long, Feature>();
+    private final String destSrid;
+    private final long maxBytes;
+    private long bytes = 0;
+    private boolean overflow = false;
+
+    private int zoom = -1;
+    private boolean hasRegion = false;
+    private double regionN;
+    private double regionS;
+    private double regionE;
+    private double regionW;
+
+    private long stripQueries = 0;
+    private long overflows = 0;
+
+    /**
+     * @param destSrid the srid the features are kept in.
+     * @param maxBytes the maximum memory used by the features.
+     */
+    public GeometryWorkingSet( String destSrid, long maxBytes ) {
+        this.destSrid = destSrid;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Make sure the set covers the given view.
+     *
+     * <p>A change of zoom level empties the set, since another simplification
+     * level of the table might be in use.</p>
+     *
+     * @param handler the handler of the table.
+     * @param table the table.
+     * @param zoom the zoom level.
+     * @param n north bound of the view.
+     * @param s south bound of the view.
+     * @param e east bound of the view.
+     * @param w west bound of the view.
+     * @throws Exception
+     */
+    public synchronized void update( ISpatialDatabaseHandler handler, SpatialVectorTable table, int zoom, double n, double s,
+            double e, double w ) throws Exception {
+        if (zoom != this.zoom) {
+            clear();
+            this.zoom = zoom;
+        }
+        if (hasRegion && isInRegion(n, s, e, w)) {
+            return;
+        }
+
+        double marginX = (e - w) * MARGIN_FACTOR;
+        double marginY = (n - s) * MARGIN_FACTOR;
+        double newN = n + marginY;
+        double newS = s - marginY;
+        double newE = e + marginX;
+        double newW = w - marginX;
+
+        List<double[]> strips = new ArrayList<double[]>();
+        if (!hasRegion || overflow || newW >= regionE || newE <= regionW || newS >= regionN || newN <= regionS) {
+            features.clear();
+            bytes = 0;
+            overflow = false;
+            strips.add(new double[]{newN, newS, newE, newW});
+        } else {
+            // evict the features that left the new region
+            Iterator<Feature> iterator = features.values().iterator();
+            while( iterator.hasNext() ) {
+                Feature feature = iterator.next();
+                if (!feature.intersects(newN, newS, newE, newW)) {
+                    iterator.remove();
+                    bytes -= feature.getBytes();
+                }
+            }
+
+            // new region minus old region: full height strips west and east...
+            if (newW < regionW)
+                strips.add(new double[]{newN, newS, regionW, newW});
+            if (newE > regionE)
+                strips.add(new double[]{newN, newS, newE, regionE});
+            // ...and strips south and north in between
+            double midW = Math.max(newW, regionW);
+            double midE = Math.min(newE, regionE);
+            if (newS < regionS)
+                strips.add(new double[]{regionS, newS, midE, midW});
+            if (newN > regionN)
+                strips.add(new double[]{newN, regionN, midE, midW});
+        }
+
+        double[] envelope = new double[4];
+        strips: for( double[] strip : strips ) {
+            GeometryIterator iterator = handler.getFeatureIteratorInBounds(destSrid, table, strip[0], strip[1], strip[2],
+                    strip[3], zoom);
+            if (iterator == null) {
+                continue;
+            }
+            stripQueries++;
+            try {
+                while( iterator.hasNext() ) {
+                    long rowId = iterator.getRowId();
+                    if (features.containsKey(rowId)) {
+                        // crossing the strip border, already there
+                        continue;
+                    }
+                    iterator.getEnvelope(envelope);
+                    Feature feature = new Feature(iterator.nextWKB(), envelope);
+                    features.put(rowId, feature);
+                    bytes += feature.getBytes();
+                    if (bytes > maxBytes) {
+                        // too dense to keep, tiles of this region query their features directly
+                        features.clear();
+                        bytes = 0;
+                        overflow = true;
+                        overflows++;
+                        break strips;
+                    }
+                }
+            } finally {
+                iterator.close();
+            }
+        }
+
+        regionN = newN;
+        regionS = newS;
+        regionE = newE;
+        regionW = newW;
+        hasRegion = true;
+    }
+
+    /**
+     * Get the geometries that intersect the given bounds, with their row ids.
+     *
+     * @param zoom the zoom level.
+     * @param n north bound.
+     * @param s south bound.
+     * @param e east bound.
+     * @param w west bound.
+     * @return the WKB geometries by row id or <code>null</code> if the set doesn't cover the bounds.
+     */
+    public synchronized LinkedHashMap<Long, byte[]> getFeaturesInBounds( int zoom, double n, double s, double e, double w ) {
+        if (zoom != this.zoom || !hasRegion || overflow || !isInRegion(n, s, e, w)) {
+            return null;
+        }
+        LinkedHashMap<Long, byte[]> wkbMap = new LinkedHashMap<Long, byte[]>();
+        for( Entry<Long, Feature> entry : features.entrySet() ) {
+            Feature feature = entry.getValue();
+            if (feature.intersects(n, s, e, w)) {
+                wkbMap.put(entry.getKey(), feature.wkb);
+            }
+        }
+        return wkbMap;
+    }
+
+    public synchronized void clear() {
+        features.clear();
+        bytes = 0;
+        overflow = false;
+        hasRegion = false;
+    }
+
+    /**
+     * @return the number of features in the set.
+     */
+    public synchronized int size() {
+        return features.size();
+    }
+
+    /**
+     * @return the number of strip queries run so far.
+     */
+    public synchronized long getStripQueries() {
+        return stripQueries;
+    }
+
+    /**
+     * @return the estimated memory used by the features in the set.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of regions that were not kept because they exceeded the maximum memory.
+     */
+    public synchronized long getOverflows() {
+        return overflows;
+    }
+
+    private boolean isInRegion( double n, double s, double e, double w ) {
+        return n <= regionN && s >= regionS && e <= regionE && w >= regionW;
+    }
+
+    private static class Feature {
+        final byte[] wkb;
+        final double minX;
+        final double minY;
+        final double maxX;
+        final double maxY;
+
+        Feature( byte[] wkb, double[] envelope ) {
+            this.wkb = wkb;
+            minX = envelope[0];
+            minY = envelope[1];
+            maxX = envelope[2];
+            maxY = envelope[3];
+        }
+
+        boolean intersects( double n, double s, double e, double w ) {
+            return minX <= e && maxX >= w && minY <= n && maxY >= s;
+        }
+
+        long getBytes() {
+            return wkb.length + FEATURE_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core;
+
+import java.util.HashMap;
+
+import jsqlite.Exception;
+import jsqlite.Stmt;
+import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MBTilesDroidSpitter;
+
+/**
+ * Reads the tiles of a geopackage raster table by google tile coordinates.
+ *
+ * <p>The tile selects are prepared once per connection and bound with ints. The
+ * tile matrix metadata of the table is read once and used to translate the google
+ * zoom, column and row to the ones of the table's tile matrix, which can have
+ * different zoom numbers and an origin other than the world's corner.
+ * Tables that are not in 3857 or whose metadata can't be read are assumed to use
+ * the google scheme as is.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class GeopackageRasterReader {
+
+    private static final double ORIGIN_SHIFT = 20037508.342789244;
+    /**
+     * The size of a pixel in meters at zoom 0, for 256 pixel tiles.
+     */
+    private static final double ZOOM0_PIXEL_SIZE = 2 * ORIGIN_SHIFT / 256;
+    private static final int MAX_ZOOM = 30;
+
+    private final SpatialiteConnectionPool pool;
+    private final String tableName;
+    private final String tileQuery;
+    private final String tilesQuery;
+    private final TileIndex tileIndex;
+
+    /**
+     * The tile matrices of the table by google zoom level, <code>null</code> where missing.
+     */
+    private final TileMatrix[] matrices = new TileMatrix[MAX_ZOOM + 1];
+    private int minZoom = -1;
+    private int maxZoom = -1;
+
+    /**
+     * A zoom level of the table's tile matrix set.
+     */
+    private static class TileMatrix {
+        int zoom;
+        int colOffset;
+        int rowOffset;
+        int width = Integer.MAX_VALUE;
+        int height = Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param pool the pool of the connections to the database.
+     * @param tableName the name of the raster table.
+     * @param columnName the column of the tile images.
+     * @param srid the srid of the table.
+     * @throws Exception if the metadata can't be read.
+     */
+    public GeopackageRasterReader( SpatialiteConnectionPool pool, String tableName, String columnName, String srid )
+            throws Exception {
+        this.pool = pool;
+        this.tableName = tableName;
+        tileQuery = "SELECT " + columnName + " FROM " + tableName + " WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+        tilesQuery = "SELECT tile_column, tile_row, " + columnName + " FROM " + tableName
+                + " WHERE zoom_level=? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?";
+        tileIndex = new TileIndex(pool, tableName);
+        readMatrices("3857".equals(srid) || "900913".equals(srid));
+    }
+
+    private void readMatrices( boolean isMercator ) throws Exception {
+        SpatialiteConnectionPool.Connection connection = pool.borrow();
+        try {
+            double minX = -ORIGIN_SHIFT;
+            double maxY = ORIGIN_SHIFT;
+            boolean hasOrigin = false;
+            if (isMercator) {
+                try {
+                    Stmt stmt = connection.getDatabase().prepare(
+                            "SELECT min_x, max_y FROM geopackage_contents WHERE table_name=?");
+                    try {
+                        stmt.bind(1, tableName);
+                        if (stmt.step()) {
+                            minX = stmt.column_double(0);
+                            maxY = stmt.column_double(1);
+                            hasOrigin = true;
+                        }
+                    } finally {
+                        stmt.close();
+                    }
+                } catch (Exception e) {
+                    // no contents bounds, the matrices start at the world's corner
+                }
+            }
+
+            boolean hasMatrixInfo = false;
+            try {
+                Stmt stmt = connection.getDatabase().prepare(
+                        "SELECT zoom_level, matrix_width, matrix_height, tile_width, tile_height, pixel_x_size, pixel_y_size "
+                                + "FROM tile_matrix_metadata WHERE t_table_name=?");
+                try {
+                    stmt.bind(1, tableName);
+                    while( stmt.step() ) {
+                        hasMatrixInfo = true;
+                        TileMatrix matrix = new TileMatrix();
+                        matrix.zoom = stmt.column_int(0);
+                        matrix.width = stmt.column_int(1);
+                        matrix.height = stmt.column_int(2);
+                        int googleZoom = matrix.zoom;
+                        if (isMercator) {
+                            double pixelXSize = stmt.column_double(5);
+                            double pixelYSize = stmt.column_double(6);
+                            if (pixelXSize > 0) {
+                                googleZoom = (int) Math.round(Math.log(ZOOM0_PIXEL_SIZE / pixelXSize) / Math.log(2));
+                            }
+                            if (hasOrigin && pixelXSize > 0 && pixelYSize > 0) {
+                                double tileXSize = stmt.column_int(3) * pixelXSize;
+                                double tileYSize = stmt.column_int(4) * pixelYSize;
+                                matrix.colOffset = (int) Math.round((minX + ORIGIN_SHIFT) / tileXSize);
+                                matrix.rowOffset = (int) Math.round((ORIGIN_SHIFT - maxY) / tileYSize);
+                            }
+                        }
+                        putMatrix(googleZoom, matrix);
+                    }
+                } finally {
+                    stmt.close();
+                }
+            } catch (Exception e) {
+                // older layouts have only the zoom levels
+                hasMatrixInfo = false;
+            }
+
+            if (!hasMatrixInfo) {
+                Stmt stmt = connection.getDatabase().prepare(
+                        "SELECT zoom_level FROM tile_matrix_metadata WHERE t_table_name=?");
+                try {
+                    stmt.bind(1, tableName);
+                    while( stmt.step() ) {
+                        TileMatrix matrix = new TileMatrix();
+                        matrix.zoom = stmt.column_int(0);
+                        putMatrix(matrix.zoom, matrix);
+                    }
+                } finally {
+                    stmt.close();
+                }
+            }
+        } finally {
+            connection.release();
+        }
+    }
+
+    private void putMatrix( int googleZoom, TileMatrix matrix ) {
+        if (googleZoom < 0 || googleZoom > MAX_ZOOM) {
+            return;
+        }
+        matrices[googleZoom] = matrix;
+        if (minZoom == -1 || googleZoom < minZoom) {
+            minZoom = googleZoom;
+        }
+        if (googleZoom > maxZoom) {
+            maxZoom = googleZoom;
+        }
+    }
+
+    /**
+     * @return the lowest google zoom level of the table, or -1 if it has none.
+     */
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    /**
+     * @return the highest google zoom level of the table, or -1 if it has none.
+     */
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    private TileMatrix getMatrix( int zoom ) {
+        if (zoom < 0 || zoom > MAX_ZOOM) {
+            return null;
+        }
+        return matrices[zoom];
+    }
+
+    /**
+     * Check quickly if a tile might exist.
+     *
+     * @param zoom the google zoom level.
+     * @param tileX the x tile number.
+     * @param tileY the google y tile number.
+     * @return <code>false</code> if the tile surely doesn't exist.
+     */
+    public boolean mayHaveTile( int zoom, int tileX, int tileY ) {
+        TileMatrix matrix = getMatrix(zoom);
+        if (matrix == null) {
+            return false;
+        }
+        int col = tileX - matrix.colOffset;
+        int row = tileY - matrix.rowOffset;
+        if (col < 0 || row < 0 || col >= matrix.width || row >= matrix.height) {
+            return false;
+        }
+        return tileIndex.mayContain(matrix.zoom, col, row);
+    }
+
+    /**
+     * Get a tile.
+     *
+     * @param zoom the google zoom level.
+     * @param tileX the x tile number.
+     * @param tileY the google y tile number.
+     * @return the image or <code>null</code>.
+     */
+    public byte[] getTile( int zoom, int tileX, int tileY ) {
+        if (!mayHaveTile(zoom, tileX, tileY)) {
+            return null;
+        }
+        TileMatrix matrix = matrices[zoom];
+        try {
+            SpatialiteConnectionPool.Connection connection = pool.borrow();
+            try {
+                Stmt stmt = connection.getStatement(tileQuery, tileQuery);
+                stmt.bind(1, matrix.zoom);
+                stmt.bind(2, tileX - matrix.colOffset);
+                stmt.bind(3, tileY - matrix.rowOffset);
+                byte[] tile = null;
+                if (stmt.step()) {
+                    tile = stmt.column_bytes(0);
+                }
+                stmt.reset();
+                return tile;
+            } finally {
+                connection.release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Get the tiles of a range with a single query.
+     *
+     * @param zoom the google zoom level.
+     * @param xMin the first x tile number.
+     * @param xMax the last x tile number.
+     * @param yMin the first google y tile number.
+     * @param yMax the last google y tile number.
+     * @return the images of the existing tiles, by {@link MBTilesDroidSpitter#getTileKey(int, int)}
+     *          of their google tile coordinates.
+     */
+    public HashMap<Long, byte[]> getTiles( int zoom, int xMin, int xMax, int yMin, int yMax ) {
+        HashMap<Long, byte[]> tiles = new HashMap<Long, byte[]>();
+        TileMatrix matrix = getMatrix(zoom);
+        if (matrix == null) {
+            return tiles;
+        }
+        try {
+            SpatialiteConnectionPool.Connection connection = pool.borrow();
+            try {
+                Stmt stmt = connection.getStatement(tilesQuery, tilesQuery);
+                stmt.bind(1, matrix.zoom);
+                stmt.bind(2, xMin - matrix.colOffset);
+                stmt.bind(3, xMax - matrix.colOffset);
+                stmt.bind(4, yMin - matrix.rowOffset);
+                stmt.bind(5, yMax - matrix.rowOffset);
+                while( stmt.step() ) {
+                    int x = stmt.column_int(0) + matrix.colOffset;
+                    int y = stmt.column_int(1) + matrix.rowOffset;
+                    tiles.put(MBTilesDroidSpitter.getTileKey(x, y), stmt.column_bytes(2));
+                }
+                stmt.reset();
+            } finally {
+                connection.release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return tiles;
+    }
+}
@@ -1,5 +1,6 @@
 package eu.geopaparazzi.spatialite.database.spatial.core;
 
+import java.util.HashMap;
 import java.util.List;
 
 import jsqlite.Exception;
@@ -7,6 +8,11 @@ import android.graphics.Paint;
 
 public interface ISpatialDatabaseHandler {
 
+    /**
+     * @return the name of the database file.
+     */
+    public String getFileName();
+
     /**
      * Get the spatial tables from the database.
      * 
@@ -20,6 +26,44 @@ public interface ISpatialDatabaseHandler {
 
     public abstract byte[] getRasterTile( String query );
 
+    /**
+     * Check quickly, without querying the tiles, if a raster tile might exist.
+     * 
+     * @param table the raster table.
+     * @param zoom the zoom level.
+     * @param tileX the x tile number.
+     * @param tileY the google y tile number.
+     * @return <code>false</code> if the tile surely doesn't exist.
+     */
+    public abstract boolean mayHaveRasterTile( SpatialRasterTable table, int zoom, int tileX, int tileY );
+
+    /**
+     * Get a raster tile by its google tile coordinates.
+     * 
+     * @param table the raster table.
+     * @param zoom the zoom level.
+     * @param tileX the x tile number.
+     * @param tileY the google y tile number.
+     * @return the image or <code>null</code>.
+     */
+    public abstract byte[] getRasterTile( SpatialRasterTable table, int zoom, int tileX, int tileY );
+
+    /**
+     * Get the raster tiles of a range of google tile coordinates with a single query.
+     * 
+     * @param table the raster table.
+     * @param zoom the zoom level.
+     * @param xMin the first x tile number.
+     * @param xMax the last x tile number.
+     * @param yMin the first google y tile number.
+     * @param yMax the last google y tile number.
+     * @return the images of the existing tiles, by
+     *          {@link eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MBTilesDroidSpitter#getTileKey(int, int)}
+     *          of their google tile coordinates.
+     */
+    public abstract HashMap<Long, byte[]> getRasterTiles( SpatialRasterTable table, int zoom, int xMin, int xMax, int yMin,
+            int yMax );
+
     /**
      * Get the table's bounds.
      * 
@@ -44,6 +88,42 @@ public interface ISpatialDatabaseHandler {
     public abstract GeometryIterator getGeometryIteratorInBounds( String destSrid, SpatialVectorTable table, double n, double s,
             double e, double w );
 
+    /**
+     * Get the {@link GeometryIterator} of a table in a given bound for drawing at a given zoom level.
+     * 
+     * <p>Handlers that keep simplified versions of their tables use the one that fits the zoom level.</p>
+     * 
+     * @param destSrid the srid to which to transform to.
+     * @param table the table to use.
+     * @param n north bound.
+     * @param s south bound.
+     * @param e east bound.
+     * @param w west bound.
+     * @param zoom the zoom level.
+     * @return the geometries iterator.
+     */
+    public abstract GeometryIterator getGeometryIteratorInBounds( String destSrid, SpatialVectorTable table, double n, double s,
+            double e, double w, int zoom );
+
+    /**
+     * Get the features of a table in a given bound for drawing at a given zoom level.
+     * 
+     * <p>Contrary to {@link #getGeometryIteratorInBounds(String, SpatialVectorTable, double, double, double, double, int)}
+     * the iterator also gives the ROWID and the envelope of each feature, so that
+     * the features can be kept and reused by the caller.</p>
+     * 
+     * @param destSrid the srid to which to transform to.
+     * @param table the table to use.
+     * @param n north bound.
+     * @param s south bound.
+     * @param e east bound.
+     * @param w west bound.
+     * @param zoom the zoom level.
+     * @return the features iterator.
+     */
+    public abstract GeometryIterator getFeatureIteratorInBounds( String destSrid, SpatialVectorTable table, double n, double s,
+            double e, double w, int zoom );
+
     /**
      * Get the stroke {@link Paint} for a given style.
      * 
@@ -0,0 +1,446 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import jsqlite.Exception;
+import android.graphics.Paint;
+
+/**
+ * A handler that opens its database only when it is needed.
+ *
+ * <p>The tables of databases that didn't change since the last run come from the
+ * {@link SpatialDatabasesCatalog}, so that the database is opened only once
+ * its data are read, for example to draw an enabled layer.</p>
+ *
+ * <p>The handler can be closed again when it is idle, see {@link #closeIfIdle(long)},
+ * and is reopened transparently on the next access.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LazySpatialDatabaseHandler implements ISpatialDatabaseHandler {
+
+    private final File dbFile;
+    private final boolean isMbtiles;
+    private final String fileName;
+    private final SpatialDatabasesCatalog catalog;
+
+    private ISpatialDatabaseHandler handler;
+    private List<SpatialVectorTable> vectorTableList;
+    private List<SpatialRasterTable> rasterTableList;
+    private boolean reprojectionCacheEnabled = false;
+
+    private OpenListener openListener;
+    private int activeCalls = 0;
+    private long lastAccess = 0;
+
+    /**
+     * Listener notified when the database is opened.
+     */
+    public static interface OpenListener {
+        /**
+         * Called after the database of a handler was opened, outside of any lock of the handler.
+         *
+         * @param lazyHandler the handler.
+         */
+        public void onOpened( LazySpatialDatabaseHandler lazyHandler );
+    }
+
+    /**
+     * @param dbFile the database file, a spatialite database or an mbtiles file.
+     * @param catalog the catalog to take the tables from and to update.
+     */
+    public LazySpatialDatabaseHandler( File dbFile, SpatialDatabasesCatalog catalog ) {
+        this.dbFile = dbFile;
+        this.catalog = catalog;
+        isMbtiles = dbFile.getName().endsWith(".mbtiles"); //$NON-NLS-1$
+        if (isMbtiles) {
+            // as named by the mbtiles handler
+            String name = dbFile.getName();
+            fileName = name.substring(0, name.lastIndexOf(".")); //$NON-NLS-1$
+        } else {
+            fileName = dbFile.getName();
+        }
+
+        SpatialDatabasesCatalog.Entry entry = catalog.get(dbFile);
+        if (entry != null) {
+            vectorTableList = entry.getVectorTables();
+            rasterTableList = entry.getRasterTables();
+        }
+    }
+
+    public synchronized void setOpenListener( OpenListener openListener ) {
+        this.openListener = openListener;
+    }
+
+    /**
+     * Get the handler of the database, opening it if necessary.
+     *
+     * <p>The handler might be closed when idle, so it should not be kept around.</p>
+     *
+     * @return the handler.
+     * @throws Exception
+     */
+    public ISpatialDatabaseHandler getHandler() throws Exception {
+        boolean wasOpened;
+        ISpatialDatabaseHandler currentHandler;
+        OpenListener listener;
+        synchronized (this) {
+            wasOpened = handler == null;
+            currentHandler = openHandler();
+            lastAccess = System.currentTimeMillis();
+            listener = openListener;
+        }
+        if (wasOpened && listener != null) {
+            listener.onOpened(this);
+        }
+        return currentHandler;
+    }
+
+    /**
+     * Get the handler for a call, which keeps it from being closed until {@link #release()}.
+     *
+     * @return the handler, open.
+     * @throws Exception
+     */
+    public ISpatialDatabaseHandler acquire() throws Exception {
+        boolean wasOpened;
+        ISpatialDatabaseHandler currentHandler;
+        OpenListener listener;
+        synchronized (this) {
+            wasOpened = handler == null;
+            currentHandler = openHandler();
+            activeCalls++;
+            lastAccess = System.currentTimeMillis();
+            listener = openListener;
+        }
+        if (wasOpened && listener != null) {
+            listener.onOpened(this);
+        }
+        return currentHandler;
+    }
+
+    /**
+     * Release a handler got through {@link #acquire()}.
+     */
+    public synchronized void release() {
+        activeCalls--;
+        lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Close the database if it is open, not in use and was not accessed for a given time.
+     *
+     * <p>Iterators still open on the closed handler keep their connection until they are closed.</p>
+     *
+     * @param idleMillis the minimum time without access, 0 to close if not in use.
+     * @return <code>true</code> if the database was closed.
+     */
+    public synchronized boolean closeIfIdle( long idleMillis ) {
+        if (handler == null || activeCalls > 0 || System.currentTimeMillis() - lastAccess < idleMillis) {
+            return false;
+        }
+        try {
+            close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    /**
+     * @return the time of the last access to the database.
+     */
+    public synchronized long getLastAccess() {
+        return lastAccess;
+    }
+
+    private ISpatialDatabaseHandler openHandler() throws Exception {
+        if (handler == null) {
+            ISpatialDatabaseHandler newHandler;
+            if (isMbtiles) {
+                newHandler = new MbtilesDatabaseHandler(dbFile.getAbsolutePath());
+                // opens the file
+                newHandler.getSpatialRasterTables(false);
+            } else {
+                SpatialiteDatabaseHandler spatialiteHandler = new SpatialiteDatabaseHandler(dbFile.getAbsolutePath());
+                spatialiteHandler.setReprojectionCacheEnabled(reprojectionCacheEnabled);
+                // reads the metadata the handler depends on
+                spatialiteHandler.getSpatialVectorTables(false);
+                newHandler = spatialiteHandler;
+            }
+            handler = newHandler;
+        }
+        return handler;
+    }
+
+    /**
+     * @return the handler if the database is open, else <code>null</code>.
+     */
+    public synchronized ISpatialDatabaseHandler getOpenHandler() {
+        return handler;
+    }
+
+    /**
+     * @return <code>true</code> if the database is open.
+     */
+    public synchronized boolean isOpen() {
+        return handler != null;
+    }
+
+    /**
+     * @see SpatialiteDatabaseHandler#setReprojectionCacheEnabled(boolean)
+     */
+    public synchronized void setReprojectionCacheEnabled( boolean reprojectionCacheEnabled ) {
+        this.reprojectionCacheEnabled = reprojectionCacheEnabled;
+        if (handler instanceof SpatialiteDatabaseHandler) {
+            ((SpatialiteDatabaseHandler) handler).setReprojectionCacheEnabled(reprojectionCacheEnabled);
+        }
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return the database file.
+     */
+    public File getDatabaseFile() {
+        return dbFile;
+    }
+
+    public synchronized List<SpatialVectorTable> getSpatialVectorTables( boolean forceRead ) throws Exception {
+        if (isMbtiles) {
+            // no need to open the file to know
+            return Collections.emptyList();
+        }
+        if (vectorTableList == null || forceRead) {
+            vectorTableList = new ArrayList<SpatialVectorTable>(openHandler().getSpatialVectorTables(forceRead));
+            catalog.put(dbFile, vectorTableList, null);
+        }
+        Collections.sort(vectorTableList, new OrderComparator());
+        return vectorTableList;
+    }
+
+    public synchronized List<SpatialRasterTable> getSpatialRasterTables( boolean forceRead ) throws Exception {
+        if (rasterTableList == null || forceRead) {
+            rasterTableList = new ArrayList<SpatialRasterTable>(openHandler().getSpatialRasterTables(forceRead));
+            catalog.put(dbFile, null, rasterTableList);
+        }
+        return rasterTableList;
+    }
+
+    public float[] getTableBounds( SpatialVectorTable spatialTable, String destSrid ) throws Exception {
+        boolean is4326 = "4326".equals(destSrid); //$NON-NLS-1$
+        if (is4326) {
+            SpatialDatabasesCatalog.Entry entry = catalog.get(dbFile);
+            if (entry != null) {
+                float[] bounds = entry.getBounds4326(spatialTable.getName());
+                if (bounds != null) {
+                    return bounds;
+                }
+            }
+        }
+        float[] bounds;
+        ISpatialDatabaseHandler currentHandler = acquire();
+        try {
+            bounds = currentHandler.getTableBounds(spatialTable, destSrid);
+        } finally {
+            release();
+        }
+        if (is4326 && bounds != null) {
+            catalog.putBounds4326(dbFile, spatialTable.getName(), bounds);
+        }
+        return bounds;
+    }
+
+    public void updateStyle( Style style ) throws Exception {
+        boolean wasInCatalog = catalog.get(dbFile) != null;
+        ISpatialDatabaseHandler currentHandler = acquire();
+        try {
+            currentHandler.updateStyle(style);
+        } finally {
+            release();
+        }
+        if (wasInCatalog) {
+            // the write changed the file, the catalog still describes it
+            catalog.touch(dbFile);
+        }
+    }
+
+    public byte[] getRasterTile( String query ) {
+        try {
+            ISpatialDatabaseHandler currentHandler = acquire();
+            try {
+                return currentHandler.getRasterTile(query);
+            } finally {
+                release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public byte[] getRasterTile( SpatialRasterTable table, int zoom, int tileX, int tileY ) {
+        try {
+            ISpatialDatabaseHandler currentHandler = acquire();
+            try {
+                return currentHandler.getRasterTile(table, zoom, tileX, tileY);
+            } finally {
+                release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public HashMap<Long, byte[]> getRasterTiles( SpatialRasterTable table, int zoom, int xMin, int xMax, int yMin, int yMax ) {
+        try {
+            ISpatialDatabaseHandler currentHandler = acquire();
+            try {
+                return currentHandler.getRasterTiles(table, zoom, xMin, xMax, yMin, yMax);
+            } finally {
+                release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return new HashMap<Long, byte[]>();
+    }
+
+    public boolean mayHaveRasterTile( SpatialRasterTable table, int zoom, int tileX, int tileY ) {
+        try {
+            ISpatialDatabaseHandler currentHandler = acquire();
+            try {
+                return currentHandler.mayHaveRasterTile(table, zoom, tileX, tileY);
+            } finally {
+                release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    public GeometryIterator getGeometryIteratorInBounds( String destSrid, SpatialVectorTable table, double n, double s, double e,
+            double w ) {
+        try {
+            ISpatialDatabaseHandler currentHandler = acquire();
+            try {
+                return currentHandler.getGeometryIteratorInBounds(destSrid, table, n, s, e, w);
+            } finally {
+                release();
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
+    public GeometryIterator getGeometryIteratorInBounds( String destSrid, SpatialVectorTable table, double n, double s, double e,
+            double w, int zoom ) {
+        try {
+            ISpatialDatabaseHandler currentHandler = acquire();
+            try {
+                return currentHandler.getGeometryIteratorInBounds(destSrid, table, n, s, e, w, zoom);
+            } finally {
+                release();
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
+    public GeometryIterator getFeatureIteratorInBounds( String destSrid, SpatialVectorTable table, double n, double s, double e,
+            double w, int zoom ) {
+        try {
+            ISpatialDatabaseHandler currentHandler = acquire();
+            try {
+                return currentHandler.getFeatureIteratorInBounds(destSrid, table, n, s, e, w, zoom);
+            } finally {
+                release();
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
+    public Paint getStrokePaint4Style( Style style ) {
+        try {
+            ISpatialDatabaseHandler currentHandler = acquire();
+            try {
+                return currentHandler.getStrokePaint4Style(style);
+            } finally {
+                release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public Paint getFillPaint4Style( Style style ) {
+        try {
+            ISpatialDatabaseHandler currentHandler = acquire();
+            try {
+                return currentHandler.getFillPaint4Style(style);
+            } finally {
+                release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public void intersectionToStringBBOX( String boundsSrid, SpatialVectorTable spatialTable, double n, double s, double e,
+            double w, StringBuilder sb, String indentStr ) throws Exception {
+        ISpatialDatabaseHandler currentHandler = acquire();
+        try {
+            currentHandler.intersectionToStringBBOX(boundsSrid, spatialTable, n, s, e, w, sb, indentStr);
+        } finally {
+            release();
+        }
+    }
+
+    public void intersectionToString4Polygon( String boundsSrid, SpatialVectorTable spatialTable, double n, double e,
+            StringBuilder sb, String indentStr ) throws Exception {
+        ISpatialDatabaseHandler currentHandler = acquire();
+        try {
+            currentHandler.intersectionToString4Polygon(boundsSrid, spatialTable, n, e, sb, indentStr);
+        } finally {
+            release();
+        }
+    }
+
+    public synchronized void close() throws Exception {
+        if (handler != null) {
+            handler.close();
+            handler = null;
+        }
+    }
+}
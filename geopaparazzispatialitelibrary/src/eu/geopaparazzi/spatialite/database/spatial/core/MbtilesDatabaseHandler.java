@@ -20,7 +20,9 @@ package eu.geopaparazzi.spatialite.database.spatial.core;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map.Entry;
 
 import jsqlite.Exception;
 import android.graphics.Paint;
@@ -100,18 +102,82 @@ public class MbtilesDatabaseHandler implements ISpatialDatabaseHandler {
     }
 
     public byte[] getRasterTile( String query ) {
-        String[] split = query.split(",");
-        if (split.length != 3) {
+        // "z,x,y", parsed without regex splitting since this runs for every drawn tile
+        int first = query.indexOf(',');
+        int second = query.indexOf(',', first + 1);
+        if (first < 0 || second < 0 || query.indexOf(',', second + 1) >= 0) {
             return null;
         }
-        int z = Integer.parseInt(split[0]);
-        int x = Integer.parseInt(split[1]);
-        int y = Integer.parseInt(split[2]);
+        int z = Integer.parseInt(query.substring(0, first));
+        int x = Integer.parseInt(query.substring(first + 1, second));
+        int y = Integer.parseInt(query.substring(second + 1));
+        return getRasterTile(z, x, y);
+    }
+
+    /**
+     * Get a tile by its google tile coordinates.
+     * 
+     * @param z the zoom level.
+     * @param x the x tile number.
+     * @param y the google y tile number.
+     * @return the image or <code>null</code>.
+     */
+    public byte[] getRasterTile( int z, int x, int y ) {
+        return db.getTileAsBytes(x, tmsRow(y, z), z);
+    }
+
+    public byte[] getRasterTile( SpatialRasterTable table, int zoom, int tileX, int tileY ) {
+        return getRasterTile(zoom, tileX, tileY);
+    }
 
-        int[] tmsTileXY = googleTile2TmsTile(x, y, z);
+    public HashMap<Long, byte[]> getRasterTiles( SpatialRasterTable table, int zoom, int xMin, int xMax, int yMin, int yMax ) {
+        return getRasterTiles(zoom, xMin, xMax, yMin, yMax);
+    }
+
+    public boolean mayHaveRasterTile( SpatialRasterTable table, int zoom, int tileX, int tileY ) {
+        TileIndex tileIndex = db.getTileIndex();
+        if (tileIndex == null) {
+            return true;
+        }
+        return tileIndex.mayContain(zoom, tileX, tmsRow(tileY, zoom));
+    }
 
-        byte[] tileAsBytes = db.getTileAsBytes(String.valueOf(tmsTileXY[0]), String.valueOf(tmsTileXY[1]), split[0]);
-        return tileAsBytes;
+    /**
+     * Forget the indexed tiles, since tiles were written to the file.
+     */
+    public void clearTileIndex() {
+        TileIndex tileIndex = db.getTileIndex();
+        if (tileIndex != null) {
+            tileIndex.clear();
+        }
+    }
+
+    /**
+     * Get the tiles of a range of google tile coordinates with a single query.
+     * 
+     * @param z the zoom level.
+     * @param xMin the first x tile number.
+     * @param xMax the last x tile number.
+     * @param yMin the first google y tile number.
+     * @param yMax the last google y tile number.
+     * @return the images of the existing tiles, by {@link MBTilesDroidSpitter#getTileKey(int, int)}
+     *          of their google tile coordinates.
+     */
+    public HashMap<Long, byte[]> getRasterTiles( int z, int xMin, int xMax, int yMin, int yMax ) {
+        HashMap<Long, byte[]> tmsTiles = db.getTilesAsBytes(z, xMin, xMax, tmsRow(yMax, z), tmsRow(yMin, z));
+        HashMap<Long, byte[]> tiles = new HashMap<Long, byte[]>(tmsTiles.size() * 2);
+        for( Entry<Long, byte[]> entry : tmsTiles.entrySet() ) {
+            long key = entry.getKey();
+            int x = (int) (key >>> 32);
+            int tmsY = (int) key;
+            tiles.put(MBTilesDroidSpitter.getTileKey(x, tmsRow(tmsY, z)), entry.getValue());
+        }
+        return tiles;
+    }
+
+    private static int tmsRow( int y, int zoom ) {
+        // the flip is its own inverse
+        return ((1 << zoom) - 1) - y;
     }
 
     /**
@@ -125,7 +191,7 @@ public class MbtilesDatabaseHandler implements ISpatialDatabaseHandler {
      * @return the converted values.
      */
     public static int[] googleTile2TmsTile( int tx, int ty, int zoom ) {
-        return new int[]{tx, (int) ((Math.pow(2, zoom) - 1) - ty)};
+        return new int[]{tx, tmsRow(ty, zoom)};
     }
 
     public void close() throws Exception {
@@ -142,6 +208,17 @@ public class MbtilesDatabaseHandler implements ISpatialDatabaseHandler {
             double w ) {
         return null;
     }
+
+    public GeometryIterator getGeometryIteratorInBounds( String destSrid, SpatialVectorTable table, double n, double s, double e,
+            double w, int zoom ) {
+        return null;
+    }
+
+    public GeometryIterator getFeatureIteratorInBounds( String destSrid, SpatialVectorTable table, double n, double s, double e,
+            double w, int zoom ) {
+        return null;
+    }
+
     public Paint getFillPaint4Style( Style style ) {
         return null;
     }
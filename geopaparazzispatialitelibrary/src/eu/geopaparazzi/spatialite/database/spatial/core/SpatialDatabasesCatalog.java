@@ -0,0 +1,399 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A catalog of the tables of the spatial databases, persisted between runs.
+ *
+ * <p>Entries are keyed by the path of the database file and are valid as long as
+ * size and modification time of the file don't change, so that unchanged databases
+ * don't need to be opened and queried at startup. Each entry keeps the vector
+ * tables with their styles, the raster tables with zoom levels and center and
+ * the bounds of the vector tables in EPSG:4326, as far as they were read.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class SpatialDatabasesCatalog {
+
+    private static final int VERSION = 1;
+
+    private final File catalogFile;
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private boolean isDirty = false;
+
+    /**
+     * @param catalogFile the file the catalog is persisted in.
+     */
+    public SpatialDatabasesCatalog( File catalogFile ) {
+        this.catalogFile = catalogFile;
+    }
+
+    /**
+     * Load the catalog from its file.
+     *
+     * <p>A missing or unreadable file gives an empty catalog.</p>
+     */
+    public synchronized void load() {
+        entries.clear();
+        isDirty = false;
+        if (!catalogFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(catalogFile)));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int entriesCount = in.readInt();
+            for( int i = 0; i < entriesCount; i++ ) {
+                String path = in.readUTF();
+                Entry entry = new Entry(in.readLong(), in.readLong());
+                if (in.readBoolean()) {
+                    int tablesCount = in.readInt();
+                    entry.vectorTables = new ArrayList<SpatialVectorTable>(tablesCount);
+                    for( int j = 0; j < tablesCount; j++ ) {
+                        entry.vectorTables.add(readVectorTable(in));
+                    }
+                }
+                if (in.readBoolean()) {
+                    int tablesCount = in.readInt();
+                    entry.rasterTables = new ArrayList<SpatialRasterTable>(tablesCount);
+                    for( int j = 0; j < tablesCount; j++ ) {
+                        entry.rasterTables.add(readRasterTable(in));
+                    }
+                }
+                int boundsCount = in.readInt();
+                for( int j = 0; j < boundsCount; j++ ) {
+                    String tableName = in.readUTF();
+                    float[] bounds = new float[4];
+                    for( int k = 0; k < bounds.length; k++ ) {
+                        bounds[k] = in.readFloat();
+                    }
+                    entry.bounds4326.put(tableName, bounds);
+                }
+                entries.put(path, entry);
+            }
+        } catch (java.lang.Exception e) {
+            // a broken catalog is just rebuilt
+            e.printStackTrace();
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the catalog to its file, if it changed.
+     */
+    public synchronized void save() {
+        if (!isDirty) {
+            return;
+        }
+        File tmpFile = new File(catalogFile.getAbsolutePath() + ".tmp"); //$NON-NLS-1$
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for( Map.Entry<String, Entry> mapEntry : entries.entrySet() ) {
+                Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.length);
+                out.writeLong(entry.lastModified);
+                out.writeBoolean(entry.vectorTables != null);
+                if (entry.vectorTables != null) {
+                    out.writeInt(entry.vectorTables.size());
+                    for( SpatialVectorTable table : entry.vectorTables ) {
+                        writeVectorTable(out, table);
+                    }
+                }
+                out.writeBoolean(entry.rasterTables != null);
+                if (entry.rasterTables != null) {
+                    out.writeInt(entry.rasterTables.size());
+                    for( SpatialRasterTable table : entry.rasterTables ) {
+                        writeRasterTable(out, table);
+                    }
+                }
+                out.writeInt(entry.bounds4326.size());
+                for( Map.Entry<String, float[]> boundsEntry : entry.bounds4326.entrySet() ) {
+                    out.writeUTF(boundsEntry.getKey());
+                    for( float value : boundsEntry.getValue() ) {
+                        out.writeFloat(value);
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            if (catalogFile.exists() && !catalogFile.delete()) {
+                throw new IOException("Could not replace the catalog: " + catalogFile); //$NON-NLS-1$
+            }
+            if (!tmpFile.renameTo(catalogFile)) {
+                throw new IOException("Could not write the catalog: " + catalogFile); //$NON-NLS-1$
+            }
+            isDirty = false;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the valid catalog entry of a database.
+     *
+     * @param dbFile the database file.
+     * @return the entry or <code>null</code> if the file is not in the catalog or changed since.
+     */
+    public synchronized Entry get( File dbFile ) {
+        Entry entry = entries.get(dbFile.getAbsolutePath());
+        if (entry != null && entry.length == dbFile.length() && entry.lastModified == dbFile.lastModified()) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Store the tables of a database as just read, with the current size and modification time of the file.
+     *
+     * <p>Lists passed as <code>null</code> are kept from the existing entry if it is still valid.</p>
+     *
+     * @param dbFile the database file.
+     * @param vectorTables the vector tables or <code>null</code>.
+     * @param rasterTables the raster tables or <code>null</code>.
+     */
+    public synchronized void put( File dbFile, List<SpatialVectorTable> vectorTables, List<SpatialRasterTable> rasterTables ) {
+        Entry oldEntry = get(dbFile);
+        Entry entry = new Entry(dbFile.length(), dbFile.lastModified());
+        if (oldEntry != null) {
+            entry.vectorTables = oldEntry.vectorTables;
+            entry.rasterTables = oldEntry.rasterTables;
+            entry.bounds4326.putAll(oldEntry.bounds4326);
+        }
+        if (vectorTables != null)
+            entry.vectorTables = vectorTables;
+        if (rasterTables != null)
+            entry.rasterTables = rasterTables;
+        entries.put(dbFile.getAbsolutePath(), entry);
+        isDirty = true;
+    }
+
+    /**
+     * Take over the current size and modification time of a database after writing to it.
+     *
+     * <p>Only styles are written, which are saved with the tables, so the rest 
+     * of the entry stays valid. To be called only if the entry was valid before the write.</p>
+     *
+     * @param dbFile the database file.
+     */
+    public synchronized void touch( File dbFile ) {
+        Entry oldEntry = entries.get(dbFile.getAbsolutePath());
+        if (oldEntry == null) {
+            return;
+        }
+        Entry entry = new Entry(dbFile.length(), dbFile.lastModified());
+        entry.vectorTables = oldEntry.vectorTables;
+        entry.rasterTables = oldEntry.rasterTables;
+        entry.bounds4326.putAll(oldEntry.bounds4326);
+        entries.put(dbFile.getAbsolutePath(), entry);
+        isDirty = true;
+    }
+
+    /**
+     * Store the bounds of a vector table in EPSG:4326.
+     *
+     * @param dbFile the database file.
+     * @param tableName the name of the table.
+     * @param bounds the bounds as n, s, e, w.
+     */
+    public synchronized void putBounds4326( File dbFile, String tableName, float[] bounds ) {
+        Entry entry = get(dbFile);
+        if (entry == null) {
+            put(dbFile, null, null);
+            entry = entries.get(dbFile.getAbsolutePath());
+        }
+        entry.bounds4326.put(tableName, bounds);
+        isDirty = true;
+    }
+
+    /**
+     * Drop the databases that are no longer there.
+     *
+     * @param dbFiles the current database files.
+     */
+    public synchronized void retainOnly( Collection<File> dbFiles ) {
+        HashMap<String, File> paths = new HashMap<String, File>();
+        for( File dbFile : dbFiles ) {
+            paths.put(dbFile.getAbsolutePath(), dbFile);
+        }
+        Iterator<String> iterator = entries.keySet().iterator();
+        while( iterator.hasNext() ) {
+            if (!paths.containsKey(iterator.next())) {
+                iterator.remove();
+                isDirty = true;
+            }
+        }
+    }
+
+    private static SpatialVectorTable readVectorTable( DataInputStream in ) throws IOException {
+        String name = in.readUTF();
+        String geomName = in.readUTF();
+        int geomType = in.readInt();
+        String srid = in.readUTF();
+        SpatialVectorTable table = new SpatialVectorTable(name, geomName, geomType, srid);
+        Style style = new Style();
+        style.name = readString(in);
+        style.size = in.readFloat();
+        style.fillcolor = readString(in);
+        style.strokecolor = readString(in);
+        style.fillalpha = in.readFloat();
+        style.strokealpha = in.readFloat();
+        style.shape = readString(in);
+        style.width = in.readFloat();
+        style.textsize = in.readFloat();
+        style.decimationFactor = in.readFloat();
+        style.textfield = readString(in);
+        style.enabled = in.readInt();
+        style.order = in.readInt();
+        table.setStyle(style);
+        return table;
+    }
+
+    private static void writeVectorTable( DataOutputStream out, SpatialVectorTable table ) throws IOException {
+        out.writeUTF(table.getName());
+        out.writeUTF(table.getGeomName());
+        out.writeInt(table.getGeomType());
+        out.writeUTF(table.getSrid());
+        Style style = table.getStyle();
+        writeString(out, style.name);
+        out.writeFloat(style.size);
+        writeString(out, style.fillcolor);
+        writeString(out, style.strokecolor);
+        out.writeFloat(style.fillalpha);
+        out.writeFloat(style.strokealpha);
+        writeString(out, style.shape);
+        out.writeFloat(style.width);
+        out.writeFloat(style.textsize);
+        out.writeFloat(style.decimationFactor);
+        writeString(out, style.textfield);
+        out.writeInt(style.enabled);
+        out.writeInt(style.order);
+    }
+
+    private static SpatialRasterTable readRasterTable( DataInputStream in ) throws IOException {
+        String tableName = in.readUTF();
+        String columnName = in.readUTF();
+        String srid = in.readUTF();
+        int minZoom = in.readInt();
+        int maxZoom = in.readInt();
+        double centerX = in.readDouble();
+        double centerY = in.readDouble();
+        String tileQuery = readString(in);
+        return new SpatialRasterTable(tableName, columnName, srid, minZoom, maxZoom, centerX, centerY, tileQuery);
+    }
+
+    private static void writeRasterTable( DataOutputStream out, SpatialRasterTable table ) throws IOException {
+        out.writeUTF(table.getTableName());
+        out.writeUTF(table.getColumnName());
+        out.writeUTF(table.getSrid());
+        out.writeInt(table.getMinZoom());
+        out.writeInt(table.getMaxZoom());
+        out.writeDouble(table.getCenterX());
+        out.writeDouble(table.getCenterY());
+        writeString(out, table.getTileQuery());
+    }
+
+    private static String readString( DataInputStream in ) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+
+    private static void writeString( DataOutputStream out, String string ) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    /**
+     * The catalog entry of a database.
+     */
+    public static class Entry {
+        private final long length;
+        private final long lastModified;
+        private List<SpatialVectorTable> vectorTables;
+        private List<SpatialRasterTable> rasterTables;
+        private final HashMap<String, float[]> bounds4326 = new HashMap<String, float[]>();
+
+        private Entry( long length, long lastModified ) {
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return the vector tables or <code>null</code> if they were never read.
+         */
+        public List<SpatialVectorTable> getVectorTables() {
+            return vectorTables;
+        }
+
+        /**
+         * @return the raster tables or <code>null</code> if they were never read.
+         */
+        public List<SpatialRasterTable> getRasterTables() {
+            return rasterTables;
+        }
+
+        /**
+         * @param tableName the name of the vector table.
+         * @return the bounds in EPSG:4326 as n, s, e, w or <code>null</code> if they were never read.
+         */
+        public float[] getBounds4326( String tableName ) {
+            return bounds4326.get(tableName);
+        }
+    }
+}
@@ -46,7 +46,7 @@ public class SpatialRasterTable {
         if (tileQuery != null) {
             this.tileQuery = tileQuery;
         } else {
-            tileQuery = "select " + columnName + " from " + tableName
+            this.tileQuery = "select " + columnName + " from " + tableName
                     + " where zoom_level = ? AND tile_column = ? AND tile_row = ?";
         }
     }
@@ -0,0 +1,310 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import jsqlite.Database;
+import jsqlite.Exception;
+import jsqlite.Stmt;
+
+/**
+ * A pool of read only connections to a database file.
+ *
+ * <p>Readers borrow a connection, use it and release it, so that
+ * vector rendering, raster tile reads and feature queries on the same
+ * file can run in parallel. Connections are opened lazily, up to the
+ * maximum size of the pool, after which borrowers wait for a connection
+ * to be released. Writes don't go through the pool.</p>
+ *
+ * <p>Each connection keeps its own cache of prepared statements.</p>
+ *
+ * <p>The files are not switched to WAL, so a reader holding its shared lock makes
+ * the commit of the writer busy, as a commit makes the readers busy. Readers and
+ * the writer therefore wait up to {@link #BUSY_TIMEOUT_MILLIS} for the lock instead
+ * of failing at once.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class SpatialiteConnectionPool {
+
+    /**
+     * The maximum time to wait for a connection, after which the borrow fails.
+     */
+    private static final long MAX_WAIT_MILLIS = 10000;
+
+    /**
+     * The time a connection waits for a lock held by another connection to the file.
+     */
+    public static final int BUSY_TIMEOUT_MILLIS = 10000;
+
+    private final String dbPath;
+    private final int maxConnections;
+
+    private final LinkedList<Connection> idleConnections = new LinkedList<Connection>();
+    private final List<Connection> allConnections = new ArrayList<Connection>();
+    private boolean isClosed = false;
+    private int statementsGeneration = 0;
+
+    private long borrowCount = 0;
+    private long waitCount = 0;
+    private long totalWaitMillis = 0;
+    private long maxWaitMillis = 0;
+
+    /**
+     * @param dbPath the path to the database file.
+     * @param maxConnections the maximum number of connections to open.
+     */
+    public SpatialiteConnectionPool( String dbPath, int maxConnections ) {
+        this.dbPath = dbPath;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Borrow a connection, waiting for one to be released if all are in use.
+     *
+     * <p>The connection has to be given back through {@link Connection#release()}.</p>
+     *
+     * @return the connection.
+     * @throws Exception if the pool is closed, the connection can't be opened or the wait times out.
+     */
+    public synchronized Connection borrow() throws Exception {
+        if (isClosed) {
+            throw new Exception("The connection pool is closed: " + dbPath);
+        }
+        borrowCount++;
+        Connection connection = idleConnections.poll();
+        if (connection == null && allConnections.size() < maxConnections) {
+            Database database = new Database();
+            database.open(dbPath, jsqlite.Constants.SQLITE_OPEN_READONLY);
+            database.busy_timeout(BUSY_TIMEOUT_MILLIS);
+            connection = new Connection(database);
+            allConnections.add(connection);
+        }
+        if (connection == null) {
+            // pool saturated
+            waitCount++;
+            long start = System.currentTimeMillis();
+            long waited = 0;
+            while( (connection = idleConnections.poll()) == null ) {
+                if (isClosed) {
+                    throw new Exception("The connection pool is closed: " + dbPath);
+                }
+                if (waited >= MAX_WAIT_MILLIS) {
+                    throw new Exception("Timeout waiting for a connection to: " + dbPath);
+                }
+                try {
+                    wait(MAX_WAIT_MILLIS - waited);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new Exception("Interrupted waiting for a connection to: " + dbPath);
+                }
+                waited = System.currentTimeMillis() - start;
+            }
+            totalWaitMillis += waited;
+            maxWaitMillis = Math.max(maxWaitMillis, waited);
+        }
+        if (connection.statementsGeneration != statementsGeneration) {
+            connection.clearStatements();
+            connection.statementsGeneration = statementsGeneration;
+        }
+        return connection;
+    }
+
+    private synchronized void release( Connection connection ) {
+        if (isClosed) {
+            connection.close();
+            return;
+        }
+        idleConnections.add(connection);
+        notifyAll();
+    }
+
+    /**
+     * Drop the cached statements of all connections, for example after a schema change.
+     *
+     * <p>Connections in use drop them when they are borrowed again.</p>
+     */
+    public synchronized void invalidateStatements() {
+        statementsGeneration++;
+        for( Connection connection : idleConnections ) {
+            connection.clearStatements();
+            connection.statementsGeneration = statementsGeneration;
+        }
+    }
+
+    /**
+     * Close the pool.
+     *
+     * <p>Idle connections are closed immediately, connections in use when released.</p>
+     */
+    public synchronized void close() {
+        isClosed = true;
+        for( Connection connection : idleConnections ) {
+            connection.close();
+        }
+        idleConnections.clear();
+        notifyAll();
+    }
+
+    /**
+     * @return the number of connections opened so far.
+     */
+    public synchronized int getOpenedConnections() {
+        return allConnections.size();
+    }
+
+    /**
+     * @return the number of connections borrowed so far.
+     */
+    public synchronized long getBorrowCount() {
+        return borrowCount;
+    }
+
+    /**
+     * @return the number of borrows that found the pool saturated and had to wait.
+     */
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    /**
+     * @return the total time in milliseconds spent waiting for a connection.
+     */
+    public synchronized long getTotalWaitMillis() {
+        return totalWaitMillis;
+    }
+
+    /**
+     * @return the longest time in milliseconds spent waiting for a connection.
+     */
+    public synchronized long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * @return the number of statement reuses over all connections.
+     */
+    public synchronized long getStatementHits() {
+        long hits = 0;
+        for( Connection connection : allConnections ) {
+            hits += connection.statementHits;
+        }
+        return hits;
+    }
+
+    /**
+     * @return the number of statements prepared over all connections.
+     */
+    public synchronized long getStatementPrepares() {
+        long prepares = 0;
+        for( Connection connection : allConnections ) {
+            prepares += connection.statementPrepares;
+        }
+        return prepares;
+    }
+
+    /**
+     * A pooled read only connection.
+     */
+    public class Connection {
+        private final Database database;
+        private final HashMap<String, Stmt> statements = new HashMap<String, Stmt>();
+        private int statementsGeneration;
+        private long statementHits = 0;
+        private long statementPrepares = 0;
+
+        private Connection( Database database ) {
+            this.database = database;
+            statementsGeneration = SpatialiteConnectionPool.this.statementsGeneration;
+        }
+
+        public Database getDatabase() {
+            return database;
+        }
+
+        /**
+         * Get a cached prepared statement of this connection, preparing it if needed.
+         *
+         * <p>The statement is reset, but keeps its old bindings.</p>
+         *
+         * @param key the unique key of the statement.
+         * @param query the query to prepare if the statement is not cached.
+         * @return the statement.
+         * @throws Exception
+         */
+        public Stmt getStatement( String key, String query ) throws Exception {
+            Stmt stmt = getCachedStatement(key);
+            if (stmt == null) {
+                stmt = database.prepare(query);
+                statements.put(key, stmt);
+                statementPrepares++;
+            }
+            return stmt;
+        }
+
+        /**
+         * Get a cached prepared statement of this connection, if there is one.
+         * 
+         * <p>Allows to build the query only if it has to be prepared, through 
+         * {@link #getStatement(String, String)}.</p>
+         * 
+         * @param key the unique key of the statement.
+         * @return the reset statement or <code>null</code> if it is not cached.
+         * @throws Exception
+         */
+        public Stmt getCachedStatement( String key ) throws Exception {
+            Stmt stmt = statements.get(key);
+            if (stmt != null) {
+                stmt.reset();
+                statementHits++;
+            }
+            return stmt;
+        }
+
+        /**
+         * Give the connection back to the pool.
+         */
+        public void release() {
+            SpatialiteConnectionPool.this.release(this);
+        }
+
+        private void clearStatements() {
+            for( Stmt stmt : statements.values() ) {
+                try {
+                    stmt.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            statements.clear();
+        }
+
+        private void close() {
+            clearStatements();
+            try {
+                database.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
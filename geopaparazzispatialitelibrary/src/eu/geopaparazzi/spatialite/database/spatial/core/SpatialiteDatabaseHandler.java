@@ -21,6 +21,9 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 
 import jsqlite.Database;
@@ -33,7 +36,10 @@ import android.graphics.Paint.Join;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
 
 /**
  * An utility class to handle the spatial database.
@@ -79,7 +85,44 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
 
     private final String PROPERTIESTABLE = "dataproperties";
 
+    private static final String SIMPLIFICATIONTABLE = "simplification_levels";
+    private static final String SIMPL_TABLE_NAME = "table_name";
+    private static final String SIMPL_LEVEL_TABLE_NAME = "level_table_name";
+    private static final String SIMPL_MAX_ZOOM = "max_zoom";
+    private static final String SIMPL_TOLERANCE = "tolerance";
+    private static final String SIMPL_PK = "PK_UID";
+
+    /**
+     * The highest zoom level of each simplification level, from the most simplified.
+     */
+    public static final int[] SIMPLIFICATION_MAX_ZOOMS = {8, 11, 14};
+
+    private static final String REPROJECTEDTABLE = "reprojected_tables";
+    private static final String REPR_TABLE_NAME = "table_name";
+    private static final String REPR_SHADOW_TABLE_NAME = "shadow_table_name";
+    private static final String REPR_SRID = "srid";
+    private static final String REPR_SOURCE_SIGNATURE = "source_signature";
+
+    /**
+     * The number of rows copied per transaction into a reprojected or simplified table.
+     */
+    private static final int REPROJECTION_BATCH_ROWS = 1000;
+
+    /**
+     * Meters per degree at the equator, used if the table units can't be derived from its bounds.
+     */
+    private static final double METERS_PER_DEGREE = 111319.49;
+
+    /**
+     * The maximum number of read only connections per database.
+     */
+    private static final int MAX_READ_CONNECTIONS = 3;
+
+    /*
+     * the writer connection, also used for metadata reads
+     */
     private Database db;
+    private SpatialiteConnectionPool readPool;
 
     private HashMap<String, Paint> fillPaints = new HashMap<String, Paint>();
     private HashMap<String, Paint> strokePaints = new HashMap<String, Paint>();
@@ -87,6 +130,51 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
     private List<SpatialVectorTable> vectorTableList;
     private List<SpatialRasterTable> rasterTableList;
     private String fileName;
+    private String databasePath;
+    private boolean isClosed = false;
+
+    /*
+     * simplified copies of the tables, sorted by max zoom
+     */
+    private final HashMap<String, List<SimplificationLevel>> simplificationLevels = new HashMap<String, List<SimplificationLevel>>();
+    /*
+     * simplified copies being built, not to be listed as tables
+     */
+    private final HashSet<String> pendingLevelTableNames = new HashSet<String>();
+
+    /*
+     * copies of the tables reprojected to the drawing srid, keyed by table name and srid
+     */
+    private final HashMap<String, String> reprojectedTableNames = new HashMap<String, String>();
+    private final HashMap<String, SpatialVectorTable> reprojectedTables = new HashMap<String, SpatialVectorTable>();
+    private final HashSet<String> reprojectionFailures = new HashSet<String>();
+    private boolean reprojectionCacheEnabled = false;
+    /*
+     * copies waiting to be built, and the thread building them
+     */
+    private final LinkedList<ReprojectionJob> pendingReprojections = new LinkedList<ReprojectionJob>();
+    private final HashSet<String> pendingReprojectionKeys = new HashSet<String>();
+    private Thread reprojectionBuilder;
+
+    /**
+     * A reprojected copy to build.
+     */
+    private static class ReprojectionJob {
+        final String key;
+        final SpatialVectorTable table;
+        final String destSrid;
+
+        ReprojectionJob( String key, SpatialVectorTable table, String destSrid ) {
+            this.key = key;
+            this.table = table;
+            this.destSrid = destSrid;
+        }
+    }
+
+    /*
+     * readers of the raster tables, by table name
+     */
+    private final HashMap<String, GeopackageRasterReader> rasterReaders = new HashMap<String, GeopackageRasterReader>();
 
     public SpatialiteDatabaseHandler( String dbPath ) {
         try {
@@ -97,7 +185,11 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
             db = new jsqlite.Database();
             db.open(spatialDbFile.getAbsolutePath(), jsqlite.Constants.SQLITE_OPEN_READWRITE
                     | jsqlite.Constants.SQLITE_OPEN_CREATE);
+            // the pooled readers may hold the shared lock when writing
+            db.busy_timeout(SpatialiteConnectionPool.BUSY_TIMEOUT_MILLIS);
             fileName = spatialDbFile.getName();
+            databasePath = spatialDbFile.getAbsolutePath();
+            readPool = new SpatialiteConnectionPool(spatialDbFile.getAbsolutePath(), MAX_READ_CONNECTIONS);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -165,9 +257,20 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
     }
 
     @Override
-    public List<SpatialVectorTable> getSpatialVectorTables( boolean forceRead ) throws Exception {
+    public synchronized List<SpatialVectorTable> getSpatialVectorTables( boolean forceRead ) throws Exception {
         if (vectorTableList == null || forceRead) {
+            // tables (and their srids) are read again, cached statements might be stale
+            invalidateBoundsStatements();
             vectorTableList = new ArrayList<SpatialVectorTable>();
+            readSimplificationLevels();
+            HashSet<String> levelTableNames = new HashSet<String>();
+            for( List<SimplificationLevel> levels : simplificationLevels.values() ) {
+                for( SimplificationLevel level : levels ) {
+                    levelTableNames.add(level.tableName);
+                }
+            }
+            levelTableNames.addAll(pendingLevelTableNames);
+            levelTableNames.addAll(readReprojectedTableNames());
 
             StringBuilder sb3 = new StringBuilder();
             sb3.append("select ");
@@ -208,6 +311,10 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
             try {
                 while( stmt.step() ) {
                     String name = stmt.column_string(0);
+                    if (levelTableNames.contains(name)) {
+                        // simplified or reprojected copy of a table, not a layer
+                        continue;
+                    }
                     String geomName = stmt.column_string(1);
 
                     int geomType = 0;
@@ -246,7 +353,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
     }
 
     @Override
-    public List<SpatialRasterTable> getSpatialRasterTables( boolean forceRead ) throws Exception {
+    public synchronized List<SpatialRasterTable> getSpatialRasterTables( boolean forceRead ) throws Exception {
         if (rasterTableList == null || forceRead) {
             rasterTableList = new ArrayList<SpatialRasterTable>();
 
@@ -269,6 +376,16 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
                     if (tableName != null) {
                         int[] zoomLevels = {0, 18};
                         getZoomLevels(tableName, zoomLevels);
+                        try {
+                            // in google zoom levels, which the tile matrix levels might not be
+                            GeopackageRasterReader reader = getRasterReader(tableName, columnName, srid);
+                            if (reader.getMinZoom() >= 0) {
+                                zoomLevels[0] = reader.getMinZoom();
+                                zoomLevels[1] = reader.getMaxZoom();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
 
                         double[] centerCoordinate = {0.0, 0.0};
                         getCenterCoordinate4326(tableName, centerCoordinate);
@@ -494,7 +611,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
         return style;
     }
 
-    public float[] getTableBounds( SpatialVectorTable spatialTable, String destSrid ) throws Exception {
+    public synchronized float[] getTableBounds( SpatialVectorTable spatialTable, String destSrid ) throws Exception {
         boolean doTransform = false;
         if (!spatialTable.getSrid().equals(destSrid)) {
             doTransform = true;
@@ -549,7 +666,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
      * @param style the {@link Style} to set.
      * @throws Exception
      */
-    public void updateStyle( Style style ) throws Exception {
+    public synchronized void updateStyle( Style style ) throws Exception {
         StringBuilder sbIn = new StringBuilder();
         sbIn.append("update ").append(PROPERTIESTABLE);
         sbIn.append(" set ");
@@ -574,10 +691,12 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
 
         String updateQuery = sbIn.toString();
         db.exec(updateQuery, null);
+
+        invalidateBoundsStatements();
     }
 
     @Override
-    public Paint getFillPaint4Style( Style style ) {
+    public synchronized Paint getFillPaint4Style( Style style ) {
         Paint paint = fillPaints.get(style.name);
         if (paint == null) {
             paint = new Paint();
@@ -592,7 +711,7 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
     }
 
     @Override
-    public Paint getStrokePaint4Style( Style style ) {
+    public synchronized Paint getStrokePaint4Style( Style style ) {
         Paint paint = strokePaints.get(style.name);
         if (paint == null) {
             paint = new Paint();
@@ -611,15 +730,19 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
 
     public List<byte[]> getWKBFromTableInBounds( String destSrid, SpatialVectorTable table, double n, double s, double e, double w ) {
         List<byte[]> list = new ArrayList<byte[]>();
-        String query = buildGeometriesInBoundsQuery(destSrid, table, n, s, e, w);
         try {
-            Stmt stmt = db.prepare(query);
+            SpatialiteConnectionPool.Connection connection = readPool.borrow();
             try {
-                while( stmt.step() ) {
-                    list.add(stmt.column_bytes(0));
+                Stmt stmt = getBoundsStatement(connection, destSrid, table, n, s, e, w);
+                try {
+                    while( stmt.step() ) {
+                        list.add(stmt.column_bytes(0));
+                    }
+                } finally {
+                    stmt.reset();
                 }
             } finally {
-                stmt.close();
+                connection.release();
             }
             return list;
         } catch (Exception ex) {
@@ -631,14 +754,19 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
     @Override
     public byte[] getRasterTile( String query ) {
         try {
-            Stmt stmt = db.prepare(query);
+            SpatialiteConnectionPool.Connection connection = readPool.borrow();
             try {
-                if (stmt.step()) {
-                    byte[] bytes = stmt.column_bytes(0);
-                    return bytes;
+                Stmt stmt = connection.getDatabase().prepare(query);
+                try {
+                    if (stmt.step()) {
+                        byte[] bytes = stmt.column_bytes(0);
+                        return bytes;
+                    }
+                } finally {
+                    stmt.close();
                 }
             } finally {
-                stmt.close();
+                connection.release();
             }
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -646,14 +774,942 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
         return null;
     }
 
+    /**
+     * Get the reader of a raster table, reading its tile matrix metadata at the first access.
+     * 
+     * @param tableName the name of the raster table.
+     * @param columnName the column of the tile images.
+     * @param srid the srid of the table.
+     * @return the reader.
+     * @throws Exception
+     */
+    private GeopackageRasterReader getRasterReader( String tableName, String columnName, String srid ) throws Exception {
+        synchronized (rasterReaders) {
+            GeopackageRasterReader reader = rasterReaders.get(tableName);
+            if (reader == null) {
+                reader = new GeopackageRasterReader(readPool, tableName, columnName, srid);
+                rasterReaders.put(tableName, reader);
+            }
+            return reader;
+        }
+    }
+
+    @Override
+    public boolean mayHaveRasterTile( SpatialRasterTable table, int zoom, int tileX, int tileY ) {
+        try {
+            return getRasterReader(table.getTableName(), table.getColumnName(), table.getSrid()).mayHaveTile(zoom, tileX, tileY);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    @Override
+    public byte[] getRasterTile( SpatialRasterTable table, int zoom, int tileX, int tileY ) {
+        try {
+            return getRasterReader(table.getTableName(), table.getColumnName(), table.getSrid()).getTile(zoom, tileX, tileY);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    @Override
+    public HashMap<Long, byte[]> getRasterTiles( SpatialRasterTable table, int zoom, int xMin, int xMax, int yMin, int yMax ) {
+        try {
+            return getRasterReader(table.getTableName(), table.getColumnName(), table.getSrid()).getTiles(zoom, xMin, xMax,
+                    yMin, yMax);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return new HashMap<Long, byte[]>();
+    }
+
     @Override
     public GeometryIterator getGeometryIteratorInBounds( String destSrid, SpatialVectorTable table, double n, double s, double e,
             double w ) {
-        String query = buildGeometriesInBoundsQuery(destSrid, table, n, s, e, w);
-        return new GeometryIterator(db, query);
+        table = getReprojectedTable(destSrid, table);
+        SpatialiteConnectionPool.Connection connection;
+        try {
+            connection = readPool.borrow();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return null;
+        }
+        try {
+            Stmt stmt = getBoundsStatement(connection, destSrid, table, n, s, e, w);
+            return new GeometryIterator(stmt, false, connection);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        try {
+            String query = buildGeometriesInBoundsQuery(destSrid, table, n, s, e, w);
+            Stmt stmt = connection.getDatabase().prepare(query);
+            return new GeometryIterator(stmt, true, connection);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            connection.release();
+        }
+        return null;
+    }
+
+    /**
+     * Get the {@link GeometryIterator} of a table in a given bound, reading
+     * from the simplified copy of the table that suits the zoom level, if there is one.
+     * 
+     * @param destSrid the srid to which to transform to.
+     * @param table the table to use.
+     * @param n north bound.
+     * @param s south bound.
+     * @param e east bound.
+     * @param w west bound.
+     * @param zoom the zoom level the geometries are drawn at.
+     * @return the geometries iterator.
+     */
+    @Override
+    public GeometryIterator getGeometryIteratorInBounds( String destSrid, SpatialVectorTable table, double n, double s, double e,
+            double w, int zoom ) {
+        return getGeometryIteratorInBounds(destSrid, getLevelTable(table, zoom), n, s, e, w);
+    }
+
+    /**
+     * Get the features of a table in a given bound, for drawing at a given zoom level.
+     * 
+     * <p>Next to the WKB geometry, the iterator gives the ROWID and the 
+     * envelope of each feature, see {@link GeometryIterator#getRowId()}.</p>
+     * 
+     * @param destSrid the srid to which to transform to.
+     * @param table the table to use.
+     * @param n north bound.
+     * @param s south bound.
+     * @param e east bound.
+     * @param w west bound.
+     * @param zoom the zoom level the geometries are drawn at.
+     * @return the features iterator.
+     */
+    @Override
+    public GeometryIterator getFeatureIteratorInBounds( String destSrid, SpatialVectorTable table, double n, double s, double e,
+            double w, int zoom ) {
+        SpatialVectorTable drawTable = getReprojectedTable(destSrid, getLevelTable(table, zoom));
+        try {
+            SpatialiteConnectionPool.Connection connection = readPool.borrow();
+            try {
+                Stmt stmt = getBoundsStatement(connection, destSrid, drawTable, n, s, e, w, true);
+                return new GeometryIterator(stmt, false, connection);
+            } catch (Exception ex) {
+                connection.release();
+                throw ex;
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Get the simplified copy of a table that suits a zoom level.
+     * 
+     * @return the simplified copy or the table itself, if there is none.
+     */
+    private synchronized SpatialVectorTable getLevelTable( SpatialVectorTable table, int zoom ) {
+        List<SimplificationLevel> levels = simplificationLevels.get(table.getName());
+        if (levels != null) {
+            for( SimplificationLevel level : levels ) {
+                if (zoom <= level.maxZoom) {
+                    if (level.table == null) {
+                        level.table = new SpatialVectorTable(level.tableName, table.getGeomName(), table.getGeomType(),
+                                table.getSrid());
+                    }
+                    return level.table;
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Create the simplified copies of a table, one for each of the {@link #SIMPLIFICATION_MAX_ZOOMS}.
+     * 
+     * <p>Each copy is simplified with a tolerance of half a pixel at its highest 
+     * zoom level and gets its own spatial index. Existing copies are replaced.
+     * Point tables are not simplified.</p>
+     * 
+     * <p>Like the reprojected copies, the copies are built on a connection of their own,
+     * in small transactions and without locking the handler, so that the tables can be 
+     * drawn meanwhile. The existing copies are used until the new ones are complete, 
+     * and only then dropped.</p>
+     * 
+     * @param spatialTable the table to simplify.
+     * @throws Exception
+     */
+    public void createSimplificationPyramid( SpatialVectorTable spatialTable ) throws Exception {
+        if (spatialTable.isPoint()) {
+            return;
+        }
+        double unitsPerDegree = getUnitsPerDegree(spatialTable);
+        String geomName = spatialTable.getGeomName();
+
+        List<SimplificationLevel> newLevels = new ArrayList<SimplificationLevel>();
+        List<String> oldLevelTableNames = new ArrayList<String>();
+        Database buildDb = new Database();
+        buildDb.open(databasePath, jsqlite.Constants.SQLITE_OPEN_READWRITE);
+        buildDb.busy_timeout(SpatialiteConnectionPool.BUSY_TIMEOUT_MILLIS);
+        try {
+            checkSimplificationTable(buildDb);
+            long maxRowId = getSourceStats(buildDb, spatialTable.getName())[1];
+            boolean ok = false;
+            try {
+                for( int maxZoom : SIMPLIFICATION_MAX_ZOOMS ) {
+                    double tolerance = unitsPerDegree * 360.0 / (256L << maxZoom) / 2.0;
+                    // next to the copy in use, if any
+                    String baseName = spatialTable.getName() + "_simpl" + maxZoom;
+                    String levelTableName = baseName;
+                    for( int i = 1; tableExists(buildDb, levelTableName); i++ ) {
+                        levelTableName = baseName + "_" + i;
+                    }
+                    SimplificationLevel level = new SimplificationLevel(levelTableName, maxZoom);
+                    level.tolerance = tolerance;
+                    newLevels.add(level);
+                    synchronized (this) {
+                        pendingLevelTableNames.add(levelTableName);
+                    }
+                    if (!createSimplifiedTable(buildDb, spatialTable, level, maxRowId)) {
+                        // closed meanwhile
+                        return;
+                    }
+                }
+
+                buildDb.exec("BEGIN;", null);
+                boolean committed = false;
+                try {
+                    Stmt stmt = buildDb.prepare("select " + SIMPL_LEVEL_TABLE_NAME + " from " + SIMPLIFICATIONTABLE + " where "
+                            + SIMPL_TABLE_NAME + "='" + spatialTable.getName() + "';");
+                    try {
+                        while( stmt.step() ) {
+                            oldLevelTableNames.add(stmt.column_string(0));
+                        }
+                    } finally {
+                        stmt.close();
+                    }
+                    buildDb.exec("delete from " + SIMPLIFICATIONTABLE + " where " + SIMPL_TABLE_NAME + "='"
+                            + spatialTable.getName() + "';", null);
+                    for( SimplificationLevel level : newLevels ) {
+                        StringBuilder sbIn = new StringBuilder();
+                        sbIn.append("insert into ").append(SIMPLIFICATIONTABLE);
+                        sbIn.append(" ( ");
+                        sbIn.append(SIMPL_TABLE_NAME).append(" , ");
+                        sbIn.append(SIMPL_LEVEL_TABLE_NAME).append(" , ");
+                        sbIn.append(SIMPL_MAX_ZOOM).append(" , ");
+                        sbIn.append(SIMPL_TOLERANCE);
+                        sbIn.append(" ) values ( '");
+                        sbIn.append(spatialTable.getName()).append("', '");
+                        sbIn.append(level.tableName).append("', ");
+                        sbIn.append(level.maxZoom).append(", ");
+                        sbIn.append(level.tolerance);
+                        sbIn.append(" );");
+                        buildDb.exec(sbIn.toString(), null);
+                    }
+                    committed = true;
+                } finally {
+                    buildDb.exec(committed ? "COMMIT;" : "ROLLBACK;", null);
+                }
+                ok = true;
+            } finally {
+                if (!ok) {
+                    // the old copies are still registered and in use
+                    for( SimplificationLevel level : newLevels ) {
+                        try {
+                            dropSpatialTable(buildDb, level.tableName, geomName);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+
+            synchronized (this) {
+                if (!isClosed) {
+                    invalidateBoundsStatements();
+                    simplificationLevels.put(spatialTable.getName(), newLevels);
+                }
+            }
+            for( String oldLevelTableName : oldLevelTableNames ) {
+                synchronized (this) {
+                    if (!isClosed) {
+                        dropReprojectedTables(oldLevelTableName);
+                    }
+                }
+                dropSpatialTable(buildDb, oldLevelTableName, geomName);
+            }
+        } finally {
+            buildDb.close();
+            synchronized (this) {
+                for( SimplificationLevel level : newLevels ) {
+                    pendingLevelTableNames.remove(level.tableName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create and fill the simplified copy of a table for a simplification level.
+     * 
+     * @param buildDb the connection to build on.
+     * @param spatialTable the table to simplify.
+     * @param level the level to build.
+     * @param maxRowId the highest rowid of the table.
+     * @return <code>false</code> if the handler was closed meanwhile.
+     * @throws Exception
+     */
+    private boolean createSimplifiedTable( Database buildDb, SpatialVectorTable spatialTable, SimplificationLevel level,
+            long maxRowId ) throws Exception {
+        String geomName = spatialTable.getGeomName();
+        String srid = spatialTable.getSrid();
+        String geomTypeName = GeometryType.forValue(spatialTable.getGeomType()).name();
+        geomTypeName = geomTypeName.substring(0, geomTypeName.lastIndexOf('_'));
+
+        buildDb.exec("BEGIN;", null);
+        boolean ok = false;
+        try {
+            buildDb.exec("CREATE TABLE " + level.tableName + " (" + SIMPL_PK + " INTEGER PRIMARY KEY);", null);
+            execSelect(buildDb, "SELECT AddGeometryColumn('" + level.tableName + "', '" + geomName + "', " + srid + ", '"
+                    + geomTypeName + "', 'XY');");
+            ok = true;
+        } finally {
+            buildDb.exec(ok ? "COMMIT;" : "ROLLBACK;", null);
+        }
+
+        WKBReader wkbReader = new WKBReader();
+        WKBWriter wkbWriter = new WKBWriter();
+        Stmt insertStmt = buildDb.prepare("INSERT INTO " + level.tableName + " (" + SIMPL_PK + ", " + geomName
+                + ") VALUES (?, CastToXY(GeomFromWKB(?, " + srid + ")));");
+        Stmt selectStmt = buildDb.prepare("SELECT ROWID, ST_AsBinary(CastToXY(" + geomName + ")) FROM " + spatialTable.getName()
+                + " WHERE ROWID > ? AND ROWID <= ? AND " + geomName + " IS NOT NULL;");
+        try {
+            for( long from = 0; from < maxRowId; from += REPROJECTION_BATCH_ROWS ) {
+                synchronized (this) {
+                    if (isClosed) {
+                        return false;
+                    }
+                }
+                selectStmt.reset();
+                selectStmt.bind(1, from);
+                selectStmt.bind(2, from + REPROJECTION_BATCH_ROWS);
+                buildDb.exec("BEGIN;", null);
+                ok = false;
+                try {
+                    while( selectStmt.step() ) {
+                        Geometry geometry = wkbReader.read(selectStmt.column_bytes(1));
+                        Geometry simplified = TopologyPreservingSimplifier.simplify(geometry, level.tolerance);
+                        if (simplified.isEmpty()) {
+                            continue;
+                        }
+                        insertStmt.reset();
+                        insertStmt.bind(1, selectStmt.column_long(0));
+                        insertStmt.bind(2, wkbWriter.write(simplified));
+                        insertStmt.step();
+                    }
+                    ok = true;
+                } catch (ParseException e) {
+                    throw new Exception(e.getLocalizedMessage());
+                } finally {
+                    buildDb.exec(ok ? "COMMIT;" : "ROLLBACK;", null);
+                }
+            }
+        } finally {
+            selectStmt.close();
+            insertStmt.close();
+        }
+
+        execSelect(buildDb, "SELECT CreateSpatialIndex('" + level.tableName + "', '" + geomName + "');");
+        return true;
+    }
+
+    /**
+     * Remove the simplified copies of a table.
+     * 
+     * @param spatialTable the table.
+     * @throws Exception
+     */
+    public synchronized void dropSimplificationPyramid( SpatialVectorTable spatialTable ) throws Exception {
+        List<SimplificationLevel> levels = simplificationLevels.remove(spatialTable.getName());
+        if (levels == null) {
+            return;
+        }
+        for( SimplificationLevel level : levels ) {
+            dropReprojectedTables(level.tableName);
+            dropSpatialTable(level.tableName, spatialTable.getGeomName());
+        }
+        db.exec("delete from " + SIMPLIFICATIONTABLE + " where " + SIMPL_TABLE_NAME + "='" + spatialTable.getName() + "';", null);
+    }
+
+    /**
+     * Read the available simplification levels, if any.
+     * 
+     * @throws Exception
+     */
+    private void readSimplificationLevels() throws Exception {
+        simplificationLevels.clear();
+        if (!tableExists(SIMPLIFICATIONTABLE)) {
+            return;
+        }
+
+        StringBuilder sbSel = new StringBuilder();
+        sbSel.append("select ");
+        sbSel.append(SIMPL_TABLE_NAME).append(" , ");
+        sbSel.append(SIMPL_LEVEL_TABLE_NAME).append(" , ");
+        sbSel.append(SIMPL_MAX_ZOOM);
+        sbSel.append(" from ");
+        sbSel.append(SIMPLIFICATIONTABLE);
+        sbSel.append(" order by ");
+        sbSel.append(SIMPL_MAX_ZOOM);
+        sbSel.append(";");
+        Stmt stmt = db.prepare(sbSel.toString());
+        try {
+            while( stmt.step() ) {
+                String tableName = stmt.column_string(0);
+                String levelTableName = stmt.column_string(1);
+                int maxZoom = stmt.column_int(2);
+
+                List<SimplificationLevel> levels = simplificationLevels.get(tableName);
+                if (levels == null) {
+                    levels = new ArrayList<SimplificationLevel>();
+                    simplificationLevels.put(tableName, levels);
+                }
+                levels.add(new SimplificationLevel(levelTableName, maxZoom));
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Create the simplification levels table, if it doesn't exist.
+     * 
+     * @throws Exception
+     */
+    private static void checkSimplificationTable( Database database ) throws Exception {
+        if (tableExists(database, SIMPLIFICATIONTABLE)) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("CREATE TABLE ");
+        sb.append(SIMPLIFICATIONTABLE);
+        sb.append(" (");
+        sb.append(SIMPL_TABLE_NAME).append(" TEXT, ");
+        sb.append(SIMPL_LEVEL_TABLE_NAME).append(" TEXT, ");
+        sb.append(SIMPL_MAX_ZOOM).append(" INTEGER, ");
+        sb.append(SIMPL_TOLERANCE).append(" REAL");
+        sb.append(" );");
+        database.exec(sb.toString(), null);
+    }
+
+    /**
+     * Get the number of table units in a degree, by comparing the bounds in the table srid and in 4326.
+     */
+    private double getUnitsPerDegree( SpatialVectorTable spatialTable ) throws Exception {
+        if (spatialTable.getSrid().equals("4326")) {
+            return 1.0;
+        }
+        float[] nativeBounds = getTableBounds(spatialTable, spatialTable.getSrid());
+        float[] degreeBounds = getTableBounds(spatialTable, "4326");
+        if (nativeBounds != null && degreeBounds != null) {
+            double nativeWidth = nativeBounds[2] - nativeBounds[3];
+            double degreeWidth = degreeBounds[2] - degreeBounds[3];
+            if (nativeWidth > 0 && degreeWidth > 0) {
+                return nativeWidth / degreeWidth;
+            }
+        }
+        return METERS_PER_DEGREE;
+    }
+
+    private boolean tableExists( String tableName ) throws Exception {
+        return tableExists(db, tableName);
+    }
+
+    private static boolean tableExists( Database database, String tableName ) throws Exception {
+        String checkTableQuery = "SELECT name FROM sqlite_master WHERE type='table' AND name='" + tableName + "';";
+        Stmt stmt = database.prepare(checkTableQuery);
+        try {
+            if (stmt.step()) {
+                return stmt.column_string(0) != null;
+            }
+        } finally {
+            stmt.close();
+        }
+        return false;
+    }
+
+    /**
+     * Enable the lazy creation of reprojected copies of the tables.
+     * 
+     * <p>When enabled, the first time a table is drawn in an srid different from
+     * its own, a copy of the table in the drawing srid, with its own spatial index,
+     * is built in the background. Until it is ready the geometries are transformed
+     * on every read as before, then the copy is used instead.</p>
+     * 
+     * <p>A copy is dropped when the database is opened and the row count or the
+     * highest rowid of its table changed, and built again when next drawn.</p>
+     * 
+     * @param reprojectionCacheEnabled if <code>true</code>, reprojected copies are created and used.
+     */
+    public void setReprojectionCacheEnabled( boolean reprojectionCacheEnabled ) {
+        this.reprojectionCacheEnabled = reprojectionCacheEnabled;
+    }
+
+    /**
+     * Get the table to read from to get the geometries of a table in a given srid.
+     * 
+     * <p>Never blocks on the creation of a copy, which is only scheduled.</p>
+     * 
+     * @param destSrid the srid the geometries are needed in.
+     * @param table the table.
+     * @return the reprojected copy of the table if available, else the table itself.
+     */
+    private synchronized SpatialVectorTable getReprojectedTable( String destSrid, SpatialVectorTable table ) {
+        if (table.getSrid().equals(destSrid)) {
+            return table;
+        }
+        String key = table.getName() + ">" + destSrid;
+        SpatialVectorTable reprojectedTable = reprojectedTables.get(key);
+        if (reprojectedTable != null) {
+            return reprojectedTable;
+        }
+        String shadowTableName = reprojectedTableNames.get(key);
+        if (shadowTableName != null) {
+            // copies are always XY
+            reprojectedTable = new SpatialVectorTable(shadowTableName, table.getGeomName(), table.getGeomType() % 1000, destSrid);
+            reprojectedTables.put(key, reprojectedTable);
+            return reprojectedTable;
+        }
+        if (reprojectionCacheEnabled && !isClosed && !reprojectionFailures.contains(key)
+                && pendingReprojectionKeys.add(key)) {
+            pendingReprojections.add(new ReprojectionJob(key, table, destSrid));
+            if (reprojectionBuilder == null) {
+                reprojectionBuilder = new Thread(new Runnable(){
+                    public void run() {
+                        buildReprojectedTables();
+                    }
+                }, "SpatialiteReprojection-" + fileName);
+                reprojectionBuilder.setPriority(Thread.MIN_PRIORITY);
+                reprojectionBuilder.start();
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Build the pending reprojected copies, on the builder thread.
+     */
+    private void buildReprojectedTables() {
+        while( true ) {
+            ReprojectionJob job;
+            synchronized (this) {
+                job = isClosed ? null : pendingReprojections.poll();
+                if (job == null) {
+                    pendingReprojections.clear();
+                    pendingReprojectionKeys.clear();
+                    reprojectionBuilder = null;
+                    return;
+                }
+            }
+            try {
+                SpatialVectorTable reprojectedTable = createReprojectedTable(job.table, job.destSrid);
+                synchronized (this) {
+                    pendingReprojectionKeys.remove(job.key);
+                    if (reprojectedTable != null) {
+                        reprojectedTableNames.put(job.key, reprojectedTable.getName());
+                        reprojectedTables.put(job.key, reprojectedTable);
+                    }
+                }
+            } catch (java.lang.Exception e) {
+                synchronized (this) {
+                    pendingReprojectionKeys.remove(job.key);
+                    // don't try again for every frame
+                    reprojectionFailures.add(job.key);
+                }
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Create a copy of a table with the geometries transformed to a given srid.
+     * 
+     * <p>Runs on a connection of its own, copying the rows in small transactions so that
+     * the readers and the writer of the handler are not locked out for the whole copy.
+     * The copy is registered without source signature until it is complete, so that an
+     * interrupted copy is dropped at the next open.</p>
+     * 
+     * @param table the table to copy.
+     * @param destSrid the srid of the copy.
+     * @return the copy or <code>null</code> if the handler was closed meanwhile.
+     * @throws Exception
+     */
+    private SpatialVectorTable createReprojectedTable( SpatialVectorTable table, String destSrid ) throws Exception {
+        String shadowTableName = table.getName() + "_" + destSrid;
+        String geomName = table.getGeomName();
+        int xyType = table.getGeomType() % 1000;
+        String geomTypeName = GeometryType.forValue(xyType).name();
+        geomTypeName = geomTypeName.substring(0, geomTypeName.lastIndexOf('_'));
+
+        Database buildDb = new Database();
+        buildDb.open(databasePath, jsqlite.Constants.SQLITE_OPEN_READWRITE);
+        buildDb.busy_timeout(SpatialiteConnectionPool.BUSY_TIMEOUT_MILLIS);
+        try {
+            long[] sourceStats = getSourceStats(buildDb, table.getName());
+            String signature = sourceStats[0] + ":" + sourceStats[1];
+
+            buildDb.exec("BEGIN;", null);
+            boolean ok = false;
+            try {
+                checkReprojectedTable(buildDb);
+                buildDb.exec("delete from " + REPROJECTEDTABLE + " where " + REPR_SHADOW_TABLE_NAME + "='" + shadowTableName
+                        + "';", null);
+                dropSpatialTable(buildDb, shadowTableName, geomName);
+                buildDb.exec("CREATE TABLE " + shadowTableName + " (" + SIMPL_PK + " INTEGER PRIMARY KEY);", null);
+                execSelect(buildDb, "SELECT AddGeometryColumn('" + shadowTableName + "', '" + geomName + "', " + destSrid
+                        + ", '" + geomTypeName + "', 'XY');");
+
+                StringBuilder sbIn = new StringBuilder();
+                sbIn.append("insert into ").append(REPROJECTEDTABLE);
+                sbIn.append(" ( ");
+                sbIn.append(REPR_TABLE_NAME).append(" , ");
+                sbIn.append(REPR_SHADOW_TABLE_NAME).append(" , ");
+                sbIn.append(REPR_SRID);
+                sbIn.append(" ) values ( '");
+                sbIn.append(table.getName()).append("', '");
+                sbIn.append(shadowTableName).append("', ");
+                sbIn.append(destSrid);
+                sbIn.append(" );");
+                buildDb.exec(sbIn.toString(), null);
+                ok = true;
+            } finally {
+                buildDb.exec(ok ? "COMMIT;" : "ROLLBACK;", null);
+            }
+
+            long maxRowId = sourceStats[1];
+            for( long from = 0; from < maxRowId; from += REPROJECTION_BATCH_ROWS ) {
+                synchronized (this) {
+                    if (isClosed) {
+                        return null;
+                    }
+                }
+                buildDb.exec("INSERT INTO " + shadowTableName + " (" + SIMPL_PK + ", " + geomName
+                        + ") SELECT ROWID, CastToXY(ST_Transform(" + geomName + ", " + destSrid + ")) FROM " + table.getName()
+                        + " WHERE ROWID > " + from + " AND ROWID <= " + (from + REPROJECTION_BATCH_ROWS) + " AND " + geomName
+                        + " IS NOT NULL;", null);
+            }
+
+            buildDb.exec("BEGIN;", null);
+            ok = false;
+            try {
+                execSelect(buildDb, "SELECT CreateSpatialIndex('" + shadowTableName + "', '" + geomName + "');");
+                buildDb.exec("update " + REPROJECTEDTABLE + " set " + REPR_SOURCE_SIGNATURE + "='" + signature + "' where "
+                        + REPR_SHADOW_TABLE_NAME + "='" + shadowTableName + "';", null);
+                ok = true;
+            } finally {
+                buildDb.exec(ok ? "COMMIT;" : "ROLLBACK;", null);
+            }
+        } finally {
+            buildDb.close();
+        }
+        return new SpatialVectorTable(shadowTableName, geomName, xyType, destSrid);
+    }
+
+    /**
+     * @return the row count and the highest rowid of a table, which change with its data.
+     */
+    private static long[] getSourceStats( Database database, String tableName ) throws Exception {
+        Stmt stmt = database.prepare("select count(*), max(ROWID) from " + tableName + ";");
+        try {
+            if (stmt.step()) {
+                return new long[]{stmt.column_long(0), stmt.column_long(1)};
+            }
+        } finally {
+            stmt.close();
+        }
+        return new long[]{0, 0};
+    }
+
+    /**
+     * Remove the reprojected copies of a table, for example because its data changed.
+     * 
+     * @param tableName the name of the table.
+     * @throws Exception
+     */
+    public synchronized void dropReprojectedTables( String tableName ) throws Exception {
+        if (!tableExists(REPROJECTEDTABLE)) {
+            return;
+        }
+        List<String> shadowTableNames = new ArrayList<String>();
+        Stmt stmt = db.prepare("select " + REPR_SHADOW_TABLE_NAME + " from " + REPROJECTEDTABLE + " where " + REPR_TABLE_NAME
+                + "='" + tableName + "';");
+        try {
+            while( stmt.step() ) {
+                shadowTableNames.add(stmt.column_string(0));
+            }
+        } finally {
+            stmt.close();
+        }
+        for( String shadowTableName : shadowTableNames ) {
+            dropReprojectedTable(shadowTableName);
+        }
+
+        String prefix = tableName + ">";
+        Iterator<String> keysIterator = reprojectedTableNames.keySet().iterator();
+        while( keysIterator.hasNext() ) {
+            String key = keysIterator.next();
+            if (key.startsWith(prefix)) {
+                keysIterator.remove();
+                reprojectedTables.remove(key);
+                reprojectionFailures.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Drop a reprojected copy and its registration.
+     */
+    private void dropReprojectedTable( String shadowTableName ) throws Exception {
+        String geomName = null;
+        Stmt stmt = db.prepare("select " + METADATA_GEOMETRY_COLUMN + " from " + METADATA_TABLE_GEOMETRY_COLUMNS + " where "
+                + METADATA_TABLE_NAME + "='" + shadowTableName + "';");
+        try {
+            if (stmt.step()) {
+                geomName = stmt.column_string(0);
+            }
+        } finally {
+            stmt.close();
+        }
+        invalidateBoundsStatements();
+        dropSpatialTable(db, shadowTableName, geomName);
+        db.exec("delete from " + REPROJECTEDTABLE + " where " + REPR_SHADOW_TABLE_NAME + "='" + shadowTableName + "';", null);
+    }
+
+    /**
+     * Read the names of the reprojected copies of the tables, registering the ones that are
+     * still valid for use.
+     * 
+     * <p>Copies whose table changed since they were built, or that were never completed, are dropped.</p>
+     * 
+     * @return the names of the copies.
+     * @throws Exception
+     */
+    private List<String> readReprojectedTableNames() throws Exception {
+        reprojectedTableNames.clear();
+        reprojectedTables.clear();
+        reprojectionFailures.clear();
+        List<String> shadowTableNames = new ArrayList<String>();
+        if (!tableExists(REPROJECTEDTABLE)) {
+            return shadowTableNames;
+        }
+        checkReprojectedTable(db);
+        List<String> staleTableNames = new ArrayList<String>();
+        HashMap<String, String> sourceSignatures = new HashMap<String, String>();
+        Stmt stmt = db.prepare("select " + REPR_TABLE_NAME + ", " + REPR_SHADOW_TABLE_NAME + ", " + REPR_SRID + ", "
+                + REPR_SOURCE_SIGNATURE + " from " + REPROJECTEDTABLE + ";");
+        try {
+            while( stmt.step() ) {
+                String tableName = stmt.column_string(0);
+                String shadowTableName = stmt.column_string(1);
+                String key = tableName + ">" + stmt.column_int(2);
+                String signature = stmt.column_string(3);
+                shadowTableNames.add(shadowTableName);
+                if (pendingReprojectionKeys.contains(key)) {
+                    // being built
+                    continue;
+                }
+                String sourceSignature = sourceSignatures.get(tableName);
+                if (sourceSignature == null) {
+                    try {
+                        long[] sourceStats = getSourceStats(db, tableName);
+                        sourceSignature = sourceStats[0] + ":" + sourceStats[1];
+                    } catch (Exception e) {
+                        // the table is gone
+                        sourceSignature = "";
+                    }
+                    sourceSignatures.put(tableName, sourceSignature);
+                }
+                if (sourceSignature.equals(signature)) {
+                    reprojectedTableNames.put(key, shadowTableName);
+                } else {
+                    staleTableNames.add(shadowTableName);
+                }
+            }
+        } finally {
+            stmt.close();
+        }
+        for( String staleTableName : staleTableNames ) {
+            try {
+                dropReprojectedTable(staleTableName);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return shadowTableNames;
+    }
+
+    /**
+     * Create the reprojected tables metadata table, if it doesn't exist, or add the source signature to it.
+     * 
+     * @throws Exception
+     */
+    private static void checkReprojectedTable( Database database ) throws Exception {
+        boolean exists = false;
+        boolean hasSignature = false;
+        Stmt stmt = database.prepare("PRAGMA table_info(" + REPROJECTEDTABLE + ");");
+        try {
+            while( stmt.step() ) {
+                exists = true;
+                if (REPR_SOURCE_SIGNATURE.equals(stmt.column_string(1))) {
+                    hasSignature = true;
+                }
+            }
+        } finally {
+            stmt.close();
+        }
+        if (exists) {
+            if (!hasSignature) {
+                // copies made before are dropped as stale
+                database.exec("ALTER TABLE " + REPROJECTEDTABLE + " ADD COLUMN " + REPR_SOURCE_SIGNATURE + " TEXT;", null);
+            }
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("CREATE TABLE ");
+        sb.append(REPROJECTEDTABLE);
+        sb.append(" (");
+        sb.append(REPR_TABLE_NAME).append(" TEXT, ");
+        sb.append(REPR_SHADOW_TABLE_NAME).append(" TEXT, ");
+        sb.append(REPR_SRID).append(" INTEGER, ");
+        sb.append(REPR_SOURCE_SIGNATURE).append(" TEXT");
+        sb.append(" );");
+        database.exec(sb.toString(), null);
+    }
+
+    /**
+     * Drop a table together with its geometry registration and spatial index.
+     */
+    private void dropSpatialTable( String tableName, String geomName ) throws Exception {
+        invalidateBoundsStatements();
+        dropSpatialTable(db, tableName, geomName);
+    }
+
+    private static void dropSpatialTable( Database database, String tableName, String geomName ) throws Exception {
+        if (geomName != null) {
+            execSelect(database, "SELECT DisableSpatialIndex('" + tableName + "', '" + geomName + "');");
+            database.exec("DROP TABLE IF EXISTS idx_" + tableName + "_" + geomName + ";", null);
+            execSelect(database, "SELECT DiscardGeometryColumn('" + tableName + "', '" + geomName + "');");
+        }
+        database.exec("DROP TABLE IF EXISTS " + tableName + ";", null);
+    }
+
+    /**
+     * Execute a select that is run for its side effects, as the spatialite management functions.
+     */
+    private void execSelect( String query ) throws Exception {
+        execSelect(db, query);
+    }
+
+    private static void execSelect( Database database, String query ) throws Exception {
+        Stmt stmt = database.prepare(query);
+        try {
+            stmt.step();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Get the cached bounds statement of a table on a pooled connection, bound to the given bounds.
+     * 
+     * @param connection the borrowed connection.
+     * @param destSrid the srid to which to transform to.
+     * @param table the table to query.
+     * @param n north bound.
+     * @param s south bound.
+     * @param e east bound.
+     * @param w west bound.
+     * @return the statement, ready to be stepped.
+     * @throws Exception
+     */
+    private Stmt getBoundsStatement( SpatialiteConnectionPool.Connection connection, String destSrid, SpatialVectorTable table,
+            double n, double s, double e, double w ) throws Exception {
+        return getBoundsStatement(connection, destSrid, table, n, s, e, w, false);
+    }
+
+    /**
+     * Get the cached bounds statement of a table on a pooled connection, bound to the given bounds.
+     * 
+     * @param withFeatureInfo if <code>true</code>, the statement also selects the ROWID and the envelope 
+     *          of the geometries, see {@link #buildGeometriesInBoundsQuery(String, SpatialVectorTable, String, String, String, String, boolean)}.
+     * @return the statement, ready to be stepped.
+     * @throws Exception
+     */
+    private Stmt getBoundsStatement( SpatialiteConnectionPool.Connection connection, String destSrid, SpatialVectorTable table,
+            double n, double s, double e, double w, boolean withFeatureInfo ) throws Exception {
+        String key = table.getName() + ">" + table.getSrid() + ">" + destSrid;
+        if (withFeatureInfo) {
+            key = key + ">features";
+        }
+        Stmt stmt = connection.getCachedStatement(key);
+        if (stmt == null) {
+            stmt = connection.getStatement(key, buildGeometriesInBoundsQuery(destSrid, table, "?", "?", "?", "?", withFeatureInfo));
+        }
+        // the placeholders of the bounds, used in the intersection and in the spatial index
+        for( int i = 0; i < 2; i++ ) {
+            int offset = i * 4;
+            stmt.bind(offset + 1, w);
+            stmt.bind(offset + 2, n);
+            stmt.bind(offset + 3, e);
+            stmt.bind(offset + 4, s);
+        }
+        return stmt;
+    }
+
+    /**
+     * Drop the cached bounds statements, since a table changed.
+     */
+    private void invalidateBoundsStatements() {
+        if (readPool != null)
+            readPool.invalidateStatements();
+    }
+
+    /**
+     * @return the number of bounds queries that reused a cached statement.
+     */
+    public long getBoundsStatementHits() {
+        return readPool.getStatementHits();
+    }
+
+    /**
+     * @return the number of bounds statements that had to be prepared.
+     */
+    public long getBoundsStatementPrepares() {
+        return readPool.getStatementPrepares();
+    }
+
+    /**
+     * @return the pool of read only connections, to check its usage.
+     */
+    public SpatialiteConnectionPool getReadConnectionPool() {
+        return readPool;
     }
 
     private String buildGeometriesInBoundsQuery( String destSrid, SpatialVectorTable table, double n, double s, double e, double w ) {
+        return buildGeometriesInBoundsQuery(destSrid, table, String.valueOf(n), String.valueOf(s), String.valueOf(e),
+                String.valueOf(w), false);
+    }
+
+    /**
+     * Build the bounds query.
+     * 
+     * @param withFeatureInfo if <code>true</code>, the ROWID and the envelope 
+     *          (minx, miny, maxx, maxy) of the geometries are selected after the geometry.
+     */
+    private String buildGeometriesInBoundsQuery( String destSrid, SpatialVectorTable table, String n, String s, String e,
+            String w, boolean withFeatureInfo ) {
         boolean doTransform = false;
         if (!table.getSrid().equals(destSrid)) {
             doTransform = true;
@@ -679,27 +1735,28 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
         mbrSb.append(")");
         String mbr = mbrSb.toString();
 
-        StringBuilder qSb = new StringBuilder();
-        qSb.append("SELECT ST_AsBinary(CastToXY(");
+        StringBuilder geomSb = new StringBuilder();
         if (doTransform)
-            qSb.append("ST_Transform(");
-        qSb.append(table.getGeomName());
+            geomSb.append("ST_Transform(");
+        geomSb.append(table.getGeomName());
         if (doTransform) {
-            qSb.append(", ");
-            qSb.append(destSrid);
-            qSb.append(")");
+            geomSb.append(", ");
+            geomSb.append(destSrid);
+            geomSb.append(")");
         }
+        String geom = geomSb.toString();
+
+        StringBuilder qSb = new StringBuilder();
+        qSb.append("SELECT ST_AsBinary(CastToXY(");
+        qSb.append(geom);
         qSb.append("))");
-        // qSb.append(", AsText(");
-        // if (doTransform)
-        // qSb.append("ST_Transform(");
-        // qSb.append(table.geomName);
-        // if (doTransform) {
-        // qSb.append(", ");
-        // qSb.append(destSrid);
-        // qSb.append(")");
-        // }
-        // qSb.append(")");
+        if (withFeatureInfo) {
+            qSb.append(", ROWID");
+            qSb.append(", MbrMinX(").append(geom).append(")");
+            qSb.append(", MbrMinY(").append(geom).append(")");
+            qSb.append(", MbrMaxX(").append(geom).append(")");
+            qSb.append(", MbrMaxY(").append(geom).append(")");
+        }
         qSb.append(" FROM ");
         qSb.append(table.getName());
         qSb.append(" WHERE ST_Intersects(");
@@ -719,7 +1776,16 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
         return q;
     }
 
-    public void close() throws Exception {
+    public synchronized void close() throws Exception {
+        // synchronized, so that an idle close waits for running writes
+        // a reprojected copy being built stops at its next batch
+        isClosed = true;
+        synchronized (rasterReaders) {
+            rasterReaders.clear();
+        }
+        if (readPool != null) {
+            readPool.close();
+        }
         if (db != null) {
             db.close();
         }
@@ -808,8 +1874,10 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
             // Logger.i(this, query);
         }
 
-        Stmt stmt = db.prepare(query);
+        SpatialiteConnectionPool.Connection connection = readPool.borrow();
+        Stmt stmt = null;
         try {
+            stmt = connection.getDatabase().prepare(query);
             while( stmt.step() ) {
                 int column_count = stmt.column_count();
                 for( int i = 0; i < column_count; i++ ) {
@@ -824,7 +1892,9 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
                 sb.append("\n");
             }
         } finally {
-            stmt.close();
+            if (stmt != null)
+                stmt.close();
+            connection.release();
         }
     }
 
@@ -873,8 +1943,10 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
         sbQ.append("));");
         String query = sbQ.toString();
 
-        Stmt stmt = db.prepare(query);
+        SpatialiteConnectionPool.Connection connection = readPool.borrow();
+        Stmt stmt = null;
         try {
+            stmt = connection.getDatabase().prepare(query);
             while( stmt.step() ) {
                 int column_count = stmt.column_count();
                 for( int i = 0; i < column_count; i++ ) {
@@ -889,7 +1961,9 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
                 sb.append("\n");
             }
         } finally {
-            stmt.close();
+            if (stmt != null)
+                stmt.close();
+            connection.release();
         }
     }
 
@@ -1145,4 +2219,25 @@ public class SpatialiteDatabaseHandler implements ISpatialDatabaseHandler {
     //
     // }
 
+    /**
+     * A simplified copy of a table, used up to a maximum zoom level.
+     */
+    private static class SimplificationLevel {
+        final String tableName;
+        final int maxZoom;
+        /*
+         * set while building
+         */
+        double tolerance;
+        /*
+         * created on first use, with the geometry properties of the simplified table
+         */
+        SpatialVectorTable table;
+
+        SimplificationLevel( String tableName, int maxZoom ) {
+            this.tableName = tableName;
+            this.maxZoom = maxZoom;
+        }
+    }
+
 }
@@ -68,4 +68,26 @@ public class Style {
         return sb.toString();
     }
 
+    /**
+     * Get a string of the properties that affect the way a layer is drawn.
+     * 
+     * <p>Contrary to {@link #insertValuesString()}, order and enabled state are left out.</p>
+     * 
+     * @return the rendering signature of the style.
+     */
+    public String getRenderingSignature() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(size).append(";");
+        sb.append(fillcolor).append(";");
+        sb.append(strokecolor).append(";");
+        sb.append(fillalpha).append(";");
+        sb.append(strokealpha).append(";");
+        sb.append(shape).append(";");
+        sb.append(width).append(";");
+        sb.append(textsize).append(";");
+        sb.append(textfield).append(";");
+        sb.append(decimationFactor);
+        return sb.toString();
+    }
+
 }
@@ -0,0 +1,271 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core;
+
+import java.util.Arrays;
+
+import jsqlite.Exception;
+import jsqlite.Stmt;
+
+/**
+ * An in memory index of the tiles that exist in a tiles table.
+ *
+ * <p>Keeps, per zoom level, the bounds of the tiles and, depending on what is smaller,
+ * a bitset over the bounds or the sorted keys of the tiles. So that lookups of
+ * tiles that don't exist, very frequent over sparse coverages, don't have to query
+ * the database.</p>
+ *
+ * <p>The index of a zoom level is read at its first lookup, without locking the index,
+ * so that lookups on the levels already read don't wait for it. Levels too big to be
+ * indexed within {@link #MAX_LEVEL_BYTES} keep only their bounds. After tiles were 
+ * written, the index has to be cleared through {@link #clear()}.</p>
+ *
+ * <p>The index works with the coordinates as stored in the table, the caller
+ * has to convert them (for example to tms rows for mbtiles).</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TileIndex {
+
+    /**
+     * The maximum memory used by the index of a zoom level.
+     */
+    public static final int MAX_LEVEL_BYTES = 512 * 1024;
+
+    private static final int MAX_ZOOM = 30;
+
+    private final SpatialiteConnectionPool pool;
+    private final String boundsQuery;
+    private final String tilesQuery;
+
+    private final Level[] levels = new Level[MAX_ZOOM + 1];
+    /*
+     * increased on clear, so that levels read before are not published
+     */
+    private int generation = 0;
+
+    private long lookups = 0;
+    private long absent = 0;
+
+    /**
+     * The index of a zoom level.
+     */
+    private static class Level {
+        int count;
+        int minX;
+        int maxX;
+        int minY;
+        int maxY;
+        /**
+         * Bits over the bounds, row by row, or <code>null</code>.
+         */
+        long[] bits;
+        /**
+         * The sorted keys of the tiles, or <code>null</code>.
+         */
+        long[] keys;
+
+        boolean contains( int x, int y ) {
+            if (count == 0 || x < minX || x > maxX || y < minY || y > maxY) {
+                return false;
+            }
+            if (bits != null) {
+                long bit = (long) (y - minY) * (maxX - minX + 1) + (x - minX);
+                return (bits[(int) (bit >>> 6)] & (1L << bit)) != 0;
+            }
+            if (keys != null) {
+                return Arrays.binarySearch(keys, key(x, y)) >= 0;
+            }
+            // full or bounds only
+            return true;
+        }
+    }
+
+    /**
+     * @param pool the pool to read the tiles table through.
+     * @param tableName the name of the table, with <code>zoom_level</code>, <code>tile_column</code>
+     *          and <code>tile_row</code> columns.
+     */
+    public TileIndex( SpatialiteConnectionPool pool, String tableName ) {
+        this.pool = pool;
+        boundsQuery = "SELECT COUNT(*), MIN(tile_column), MAX(tile_column), MIN(tile_row), MAX(tile_row) FROM " + tableName
+                + " WHERE zoom_level=?";
+        tilesQuery = "SELECT tile_column, tile_row FROM " + tableName + " WHERE zoom_level=?";
+    }
+
+    /**
+     * Check if a tile might exist.
+     *
+     * @param zoom the zoom level.
+     * @param x the tile column.
+     * @param y the tile row.
+     * @return <code>false</code> if the tile surely doesn't exist.
+     */
+    public boolean mayContain( int zoom, int x, int y ) {
+        if (zoom < 0 || zoom > MAX_ZOOM) {
+            return true;
+        }
+        synchronized (this) {
+            lookups++;
+        }
+        Level level;
+        try {
+            level = getLevel(zoom);
+        } catch (Exception e) {
+            // can't tell, let the database answer
+            e.printStackTrace();
+            return true;
+        }
+        boolean contains = level.contains(x, y);
+        if (!contains) {
+            synchronized (this) {
+                absent++;
+            }
+        }
+        return contains;
+    }
+
+    /**
+     * Get the bounds of the tiles of a zoom level.
+     *
+     * @param zoom the zoom level.
+     * @return the bounds as [minX, maxX, minY, maxY] or <code>null</code> if the level has no tiles.
+     */
+    public int[] getBounds( int zoom ) {
+        if (zoom < 0 || zoom > MAX_ZOOM) {
+            return null;
+        }
+        Level level;
+        try {
+            level = getLevel(zoom);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (level.count == 0) {
+            return null;
+        }
+        return new int[]{level.minX, level.maxX, level.minY, level.maxY};
+    }
+
+    /**
+     * Forget the indexed levels, for example after tiles were added.
+     */
+    public synchronized void clear() {
+        Arrays.fill(levels, null);
+        generation++;
+    }
+
+    /**
+     * @return the number of lookups and of those that found the tile absent.
+     */
+    public synchronized long[] getStats() {
+        return new long[]{lookups, absent};
+    }
+
+    /**
+     * Get the index of a zoom level, reading it if needed.
+     * 
+     * <p>Threads missing the same level at the same time each read it, the first one read is kept.</p>
+     */
+    private Level getLevel( int zoom ) throws Exception {
+        int readGeneration;
+        synchronized (this) {
+            Level level = levels[zoom];
+            if (level != null) {
+                return level;
+            }
+            readGeneration = generation;
+        }
+        Level level = readLevel(zoom);
+        synchronized (this) {
+            if (readGeneration != generation) {
+                // cleared meanwhile, might miss tiles written since
+                return level;
+            }
+            if (levels[zoom] == null) {
+                levels[zoom] = level;
+            }
+            return levels[zoom];
+        }
+    }
+
+    private Level readLevel( int zoom ) throws Exception {
+        Level level = new Level();
+        SpatialiteConnectionPool.Connection connection = pool.borrow();
+        try {
+            Stmt stmt = connection.getStatement(boundsQuery, boundsQuery);
+            stmt.bind(1, zoom);
+            if (stmt.step()) {
+                level.count = stmt.column_int(0);
+                level.minX = stmt.column_int(1);
+                level.maxX = stmt.column_int(2);
+                level.minY = stmt.column_int(3);
+                level.maxY = stmt.column_int(4);
+            }
+            stmt.reset();
+            if (level.count == 0) {
+                return level;
+            }
+
+            long area = (long) (level.maxX - level.minX + 1) * (level.maxY - level.minY + 1);
+            if (area <= level.count) {
+                // every tile of the bounds exists
+                return level;
+            }
+            long bitsetBytes = area / 8;
+            long keysBytes = (long) level.count * 8;
+            if (Math.min(bitsetBytes, keysBytes) > MAX_LEVEL_BYTES) {
+                // bounds only
+                return level;
+            }
+
+            stmt = connection.getStatement(tilesQuery, tilesQuery);
+            stmt.bind(1, zoom);
+            if (bitsetBytes <= keysBytes) {
+                long[] bits = new long[(int) ((area + 63) >>> 6)];
+                int width = level.maxX - level.minX + 1;
+                while( stmt.step() ) {
+                    long bit = (long) (stmt.column_int(1) - level.minY) * width + (stmt.column_int(0) - level.minX);
+                    bits[(int) (bit >>> 6)] |= 1L << bit;
+                }
+                level.bits = bits;
+            } else {
+                long[] keys = new long[level.count];
+                int i = 0;
+                while( stmt.step() && i < keys.length ) {
+                    keys[i++] = key(stmt.column_int(0), stmt.column_int(1));
+                }
+                if (i < keys.length) {
+                    keys = Arrays.copyOf(keys, i);
+                }
+                Arrays.sort(keys);
+                level.keys = keys;
+            }
+            stmt.reset();
+        } finally {
+            connection.release();
+        }
+        return level;
+    }
+
+    private static long key( int x, int y ) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import android.graphics.Bitmap;
+
+/**
+ * An LRU memory cache of rendered vector layer tiles, bounded by bytes.
+ *
+ * <p>Tiles are kept per layer and keyed by layer, style version, zoom and
+ * tile number, so that a style change only invalidates the tiles of
+ * the layer it belongs to.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class VectorTileCache {
+
+    private static final String SEP = "|"; //$NON-NLS-1$
+
+    private final LinkedHashMap<String, Bitmap> tilesMap = new LinkedHashMap<String, Bitmap>(64, 0.75f, true);
+    private final HashMap<String, String> layerSignatures = new HashMap<String, String>();
+    private final HashMap<String, Integer> layerVersions = new HashMap<String, Integer>();
+
+    private final long maxBytes;
+    private long currentBytes = 0;
+
+    /**
+     * @param maxBytes the maximum size in bytes of the cached bitmaps.
+     */
+    public VectorTileCache( long maxBytes ) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the style version of a layer, checking the style for changes.
+     *
+     * <p>If the style differs from the one the cached tiles were drawn with,
+     * the tiles of the layer are dropped and the version is incremented.</p>
+     *
+     * @param layerKey the unique key of the layer.
+     * @param style the current style of the layer.
+     * @return the style version to use in the tile keys.
+     */
+    public synchronized int getLayerVersion( String layerKey, Style style ) {
+        String signature = style.getRenderingSignature();
+        String oldSignature = layerSignatures.get(layerKey);
+        Integer version = layerVersions.get(layerKey);
+        if (version == null) {
+            version = 0;
+        }
+        if (oldSignature != null && !oldSignature.equals(signature)) {
+            version = version + 1;
+            removeLayerTiles(layerKey);
+        }
+        layerSignatures.put(layerKey, signature);
+        layerVersions.put(layerKey, version);
+        return version;
+    }
+
+    /**
+     * Build the key of a tile.
+     *
+     * @param layerKey the unique key of the layer.
+     * @param version the style version of the layer.
+     * @param zoom the zoom level.
+     * @param tileX the tile column.
+     * @param tileY the tile row.
+     * @return the tile key.
+     */
+    public static String getTileKey( String layerKey, int version, byte zoom, long tileX, long tileY ) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(layerKey).append(SEP);
+        sb.append(version).append(SEP);
+        sb.append(zoom).append("/").append(tileX).append("/").append(tileY); //$NON-NLS-1$ //$NON-NLS-2$
+        return sb.toString();
+    }
+
+    public synchronized Bitmap get( String tileKey ) {
+        return tilesMap.get(tileKey);
+    }
+
+    public synchronized void put( String tileKey, Bitmap tile ) {
+        Bitmap old = tilesMap.put(tileKey, tile);
+        if (old != null) {
+            currentBytes -= getSize(old);
+        }
+        currentBytes += getSize(tile);
+
+        Iterator<Entry<String, Bitmap>> iterator = tilesMap.entrySet().iterator();
+        while( currentBytes > maxBytes && iterator.hasNext() ) {
+            Entry<String, Bitmap> eldest = iterator.next();
+            if (eldest.getKey().equals(tileKey)) {
+                continue;
+            }
+            currentBytes -= getSize(eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drop all tiles of a layer, for example after a style change.
+     *
+     * @param layerKey the unique key of the layer.
+     */
+    public synchronized void invalidateLayer( String layerKey ) {
+        Integer version = layerVersions.get(layerKey);
+        layerVersions.put(layerKey, version == null ? 0 : version + 1);
+        layerSignatures.remove(layerKey);
+        removeLayerTiles(layerKey);
+    }
+
+    public synchronized void clear() {
+        tilesMap.clear();
+        layerSignatures.clear();
+        layerVersions.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * @return the size in bytes of the cached tiles.
+     */
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    private void removeLayerTiles( String layerKey ) {
+        String prefix = layerKey + SEP;
+        Iterator<Entry<String, Bitmap>> iterator = tilesMap.entrySet().iterator();
+        while( iterator.hasNext() ) {
+            Entry<String, Bitmap> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                currentBytes -= getSize(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    private static long getSize( Bitmap bitmap ) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
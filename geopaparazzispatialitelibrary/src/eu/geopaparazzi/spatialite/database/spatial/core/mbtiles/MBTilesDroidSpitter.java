@@ -3,13 +3,17 @@ package eu.geopaparazzi.spatialite.database.spatial.core.mbtiles;
 /** @author Simon Thépot aka djcoin <simon.thepot@gmail.com, simon.thepot@makina-corpus.com> */
 
 import java.io.File;
+import java.util.HashMap;
 
+import jsqlite.Stmt;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import eu.geopaparazzi.spatialite.database.spatial.core.SpatialiteConnectionPool;
+import eu.geopaparazzi.spatialite.database.spatial.core.TileIndex;
 import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MbTilesMetadata.MetadataParseException;
 import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MbTilesMetadata.MetadataValidator;
 
@@ -21,6 +25,22 @@ public class MBTilesDroidSpitter {
     private File dbpath;
     private MbTilesMetadata metadata;
 
+    /**
+     * The maximum number of connections reading tiles in parallel.
+     */
+    private static final int MAX_TILE_CONNECTIONS = 2;
+    private static final String TILE_QUERY = "SELECT tile_data FROM tiles WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+    private static final String TILES_QUERY = "SELECT tile_column, tile_row, tile_data FROM tiles "
+            + "WHERE zoom_level=? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?";
+    /**
+     * Tiles are read through compiled statements with bound ints, straight into byte arrays.
+     */
+    private SpatialiteConnectionPool tilePool;
+    /**
+     * Answers the lookups of missing tiles without querying.
+     */
+    private TileIndex tileIndex;
+
     public MBTilesDroidSpitter( File dbpath ) {
         // mbtilesdb = new MbTilesSQLite(ctx, dbpath.getName(), null, VERSION_BDD);
         this.dbpath = dbpath;
@@ -29,6 +49,12 @@ public class MBTilesDroidSpitter {
     public void open( boolean fetchMetadata, String metadataVersion ) {
         // db = mbtilesdb.getReadableDatabase();
         db = SQLiteDatabase.openDatabase(dbpath.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY);
+        if (tilePool == null) {
+            tilePool = new SpatialiteConnectionPool(dbpath.getAbsolutePath(), MAX_TILE_CONNECTIONS);
+            // in deduplicated files the tiles view is a join, the map table alone knows which tiles exist
+            boolean isSplit = "view".equals(MbTilesWriter.getObjectType(db, MbTilesSQLite.TABLE_TILES));
+            tileIndex = new TileIndex(tilePool, isSplit ? MbTilesWriter.TABLE_MAP : MbTilesSQLite.TABLE_TILES);
+        }
 
         if (!fetchMetadata)
             return;
@@ -42,6 +68,11 @@ public class MBTilesDroidSpitter {
     }
 
     public void close() {
+        if (tilePool != null) {
+            tilePool.close();
+            tilePool = null;
+            tileIndex = null;
+        }
         db.close();
     }
 
@@ -61,15 +92,97 @@ public class MBTilesDroidSpitter {
         return this.getTileAsBitmap(Integer.toString(x), Integer.toString(y), Integer.toString(z));
     }
     public byte[] getTileAsBytes( String x, String y, String z ) {
-        final Cursor c = db.rawQuery("select tile_data from tiles where tile_column=? and tile_row=? and zoom_level=?", new String[]{x,
-                y, z});
-        if (!c.moveToFirst()) {
-            c.close();
+        return getTileAsBytes(Integer.parseInt(x), Integer.parseInt(y), Integer.parseInt(z));
+    }
+
+    /**
+     * Get the image of a tile.
+     * 
+     * @param x the tms column.
+     * @param y the tms row.
+     * @param z the zoom level.
+     * @return the image or <code>null</code> if the tile is missing.
+     */
+    public byte[] getTileAsBytes( int x, int y, int z ) {
+        if (!tileIndex.mayContain(z, x, y)) {
             return null;
         }
-        byte[] bb = c.getBlob(c.getColumnIndex("tile_data"));
-        c.close();
-        return bb;
+        try {
+            SpatialiteConnectionPool.Connection connection = tilePool.borrow();
+            try {
+                Stmt stmt = connection.getStatement(TILE_QUERY, TILE_QUERY);
+                stmt.bind(1, z);
+                stmt.bind(2, x);
+                stmt.bind(3, y);
+                byte[] tile = null;
+                if (stmt.step()) {
+                    tile = stmt.column_bytes(0);
+                }
+                // ends the read transaction
+                stmt.reset();
+                return tile;
+            } finally {
+                connection.release();
+            }
+        } catch (jsqlite.Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Get the images of the tiles of a range with a single query.
+     * 
+     * @param z the zoom level.
+     * @param xMin the first tms column.
+     * @param xMax the last tms column.
+     * @param yMin the first tms row.
+     * @param yMax the last tms row.
+     * @return the images of the existing tiles, by {@link #getTileKey(int, int)}.
+     */
+    public HashMap<Long, byte[]> getTilesAsBytes( int z, int xMin, int xMax, int yMin, int yMax ) {
+        HashMap<Long, byte[]> tiles = new HashMap<Long, byte[]>();
+        try {
+            SpatialiteConnectionPool.Connection connection = tilePool.borrow();
+            try {
+                Stmt stmt = connection.getStatement(TILES_QUERY, TILES_QUERY);
+                stmt.bind(1, z);
+                stmt.bind(2, xMin);
+                stmt.bind(3, xMax);
+                stmt.bind(4, yMin);
+                stmt.bind(5, yMax);
+                while( stmt.step() ) {
+                    tiles.put(getTileKey(stmt.column_int(0), stmt.column_int(1)), stmt.column_bytes(2));
+                }
+                stmt.reset();
+            } finally {
+                connection.release();
+            }
+        } catch (jsqlite.Exception e) {
+            e.printStackTrace();
+        }
+        return tiles;
+    }
+
+    /**
+     * @return the key of a tile in the map of {@link #getTilesAsBytes(int, int, int, int, int)}.
+     */
+    public static long getTileKey( int x, int y ) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * @return the index of the existing tiles, in tms coordinates.
+     */
+    public TileIndex getTileIndex() {
+        return tileIndex;
+    }
+
+    /**
+     * @return the pool of the connections reading the tiles.
+     */
+    public SpatialiteConnectionPool getTilePool() {
+        return tilePool;
     }
 
     // Warning: you should have checked that those x y z are real integers
@@ -77,9 +190,10 @@ public class MBTilesDroidSpitter {
      * @return the bitmap of the tile or null if no tile matched the given parameters
      */
     public Bitmap getTileAsBitmap( String x, String y, String z ) {
-        // TODO: Optimize this if we have metadata with bound or min/max zoomlevels
-        // Do not make any request and return null if we know it won't match any tile
+        // missing tiles are answered by the tile index without a request
         byte[] bb = getTileAsBytes(x, y, z);
+        if (bb == null)
+            return null;
         return BitmapFactory.decodeByteArray(bb, 0, bb.length);
     }
     
@@ -0,0 +1,182 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core.mbtiles;
+
+import java.io.File;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Converts a flat mbtiles file in place to the deduplicated layout of {@link MbTilesWriter}.
+ *
+ * <p>The tiles are moved in small chunks, each in a transaction that also deletes
+ * them from the flat table, so that the file doesn't need room for two copies and
+ * an interrupted compaction continues where it stopped when run again. Meanwhile
+ * readers only see the tiles not moved yet. A final vacuum gives the freed
+ * space back to the sd card.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class MbTilesCompactor {
+
+    /**
+     * The tiles moved per transaction, few enough that their blobs fit a cursor window.
+     */
+    private static final int CHUNK_SIZE = 16;
+
+    /**
+     * Listener of the progress of a compaction.
+     */
+    public static interface CompactionListener {
+        /**
+         * @param movedTiles the tiles moved so far.
+         * @param totalTiles the tiles to move.
+         */
+        public void onProgress( long movedTiles, long totalTiles );
+    }
+
+    private final File mbtilesFile;
+    private CompactionListener listener;
+    private boolean vacuum = true;
+
+    private long movedTiles = 0;
+    private long duplicateTiles = 0;
+    private long savedBytes = 0;
+
+    /**
+     * @param mbtilesFile the file to compact.
+     */
+    public MbTilesCompactor( File mbtilesFile ) {
+        this.mbtilesFile = mbtilesFile;
+    }
+
+    public void setListener( CompactionListener listener ) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param vacuum if <code>false</code> the file is not vacuumed at the end, which needs temporary space as big as the file.
+     */
+    public void setVacuum( boolean vacuum ) {
+        this.vacuum = vacuum;
+    }
+
+    /**
+     * Compact the file, if it is flat.
+     *
+     * @return <code>true</code> if the file was compacted, <code>false</code> if it already had the split layout.
+     */
+    public boolean compact() {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(mbtilesFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE);
+        try {
+            if (!"table".equals(MbTilesWriter.getObjectType(db, MbTilesSQLite.TABLE_TILES))) {
+                return false;
+            }
+            MbTilesWriter.createSplitTables(db);
+            // a split writer on the same database, the flat tiles table exists until the end
+            MbTilesWriter writer = new MbTilesWriter(db, false, true);
+            try {
+                long totalTiles = count(db);
+                long lastRowId = -1;
+                while( true ) {
+                    int chunkTiles = 0;
+                    writer.beginTransaction();
+                    boolean commit = false;
+                    try {
+                        Cursor cursor = db.rawQuery("SELECT rowid, zoom_level, tile_column, tile_row, tile_data FROM "
+                                + MbTilesSQLite.TABLE_TILES + " WHERE rowid > ? ORDER BY rowid LIMIT " + CHUNK_SIZE,
+                                new String[]{String.valueOf(lastRowId)});
+                        try {
+                            while( cursor.moveToNext() ) {
+                                lastRowId = cursor.getLong(0);
+                                writer.putTile(cursor.getInt(1), cursor.getInt(2), cursor.getInt(3), cursor.getBlob(4));
+                                chunkTiles++;
+                            }
+                        } finally {
+                            cursor.close();
+                        }
+                        db.delete(MbTilesSQLite.TABLE_TILES, "rowid <= ?", new String[]{String.valueOf(lastRowId)});
+                        commit = true;
+                    } finally {
+                        writer.endTransaction(commit);
+                    }
+                    if (chunkTiles == 0) {
+                        break;
+                    }
+                    movedTiles += chunkTiles;
+                    if (listener != null) {
+                        listener.onProgress(movedTiles, totalTiles);
+                    }
+                }
+
+                writer.beginTransaction();
+                boolean commit = false;
+                try {
+                    db.execSQL("DROP TABLE " + MbTilesSQLite.TABLE_TILES);
+                    MbTilesWriter.createTilesView(db);
+                    writer.deleteOrphanImages();
+                    commit = true;
+                } finally {
+                    writer.endTransaction(commit);
+                }
+                duplicateTiles = writer.getDuplicateTiles();
+                savedBytes = writer.getSavedBytes();
+            } finally {
+                writer.close();
+            }
+            if (vacuum) {
+                db.execSQL("VACUUM");
+            }
+            return true;
+        } finally {
+            db.close();
+        }
+    }
+
+    private long count( SQLiteDatabase db ) {
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + MbTilesSQLite.TABLE_TILES, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the tiles moved to the split layout.
+     */
+    public long getMovedTiles() {
+        return movedTiles;
+    }
+
+    /**
+     * @return the moved tiles whose image was already stored.
+     */
+    public long getDuplicateTiles() {
+        return duplicateTiles;
+    }
+
+    /**
+     * @return the size of the images that were not stored again.
+     */
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core.mbtiles;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Writes tiles into an mbtiles file.
+ *
+ * <p>New files get the split layout: the <code>map</code> table references the tile
+ * images by the hash of their content, each distinct image is stored once in the
+ * <code>images</code> table, and a <code>tiles</code> view joins them, so that readers
+ * like {@link MBTilesDroidSpitter} see a normal mbtiles file. Coverages with lots of
+ * sea or blank tiles shrink a lot that way.</p>
+ *
+ * <p>Existing files are written in the layout they already have, flat files can be
+ * converted with {@link MbTilesCompactor}.</p>
+ *
+ * <p>Tiles use tms rows. Not thread safe.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class MbTilesWriter {
+
+    public final static String TABLE_MAP = "map";
+    public final static String TABLE_IMAGES = "images";
+    public final static String COL_TILE_ID = "tile_id";
+
+    private final static String CREATE_MAP = "CREATE TABLE IF NOT EXISTS " + TABLE_MAP
+            + " (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_id TEXT)";
+    private final static String INDEX_MAP = "CREATE UNIQUE INDEX IF NOT EXISTS map_index ON " + TABLE_MAP
+            + " (zoom_level, tile_column, tile_row)";
+    private final static String CREATE_IMAGES = "CREATE TABLE IF NOT EXISTS " + TABLE_IMAGES + " (tile_data BLOB, tile_id TEXT)";
+    private final static String INDEX_IMAGES = "CREATE UNIQUE INDEX IF NOT EXISTS images_id ON " + TABLE_IMAGES + " (tile_id)";
+    private final static String CREATE_TILES_VIEW = "CREATE VIEW IF NOT EXISTS " + MbTilesSQLite.TABLE_TILES
+            + " AS SELECT map.zoom_level AS zoom_level, map.tile_column AS tile_column, map.tile_row AS tile_row,"
+            + " images.tile_data AS tile_data FROM map JOIN images ON images.tile_id = map.tile_id";
+
+    private final static String CREATE_FLAT_TILES = "CREATE TABLE IF NOT EXISTS " + MbTilesSQLite.TABLE_TILES
+            + " (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)";
+    private final static String INDEX_FLAT_TILES = "CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON "
+            + MbTilesSQLite.TABLE_TILES + " (zoom_level, tile_column, tile_row)";
+    private final static String CREATE_METADATA = "CREATE TABLE IF NOT EXISTS " + MbTilesSQLite.TABLE_METADATA
+            + " (name TEXT, value TEXT)";
+    private final static String INDEX_METADATA = "CREATE UNIQUE INDEX IF NOT EXISTS name ON " + MbTilesSQLite.TABLE_METADATA
+            + " (name)";
+
+    private final SQLiteDatabase db;
+    private final boolean ownsDatabase;
+    private final boolean isSplit;
+    private final MessageDigest digest;
+
+    private SQLiteStatement insertFlatTile;
+    private SQLiteStatement insertMap;
+    private SQLiteStatement insertImage;
+    private SQLiteStatement countImage;
+
+    private long tiles = 0;
+    private long duplicateTiles = 0;
+    private long bytes = 0;
+    private long savedBytes = 0;
+
+    /**
+     * Open or create an mbtiles file for writing.
+     *
+     * @param file the mbtiles file.
+     */
+    public MbTilesWriter( File file ) {
+        this(SQLiteDatabase.openOrCreateDatabase(file, null), true, true);
+    }
+
+    /**
+     * @param db the database to write to.
+     * @param ownsDatabase if <code>true</code> the database is closed with the writer.
+     * @param splitIfNew the layout of a database without tiles.
+     */
+    MbTilesWriter( SQLiteDatabase db, boolean ownsDatabase, boolean splitIfNew ) {
+        this.db = db;
+        this.ownsDatabase = ownsDatabase;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // part of every java runtime
+            throw new RuntimeException(e);
+        }
+
+        db.execSQL(CREATE_METADATA);
+        db.execSQL(INDEX_METADATA);
+        String tilesType = getObjectType(db, MbTilesSQLite.TABLE_TILES);
+        isSplit = getObjectType(db, TABLE_MAP) != null || (tilesType == null && splitIfNew);
+        if (isSplit) {
+            createSplitTables(db);
+            if (tilesType == null) {
+                db.execSQL(CREATE_TILES_VIEW);
+            }
+        } else {
+            db.execSQL(CREATE_FLAT_TILES);
+            db.execSQL(INDEX_FLAT_TILES);
+        }
+    }
+
+    static void createSplitTables( SQLiteDatabase db ) {
+        db.execSQL(CREATE_MAP);
+        db.execSQL(INDEX_MAP);
+        db.execSQL(CREATE_IMAGES);
+        db.execSQL(INDEX_IMAGES);
+    }
+
+    static void createTilesView( SQLiteDatabase db ) {
+        db.execSQL(CREATE_TILES_VIEW);
+    }
+
+    /**
+     * @return the type of an object of the database schema, "table", "view", ..., or <code>null</code>.
+     */
+    static String getObjectType( SQLiteDatabase db, String name ) {
+        Cursor cursor = db.rawQuery("SELECT type FROM sqlite_master WHERE name=?", new String[]{name});
+        try {
+            if (cursor.moveToFirst()) {
+                return cursor.getString(0);
+            }
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the file uses the split, deduplicated layout.
+     */
+    public boolean isSplit() {
+        return isSplit;
+    }
+
+    /**
+     * @return the database, to read from.
+     */
+    public SQLiteDatabase getDatabase() {
+        return db;
+    }
+
+    /**
+     * Start a transaction, to be ended by {@link #endTransaction(boolean)}.
+     */
+    public void beginTransaction() {
+        db.beginTransaction();
+    }
+
+    /**
+     * End the transaction started by {@link #beginTransaction()}.
+     *
+     * @param commit if <code>true</code> the writes are committed, else rolled back.
+     */
+    public void endTransaction( boolean commit ) {
+        if (commit) {
+            db.setTransactionSuccessful();
+        }
+        db.endTransaction();
+    }
+
+    /**
+     * Set a metadata value.
+     *
+     * @param name the name.
+     * @param value the value.
+     */
+    public void putMetadata( String name, String value ) {
+        ContentValues values = new ContentValues();
+        values.put(MbTilesSQLite.COL_METADATA_NAME, name);
+        values.put(MbTilesSQLite.COL_METADATA_VALUE, value);
+        db.insertWithOnConflict(MbTilesSQLite.TABLE_METADATA, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Write a tile, replacing an existing one.
+     *
+     * @param zoom the zoom level.
+     * @param column the tile column.
+     * @param row the tms tile row.
+     * @param data the encoded image.
+     */
+    public void putTile( int zoom, int column, int row, byte[] data ) {
+        tiles++;
+        bytes += data.length;
+        if (!isSplit) {
+            if (insertFlatTile == null) {
+                insertFlatTile = db.compileStatement("INSERT OR REPLACE INTO " + MbTilesSQLite.TABLE_TILES
+                        + " (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+            }
+            insertFlatTile.bindLong(1, zoom);
+            insertFlatTile.bindLong(2, column);
+            insertFlatTile.bindLong(3, row);
+            insertFlatTile.bindBlob(4, data);
+            insertFlatTile.execute();
+            return;
+        }
+
+        if (insertMap == null) {
+            insertMap = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_MAP
+                    + " (zoom_level, tile_column, tile_row, tile_id) VALUES (?, ?, ?, ?)");
+            insertImage = db.compileStatement("INSERT INTO " + TABLE_IMAGES + " (tile_data, tile_id) VALUES (?, ?)");
+            countImage = db.compileStatement("SELECT COUNT(*) FROM " + TABLE_IMAGES + " WHERE tile_id=?");
+        }
+        String tileId = getTileId(data);
+        countImage.bindString(1, tileId);
+        if (countImage.simpleQueryForLong() == 0) {
+            insertImage.bindBlob(1, data);
+            insertImage.bindString(2, tileId);
+            insertImage.execute();
+        } else {
+            duplicateTiles++;
+            savedBytes += data.length;
+        }
+        insertMap.bindLong(1, zoom);
+        insertMap.bindLong(2, column);
+        insertMap.bindLong(3, row);
+        insertMap.bindString(4, tileId);
+        insertMap.execute();
+    }
+
+    /**
+     * @return the id of an image, the hex md5 of its content.
+     */
+    private String getTileId( byte[] data ) {
+        byte[] hash = digest.digest(data);
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for( byte b : hash ) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Delete the images no tile references anymore, after tiles were replaced.
+     *
+     * @return the number of deleted images.
+     */
+    public int deleteOrphanImages() {
+        if (!isSplit) {
+            return 0;
+        }
+        return db.delete(TABLE_IMAGES, COL_TILE_ID + " NOT IN (SELECT " + COL_TILE_ID + " FROM " + TABLE_MAP + ")", null);
+    }
+
+    /**
+     * @return the number of tiles written.
+     */
+    public long getTiles() {
+        return tiles;
+    }
+
+    /**
+     * @return the number of written tiles whose image was already stored.
+     */
+    public long getDuplicateTiles() {
+        return duplicateTiles;
+    }
+
+    /**
+     * @return the size of the written images.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the size of the written images that was not stored thanks to deduplication.
+     */
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
+    /**
+     * Close the writer, and its database if it opened it.
+     */
+    public void close() {
+        SQLiteStatement[] statements = {insertFlatTile, insertMap, insertImage, countImage};
+        for( SQLiteStatement statement : statements ) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        insertFlatTile = null;
+        insertMap = null;
+        insertImage = null;
+        countImage = null;
+        if (ownsDatabase) {
+            db.close();
+        }
+    }
+}
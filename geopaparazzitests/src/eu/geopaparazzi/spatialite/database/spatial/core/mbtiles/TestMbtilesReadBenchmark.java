@@ -0,0 +1,194 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core.mbtiles;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * Compares the ways tiles can be read from an mbtiles file.
+ *
+ * <p>Measures, after some warm up rounds, the average time per tile of:</p>
+ * <ul>
+ *  <li>a cursor per tile, with string bindings (the old path);</li>
+ *  <li>the compiled statement with int bindings of {@link MBTilesDroidSpitter#getTileAsBytes(int, int, int)};</li>
+ *  <li>the range query of {@link MBTilesDroidSpitter#getTilesAsBytes(int, int, int, int, int)}.</li>
+ * </ul>
+ *
+ * <p>Runs on the device on the mbtiles files of the maps folder, the report is logged.
+ * Without mbtiles files there is nothing to measure.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestMbtilesReadBenchmark extends TestCase {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 10;
+    private static final int SAMPLE_SIZE = 100;
+
+    public void testReadPaths() throws Exception {
+        File mapsDir = new File(Environment.getExternalStorageDirectory(), "maps");
+        File[] files = mapsDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for( File file : files ) {
+            if (file.getName().endsWith(".mbtiles")) {
+                Log.i("TestMbtilesReadBenchmark", run(file, SAMPLE_SIZE));
+            }
+        }
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param mbtilesFile the mbtiles file to read.
+     * @param sampleSize the number of tiles read per round.
+     * @return the report, in microseconds per tile.
+     * @throws Exception
+     */
+    private String run( File mbtilesFile, int sampleSize ) throws Exception {
+        SQLiteDatabase cursorDb = SQLiteDatabase.openDatabase(mbtilesFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY);
+        MBTilesDroidSpitter spitter = new MBTilesDroidSpitter(mbtilesFile);
+        try {
+            spitter.open(false, null);
+
+            // a block of existing tiles of the most populated zoom level
+            int[] range = getSampleRange(cursorDb, sampleSize);
+            if (range == null) {
+                return "No tiles in " + mbtilesFile.getName();
+            }
+            List<int[]> tiles = getSampleTiles(cursorDb, range);
+            if (tiles.size() == 0) {
+                return "No tiles in " + mbtilesFile.getName();
+            }
+
+            long cursorNanos = 0;
+            long statementNanos = 0;
+            long batchNanos = 0;
+            long checksum = 0;
+            for( int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++ ) {
+                boolean measure = round >= WARMUP_ROUNDS;
+
+                long start = System.nanoTime();
+                for( int[] tile : tiles ) {
+                    checksum += readWithCursor(cursorDb, tile[0], tile[1], tile[2]);
+                }
+                long cursorTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for( int[] tile : tiles ) {
+                    byte[] data = spitter.getTileAsBytes(tile[1], tile[2], tile[0]);
+                    checksum += data == null ? 0 : data.length;
+                }
+                long statementTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for( byte[] data : spitter.getTilesAsBytes(range[0], range[1], range[2], range[3], range[4]).values() ) {
+                    checksum += data.length;
+                }
+                long batchTime = System.nanoTime() - start;
+
+                if (measure) {
+                    cursorNanos += cursorTime;
+                    statementNanos += statementTime;
+                    batchNanos += batchTime;
+                }
+            }
+
+            long reads = (long) tiles.size() * MEASURED_ROUNDS;
+            StringBuilder sb = new StringBuilder();
+            sb.append(mbtilesFile.getName()).append(": ").append(tiles.size()).append(" tiles at zoom ").append(range[0])
+                    .append(", ").append(MEASURED_ROUNDS).append(" rounds\n");
+            sb.append("cursor per tile:    ").append(cursorNanos / reads / 1000.0).append(" us/tile\n");
+            sb.append("compiled statement: ").append(statementNanos / reads / 1000.0).append(" us/tile\n");
+            sb.append("range query:        ").append(batchNanos / reads / 1000.0).append(" us/tile\n");
+            sb.append("(checksum ").append(checksum).append(")");
+            return sb.toString();
+        } finally {
+            spitter.close();
+            cursorDb.close();
+        }
+    }
+
+    /**
+     * @return the zoom level and tms column and row range of a square block of tiles, or <code>null</code>.
+     */
+    private int[] getSampleRange( SQLiteDatabase db, int sampleSize ) {
+        Cursor c = db.rawQuery(
+                "SELECT zoom_level FROM tiles GROUP BY zoom_level ORDER BY COUNT(*) DESC LIMIT 1", null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            int z = c.getInt(0);
+            int side = (int) Math.ceil(Math.sqrt(sampleSize));
+            // start at the center of the level's bounds
+            Cursor center = db.rawQuery(
+                    "SELECT (MIN(tile_column) + MAX(tile_column)) / 2, (MIN(tile_row) + MAX(tile_row)) / 2 FROM tiles WHERE zoom_level=?",
+                    new String[]{String.valueOf(z)});
+            try {
+                center.moveToFirst();
+                int x = center.getInt(0) - side / 2;
+                int y = center.getInt(1) - side / 2;
+                return new int[]{z, x, x + side - 1, y, y + side - 1};
+            } finally {
+                center.close();
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private List<int[]> getSampleTiles( SQLiteDatabase db, int[] range ) {
+        List<int[]> tiles = new ArrayList<int[]>();
+        Cursor c = db.rawQuery(
+                "SELECT tile_column, tile_row FROM tiles WHERE zoom_level=? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?",
+                new String[]{String.valueOf(range[0]), String.valueOf(range[1]), String.valueOf(range[2]),
+                        String.valueOf(range[3]), String.valueOf(range[4])});
+        try {
+            while( c.moveToNext() ) {
+                tiles.add(new int[]{range[0], c.getInt(0), c.getInt(1)});
+            }
+        } finally {
+            c.close();
+        }
+        return tiles;
+    }
+
+    private int readWithCursor( SQLiteDatabase db, int z, int x, int y ) {
+        Cursor c = db.rawQuery("select tile_data from tiles where tile_column=? and tile_row=? and zoom_level=?", new String[]{
+                String.valueOf(x), String.valueOf(y), String.valueOf(z)});
+        try {
+            if (!c.moveToFirst()) {
+                return 0;
+            }
+            return c.getBlob(c.getColumnIndex("tile_data")).length;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.database;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the encoding of the gps log chunks, in the package of {@link GpsLogChunks} to reach the codec.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestGpsLogChunks extends TestCase {
+
+    private static final double COORD_DELTA = 0.5E-7;
+    private static final double ELEV_DELTA = 0.005;
+
+    public void testNegativeDeltas() {
+        GpsLogChunks.Points points = new GpsLogChunks.Points();
+        points.add(11.5, 46.5, 2000.0, 1000);
+        points.add(11.4, 46.4, 1500.25, 999);
+        points.add(-11.4, -46.4, -10.5, 10);
+        points.add(-11.4000001, -46.4000001, -10.51, 0);
+        checkRoundTrip(points, 0, points.size);
+    }
+
+    public void testAntimeridianAndPoles() {
+        GpsLogChunks.Points points = new GpsLogChunks.Points();
+        points.add(179.9999999, 89.9999999, 0, 0);
+        points.add(-180.0, 90.0, 0, 1);
+        points.add(180.0, -90.0, 0, 2);
+        points.add(-179.9999999, -89.9999999, 0, 3);
+        points.add(179.9999999, 90.0, 0, 4);
+        checkRoundTrip(points, 0, points.size);
+    }
+
+    public void testFullChunk() {
+        GpsLogChunks.Points points = new GpsLogChunks.Points();
+        Random random = new Random(42);
+        double lon = 11.0;
+        double lat = 46.0;
+        double elev = 1000.0;
+        long time = 1370000000L;
+        for( int i = 0; i < GpsLogChunks.CHUNK_POINTS; i++ ) {
+            points.add(lon, lat, elev, time);
+            // steps in both directions, some larger than a varint byte
+            lon += (random.nextDouble() - 0.5) * 0.01;
+            lat += (random.nextDouble() - 0.5) * 0.01;
+            elev += (random.nextDouble() - 0.5) * 100;
+            time += random.nextInt(300);
+        }
+        checkRoundTrip(points, 0, GpsLogChunks.CHUNK_POINTS);
+    }
+
+    public void testSinglePoint() {
+        GpsLogChunks.Points points = new GpsLogChunks.Points();
+        points.add(-0.0000001, 0.0000001, -0.01, 1);
+        checkRoundTrip(points, 0, 1);
+    }
+
+    public void testDecodeAppends() {
+        GpsLogChunks.Points points = new GpsLogChunks.Points();
+        for( int i = 0; i < 10; i++ ) {
+            points.add(i, -i, i * 10, i);
+        }
+        byte[] first = GpsLogChunks.encode(points, 0, 4);
+        byte[] second = GpsLogChunks.encode(points, 4, 6);
+
+        GpsLogChunks.Points decoded = new GpsLogChunks.Points();
+        GpsLogChunks.decode(first, decoded);
+        GpsLogChunks.decode(second, decoded);
+        assertEquals(10, decoded.size);
+        for( int i = 0; i < 10; i++ ) {
+            assertPoint(points, i, decoded, i);
+        }
+    }
+
+    private void checkRoundTrip( GpsLogChunks.Points points, int from, int count ) {
+        byte[] data = GpsLogChunks.encode(points, from, count);
+        GpsLogChunks.Points decoded = new GpsLogChunks.Points();
+        GpsLogChunks.decode(data, decoded);
+        assertEquals(count, decoded.size);
+        for( int i = 0; i < count; i++ ) {
+            assertPoint(points, from + i, decoded, i);
+        }
+    }
+
+    private void assertPoint( GpsLogChunks.Points expected, int expectedIndex, GpsLogChunks.Points actual, int actualIndex ) {
+        assertEquals(expected.lons[expectedIndex], actual.lons[actualIndex], COORD_DELTA);
+        assertEquals(expected.lats[expectedIndex], actual.lats[actualIndex], COORD_DELTA);
+        assertEquals(expected.altims[expectedIndex], actual.altims[actualIndex], ELEV_DELTA);
+        assertEquals(expected.times[expectedIndex], actual.times[actualIndex]);
+    }
+
+}
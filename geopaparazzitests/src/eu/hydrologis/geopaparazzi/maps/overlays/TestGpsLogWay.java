@@ -0,0 +1,129 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.maps.overlays;
+
+import org.mapsforge.core.util.MercatorProjection;
+
+import android.graphics.Point;
+import eu.hydrologis.geopaparazzi.database.GpsLogChunks;
+import junit.framework.TestCase;
+
+/**
+ * Tests of the zoom levels the points of a {@link GpsLogWay} are drawn from.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestGpsLogWay extends TestCase {
+
+    private static final byte MAX_ZOOM = 18;
+
+    public void testTooFewPoints() {
+        assertNull(GpsLogWay.create(1, null, points(new double[]{11.0}, new double[]{46.0}), MAX_ZOOM));
+    }
+
+    public void testEndPointsAtAllZooms() {
+        GpsLogWay way = GpsLogWay.create(1, null, points(new double[]{11.0, 11.1}, new double[]{46.0, 46.1}), MAX_ZOOM);
+        assertEquals(2, way.getPointsCount());
+        for( byte zoom = 0; zoom <= MAX_ZOOM; zoom++ ) {
+            assertEquals(2, nodesAt(way, zoom));
+        }
+    }
+
+    public void testCollinearPointsDropped() {
+        double[] lons = new double[11];
+        double[] lats = new double[11];
+        for( int i = 0; i < lons.length; i++ ) {
+            lons[i] = 11.0 + i * 0.001;
+            lats[i] = 0.0;
+        }
+        GpsLogWay way = GpsLogWay.create(1, null, points(lons, lats), MAX_ZOOM);
+        assertEquals(2, way.getPointsCount());
+    }
+
+    public void testSpikeZoom() {
+        double spikeLat = 0.001;
+        GpsLogWay way = GpsLogWay.create(1, null, points(new double[]{11.0, 11.005, 11.01}, new double[]{0.0, spikeLat, 0.0}),
+                MAX_ZOOM);
+        assertEquals(3, way.getPointsCount());
+        for( byte zoom = 0; zoom <= MAX_ZOOM; zoom++ ) {
+            double deviation = MercatorProjection.latitudeToPixelY(0.0, zoom)
+                    - MercatorProjection.latitudeToPixelY(spikeLat, zoom);
+            // away from the tolerance, where rounding decides
+            if (deviation > 2 * GpsLogWay.TOLERANCE_PIXELS) {
+                assertEquals("zoom " + zoom, 3, nodesAt(way, zoom));
+            } else if (deviation < GpsLogWay.TOLERANCE_PIXELS / 2) {
+                assertEquals("zoom " + zoom, 2, nodesAt(way, zoom));
+            }
+        }
+        assertEquals(2, nodesAt(way, (byte) 0));
+        assertEquals(3, nodesAt(way, MAX_ZOOM));
+    }
+
+    public void testDetailsNotBeforeParents() {
+        // the second point is farther from the line of its neighbours than the third from the
+        // line of the end points, but it is found only once the third split the log
+        double[] lons = {11.0, 11.005, 11.01, 11.02};
+        double[] lats = {0.0, -0.0009, 0.001, 0.0};
+        GpsLogWay way = GpsLogWay.create(1, null, points(lons, lats), MAX_ZOOM);
+        assertEquals(4, way.getPointsCount());
+        for( byte zoom = 0; zoom <= MAX_ZOOM; zoom++ ) {
+            int nodes = nodesAt(way, zoom);
+            if (nodes == 3) {
+                // only one of the two, it has to be the third point
+                assertEquals("zoom " + zoom, 1000, way.wayNodes[0][1].latitudeE6);
+            }
+        }
+        assertEquals(2, nodesAt(way, (byte) 0));
+        assertEquals(4, nodesAt(way, MAX_ZOOM));
+    }
+
+    public void testLongLog() {
+        int n = 20000;
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        for( int i = 0; i < n; i++ ) {
+            lons[i] = 11.0 + i * 0.0001;
+            lats[i] = 46.0 + ((i % 2 == 0) ? 0.0 : 0.0001 * (i % 7));
+        }
+        GpsLogWay way = GpsLogWay.create(1, null, points(lons, lats), MAX_ZOOM);
+        assertEquals(2, nodesAt(way, (byte) 0));
+        assertTrue(nodesAt(way, MAX_ZOOM) > n / 4);
+    }
+
+    private static GpsLogChunks.Points points( double[] lons, double[] lats ) {
+        GpsLogChunks.Points points = new GpsLogChunks.Points();
+        points.lons = lons;
+        points.lats = lats;
+        points.altims = new double[lons.length];
+        points.times = new long[lons.length];
+        points.size = lons.length;
+        return points;
+    }
+
+    /**
+     * @return the number of nodes drawn at a zoom level, with the whole log in view.
+     */
+    private static int nodesAt( GpsLogWay way, byte zoom ) {
+        // the whole world at the zoom level
+        long mapSize = (long) 256 << zoom;
+        int size = (int) Math.min(Integer.MAX_VALUE, mapSize);
+        assertTrue(way.prepare(new Point(0, 0), size, size, zoom));
+        return way.wayNodes[0].length;
+    }
+
+}
@@ -0,0 +1,496 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2010  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.hydrologis.geopaparazzi.maps.tiles;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Tests of the {@link TileFetcher} against a local http server serving tiles from disk.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestTileFetcher extends TestCase {
+
+    private static final byte ZOOM = 10;
+    private static final long WAIT_MILLIS = 10000;
+
+    private File tilesFolder;
+    private TileServer server;
+    private MemoryTileStore tileStore;
+    private TileFetcher fetcher;
+
+    protected void setUp() throws Exception {
+        tilesFolder = File.createTempFile("tiles", "");
+        tilesFolder.delete();
+        // a block of tiles on one zoom level, the others are missing
+        for( int x = 495; x <= 515; x++ ) {
+            for( int y = 495; y <= 515; y++ ) {
+                File tileFile = new File(tilesFolder, ZOOM + "/" + x + "/" + y + ".png");
+                tileFile.getParentFile().mkdirs();
+                OutputStream outputStream = new FileOutputStream(tileFile);
+                try {
+                    outputStream.write(getTileBytes(new Tile(x, y, ZOOM)));
+                } finally {
+                    outputStream.close();
+                }
+            }
+        }
+        server = new TileServer(tilesFolder);
+        tileStore = new MemoryTileStore();
+    }
+
+    protected void tearDown() throws Exception {
+        if (fetcher != null) {
+            fetcher.shutdown();
+        }
+        server.close();
+        delete(tilesFolder);
+    }
+
+    public void testRequestedBeforePrefetchNearestFirst() throws Exception {
+        fetcher = createFetcher(1, 1);
+        fetcher.setViewCenter(ZOOM, 500.5, 500.5);
+
+        // keeps the only worker busy while the rest is queued
+        server.closeGate();
+        Tile blocking = new Tile(500, 500, ZOOM);
+        FetchThread blockingThread = new FetchThread(blocking);
+        blockingThread.start();
+        waitForRequests(1);
+
+        Tile requested = new Tile(510, 500, ZOOM);
+        FetchThread requestedThread = new FetchThread(requested);
+        requestedThread.start();
+        // the requested tile and the prefetches of both
+        waitForQueued(1 + 12 + 12);
+
+        server.openGate();
+        blockingThread.assertResult(getTileBytes(blocking));
+        requestedThread.assertResult(getTileBytes(requested));
+        waitForQueued(0);
+        waitForRequests(2 + 12 + 12);
+
+        List<String> paths = server.getPaths();
+        assertEquals(getPath(blocking), paths.get(0));
+        assertEquals(getPath(requested), paths.get(1));
+        double previousDistance = 0;
+        for( String path : paths.subList(2, paths.size()) ) {
+            double distance = getDistanceFromView(path, 500.5, 500.5);
+            assertTrue(path + " before a nearer tile", distance >= previousDistance);
+            previousDistance = distance;
+        }
+    }
+
+    public void testConnectionsPerHost() throws Exception {
+        fetcher = createFetcher(4, 2);
+        server.setDelay(50);
+
+        Tile tile = new Tile(505, 505, ZOOM);
+        assertTrue(Arrays.equals(getTileBytes(tile), fetcher.fetch(tile)));
+        waitForQueued(0);
+        waitForRequests(1 + 12);
+
+        assertEquals(2, server.getMaxActive());
+    }
+
+    public void testQueuedJobReused() throws Exception {
+        fetcher = createFetcher(1, 1);
+        fetcher.setViewCenter(ZOOM, 499.5, 499.5);
+
+        server.closeGate();
+        Tile blocking = new Tile(500, 500, ZOOM);
+        FetchThread blockingThread = new FetchThread(blocking);
+        blockingThread.start();
+        waitForRequests(1);
+        waitForQueued(12);
+
+        // prefetched already, and the farthest from the view
+        Tile requested = new Tile(501, 501, ZOOM);
+        FetchThread requestedThread = new FetchThread(requested);
+        requestedThread.start();
+        // and the prefetches around it that were not queued yet, five neighbours and the children
+        waitForQueued(12 + 9);
+
+        server.openGate();
+        blockingThread.assertResult(getTileBytes(blocking));
+        requestedThread.assertResult(getTileBytes(requested));
+        waitForQueued(0);
+        waitForRequests(1 + 12 + 9);
+
+        List<String> paths = server.getPaths();
+        assertEquals(getPath(requested), paths.get(1));
+        int requestedCount = 0;
+        for( String path : paths ) {
+            if (path.equals(getPath(requested))) {
+                requestedCount++;
+            }
+        }
+        assertEquals(1, requestedCount);
+    }
+
+    public void testRevalidation() throws Exception {
+        fetcher = createFetcher(1, 1);
+        long expired = System.currentTimeMillis() - 1000;
+
+        // unchanged on the server, the stored tile is kept and its expiry renewed
+        Tile unchanged = new Tile(505, 505, ZOOM);
+        byte[] storedBytes = new byte[]{1, 2, 3};
+        tileStore.putStoredTile(unchanged, storedBytes, getEtag(unchanged), expired);
+        assertTrue(Arrays.equals(storedBytes, fetcher.fetch(unchanged)));
+        assertEquals(getEtag(unchanged), server.getIfNoneMatch(getPath(unchanged)));
+        TileStore.StoredTile storedTile = tileStore.getStoredTile(unchanged);
+        assertTrue(Arrays.equals(storedBytes, storedTile.data));
+        assertFalse(storedTile.isExpired());
+
+        // changed on the server, the new tile is downloaded
+        Tile changed = new Tile(510, 510, ZOOM);
+        tileStore.putStoredTile(changed, storedBytes, "\"old\"", expired);
+        assertTrue(Arrays.equals(getTileBytes(changed), fetcher.fetch(changed)));
+        assertEquals("\"old\"", server.getIfNoneMatch(getPath(changed)));
+        storedTile = tileStore.getStoredTile(changed);
+        assertTrue(Arrays.equals(getTileBytes(changed), storedTile.data));
+        assertEquals(getEtag(changed), storedTile.etag);
+        assertFalse(storedTile.isExpired());
+
+        // still valid, the server is not asked
+        int requests = server.getPaths().size();
+        assertTrue(Arrays.equals(storedBytes, fetcher.fetch(unchanged)));
+        waitForQueued(0);
+        assertFalse(server.getPaths().subList(requests, server.getPaths().size()).contains(getPath(unchanged)));
+        assertTrue(fetcher.getInfo().contains("not modified=1"));
+    }
+
+    private TileFetcher createFetcher( int workers, int connectionsPerHost ) {
+        final int port = server.getPort();
+        TileFetcher.TileUrlProvider urlProvider = new TileFetcher.TileUrlProvider(){
+            public String getTileUrl( Tile tile ) {
+                return "http://127.0.0.1:" + port + getPath(tile);
+            }
+        };
+        return new TileFetcher(urlProvider, tileStore, (byte) 18, workers, connectionsPerHost);
+    }
+
+    private void waitForRequests( int count ) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while( server.getPaths().size() < count ) {
+            if (System.currentTimeMillis() - start > WAIT_MILLIS) {
+                fail("Expected " + count + " requests, got: " + server.getPaths());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void waitForQueued( int count ) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while( !fetcher.getInfo().endsWith(" queued=" + count) ) {
+            if (System.currentTimeMillis() - start > WAIT_MILLIS) {
+                fail("Expected " + count + " queued: " + fetcher.getInfo());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static String getPath( Tile tile ) {
+        return "/" + tile.zoomLevel + "/" + tile.tileX + "/" + tile.tileY + ".png";
+    }
+
+    private static String getEtag( Tile tile ) {
+        return "\"" + tile.zoomLevel + "-" + tile.tileX + "-" + tile.tileY + "\"";
+    }
+
+    private static byte[] getTileBytes( Tile tile ) {
+        return ("tile " + getPath(tile)).getBytes();
+    }
+
+    /**
+     * The distance of the tile of a path from the center of the view, in tiles of {@link #ZOOM}.
+     */
+    private static double getDistanceFromView( String path, double centerX, double centerY ) {
+        String[] parts = path.substring(1, path.length() - 4).split("/");
+        double scale = Math.pow(2, Integer.parseInt(parts[0]) - ZOOM);
+        double dx = (Long.parseLong(parts[1]) + 0.5) / scale - centerX;
+        double dy = (Long.parseLong(parts[2]) + 0.5) / scale - centerY;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static void delete( File file ) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for( File child : files ) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Fetches a tile in the background, since the fetch waits for the download.
+     */
+    private class FetchThread extends Thread {
+        private final Tile tile;
+        private byte[] result;
+        private IOException error;
+
+        FetchThread( Tile tile ) {
+            this.tile = tile;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                result = fetcher.fetch(tile);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        void assertResult( byte[] expected ) throws InterruptedException {
+            join(WAIT_MILLIS);
+            assertFalse(isAlive());
+            assertNull(error);
+            assertTrue(Arrays.equals(expected, result));
+        }
+    }
+
+    private static class MemoryTileStore implements TileStore {
+        private final HashMap<String, StoredTile> tiles = new HashMap<String, StoredTile>();
+
+        public synchronized StoredTile getStoredTile( Tile tile ) {
+            return tiles.get(getPath(tile));
+        }
+
+        public synchronized void putStoredTile( Tile tile, byte[] data, String etag, long expires ) {
+            tiles.put(getPath(tile), new StoredTile(data, etag, expires));
+        }
+
+        public synchronized void refreshStoredTile( Tile tile, long expires ) {
+            StoredTile storedTile = tiles.get(getPath(tile));
+            if (storedTile != null) {
+                tiles.put(getPath(tile), new StoredTile(storedTile.data, storedTile.etag, expires));
+            }
+        }
+    }
+
+    /**
+     * A minimal keep-alive http server of the tile files of a folder.
+     *
+     * <p>Tiles are answered with an ETag and revalidated through If-None-Match.
+     * The requests are recorded in the order they arrive, and can be held back
+     * through a gate or slowed down to check the parallel connections.</p>
+     */
+    private static class TileServer implements Runnable {
+        private final File folder;
+        private final ServerSocket serverSocket;
+        private final List<Socket> sockets = new ArrayList<Socket>();
+        private final List<String> paths = new ArrayList<String>();
+        private final HashMap<String, String> ifNoneMatches = new HashMap<String, String>();
+        private CountDownLatch gate = new CountDownLatch(0);
+        private long delay = 0;
+        private int active = 0;
+        private int maxActive = 0;
+
+        TileServer( File folder ) throws IOException {
+            this.folder = folder;
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "tile-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        synchronized void closeGate() {
+            gate = new CountDownLatch(1);
+        }
+
+        synchronized void openGate() {
+            gate.countDown();
+        }
+
+        synchronized void setDelay( long delay ) {
+            this.delay = delay;
+        }
+
+        synchronized List<String> getPaths() {
+            return new ArrayList<String>(paths);
+        }
+
+        synchronized String getIfNoneMatch( String path ) {
+            return ifNoneMatches.get(path);
+        }
+
+        synchronized int getMaxActive() {
+            return maxActive;
+        }
+
+        public void run() {
+            while( !serverSocket.isClosed() ) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    synchronized (this) {
+                        sockets.add(socket);
+                    }
+                    Thread thread = new Thread(new Runnable(){
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "tile-server-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void serve( Socket socket ) {
+            try {
+                InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+                OutputStream outputStream = socket.getOutputStream();
+                String requestLine;
+                // the requests of a kept alive connection
+                while( (requestLine = readLine(inputStream)) != null ) {
+                    String ifNoneMatch = null;
+                    String header;
+                    while( (header = readLine(inputStream)) != null && header.length() > 0 ) {
+                        if (header.toLowerCase().startsWith("if-none-match:")) {
+                            ifNoneMatch = header.substring(14).trim();
+                        }
+                    }
+                    String path = requestLine.split(" ")[1];
+                    handle(path, ifNoneMatch, outputStream);
+                }
+            } catch (IOException e) {
+                // closed
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        private void handle( String path, String ifNoneMatch, OutputStream outputStream ) throws IOException {
+            CountDownLatch requestGate;
+            long requestDelay;
+            synchronized (this) {
+                paths.add(path);
+                if (ifNoneMatch != null) {
+                    ifNoneMatches.put(path, ifNoneMatch);
+                }
+                active++;
+                maxActive = Math.max(maxActive, active);
+                requestGate = gate;
+                requestDelay = delay;
+            }
+            try {
+                requestGate.await(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                if (requestDelay > 0) {
+                    Thread.sleep(requestDelay);
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+
+            File tileFile = new File(folder, path);
+            String[] parts = path.substring(1, path.length() - 4).split("/");
+            String etag = "\"" + parts[0] + "-" + parts[1] + "-" + parts[2] + "\"";
+            StringBuilder response = new StringBuilder();
+            byte[] body = new byte[0];
+            if (!tileFile.exists()) {
+                response.append("HTTP/1.1 404 Not Found\r\n");
+            } else if (etag.equals(ifNoneMatch)) {
+                response.append("HTTP/1.1 304 Not Modified\r\n");
+                response.append("ETag: ").append(etag).append("\r\n");
+                response.append("Cache-Control: max-age=3600\r\n");
+            } else {
+                body = readFile(tileFile);
+                response.append("HTTP/1.1 200 OK\r\n");
+                response.append("Content-Type: image/png\r\n");
+                response.append("ETag: ").append(etag).append("\r\n");
+                response.append("Cache-Control: max-age=3600\r\n");
+            }
+            if (body.length > 0 || !response.toString().startsWith("HTTP/1.1 304")) {
+                response.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            response.append("\r\n");
+            synchronized (this) {
+                active--;
+            }
+            outputStream.write(response.toString().getBytes());
+            outputStream.write(body);
+            outputStream.flush();
+        }
+
+        private static String readLine( InputStream inputStream ) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while( (b = inputStream.read()) != -1 ) {
+                if (b == '\n') {
+                    String string = line.toString();
+                    return string.endsWith("\r") ? string.substring(0, string.length() - 1) : string;
+                }
+                line.write(b);
+            }
+            return null;
+        }
+
+        private static byte[] readFile( File file ) throws IOException {
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                return TileFetcher.readAll(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        void close() throws IOException {
+            openGate();
+            serverSocket.close();
+            synchronized (this) {
+                for( Socket socket : sockets ) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+}